@@ -322,6 +322,14 @@ public class BpfCoordinator {
             return SdkLevel.isAtLeastS();
         }
 
+        /**
+         * Whether the stats provider reports tether stats as soon as they are polled, instead of
+         * when the service requests them. Only services on T+ support it.
+         */
+        public boolean isStatsPushEnabled() {
+            return SdkLevel.isAtLeastT();
+        }
+
         /** Get downstream4 BPF map. */
         @Nullable public BpfMap<Tether4Key, Tether4Value> getBpfDownstream4Map() {
             if (!isAtLeastS()) return null;
@@ -1446,6 +1454,11 @@ public class BpfCoordinator {
         // The same stats as above, but counts network stats per uid.
         private NetworkStats mUidStats = new NetworkStats(0L, 0);
 
+        @Override
+        public boolean isStatsPushEnabled() {
+            return mDeps.isStatsPushEnabled();
+        }
+
         @Override
         public void onRequestStatsUpdate(int token) {
             mHandler.post(() -> pushTetherStats());
@@ -1900,6 +1913,12 @@ public class BpfCoordinator {
             updateAlertQuota(newQuota);
         }
 
+        // In push mode, report the stats delta as it is polled. Polls without traffic are
+        // coalesced with the next one.
+        if (usedAlertQuota > 0 && mStatsProvider != null && mDeps.isStatsPushEnabled()) {
+            mStatsProvider.pushTetherStats();
+        }
+
         // TODO: Count the used limit quota for notifying data limit reached.
     }
 
@@ -458,6 +458,8 @@ public class BpfCoordinatorTest {
     @Before public void setUp() {
         MockitoAnnotations.initMocks(this);
         when(mTetherConfig.isBpfOffloadEnabled()).thenReturn(true /* default value */);
+        // Tests push stats explicitly, unless they test the push mode.
+        doReturn(false).when(mDeps).isStatsPushEnabled();
     }
 
     private void waitForIdle() {
@@ -854,6 +856,36 @@ public class BpfCoordinatorTest {
         verifyNeverTetherOffloadGetStats();
     }
 
+    @Test
+    public void testPushTetherStatsWhenPolled() throws Exception {
+        setupFunctioningNetdInterface();
+
+        doReturn(true).when(mDeps).isStatsPushEnabled();
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        assertTrue(mTetherStatsProvider.isStatsPushEnabled());
+        coordinator.startPolling();
+
+        final String mobileIface = "rmnet_data0";
+        final Integer mobileIfIndex = 100;
+        coordinator.addUpstreamNameToLookupTable(mobileIfIndex, mobileIface);
+
+        // Stats are reported as soon as they are polled.
+        updateStatsEntriesAndWaitForUpdate(new TetherStatsParcel[] {
+                buildTestTetherStatsParcel(mobileIfIndex, 1000, 100, 2000, 200)});
+        mTetherStatsProviderCb.expectNotifyStatsUpdated(
+                new NetworkStats(0L, 1).addEntry(
+                        buildTestEntry(STATS_PER_IFACE, mobileIface, 1000, 100, 2000, 200)),
+                new NetworkStats(0L, 1).addEntry(
+                        buildTestEntry(STATS_PER_UID, mobileIface, 1000, 100, 2000, 200)));
+
+        // Polls without traffic report nothing.
+        updateStatsEntriesAndWaitForUpdate(new TetherStatsParcel[] {
+                buildTestTetherStatsParcel(mobileIfIndex, 1000, 100, 2000, 200)});
+        mTetherStatsProviderCb.assertNoCallback();
+
+        coordinator.stopPolling();
+    }
+
     @Test
     public void testOnSetAlert() throws Exception {
         setupFunctioningNetdInterface();
@@ -27,13 +27,12 @@ import android.net.TrafficStats;
 import android.os.RemoteException;
 import android.util.Log;
 
-import com.android.net.module.util.CollectionUtils;
-
 import dalvik.system.CloseGuard;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Class providing enumeration over buckets of network usage statistics. {@link NetworkStats} objects
@@ -42,6 +41,12 @@ import java.util.ArrayList;
 public final class NetworkStats implements AutoCloseable {
     private final static String TAG = "NetworkStats";
 
+    /**
+     * Number of entries fetched at once by paged summary queries. Keeps each transaction well
+     * below the binder limit, with a few round trips for typical summaries.
+     */
+    private static final int SUMMARY_PAGE_MIN_ENTRIES = 256;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     /**
@@ -83,10 +88,15 @@ public final class NetworkStats implements AutoCloseable {
     private NetworkTemplate mTemplate;
 
     /**
-     * Results of a summary query.
+     * Results of a summary query, or the current page of a paged summary query.
      */
     private android.net.NetworkStats mSummary = null;
 
+    /**
+     * Whether more pages of a paged summary query are to be fetched from the session.
+     */
+    private boolean mHasMoreSummaryPages = false;
+
     /**
      * Results of detail queries.
      */
@@ -493,7 +503,7 @@ public final class NetworkStats implements AutoCloseable {
      */
     public boolean hasNextBucket() {
         if (mSummary != null) {
-            return mEnumerationIndex < mSummary.size();
+            return hasNextSummaryEntry();
         } else if (mHistory != null) {
             return mEnumerationIndex < mHistory.size()
                     || hasNextUid();
@@ -536,6 +546,27 @@ public final class NetworkStats implements AutoCloseable {
         return getSummaryAggregate();
     }
 
+    /**
+     * Collects device summary results for each of the given templates, across each of the given
+     * ranges, into Buckets ordered by template, then by range.
+     * @throws RemoteException
+     */
+    List<Bucket> getDeviceSummariesForNetworks(NetworkTemplate[] templates, long[] starts,
+            long[] ends) throws RemoteException {
+        final android.net.NetworkStats[] summaries =
+                mSession.getDeviceSummariesForNetworks(templates, starts, ends);
+        final ArrayList<Bucket> buckets = new ArrayList<>(summaries.length);
+        final android.net.NetworkStats.Entry entry = new android.net.NetworkStats.Entry();
+        for (int i = 0; i < summaries.length; i++) {
+            summaries[i].getTotal(entry);
+            final Bucket bucket = new Bucket();
+            fillBucketFromSummaryEntry(bucket, entry, starts[i % starts.length],
+                    ends[i % ends.length]);
+            buckets.add(bucket);
+        }
+        return buckets;
+    }
+
     /**
      * Collects summary results and sets summary enumeration mode.
      * @throws RemoteException
@@ -546,6 +577,27 @@ public final class NetworkStats implements AutoCloseable {
         mEnumerationIndex = 0;
     }
 
+    /**
+     * Starts a paged summary enumeration, where summary results are fetched from the session
+     * a page at a time as buckets are enumerated, and sets summary enumeration mode.
+     * @throws RemoteException
+     */
+    void startPagedSummaryEnumeration() throws RemoteException {
+        mSession.startSummaryPagingForAllUid(mTemplate, mStartTimeStamp, mEndTimeStamp,
+                false /* includeTags */);
+        // Fetch the first page now, so that failures are reported to the caller.
+        final android.net.NetworkStats page = mSession.getNextSummaryPage(
+                SUMMARY_PAGE_MIN_ENTRIES);
+        if (page != null) {
+            mSummary = page;
+            mHasMoreSummaryPages = true;
+        } else {
+            mSummary = new android.net.NetworkStats(mEndTimeStamp - mStartTimeStamp, 0);
+            mHasMoreSummaryPages = false;
+        }
+        mEnumerationIndex = 0;
+    }
+
     /**
      * Collects tagged summary results and sets summary enumeration mode.
      * @throws RemoteException
@@ -555,6 +607,16 @@ public final class NetworkStats implements AutoCloseable {
         mEnumerationIndex = 0;
     }
 
+    /**
+     * Collects the summary results of the top uids and sets summary enumeration mode.
+     * @throws RemoteException
+     */
+    void startTopUidsEnumeration(int rankBy, int limit) throws RemoteException {
+        mSummary = mSession.getTopUidsForNetwork(mTemplate, mStartTimeStamp, mEndTimeStamp,
+                rankBy, limit);
+        mEnumerationIndex = 0;
+    }
+
     /**
      * Collects history results for uid and resets history enumeration index.
      */
@@ -587,37 +649,24 @@ public final class NetworkStats implements AutoCloseable {
     }
 
     /**
-     * Starts uid enumeration for current user.
+     * Starts uid enumeration for current user. The history of each uid is only fetched when
+     * the enumeration reaches it, so that they are never all held at once.
      * @throws RemoteException
      */
     void startUserUidEnumeration() throws RemoteException {
         // TODO: getRelevantUids should be sensitive to time interval. When that's done,
-        //       the filtering logic below can be removed.
-        int[] uids = mSession.getRelevantUids();
-        // Filtering of uids with empty history.
-        final ArrayList<Integer> filteredUids = new ArrayList<>();
-        for (int uid : uids) {
-            try {
-                NetworkStatsHistory history = mSession.getHistoryIntervalForUid(mTemplate, uid,
-                        android.net.NetworkStats.SET_ALL, android.net.NetworkStats.TAG_NONE,
-                        NetworkStatsHistory.FIELD_ALL, mStartTimeStamp, mEndTimeStamp);
-                if (history != null && history.size() > 0) {
-                    filteredUids.add(uid);
-                }
-            } catch (RemoteException e) {
-                Log.w(TAG, "Error while getting history of uid " + uid, e);
-            }
-        }
-        mUids = CollectionUtils.toIntArray(filteredUids);
+        //       skipping uids with empty history in stepHistory can be removed.
+        mUids = mSession.getRelevantUids();
         mUidOrUidIndex = -1;
         stepHistory();
     }
 
     /**
-     * Steps to next uid in enumeration and collects history for that.
+     * Steps to the next uid in enumeration with usage in the interval, and collects history
+     * for that. Uids with empty history are skipped.
      */
     private void stepHistory(){
-        if (hasNextUid()) {
+        while (hasNextUid()) {
             stepUid();
             mHistory = null;
             try {
@@ -625,27 +674,34 @@ public final class NetworkStats implements AutoCloseable {
                         android.net.NetworkStats.SET_ALL, android.net.NetworkStats.TAG_NONE,
                         NetworkStatsHistory.FIELD_ALL, mStartTimeStamp, mEndTimeStamp);
             } catch (RemoteException e) {
-                Log.w(TAG, e);
+                Log.w(TAG, "Error while getting history of uid " + getUid(), e);
                 // Leaving mHistory null
             }
             mEnumerationIndex = 0;
+            if (mHistory != null && mHistory.size() > 0) return;
         }
     }
 
     private void fillBucketFromSummaryEntry(Bucket bucketOut) {
-        bucketOut.mUid = Bucket.convertUid(mRecycledSummaryEntry.uid);
-        bucketOut.mTag = Bucket.convertTag(mRecycledSummaryEntry.tag);
-        bucketOut.mState = Bucket.convertState(mRecycledSummaryEntry.set);
+        fillBucketFromSummaryEntry(bucketOut, mRecycledSummaryEntry, mStartTimeStamp,
+                mEndTimeStamp);
+    }
+
+    private static void fillBucketFromSummaryEntry(Bucket bucketOut,
+            android.net.NetworkStats.Entry entry, long startTimeStamp, long endTimeStamp) {
+        bucketOut.mUid = Bucket.convertUid(entry.uid);
+        bucketOut.mTag = Bucket.convertTag(entry.tag);
+        bucketOut.mState = Bucket.convertState(entry.set);
         bucketOut.mDefaultNetworkStatus = Bucket.convertDefaultNetworkStatus(
-                mRecycledSummaryEntry.defaultNetwork);
-        bucketOut.mMetered = Bucket.convertMetered(mRecycledSummaryEntry.metered);
-        bucketOut.mRoaming = Bucket.convertRoaming(mRecycledSummaryEntry.roaming);
-        bucketOut.mBeginTimeStamp = mStartTimeStamp;
-        bucketOut.mEndTimeStamp = mEndTimeStamp;
-        bucketOut.mRxBytes = mRecycledSummaryEntry.rxBytes;
-        bucketOut.mRxPackets = mRecycledSummaryEntry.rxPackets;
-        bucketOut.mTxBytes = mRecycledSummaryEntry.txBytes;
-        bucketOut.mTxPackets = mRecycledSummaryEntry.txPackets;
+                entry.defaultNetwork);
+        bucketOut.mMetered = Bucket.convertMetered(entry.metered);
+        bucketOut.mRoaming = Bucket.convertRoaming(entry.roaming);
+        bucketOut.mBeginTimeStamp = startTimeStamp;
+        bucketOut.mEndTimeStamp = endTimeStamp;
+        bucketOut.mRxBytes = entry.rxBytes;
+        bucketOut.mRxPackets = entry.rxPackets;
+        bucketOut.mTxBytes = entry.txBytes;
+        bucketOut.mTxPackets = entry.txPackets;
     }
 
     /**
@@ -654,7 +710,7 @@ public final class NetworkStats implements AutoCloseable {
      * @return true if a next item could be set.
      */
     private boolean getNextSummaryBucket(@Nullable Bucket bucketOut) {
-        if (bucketOut != null && mEnumerationIndex < mSummary.size()) {
+        if (bucketOut != null && hasNextSummaryEntry()) {
             mRecycledSummaryEntry = mSummary.getValues(mEnumerationIndex++, mRecycledSummaryEntry);
             fillBucketFromSummaryEntry(bucketOut);
             return true;
@@ -662,6 +718,30 @@ public final class NetworkStats implements AutoCloseable {
         return false;
     }
 
+    /**
+     * Check whether the summary enumeration has more entries, fetching the next page of a paged
+     * summary query when the current one is exhausted.
+     */
+    private boolean hasNextSummaryEntry() {
+        while (mEnumerationIndex >= mSummary.size() && mHasMoreSummaryPages) {
+            mHasMoreSummaryPages = false;
+            if (mSession == null) break;
+            try {
+                final android.net.NetworkStats page = mSession.getNextSummaryPage(
+                        SUMMARY_PAGE_MIN_ENTRIES);
+                if (page != null) {
+                    mSummary = page;
+                    mEnumerationIndex = 0;
+                    mHasMoreSummaryPages = true;
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, e);
+                // Ending the enumeration
+            }
+        }
+        return mEnumerationIndex < mSummary.size();
+    }
+
     Bucket getSummaryAggregate() {
         if (mSummary == null) {
             return null;
@@ -698,6 +778,10 @@ public final class NetworkStats implements AutoCloseable {
                 bucketOut.mRxPackets = mRecycledHistoryEntry.rxPackets;
                 bucketOut.mTxBytes = mRecycledHistoryEntry.txBytes;
                 bucketOut.mTxPackets = mRecycledHistoryEntry.txPackets;
+                if (mEnumerationIndex >= mHistory.size()) {
+                    // Look for the next uid with usage now, so that hasNextBucket is accurate.
+                    stepHistory();
+                }
                 return true;
             } else if (hasNextUid()) {
                 stepHistory();
@@ -22,6 +22,7 @@ import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
 
 import android.Manifest;
 import android.annotation.CallbackExecutor;
+import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.RequiresPermission;
@@ -49,10 +50,13 @@ import android.os.RemoteException;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.Range;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.NetworkIdentityUtils;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executor;
@@ -152,6 +156,35 @@ public class NetworkStatsManager {
     @SystemApi(client = MODULE_LIBRARIES)
     public static final int NETWORK_TYPE_5G_NSA = -2;
 
+    /** @hide */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(prefix = { "RANK_BY_" }, value = {
+            RANK_BY_TOTAL_BYTES,
+            RANK_BY_RX_BYTES,
+            RANK_BY_TX_BYTES,
+    })
+    public @interface RankBy {
+    }
+
+    /**
+     * Rank uids by the sum of their received and transmitted bytes.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public static final int RANK_BY_TOTAL_BYTES = 0;
+    /**
+     * Rank uids by their received bytes.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public static final int RANK_BY_RX_BYTES = 1;
+    /**
+     * Rank uids by their transmitted bytes.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    public static final int RANK_BY_TX_BYTES = 2;
+
     private int mFlags;
 
     /** @hide */
@@ -256,6 +289,49 @@ public class NetworkStatsManager {
         return null; // To make the compiler happy.
     }
 
+    /**
+     * Query network usage statistics summaries for several templates and periods at once.
+     *
+     * Equivalent to calling {@link #querySummaryForDevice(NetworkTemplate, long, long)} for
+     * each template and each period, but the usage of all of them is collected in a single pass
+     * over the recorded statistics. This may take a long time, and apps should avoid calling
+     * this on their main thread.
+     *
+     * @param templates Templates used to match networks. See {@link NetworkTemplate}.
+     * @param periods Periods to summarize usage over, in milliseconds since the Unix epoch, see
+     *            {@link java.lang.System#currentTimeMillis}.
+     * @return Summarised data usage of each template over each period, ordered by template,
+     *         then by period: the usage of {@code templates.get(i)} over {@code periods.get(j)}
+     *         is at index {@code i * periods.size() + j}.
+     *
+     * @hide
+     */
+    @NonNull
+    @WorkerThread
+    @SystemApi(client = MODULE_LIBRARIES)
+    public List<Bucket> querySummariesForDevice(@NonNull List<NetworkTemplate> templates,
+            @NonNull List<Range<Long>> periods) {
+        Objects.requireNonNull(templates);
+        Objects.requireNonNull(periods);
+        final long[] starts = new long[periods.size()];
+        final long[] ends = new long[periods.size()];
+        for (int i = 0; i < periods.size(); i++) {
+            starts[i] = periods.get(i).getLower();
+            ends[i] = periods.get(i).getUpper();
+        }
+        try {
+            NetworkStats stats = new NetworkStats(mContext, null /* template */, mFlags,
+                    0 /* startTimestamp */, 0 /* endTimestamp */, mService);
+            List<Bucket> buckets = stats.getDeviceSummariesForNetworks(
+                    templates.toArray(new NetworkTemplate[0]), starts, ends);
+            stats.close();
+            return buckets;
+        } catch (RemoteException e) {
+            e.rethrowFromSystemServer();
+        }
+        return null; // To make the compiler happy.
+    }
+
     /**
      * Query network usage statistics summaries. Result is summarised data usage for the whole
      * device. Result is a single Bucket aggregated over time, state, uid, tag, metered, and
@@ -423,7 +499,7 @@ public class NetworkStatsManager {
         try {
             NetworkStats result =
                     new NetworkStats(mContext, template, mFlags, startTime, endTime, mService);
-            result.startSummaryEnumeration();
+            result.startPagedSummaryEnumeration();
             return result;
         } catch (RemoteException e) {
             e.rethrowFromSystemServer();
@@ -465,6 +541,48 @@ public class NetworkStatsManager {
         return null; // To make the compiler happy.
     }
 
+    /**
+     * Query the uids which used the most data on networks matching a given
+     * {@link NetworkTemplate}.
+     *
+     * The results will only include traffic made by UIDs belonging to the calling user profile,
+     * and are sorted by decreasing usage. Each bucket holds the usage of one uid, aggregated over
+     * time, state, tag, default network, metered and roaming. Only the top uids are sent by the
+     * service, so this is much cheaper than ranking the results of
+     * {@link #querySummary(NetworkTemplate, long, long)} when many uids have usage.
+     * This may take a long time, and apps should avoid calling this on their main thread.
+     *
+     * @param template Template used to match networks. See {@link NetworkTemplate}.
+     * @param startTime Start of period, in milliseconds since the Unix epoch, see
+     *            {@link System#currentTimeMillis}.
+     * @param endTime End of period, in milliseconds since the Unix epoch, see
+     *            {@link System#currentTimeMillis}.
+     * @param rankBy How to rank uids, one of {@link #RANK_BY_TOTAL_BYTES},
+     *            {@link #RANK_BY_RX_BYTES} or {@link #RANK_BY_TX_BYTES}.
+     * @param limit Maximum number of uids to return.
+     * @return Statistics which is described above.
+     * @hide
+     */
+    @NonNull
+    @SystemApi(client = MODULE_LIBRARIES)
+    @WorkerThread
+    public NetworkStats queryTopUids(@NonNull NetworkTemplate template, long startTime,
+            long endTime, @RankBy int rankBy, int limit) throws SecurityException {
+        Objects.requireNonNull(template);
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative limit: " + limit);
+        }
+        try {
+            NetworkStats result =
+                    new NetworkStats(mContext, template, mFlags, startTime, endTime, mService);
+            result.startTopUidsEnumeration(rankBy, limit);
+            return result;
+        } catch (RemoteException e) {
+            e.rethrowFromSystemServer();
+        }
+        return null; // To make the compiler happy.
+    }
+
     /**
      * Query usage statistics details for networks matching a given {@link NetworkTemplate}.
      *
@@ -776,6 +894,39 @@ public class NetworkStatsManager {
         }
     }
 
+    /**
+     * Query the recent usage of each UID on each interface, over several windows at once.
+     *
+     * Return the untagged traffic of each UID on each interface over each of the given
+     * windows before the last statistics poll. The elapsed realtime of each result is the exact
+     * duration its usage covers, in milliseconds, so that the throughput of an entry is its
+     * usage divided by that duration. The service keeps the deltas of recent polls in memory,
+     * so this is cheap enough to call repeatedly.
+     *
+     * Polls are not split, so each window is widened to whole polls, and windows only cover
+     * different usage when polls are closer than the difference between them. With the default
+     * poll interval of 30 minutes, 1, 5 and 15 minute windows all cover the last poll; telling
+     * them apart needs polls at least every minute, e.g. by calling {@link #forceUpdate()}.
+     *
+     * @param windowsMillis lengths of the windows, in milliseconds, in increasing order, each
+     *                      at most 15 minutes.
+     * @return the usage over each window, in the same order.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    @RequiresPermission(anyOf = {
+            NetworkStack.PERMISSION_MAINLINE_NETWORK_STACK,
+            android.Manifest.permission.NETWORK_STACK})
+    @NonNull public android.net.NetworkStats[] getRecentUidUsage(@NonNull long[] windowsMillis) {
+        Objects.requireNonNull(windowsMillis);
+        try {
+            return mService.getRecentUidUsage(windowsMillis);
+        } catch (RemoteException e) {
+            if (DBG) Log.d(TAG, "Remote exception when get recent uid usage");
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     /**
      * Registers to receive notifications about data usage on specified networks.
      *
@@ -988,8 +1139,9 @@ public class NetworkStatsManager {
             if (provider.getProviderCallbackBinder() != null) {
                 throw new IllegalArgumentException("provider is already registered");
             }
-            final INetworkStatsProviderCallback cbBinder =
-                    mService.registerNetworkStatsProvider(tag, provider.getProviderBinder());
+            final INetworkStatsProviderCallback cbBinder = provider.isStatsPushEnabled()
+                    ? mService.registerPushNetworkStatsProvider(tag, provider.getProviderBinder())
+                    : mService.registerNetworkStatsProvider(tag, provider.getProviderBinder());
             provider.setProviderCallbackBinder(cbBinder);
         } catch (RemoteException e) {
             e.rethrowAsRuntimeException();
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import android.annotation.NonNull;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Process-wide table of interned {@link NetworkIdentitySet}, so that every
+ * {@link NetworkStatsCollection.Key} refers to a single canonical instance of each distinct
+ * set. Stats files repeat the same handful of sets over and over, so this saves both the heap
+ * of the copies and the cost of comparing them: keys holding equal sets hold the same
+ * instance.
+ *
+ * <p>Canonical instances are only weakly referenced, so a set is forgotten once no key uses
+ * it anymore. They cannot be modified, and each remembers whether it matched the last
+ * {@link NetworkTemplate} it was tested against, since queries test many keys sharing a set
+ * against the same template.
+ *
+ * <p>Thread-safe. Looking up a set already interned, and matching, take no lock.
+ */
+final class NetworkIdentitySetRegistry {
+    private static final NetworkIdentitySetRegistry sInstance = new NetworkIdentitySetRegistry();
+
+    /** Canonical instances, by an equal private copy of their content. */
+    private final ConcurrentHashMap<NetworkIdentitySet, CanonicalRef> mCanonicals =
+            new ConcurrentHashMap<>();
+    private final ReferenceQueue<CanonicalSet> mCollected = new ReferenceQueue<>();
+
+    @NonNull
+    static NetworkIdentitySetRegistry getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Return the canonical instance equal to the given set, registering an unmodifiable copy
+     * of it if there is none.
+     */
+    @NonNull
+    NetworkIdentitySet intern(@NonNull NetworkIdentitySet ident) {
+        if (ident instanceof CanonicalSet) return ident;
+        expungeCollected();
+
+        CanonicalRef ref = mCanonicals.get(ident);
+        final NetworkIdentitySet existing = (ref == null) ? null : ref.get();
+        if (existing != null) return existing;
+
+        final CanonicalSet canonical = new CanonicalSet(ident);
+        final CanonicalRef newRef = new CanonicalRef(canonical, mCollected);
+        while (true) {
+            ref = mCanonicals.putIfAbsent(newRef.mContent, newRef);
+            if (ref == null) return canonical;
+            final NetworkIdentitySet raced = ref.get();
+            if (raced != null) return raced;
+            // Collected but not expunged yet.
+            if (mCanonicals.replace(newRef.mContent, ref, newRef)) return canonical;
+        }
+    }
+
+    /** Number of interned sets, including those collected but not forgotten yet. */
+    int size() {
+        expungeCollected();
+        return mCanonicals.size();
+    }
+
+    private void expungeCollected() {
+        CanonicalRef ref;
+        while ((ref = (CanonicalRef) mCollected.poll()) != null) {
+            mCanonicals.remove(ref.mContent, ref);
+        }
+    }
+
+    /**
+     * Test if the given {@link NetworkTemplate} matches any {@link NetworkIdentity} in the
+     * given set.
+     */
+    static boolean matches(@NonNull NetworkTemplate template, @NonNull NetworkIdentitySet ident) {
+        if (!(ident instanceof CanonicalSet)) return templateMatches(template, ident);
+        final CanonicalSet canonical = (CanonicalSet) ident;
+        final MatchResult last = canonical.mLastMatch;
+        if (last != null && (last.template == template || last.template.equals(template))) {
+            return last.matches;
+        }
+        final boolean matches = templateMatches(template, ident);
+        canonical.mLastMatch = new MatchResult(template, matches);
+        return matches;
+    }
+
+    private static boolean templateMatches(@NonNull NetworkTemplate template,
+            @NonNull NetworkIdentitySet identSet) {
+        for (NetworkIdentity ident : identSet) {
+            if (template.matches(ident)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Weak reference to a canonical instance, keeping the map key it is stored under so that
+     * it can be removed once collected.
+     */
+    private static final class CanonicalRef extends WeakReference<CanonicalSet> {
+        @NonNull final NetworkIdentitySet mContent;
+
+        CanonicalRef(@NonNull CanonicalSet canonical,
+                @NonNull ReferenceQueue<CanonicalSet> queue) {
+            super(canonical, queue);
+            mContent = new NetworkIdentitySet(canonical);
+        }
+    }
+
+    private static final class MatchResult {
+        @NonNull final NetworkTemplate template;
+        final boolean matches;
+
+        MatchResult(@NonNull NetworkTemplate template, boolean matches) {
+            this.template = template;
+            this.matches = matches;
+        }
+    }
+
+    /** An unmodifiable {@link NetworkIdentitySet}, with its hash code computed once. */
+    private static final class CanonicalSet extends NetworkIdentitySet {
+        private final boolean mFrozen;
+        private final int mHashCode;
+        /** Result of the last {@link #matches} call, replaced as a whole. */
+        volatile MatchResult mLastMatch;
+
+        CanonicalSet(@NonNull Set<NetworkIdentity> ident) {
+            super(ident);
+            mHashCode = super.hashCode();
+            mFrozen = true;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        private void checkNotFrozen() {
+            // Copying the content in the constructor goes through add().
+            if (mFrozen) throw new UnsupportedOperationException("canonical set");
+        }
+
+        @Override
+        public boolean add(NetworkIdentity ident) {
+            checkNotFrozen();
+            return super.add(ident);
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends NetworkIdentity> c) {
+            checkNotFrozen();
+            return super.addAll(c);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            throw new UnsupportedOperationException("canonical set");
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            throw new UnsupportedOperationException("canonical set");
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            throw new UnsupportedOperationException("canonical set");
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super NetworkIdentity> filter) {
+            throw new UnsupportedOperationException("canonical set");
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException("canonical set");
+        }
+
+        @Override
+        public Iterator<NetworkIdentity> iterator() {
+            final Iterator<NetworkIdentity> it = super.iterator();
+            // Without remove(), which throws by default.
+            return new Iterator<NetworkIdentity>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public NetworkIdentity next() {
+                    return it.next();
+                }
+            };
+        }
+    }
+}
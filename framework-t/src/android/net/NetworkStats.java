@@ -29,6 +29,7 @@ import android.os.Parcelable;
 import android.os.Process;
 import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -41,6 +42,7 @@ import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -203,6 +205,12 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     // Used for correct stats accounting on clatd interfaces.
     private static final int IPV4V6_HEADER_DELTA = 20;
 
+    /**
+     * Minimum number of rows before {@link #findIndex} switches from a linear scan to the
+     * hashed row index. Below this, scanning the columns is cheaper than hashing.
+     */
+    private static final int ROW_INDEX_MIN_SIZE = 16;
+
     // TODO: move fields to "mVariable" notation
 
     /**
@@ -241,6 +249,16 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private long[] operations;
 
+    /**
+     * Optional open-addressing hash index over the key columns, used by {@link #findIndex} and
+     * {@link #findIndexHinted}. Each slot holds the position of the first row with a given key
+     * plus one, or 0 if the slot is empty. The table is built lazily once {@link #size} reaches
+     * {@link #ROW_INDEX_MIN_SIZE}, extended by {@link #insertEntry(Entry)}, and dropped
+     * whenever rows are moved or their keys are rewritten in place.
+     */
+    @Nullable
+    private int[] mRowIndex;
+
     /**
      * Basic element of network statistics. Contains the number of packets and number of bytes
      * transferred on both directions in a given set of conditions. See
@@ -588,6 +606,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public void clear() {
         this.capacity = 0;
+        this.mRowIndex = null;
         this.iface = EmptyArray.STRING;
         this.uid = EmptyArray.INT;
         this.set = EmptyArray.INT;
@@ -602,6 +621,64 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         this.operations = EmptyArray.LONG;
     }
 
+    /**
+     * Remove all rows, but keep the allocated arrays so that this object can be refilled
+     * without allocating, for example by native parsing code which only fills the columns it
+     * knows about.
+     * @hide
+     */
+    public void reset(long elapsedRealtime) {
+        this.elapsedRealtime = elapsedRealtime;
+        this.size = 0;
+        invalidateRowIndex();
+        Arrays.fill(metered, METERED_NO);
+        Arrays.fill(roaming, ROAMING_NO);
+        Arrays.fill(defaultNetwork, DEFAULT_NETWORK_NO);
+    }
+
+    /**
+     * Replace the rows of this object by a copy of the rows of the given one, reusing the
+     * allocated arrays when they are large enough. Unlike {@link #clone()}, this allows a
+     * caller to keep a copy of a snapshot which changes over time without allocating.
+     * @hide
+     */
+    public NetworkStats copyFrom(@NonNull NetworkStats other) {
+        if (capacity < other.size) {
+            // Leave some room for the rows the next snapshot will likely add.
+            final int newLength = Math.max(other.size, 10) * 3 / 2;
+            iface = new String[newLength];
+            uid = new int[newLength];
+            set = new int[newLength];
+            tag = new int[newLength];
+            metered = new int[newLength];
+            roaming = new int[newLength];
+            defaultNetwork = new int[newLength];
+            rxBytes = new long[newLength];
+            rxPackets = new long[newLength];
+            txBytes = new long[newLength];
+            txPackets = new long[newLength];
+            operations = new long[newLength];
+            capacity = newLength;
+        }
+        final int length = other.size;
+        System.arraycopy(other.iface, 0, iface, 0, length);
+        System.arraycopy(other.uid, 0, uid, 0, length);
+        System.arraycopy(other.set, 0, set, 0, length);
+        System.arraycopy(other.tag, 0, tag, 0, length);
+        System.arraycopy(other.metered, 0, metered, 0, length);
+        System.arraycopy(other.roaming, 0, roaming, 0, length);
+        System.arraycopy(other.defaultNetwork, 0, defaultNetwork, 0, length);
+        System.arraycopy(other.rxBytes, 0, rxBytes, 0, length);
+        System.arraycopy(other.rxPackets, 0, rxPackets, 0, length);
+        System.arraycopy(other.txBytes, 0, txBytes, 0, length);
+        System.arraycopy(other.txPackets, 0, txPackets, 0, length);
+        System.arraycopy(other.operations, 0, operations, 0, length);
+        size = length;
+        elapsedRealtime = other.elapsedRealtime;
+        invalidateRowIndex();
+        return this;
+    }
+
     /** @hide */
     @VisibleForTesting
     public NetworkStats insertEntry(
@@ -654,6 +731,15 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         setValues(size, entry);
         size++;
 
+        if (mRowIndex != null) {
+            // Keep the load factor at or below 1/2 so probe sequences stay short.
+            if (size * 2 > mRowIndex.length) {
+                rebuildRowIndex();
+            } else {
+                addToRowIndex(mRowIndex, size - 1);
+            }
+        }
+
         return this;
     }
 
@@ -741,6 +827,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         txBytes[dest] = txBytes[src];
         txPackets[dest] = txPackets[src];
         operations[dest] = operations[src];
+        invalidateRowIndex();
     }
 
     /** @hide */
@@ -857,6 +944,9 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork) {
+        if (maybeBuildRowIndex()) {
+            return findIndexInRowIndex(iface, uid, set, tag, metered, roaming, defaultNetwork);
+        }
         for (int i = 0; i < size; i++) {
             if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
                     && metered == this.metered[i] && roaming == this.roaming[i]
@@ -876,6 +966,9 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     @VisibleForTesting
     public int findIndexHinted(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork, int hintIndex) {
+        if (maybeBuildRowIndex()) {
+            return findIndexInRowIndex(iface, uid, set, tag, metered, roaming, defaultNetwork);
+        }
         for (int offset = 0; offset < size; offset++) {
             final int halfOffset = offset / 2;
 
@@ -897,6 +990,87 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         return -1;
     }
 
+    /**
+     * Build the row index if this object is large enough to benefit from it.
+     *
+     * @return whether the row index is available for lookups.
+     */
+    private boolean maybeBuildRowIndex() {
+        if (mRowIndex == null && size >= ROW_INDEX_MIN_SIZE) {
+            rebuildRowIndex();
+        }
+        return mRowIndex != null;
+    }
+
+    private void rebuildRowIndex() {
+        // Smallest power of two that keeps the load factor at or below 1/2.
+        final int tableSize = Integer.highestOneBit(Math.max(size, ROW_INDEX_MIN_SIZE) * 4 - 1);
+        final int[] rowIndex = new int[tableSize];
+        for (int i = 0; i < size; i++) {
+            addToRowIndex(rowIndex, i);
+        }
+        mRowIndex = rowIndex;
+    }
+
+    private void invalidateRowIndex() {
+        mRowIndex = null;
+    }
+
+    /**
+     * Add the given row to the row index, unless a row with the same key is already present.
+     * Keeping the earlier row preserves the "first match" semantics of {@link #findIndex}.
+     */
+    private void addToRowIndex(@NonNull int[] rowIndex, int row) {
+        final int mask = rowIndex.length - 1;
+        int slot = hashKey(iface[row], uid[row], set[row], tag[row], metered[row], roaming[row],
+                defaultNetwork[row]) & mask;
+        while (rowIndex[slot] != 0) {
+            final int j = rowIndex[slot] - 1;
+            if (keyEquals(j, iface[row], uid[row], set[row], tag[row], metered[row], roaming[row],
+                    defaultNetwork[row])) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        rowIndex[slot] = row + 1;
+    }
+
+    private int findIndexInRowIndex(String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        final int[] rowIndex = mRowIndex;
+        final int mask = rowIndex.length - 1;
+        int slot = hashKey(iface, uid, set, tag, metered, roaming, defaultNetwork) & mask;
+        while (rowIndex[slot] != 0) {
+            final int i = rowIndex[slot] - 1;
+            if (keyEquals(i, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
+                return i;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int i, String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && metered == this.metered[i] && roaming == this.roaming[i]
+                && defaultNetwork == this.defaultNetwork[i]
+                && Objects.equals(iface, this.iface[i]);
+    }
+
+    private static int hashKey(String iface, int uid, int set, int tag, int metered, int roaming,
+            int defaultNetwork) {
+        int hash = uid;
+        hash = 31 * hash + set;
+        hash = 31 * hash + tag;
+        hash = 31 * hash + metered;
+        hash = 31 * hash + roaming;
+        hash = 31 * hash + defaultNetwork;
+        hash = 31 * hash + (iface == null ? 0 : iface.hashCode());
+        // Spread the high bits downwards since only the low bits select the slot.
+        return hash ^ (hash >>> 16);
+    }
+
     /**
      * Splice in {@link #operations} from the given {@link NetworkStats} based
      * on matching {@link #uid} and {@link #tag} rows. Ignores {@link #iface},
@@ -1102,6 +1276,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
             result.size = 0;
+            result.invalidateRowIndex();
             result.elapsedRealtime = deltaRealtime;
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
@@ -1308,6 +1483,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         for (int i = 0; i < size; i++) {
             iface[i] = null;
         }
+        invalidateRowIndex();
     }
 
     /**
@@ -1353,6 +1529,8 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             }
         }
         size = nextOutputEntry;
+        // Compaction moves rows around; the index is rebuilt on the next lookup.
+        invalidateRowIndex();
     }
 
     /** @hide */
@@ -1562,6 +1740,83 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         deductTrafficFromVpnApp(tunUid, underlyingIfaces, moved);
     }
 
+    /**
+     * VPN accounting for all active VPNs. Equivalent to calling
+     * {@link #migrateTun(int, String, List)} then {@link #filterDebugEntries()} for each VPN in
+     * order, but rows are looked up through indexes by iface and by uid built once, so that
+     * each VPN only visits the rows on its tun iface and the rows of its uid, instead of
+     * sweeping the whole object several times.
+     *
+     * <p>This method should only be called on delta NetworkStats, see
+     * {@link #migrateTun(int, String, List)}.
+     *
+     * @param vpnArray the active VPNs, in the order their adjustments are applied.
+     * @hide
+     */
+    public void migrateAllTun(@NonNull UnderlyingNetworkInfo[] vpnArray) {
+        if (vpnArray.length == 0) return;
+        for (int i = 0; i < size; i++) {
+            if (uid[i] == UID_ALL) {
+                throw new IllegalStateException(
+                        "Cannot adjust VPN accounting on an iface aggregated NetworkStats.");
+            }
+            if (set[i] == SET_DBG_VPN_IN || set[i] == SET_DBG_VPN_OUT) {
+                throw new IllegalStateException(
+                        "Cannot adjust VPN accounting on a NetworkStats containing SET_DBG_VPN_*");
+            }
+        }
+
+        final TunRowIndex index = new TunRowIndex();
+        index.addRows(this, 0, size);
+        final Entry recycle = new Entry();
+        final Entry tmpEntry = new Entry();
+        for (UnderlyingNetworkInfo info : vpnArray) {
+            final int tunUid = info.getOwnerUid();
+            final String tunIface = info.getInterface();
+            final List<String> underlyingIfaces = info.getUnderlyingInterfaces();
+            final int startSize = size;
+
+            // See tunAdjustmentInit. Rows of the VPN app on its tun iface are visited once,
+            // through the uid index.
+            final Entry tunIfaceTotal = new Entry();
+            final Entry[] perInterfaceTotal = new Entry[underlyingIfaces.size()];
+            final Entry underlyingIfacesTotal = new Entry();
+            final Entry[] moved = new Entry[underlyingIfaces.size()];
+            for (int j = 0; j < perInterfaceTotal.length; j++) {
+                perInterfaceTotal[j] = new Entry();
+                moved[j] = new Entry();
+            }
+            final int[] tunIfaceRows = index.getIfaceRows(tunIface);
+            final int tunIfaceRowCount = tunIfaceRows == null ? 0 : tunIfaceRows[0];
+            for (int k = 1; k <= tunIfaceRowCount; k++) {
+                final int i = tunIfaceRows[k];
+                if (uid[i] == tunUid && tunUid != Process.SYSTEM_UID) continue;
+                tunAdjustmentAddRow(tunUid, tunIface, underlyingIfaces, getValues(i, recycle),
+                        tunIfaceTotal, perInterfaceTotal, underlyingIfacesTotal);
+            }
+            if (tunUid != Process.SYSTEM_UID) {
+                final int[] tunUidRows = index.getUidRows(tunUid);
+                final int tunUidRowCount = tunUidRows == null ? 0 : tunUidRows[0];
+                for (int k = 1; k <= tunUidRowCount; k++) {
+                    tunAdjustmentAddRow(tunUid, tunIface, underlyingIfaces,
+                            getValues(tunUidRows[k], recycle), tunIfaceTotal,
+                            perInterfaceTotal, underlyingIfacesTotal);
+                }
+            }
+
+            // See addTrafficToApplications. Rows are visited in increasing order, and rows
+            // added while migrating are only indexed for the next VPNs.
+            for (int k = 1; k <= tunIfaceRowCount; k++) {
+                addRowTrafficToApplications(tunIfaceRows[k], tunUid, underlyingIfaces,
+                        tunIfaceTotal, perInterfaceTotal, underlyingIfacesTotal, tmpEntry, moved);
+            }
+            deductTrafficFromVpnApp(tunUid, underlyingIfaces, moved);
+            index.addRows(this, startSize, size);
+        }
+        // Filter out debug entries as that may lead to over counting.
+        filterDebugEntries();
+    }
+
     /**
      * Initializes the data used by the migrateTun() method.
      *
@@ -1596,47 +1851,56 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
                 throw new IllegalStateException(
                         "Cannot adjust VPN accounting on a NetworkStats containing SET_DBG_VPN_*");
             }
-            if (recycle.tag != TAG_NONE) {
-                // TODO(b/123666283): Take all tags for tunUid into account.
-                continue;
-            }
+            tunAdjustmentAddRow(tunUid, tunIface, underlyingIfaces, recycle, tunIfaceTotal,
+                    perInterfaceTotal, underlyingIfacesTotal);
+        }
+    }
 
-            if (tunUid == Process.SYSTEM_UID) {
-                // Kernel-based VPN or VCN, traffic sent by apps on the VPN/VCN network
-                //
-                // Since the data is not UID-accounted on underlying networks, just use VPN/VCN
-                // network usage as ground truth. Encrypted traffic on the underlying networks will
-                // never be processed here because encrypted traffic on the underlying interfaces
-                // is not present in UID stats, and this method is only called on UID stats.
-                if (tunIface.equals(recycle.iface)) {
-                    tunIfaceTotal.add(recycle);
-                    underlyingIfacesTotal.add(recycle);
+    /** Adds the given row to the totals computed by {@link #tunAdjustmentInit}. */
+    private static void tunAdjustmentAddRow(int tunUid, @NonNull String tunIface,
+            @NonNull List<String> underlyingIfaces, @NonNull Entry recycle,
+            @NonNull Entry tunIfaceTotal, @NonNull Entry[] perInterfaceTotal,
+            @NonNull Entry underlyingIfacesTotal) {
+        if (recycle.tag != TAG_NONE) {
+            // TODO(b/123666283): Take all tags for tunUid into account.
+            return;
+        }
 
-                    // In steady state, there should always be one network, but edge cases may
-                    // result in the network being null (network lost), and thus no underlying
-                    // ifaces is possible.
-                    if (perInterfaceTotal.length > 0) {
-                        // While platform VPNs and VCNs have exactly one underlying network, that
-                        // network may have multiple interfaces (eg for 464xlat). This layer does
-                        // not have the required information to identify which of the interfaces
-                        // were used. Select "any" of the interfaces. Since overhead is already
-                        // lost, this number is an approximation anyways.
-                        perInterfaceTotal[0].add(recycle);
-                    }
+        if (tunUid == Process.SYSTEM_UID) {
+            // Kernel-based VPN or VCN, traffic sent by apps on the VPN/VCN network
+            //
+            // Since the data is not UID-accounted on underlying networks, just use VPN/VCN
+            // network usage as ground truth. Encrypted traffic on the underlying networks will
+            // never be processed here because encrypted traffic on the underlying interfaces
+            // is not present in UID stats, and this method is only called on UID stats.
+            if (tunIface.equals(recycle.iface)) {
+                tunIfaceTotal.add(recycle);
+                underlyingIfacesTotal.add(recycle);
+
+                // In steady state, there should always be one network, but edge cases may
+                // result in the network being null (network lost), and thus no underlying
+                // ifaces is possible.
+                if (perInterfaceTotal.length > 0) {
+                    // While platform VPNs and VCNs have exactly one underlying network, that
+                    // network may have multiple interfaces (eg for 464xlat). This layer does
+                    // not have the required information to identify which of the interfaces
+                    // were used. Select "any" of the interfaces. Since overhead is already
+                    // lost, this number is an approximation anyways.
+                    perInterfaceTotal[0].add(recycle);
                 }
-            } else if (recycle.uid == tunUid) {
-                // VpnService VPN, traffic sent by the VPN app over underlying networks
-                for (int j = 0; j < underlyingIfaces.size(); j++) {
-                    if (Objects.equals(underlyingIfaces.get(j), recycle.iface)) {
-                        perInterfaceTotal[j].add(recycle);
-                        underlyingIfacesTotal.add(recycle);
-                        break;
-                    }
+            }
+        } else if (recycle.uid == tunUid) {
+            // VpnService VPN, traffic sent by the VPN app over underlying networks
+            for (int j = 0; j < underlyingIfaces.size(); j++) {
+                if (Objects.equals(underlyingIfaces.get(j), recycle.iface)) {
+                    perInterfaceTotal[j].add(recycle);
+                    underlyingIfacesTotal.add(recycle);
+                    break;
                 }
-            } else if (tunIface.equals(recycle.iface)) {
-                // VpnService VPN; traffic sent by apps on the VPN network
-                tunIfaceTotal.add(recycle);
             }
+        } else if (tunIface.equals(recycle.iface)) {
+            // VpnService VPN; traffic sent by apps on the VPN network
+            tunIfaceTotal.add(recycle);
         }
     }
 
@@ -1669,118 +1933,115 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
                 // Consider only entries that go onto the VPN interface.
                 continue;
             }
+            addRowTrafficToApplications(i, tunUid, underlyingIfaces, tunIfaceTotal,
+                    perInterfaceTotal, underlyingIfacesTotal, tmpEntry, moved);
+        }
+        return moved;
+    }
 
-            if (uid[i] == tunUid && tunUid != Process.SYSTEM_UID) {
-                // Exclude VPN app from the redistribution, as it can choose to create packet
-                // streams by writing to itself.
-                //
-                // However, for platform VPNs, do not exclude the system's usage of the VPN network,
-                // since it is never local-only, and never double counted
-                continue;
-            }
-            tmpEntry.uid = uid[i];
-            tmpEntry.tag = tag[i];
-            tmpEntry.metered = metered[i];
-            tmpEntry.roaming = roaming[i];
-            tmpEntry.defaultNetwork = defaultNetwork[i];
-
-            // In a first pass, compute this entry's total share of data across all
-            // underlyingIfaces. This is computed on the basis of the share of this entry's usage
-            // over tunIface.
-            // TODO: Consider refactoring first pass into a separate helper method.
-            long totalRxBytes = 0;
-            if (tunIfaceTotal.rxBytes > 0) {
-                // Note - The multiplication below should not overflow since NetworkStatsService
-                // processes this every time device has transmitted/received amount equivalent to
-                // global threshold alert (~ 2MB) across all interfaces.
-                final long rxBytesAcrossUnderlyingIfaces =
-                        multiplySafeByRational(underlyingIfacesTotal.rxBytes,
-                                rxBytes[i], tunIfaceTotal.rxBytes);
-                // app must not be blamed for more than it consumed on tunIface
-                totalRxBytes = Math.min(rxBytes[i], rxBytesAcrossUnderlyingIfaces);
+    /**
+     * Distributes the traffic of row {@code i}, which is on {@code tunIface}, across {@code
+     * underlyingIfaces}, see {@link #addTrafficToApplications}.
+     */
+    private void addRowTrafficToApplications(int i, int tunUid,
+            @NonNull List<String> underlyingIfaces, @NonNull Entry tunIfaceTotal,
+            @NonNull Entry[] perInterfaceTotal, @NonNull Entry underlyingIfacesTotal,
+            @NonNull Entry tmpEntry, @NonNull Entry[] moved) {
+        if (uid[i] == tunUid && tunUid != Process.SYSTEM_UID) {
+            // Exclude VPN app from the redistribution, as it can choose to create packet
+            // streams by writing to itself.
+            //
+            // However, for platform VPNs, do not exclude the system's usage of the VPN network,
+            // since it is never local-only, and never double counted
+            return;
+        }
+        tmpEntry.uid = uid[i];
+        tmpEntry.tag = tag[i];
+        tmpEntry.metered = metered[i];
+        tmpEntry.roaming = roaming[i];
+        tmpEntry.defaultNetwork = defaultNetwork[i];
+
+        // In a first pass, compute this entry's total share of data across all
+        // underlyingIfaces. This is computed on the basis of the share of this entry's usage
+        // over tunIface.
+        final long totalRxBytes = getShareAcrossUnderlyingIfaces(rxBytes[i],
+                tunIfaceTotal.rxBytes, underlyingIfacesTotal.rxBytes);
+        final long totalRxPackets = getShareAcrossUnderlyingIfaces(rxPackets[i],
+                tunIfaceTotal.rxPackets, underlyingIfacesTotal.rxPackets);
+        final long totalTxBytes = getShareAcrossUnderlyingIfaces(txBytes[i],
+                tunIfaceTotal.txBytes, underlyingIfacesTotal.txBytes);
+        final long totalTxPackets = getShareAcrossUnderlyingIfaces(txPackets[i],
+                tunIfaceTotal.txPackets, underlyingIfacesTotal.txPackets);
+        final long totalOperations = getShareAcrossUnderlyingIfaces(operations[i],
+                tunIfaceTotal.operations, underlyingIfacesTotal.operations);
+        // In a second pass, distribute these values across interfaces in the proportion that
+        // each interface represents of the total traffic of the underlying interfaces.
+        for (int j = 0; j < underlyingIfaces.size(); j++) {
+            tmpEntry.iface = underlyingIfaces.get(j);
+            tmpEntry.rxBytes = 0;
+            // Reset 'set' to correct value since it gets updated when adding debug info below.
+            tmpEntry.set = set[i];
+            if (underlyingIfacesTotal.rxBytes > 0) {
+                tmpEntry.rxBytes =
+                        multiplySafeByRational(totalRxBytes,
+                                perInterfaceTotal[j].rxBytes,
+                                underlyingIfacesTotal.rxBytes);
             }
-            long totalRxPackets = 0;
-            if (tunIfaceTotal.rxPackets > 0) {
-                final long rxPacketsAcrossUnderlyingIfaces =
-                        multiplySafeByRational(underlyingIfacesTotal.rxPackets,
-                                rxPackets[i], tunIfaceTotal.rxPackets);
-                totalRxPackets = Math.min(rxPackets[i], rxPacketsAcrossUnderlyingIfaces);
+            tmpEntry.rxPackets = 0;
+            if (underlyingIfacesTotal.rxPackets > 0) {
+                tmpEntry.rxPackets =
+                        multiplySafeByRational(totalRxPackets,
+                                perInterfaceTotal[j].rxPackets,
+                                underlyingIfacesTotal.rxPackets);
             }
-            long totalTxBytes = 0;
-            if (tunIfaceTotal.txBytes > 0) {
-                final long txBytesAcrossUnderlyingIfaces =
-                        multiplySafeByRational(underlyingIfacesTotal.txBytes,
-                                txBytes[i], tunIfaceTotal.txBytes);
-                totalTxBytes = Math.min(txBytes[i], txBytesAcrossUnderlyingIfaces);
+            tmpEntry.txBytes = 0;
+            if (underlyingIfacesTotal.txBytes > 0) {
+                tmpEntry.txBytes =
+                        multiplySafeByRational(totalTxBytes,
+                                perInterfaceTotal[j].txBytes,
+                                underlyingIfacesTotal.txBytes);
             }
-            long totalTxPackets = 0;
-            if (tunIfaceTotal.txPackets > 0) {
-                final long txPacketsAcrossUnderlyingIfaces =
-                        multiplySafeByRational(underlyingIfacesTotal.txPackets,
-                                txPackets[i], tunIfaceTotal.txPackets);
-                totalTxPackets = Math.min(txPackets[i], txPacketsAcrossUnderlyingIfaces);
+            tmpEntry.txPackets = 0;
+            if (underlyingIfacesTotal.txPackets > 0) {
+                tmpEntry.txPackets =
+                        multiplySafeByRational(totalTxPackets,
+                                perInterfaceTotal[j].txPackets,
+                                underlyingIfacesTotal.txPackets);
             }
-            long totalOperations = 0;
-            if (tunIfaceTotal.operations > 0) {
-                final long operationsAcrossUnderlyingIfaces =
-                        multiplySafeByRational(underlyingIfacesTotal.operations,
-                                operations[i], tunIfaceTotal.operations);
-                totalOperations = Math.min(operations[i], operationsAcrossUnderlyingIfaces);
+            tmpEntry.operations = 0;
+            if (underlyingIfacesTotal.operations > 0) {
+                tmpEntry.operations =
+                        multiplySafeByRational(totalOperations,
+                                perInterfaceTotal[j].operations,
+                                underlyingIfacesTotal.operations);
             }
-            // In a second pass, distribute these values across interfaces in the proportion that
-            // each interface represents of the total traffic of the underlying interfaces.
-            for (int j = 0; j < underlyingIfaces.size(); j++) {
-                tmpEntry.iface = underlyingIfaces.get(j);
-                tmpEntry.rxBytes = 0;
-                // Reset 'set' to correct value since it gets updated when adding debug info below.
-                tmpEntry.set = set[i];
-                if (underlyingIfacesTotal.rxBytes > 0) {
-                    tmpEntry.rxBytes =
-                            multiplySafeByRational(totalRxBytes,
-                                    perInterfaceTotal[j].rxBytes,
-                                    underlyingIfacesTotal.rxBytes);
-                }
-                tmpEntry.rxPackets = 0;
-                if (underlyingIfacesTotal.rxPackets > 0) {
-                    tmpEntry.rxPackets =
-                            multiplySafeByRational(totalRxPackets,
-                                    perInterfaceTotal[j].rxPackets,
-                                    underlyingIfacesTotal.rxPackets);
-                }
-                tmpEntry.txBytes = 0;
-                if (underlyingIfacesTotal.txBytes > 0) {
-                    tmpEntry.txBytes =
-                            multiplySafeByRational(totalTxBytes,
-                                    perInterfaceTotal[j].txBytes,
-                                    underlyingIfacesTotal.txBytes);
-                }
-                tmpEntry.txPackets = 0;
-                if (underlyingIfacesTotal.txPackets > 0) {
-                    tmpEntry.txPackets =
-                            multiplySafeByRational(totalTxPackets,
-                                    perInterfaceTotal[j].txPackets,
-                                    underlyingIfacesTotal.txPackets);
-                }
-                tmpEntry.operations = 0;
-                if (underlyingIfacesTotal.operations > 0) {
-                    tmpEntry.operations =
-                            multiplySafeByRational(totalOperations,
-                                    perInterfaceTotal[j].operations,
-                                    underlyingIfacesTotal.operations);
-                }
-                // tmpEntry now contains the migrated data of the i-th entry for the j-th underlying
-                // interface. Add that data usage to this object.
+            // tmpEntry now contains the migrated data of the i-th entry for the j-th underlying
+            // interface. Add that data usage to this object.
+            combineValues(tmpEntry);
+            if (tag[i] == TAG_NONE) {
+                // Add the migrated data to moved so it is deducted from the VPN app later.
+                moved[j].add(tmpEntry);
+                // Add debug info
+                tmpEntry.set = SET_DBG_VPN_IN;
                 combineValues(tmpEntry);
-                if (tag[i] == TAG_NONE) {
-                    // Add the migrated data to moved so it is deducted from the VPN app later.
-                    moved[j].add(tmpEntry);
-                    // Add debug info
-                    tmpEntry.set = SET_DBG_VPN_IN;
-                    combineValues(tmpEntry);
-                }
             }
         }
-        return moved;
+    }
+
+    /**
+     * Share of the traffic of all underlying interfaces attributed to a value counted on the
+     * tun interface, in proportion of its part of the tun interface total.
+     */
+    private static long getShareAcrossUnderlyingIfaces(long value, long tunIfaceTotal,
+            long underlyingIfacesTotal) {
+        if (tunIfaceTotal <= 0) return 0;
+        // Note - The multiplication below should not overflow since NetworkStatsService
+        // processes this every time device has transmitted/received amount equivalent to
+        // global threshold alert (~ 2MB) across all interfaces.
+        final long acrossUnderlyingIfaces =
+                multiplySafeByRational(underlyingIfacesTotal, value, tunIfaceTotal);
+        // app must not be blamed for more than it consumed on tunIface
+        return Math.min(value, acrossUnderlyingIfaces);
     }
 
     private void deductTrafficFromVpnApp(
@@ -1827,6 +2088,44 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         }
     }
 
+    /**
+     * Rows of a {@link NetworkStats} grouped by iface and by uid, in increasing order, see
+     * {@link #migrateAllTun(UnderlyingNetworkInfo[])}. Debug rows are not indexed.
+     */
+    private static final class TunRowIndex {
+        // For each key, the number of rows followed by the rows.
+        private final HashMap<String, int[]> mIfaceRows = new HashMap<>();
+        private final SparseArray<int[]> mUidRows = new SparseArray<>();
+
+        void addRows(@NonNull NetworkStats stats, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (stats.set[i] >= SET_DEBUG_START) continue;
+                mIfaceRows.put(stats.iface[i], appendRow(mIfaceRows.get(stats.iface[i]), i));
+                mUidRows.put(stats.uid[i], appendRow(mUidRows.get(stats.uid[i]), i));
+            }
+        }
+
+        @Nullable
+        int[] getIfaceRows(@Nullable String iface) {
+            return mIfaceRows.get(iface);
+        }
+
+        @Nullable
+        int[] getUidRows(int uid) {
+            return mUidRows.get(uid);
+        }
+
+        private static int[] appendRow(@Nullable int[] rows, int row) {
+            if (rows == null) {
+                rows = new int[4];
+            } else if (rows[0] + 1 == rows.length) {
+                rows = Arrays.copyOf(rows, rows.length * 2);
+            }
+            rows[++rows[0]] = row;
+            return rows;
+        }
+    }
+
     private static void tunSubtract(int i, @NonNull NetworkStats left, @NonNull Entry right) {
         long rxBytes = Math.min(left.rxBytes[i], right.rxBytes);
         left.rxBytes[i] -= rxBytes;
@@ -17,11 +17,14 @@
 package android.net;
 
 import static android.annotation.SystemApi.Client.MODULE_LIBRARIES;
+import static android.net.NetworkStats.DEFAULT_NETWORK_ALL;
 import static android.net.NetworkStats.DEFAULT_NETWORK_NO;
 import static android.net.NetworkStats.DEFAULT_NETWORK_YES;
 import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.METERED_ALL;
 import static android.net.NetworkStats.METERED_NO;
 import static android.net.NetworkStats.METERED_YES;
+import static android.net.NetworkStats.ROAMING_ALL;
 import static android.net.NetworkStats.ROAMING_NO;
 import static android.net.NetworkStats.ROAMING_YES;
 import static android.net.NetworkStats.SET_ALL;
@@ -36,6 +39,7 @@ import static com.android.net.module.util.NetworkStatsUtils.multiplySafeByRation
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.SystemApi;
+import android.app.usage.NetworkStatsManager;
 import android.net.NetworkStats.State;
 import android.net.NetworkStatsHistory.Entry;
 import android.os.Binder;
@@ -45,10 +49,12 @@ import android.service.NetworkStatsCollectionStatsProto;
 import android.telephony.SubscriptionPlan;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.Range;
+import android.util.SparseArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -59,25 +65,34 @@ import com.android.net.module.util.NetworkStatsUtils;
 import libcore.io.IoUtils;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 /**
@@ -100,9 +115,68 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    /**
+     * Same content as {@link #VERSION_UNIFIED_INIT}, laid out so that histories can be decoded
+     * one key at a time: an ident table, then a fixed-size index entry per {@link Key} carrying
+     * the history bounds and the offset of its encoded history in a trailing data section.
+     */
+    private static final int VERSION_UNIFIED_INDEXED = 17;
+
+    /** Maximum number of templates whose matching keys are cached, see {@link #mKeysByTemplate}. */
+    private static final int MAX_TEMPLATE_CACHE_SIZE = 16;
+
+    /** Heap used by one {@link NetworkStatsHistory} bucket: seven {@code long} columns. */
+    private static final long ESTIMATED_BUCKET_BYTES = 7 * Long.BYTES;
+    /** Heap used by one entry besides its buckets: key, history object and arrays. */
+    private static final long ESTIMATED_ENTRY_OVERHEAD_BYTES = 256;
+
+    private static final NetworkIdentitySetRegistry REGISTRY =
+            NetworkIdentitySetRegistry.getInstance();
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
+    /**
+     * Histories read from {@link #VERSION_UNIFIED_INDEXED} files which have not been needed
+     * yet. A key is present either here or in {@link #mStats}, never in both. Queries decode
+     * these in place, while any mutation of a key first moves its history into {@link #mStats}.
+     */
+    private final ArrayMap<Key, EncodedHistory> mEncoded = new ArrayMap<>();
+
+    /**
+     * Histories of keys with buckets longer than their history in {@link #mStats} or
+     * {@link #mEncoded}, as read from rolled up files, sorted by increasing bucket duration
+     * with at most one history per duration. They are kept at their own resolution instead of
+     * being resampled into shorter buckets, and queries sum them with the key's main history.
+     * A key is only present here if it also is in {@link #mStats} or {@link #mEncoded}.
+     */
+    private final ArrayMap<Key, ArrayList<NetworkStatsHistory>> mRolledUp = new ArrayMap<>();
+
+    /** Whether {@link #write(OutputStream)} should use {@link #VERSION_UNIFIED_INDEXED}. */
+    private boolean mUseIndexedFormat;
+
+    /** Secondary index over the keys of {@link #mStats}, grouped by {@link Key#uid}. */
+    private final SparseArray<ArraySet<Key>> mKeysByUid = new SparseArray<>();
+    /**
+     * Secondary index over the keys of {@link #mStats}, grouped by {@link Key#ident}, which
+     * is the canonical instance from the {@link NetworkIdentitySetRegistry}.
+     */
+    private final ArrayMap<NetworkIdentitySet, ArraySet<Key>> mKeysByIdent = new ArrayMap<>();
+    /**
+     * Cached result of matching a {@link NetworkTemplate} against every ident in
+     * {@link #mKeysByIdent}, as the key groups whose ident matches, evicting the least recently
+     * used template. The groups are live, so only adding or removing an ident invalidates the
+     * cache. Queries may run concurrently, so accesses are synchronized on the map itself.
+     */
+    private final LinkedHashMap<NetworkTemplate, ArrayList<ArraySet<Key>>> mKeysByTemplate =
+            new LinkedHashMap<NetworkTemplate, ArrayList<ArraySet<Key>>>(
+                    MAX_TEMPLATE_CACHE_SIZE, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<NetworkTemplate, ArrayList<ArraySet<Key>>> eldest) {
+                    return size() > MAX_TEMPLATE_CACHE_SIZE;
+                }
+            };
+
     private final long mBucketDurationMillis;
 
     private long mStartMillis;
@@ -110,6 +184,17 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     private long mTotalBytes;
     private boolean mDirty;
 
+    /**
+     * Running value of {@link #estimateSizeBytes()}, kept up to date by
+     * {@link #recordData}, which runs on every poll, and recomputed after other changes.
+     */
+    private long mEstimatedSizeBytes;
+    /**
+     * Whether {@link #mEstimatedSizeBytes} must be recomputed. Also set by queries decoding
+     * histories, which may run concurrently.
+     */
+    private volatile boolean mEstimatedSizeStale;
+
     /**
      * Construct a {@link NetworkStatsCollection} object.
      *
@@ -129,10 +214,17 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     /** @hide */
     public void reset() {
         mStats.clear();
+        mEncoded.clear();
+        mRolledUp.clear();
+        mKeysByUid.clear();
+        mKeysByIdent.clear();
+        invalidateTemplateCache();
         mStartMillis = Long.MAX_VALUE;
         mEndMillis = Long.MIN_VALUE;
         mTotalBytes = 0;
         mDirty = false;
+        mEstimatedSizeBytes = 0;
+        mEstimatedSizeStale = false;
     }
 
     /** @hide */
@@ -163,6 +255,48 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         return mTotalBytes;
     }
 
+    /**
+     * Set whether this collection is persisted using the indexed file format, which allows
+     * readers to only decode the histories they query. Both formats can always be read.
+     * @hide
+     */
+    public void setUseIndexedFormat(boolean useIndexedFormat) {
+        mUseIndexedFormat = useIndexedFormat;
+    }
+
+    /**
+     * Estimate the heap used by the histories held in this collection, in bytes. Histories
+     * still encoded count their encoded size, plus their decoded size once decoded. Cheap
+     * unless histories were read, decoded or removed since the last call.
+     * @hide
+     */
+    public long estimateSizeBytes() {
+        if (mEstimatedSizeStale) {
+            // Cleared first, so that histories decoded meanwhile mark it stale again.
+            mEstimatedSizeStale = false;
+            mEstimatedSizeBytes = computeSizeBytes();
+        }
+        return mEstimatedSizeBytes;
+    }
+
+    private long computeSizeBytes() {
+        long size = 0;
+        for (int i = 0; i < mStats.size(); i++) {
+            size += ESTIMATED_ENTRY_OVERHEAD_BYTES
+                    + (long) mStats.valueAt(i).size() * ESTIMATED_BUCKET_BYTES;
+        }
+        for (int i = 0; i < mEncoded.size(); i++) {
+            size += ESTIMATED_ENTRY_OVERHEAD_BYTES + mEncoded.valueAt(i).estimateSizeBytes();
+        }
+        for (int i = 0; i < mRolledUp.size(); i++) {
+            for (NetworkStatsHistory history : mRolledUp.valueAt(i)) {
+                size += ESTIMATED_ENTRY_OVERHEAD_BYTES
+                        + (long) history.size() * ESTIMATED_BUCKET_BYTES;
+            }
+        }
+        return size;
+    }
+
     /** @hide */
     public boolean isDirty() {
         return mDirty;
@@ -217,16 +351,12 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     /** @hide */
     public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel,
                 final int callerUid) {
+        // Keys of mKeysByUid are unique and sorted in ascending order.
         final ArrayList<Integer> uids = new ArrayList<>();
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)) {
-                int j = Collections.binarySearch(uids, new Integer(key.uid));
-
-                if (j < 0) {
-                    j = ~j;
-                    uids.add(j, key.uid);
-                }
+        for (int i = 0; i < mKeysByUid.size(); i++) {
+            final int uid = mKeysByUid.keyAt(i);
+            if (NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+                uids.add(uid);
             }
         }
         return CollectionUtils.toIntArray(uids);
@@ -288,12 +418,13 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             collectEnd = roundUp(collectEnd);
         }
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
-                    && templateMatches(template, key.ident)) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
-                combined.recordHistory(value, collectStart, collectEnd);
+        final ArraySet<Key> uidKeys = mKeysByUid.get(uid);
+        final int uidKeysSize = (uidKeys != null) ? uidKeys.size() : 0;
+        for (int i = 0; i < uidKeysSize; i++) {
+            final Key key = uidKeys.valueAt(i);
+            if (NetworkStats.setMatches(set, key.set) && key.tag == tag
+                    && templateMatches(template, key)) {
+                recordHistoryOfKey(combined, key, collectStart, collectEnd);
             }
         }
 
@@ -352,6 +483,48 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         }
     }
 
+    /**
+     * Combine all {@link NetworkStatsHistory} in this collection which match the requested
+     * parameters, once for each of the given templates, in a single pass over the collection.
+     * Equivalent to calling {@link #getHistory} for each template without augmentation.
+     *
+     * @return the combined history for each template, in the same order as the templates.
+     * @hide
+     */
+    @NonNull
+    public NetworkStatsHistory[] getHistories(@NonNull NetworkTemplate[] templates, int uid,
+            int set, int tag, int fields, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        if (!NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+            throw new SecurityException("Network stats history of uid " + uid
+                    + " is forbidden for caller " + callerUid);
+        }
+
+        final int bucketEstimate = (int) NetworkStatsUtils.constrain(
+                ((end - start) / mBucketDurationMillis), 0,
+                (180 * DateUtils.DAY_IN_MILLIS) / mBucketDurationMillis);
+        final NetworkStatsHistory[] combined = new NetworkStatsHistory[templates.length];
+        for (int i = 0; i < templates.length; i++) {
+            combined[i] = new NetworkStatsHistory(mBucketDurationMillis, bucketEstimate, fields);
+        }
+
+        // shortcut when we know stats will be empty
+        if (start == end) return combined;
+
+        final ArraySet<Key> uidKeys = mKeysByUid.get(uid);
+        final int uidKeysSize = (uidKeys != null) ? uidKeys.size() : 0;
+        for (int i = 0; i < uidKeysSize; i++) {
+            final Key key = uidKeys.valueAt(i);
+            if (!NetworkStats.setMatches(set, key.set) || key.tag != tag) continue;
+
+            for (int j = 0; j < templates.length; j++) {
+                if (!templateMatches(templates[j], key)) continue;
+                recordHistoryOfKey(combined[j], key, start, end);
+            }
+        }
+        return combined;
+    }
+
     /**
      * Summarize all {@link NetworkStatsHistory} in this collection which match
      * the requested parameters across the requested range.
@@ -375,37 +548,219 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         final NetworkStats.Entry entry = new NetworkStats.Entry();
         NetworkStatsHistory.Entry historyEntry = null;
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (templateMatches(template, key.ident)
-                    && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
-                    && key.set < NetworkStats.SET_DEBUG_START) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
-                historyEntry = value.getValues(start, end, now, historyEntry);
-
-                entry.iface = IFACE_ALL;
-                entry.uid = key.uid;
-                entry.set = key.set;
-                entry.tag = key.tag;
-                entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork()
-                        ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
-                entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
-                entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
-                entry.rxBytes = historyEntry.rxBytes;
-                entry.rxPackets = historyEntry.rxPackets;
-                entry.txBytes = historyEntry.txBytes;
-                entry.txPackets = historyEntry.txPackets;
-                entry.operations = historyEntry.operations;
-
-                if (!entry.isEmpty()) {
-                    stats.combineValues(entry);
+        final List<ArraySet<Key>> matchingKeys = getKeysMatchingTemplate(template);
+        for (int i = 0; i < matchingKeys.size(); i++) {
+            final ArraySet<Key> keys = matchingKeys.get(i);
+            for (int j = 0; j < keys.size(); j++) {
+                final Key key = keys.valueAt(j);
+                if (!NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
+                        || key.set >= NetworkStats.SET_DEBUG_START) {
+                    continue;
                 }
+                historyEntry = addSummaryEntry(stats, key, start, end, now, entry,
+                        historyEntry);
             }
         }
 
         return stats;
     }
 
+    /**
+     * Add the usage of the given key across the requested range to {@code stats}, as a
+     * summary entry, unless it is empty.
+     *
+     * @param entry entry to fill, reused across calls.
+     * @param historyEntry entry to reuse, or null.
+     * @return the history entry used, to reuse on the next call.
+     */
+    private NetworkStatsHistory.Entry addSummaryEntry(@NonNull NetworkStats stats,
+            @NonNull Key key, long start, long end, long now, @NonNull NetworkStats.Entry entry,
+            @Nullable NetworkStatsHistory.Entry historyEntry) {
+        historyEntry = getValues(key, start, end, now, historyEntry);
+
+        entry.iface = IFACE_ALL;
+        entry.uid = key.uid;
+        entry.set = key.set;
+        entry.tag = key.tag;
+        entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork()
+                ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
+        entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
+        entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+        entry.rxBytes = historyEntry.rxBytes;
+        entry.rxPackets = historyEntry.rxPackets;
+        entry.txBytes = historyEntry.txBytes;
+        entry.txPackets = historyEntry.txPackets;
+        entry.operations = historyEntry.operations;
+
+        if (!entry.isEmpty()) {
+            stats.combineValues(entry);
+        }
+        return historyEntry;
+    }
+
+    /**
+     * Summarize, like {@link #getSummary}, the usage of the uids from {@code firstUid} to
+     * {@code lastUid} included into {@code stats}. Uids are summarized in increasing order, one
+     * at a time, until {@code stats} holds at least {@code minEntries} entries. Since entries
+     * of different uids never combine, paging through consecutive uid ranges returns the same
+     * entries as {@link #getSummary}, in a different order.
+     *
+     * @return the last uid which was summarized, or {@code lastUid} if every uid in the range
+     *         was.
+     * @hide
+     */
+    public int getSummaryForUidRange(@NonNull NetworkStats stats,
+            @NonNull NetworkTemplate template, long start, long end, int firstUid, int lastUid,
+            int minEntries, @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        final long now = System.currentTimeMillis();
+
+        // shortcut when we know stats will be empty
+        if (start == end) return lastUid;
+
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        NetworkStatsHistory.Entry historyEntry = null;
+        for (int i = indexOfFirstUidAtLeast(firstUid); i < mKeysByUid.size(); i++) {
+            final int uid = mKeysByUid.keyAt(i);
+            if (uid > lastUid) break;
+            if (!NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) continue;
+
+            final ArraySet<Key> uidKeys = mKeysByUid.valueAt(i);
+            for (int j = 0; j < uidKeys.size(); j++) {
+                final Key key = uidKeys.valueAt(j);
+                if (key.set >= NetworkStats.SET_DEBUG_START) continue;
+                if (!templateMatches(template, key)) continue;
+
+                historyEntry = addSummaryEntry(stats, key, start, end, now, entry,
+                        historyEntry);
+            }
+            if (stats.size() >= minEntries) return uid;
+        }
+        return lastUid;
+    }
+
+    /** Index in {@link #mKeysByUid} of the lowest uid greater than or equal to the given one. */
+    private int indexOfFirstUidAtLeast(int uid) {
+        int low = 0;
+        int high = mKeysByUid.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mKeysByUid.keyAt(mid) < uid) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Summarize the usage of each uid in this collection which matches the requested parameters
+     * across the requested range, and return the {@code limit} uids which used the most, as
+     * ranked by {@code rankBy}. Uids without any usage are not returned.
+     *
+     * <p>Uids are summarized one at a time, keeping only the best {@code limit} summaries in a
+     * bounded heap, so the result stays small however many uids have stats.
+     *
+     * @param rankBy one of the {@code NetworkStatsManager.RANK_BY_*} constants.
+     * @return one entry per uid aggregated over set, metered, roaming and default network,
+     *         sorted by decreasing usage.
+     * @hide
+     */
+    @NonNull
+    public NetworkStats getTopUids(@NonNull NetworkTemplate template, long start, long end,
+            @NetworkStatsManager.RankBy int rankBy, int limit,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative limit: " + limit);
+        }
+        if (rankBy != NetworkStatsManager.RANK_BY_TOTAL_BYTES
+                && rankBy != NetworkStatsManager.RANK_BY_RX_BYTES
+                && rankBy != NetworkStatsManager.RANK_BY_TX_BYTES) {
+            throw new IllegalArgumentException("Unknown rankBy: " + rankBy);
+        }
+        final long now = System.currentTimeMillis();
+
+        // shortcut when we know stats will be empty
+        if (start == end || limit == 0) return new NetworkStats(end - start, 0);
+
+        // The head is the entry with the least usage, to be dropped first.
+        final Comparator<NetworkStats.Entry> comparator = (left, right) -> {
+            final int byUsage = Long.compare(
+                    getRankedBytes(left, rankBy), getRankedBytes(right, rankBy));
+            // Break ties deterministically, in favor of lower uids.
+            return byUsage != 0 ? byUsage : Integer.compare(right.uid, left.uid);
+        };
+        final PriorityQueue<NetworkStats.Entry> top = new PriorityQueue<>(
+                Math.min(limit, mKeysByUid.size() + 1), comparator);
+
+        NetworkStatsHistory.Entry historyEntry = null;
+        NetworkStats.Entry uidEntry = null;
+        for (int i = 0; i < mKeysByUid.size(); i++) {
+            final int uid = mKeysByUid.keyAt(i);
+            if (!NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) continue;
+
+            if (uidEntry == null) uidEntry = new NetworkStats.Entry();
+            uidEntry.iface = IFACE_ALL;
+            uidEntry.uid = uid;
+            uidEntry.set = SET_ALL;
+            uidEntry.tag = TAG_NONE;
+            uidEntry.metered = METERED_ALL;
+            uidEntry.roaming = ROAMING_ALL;
+            uidEntry.defaultNetwork = DEFAULT_NETWORK_ALL;
+            uidEntry.rxBytes = 0;
+            uidEntry.rxPackets = 0;
+            uidEntry.txBytes = 0;
+            uidEntry.txPackets = 0;
+            uidEntry.operations = 0;
+
+            final ArraySet<Key> uidKeys = mKeysByUid.valueAt(i);
+            for (int j = 0; j < uidKeys.size(); j++) {
+                final Key key = uidKeys.valueAt(j);
+                // Tagged usage is already counted in TAG_NONE.
+                if (key.tag != TAG_NONE || key.set >= NetworkStats.SET_DEBUG_START) continue;
+                if (!templateMatches(template, key)) continue;
+
+                historyEntry = getValues(key, start, end, now, historyEntry);
+                uidEntry.rxBytes += historyEntry.rxBytes;
+                uidEntry.rxPackets += historyEntry.rxPackets;
+                uidEntry.txBytes += historyEntry.txBytes;
+                uidEntry.txPackets += historyEntry.txPackets;
+                uidEntry.operations += historyEntry.operations;
+            }
+
+            if (uidEntry.isEmpty()) continue;
+            if (top.size() < limit) {
+                top.add(uidEntry);
+                uidEntry = null;
+            } else if (comparator.compare(uidEntry, top.peek()) > 0) {
+                // Recycle the dropped entry for the next uid.
+                final NetworkStats.Entry dropped = top.poll();
+                top.add(uidEntry);
+                uidEntry = dropped;
+            }
+        }
+
+        final NetworkStats.Entry[] sorted = top.toArray(new NetworkStats.Entry[0]);
+        Arrays.sort(sorted, comparator.reversed());
+        final NetworkStats stats = new NetworkStats(end - start, sorted.length);
+        for (NetworkStats.Entry entry : sorted) {
+            stats.insertEntry(entry);
+        }
+        return stats;
+    }
+
+    private static long getRankedBytes(@NonNull NetworkStats.Entry entry,
+            @NetworkStatsManager.RankBy int rankBy) {
+        switch (rankBy) {
+            case NetworkStatsManager.RANK_BY_RX_BYTES:
+                return entry.rxBytes;
+            case NetworkStatsManager.RANK_BY_TX_BYTES:
+                return entry.txBytes;
+            default:
+                return entry.rxBytes + entry.txBytes;
+        }
+    }
+
     /**
      * Record given {@link android.net.NetworkStats.Entry} into this collection.
      * @hide
@@ -413,7 +768,9 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     public void recordData(NetworkIdentitySet ident, int uid, int set, int tag, long start,
             long end, NetworkStats.Entry entry) {
         final NetworkStatsHistory history = findOrCreateHistory(ident, uid, set, tag);
+        final int sizeBefore = history.size();
         history.recordData(start, end, entry);
+        mEstimatedSizeBytes += (long) (history.size() - sizeBefore) * ESTIMATED_BUCKET_BYTES;
         noteRecordedHistory(history.getStart(), history.getEnd(), entry.rxBytes + entry.txBytes);
     }
 
@@ -427,13 +784,169 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         Objects.requireNonNull(history);
         if (history.size() == 0) return;
         noteRecordedHistory(history.getStart(), history.getEnd(), history.getTotalBytes());
+        addHistory(key, history);
+        mEstimatedSizeStale = true;
+    }
+
+    /**
+     * Add a copy of the given history to the histories of the key, without touching the
+     * totals of this collection. Histories with the same bucket duration are combined, while
+     * histories with different ones are kept side by side, so that rolled up data is never
+     * resampled into shorter buckets than it was recorded with.
+     */
+    private void addHistory(@NonNull Key key, @NonNull NetworkStatsHistory history) {
+        final long bucketDuration = history.getBucketDuration();
+        final long existingBucketDuration = getBucketDuration(key);
+        if (existingBucketDuration == 0) {
+            putHistory(key, history.copy());
+        } else if (bucketDuration == existingBucketDuration) {
+            findMutableHistory(key).recordEntireHistory(history);
+        } else if (bucketDuration > existingBucketDuration) {
+            addRolledUpHistory(key, history.copy());
+        } else {
+            // The main history must have the shortest buckets, so it becomes rolled up.
+            demoteHistory(key);
+            mStats.put(key, history.copy());
+        }
+    }
+
+    /**
+     * Bucket duration of the main history of the given key, or 0 if there is none. Histories
+     * still encoded always have the bucket duration of this collection.
+     */
+    private long getBucketDuration(@NonNull Key key) {
+        final NetworkStatsHistory history = mStats.get(key);
+        if (history != null) return history.getBucketDuration();
+        return mEncoded.containsKey(key) ? mBucketDurationMillis : 0;
+    }
+
+    /**
+     * Add the given history, which must have longer buckets than the main history of the key,
+     * to the rolled up histories of the key. The history is owned by this collection after
+     * this call.
+     */
+    private void addRolledUpHistory(@NonNull Key key, @NonNull NetworkStatsHistory history) {
+        ArrayList<NetworkStatsHistory> rolledUp = mRolledUp.get(key);
+        if (rolledUp == null) {
+            rolledUp = new ArrayList<>(1);
+            mRolledUp.put(key, rolledUp);
+        }
+        final long bucketDuration = history.getBucketDuration();
+        int i = 0;
+        while (i < rolledUp.size() && rolledUp.get(i).getBucketDuration() < bucketDuration) i++;
+        if (i < rolledUp.size() && rolledUp.get(i).getBucketDuration() == bucketDuration) {
+            rolledUp.get(i).recordEntireHistory(history);
+        } else {
+            rolledUp.add(i, history);
+        }
+    }
+
+    /**
+     * Move the main history of the given key to its rolled up histories. The key stays
+     * indexed, so the caller must put a new main history for it right away.
+     */
+    private void demoteHistory(@NonNull Key key) {
+        final NetworkStatsHistory history = findMutableHistory(key);
+        mStats.remove(key);
+        addRolledUpHistory(key, history);
+    }
+
+    /**
+     * Return the bucket durations of the histories of the given key, in increasing order, or
+     * an empty array if the key has no history.
+     * @hide
+     */
+    @VisibleForTesting
+    @NonNull
+    public long[] getBucketDurations(@NonNull Key key) {
+        final long bucketDuration = getBucketDuration(key);
+        if (bucketDuration == 0) return new long[0];
+        final ArrayList<NetworkStatsHistory> rolledUp = mRolledUp.get(key);
+        final int size = (rolledUp != null) ? rolledUp.size() : 0;
+        final long[] bucketDurations = new long[1 + size];
+        bucketDurations[0] = bucketDuration;
+        for (int i = 0; i < size; i++) {
+            bucketDurations[i + 1] = rolledUp.get(i).getBucketDuration();
+        }
+        return bucketDurations;
+    }
+
+    /**
+     * Return the main history of the key followed by its rolled up histories, if any.
+     */
+    @NonNull
+    private ArrayList<NetworkStatsHistory> findAllHistories(@NonNull Key key) {
+        final ArrayList<NetworkStatsHistory> rolledUp = mRolledUp.get(key);
+        final ArrayList<NetworkStatsHistory> histories =
+                new ArrayList<>(1 + (rolledUp != null ? rolledUp.size() : 0));
+        histories.add(findHistory(key));
+        if (rolledUp != null) histories.addAll(rolledUp);
+        return histories;
+    }
+
+    /**
+     * Return the usage of the given key across the requested range, summing its main and
+     * rolled up histories, see {@link NetworkStatsHistory#getValues(long, long, long, Entry)}.
+     */
+    @NonNull
+    private NetworkStatsHistory.Entry getValues(@NonNull Key key, long start, long end, long now,
+            @Nullable NetworkStatsHistory.Entry recycle) {
+        final NetworkStatsHistory.Entry entry =
+                findHistory(key).getValues(start, end, now, recycle);
+        final ArrayList<NetworkStatsHistory> rolledUp = mRolledUp.get(key);
+        if (rolledUp != null) {
+            for (int i = 0; i < rolledUp.size(); i++) {
+                rolledUp.get(i).addValues(start, end, now, entry);
+            }
+        }
+        return entry;
+    }
 
-        NetworkStatsHistory target = mStats.get(key);
-        if (target == null) {
-            target = new NetworkStatsHistory(history.getBucketDuration());
-            mStats.put(key, target);
+    /**
+     * Record the main and rolled up histories of the given key across the requested range into
+     * the target history, in the bucket duration of the target.
+     */
+    private void recordHistoryOfKey(@NonNull NetworkStatsHistory target, @NonNull Key key,
+            long start, long end) {
+        target.recordHistory(findHistory(key), start, end);
+        final ArrayList<NetworkStatsHistory> rolledUp = mRolledUp.get(key);
+        if (rolledUp != null) {
+            for (int i = 0; i < rolledUp.size(); i++) {
+                target.recordHistory(rolledUp.get(i), start, end);
+            }
         }
-        target.recordEntireHistory(history);
+    }
+
+    /**
+     * Resample all histories whose buckets are shorter than the given duration into buckets
+     * of that duration, trading resolution for size. The histories of each key with buckets
+     * of at most that duration are combined into one.
+     *
+     * @return whether any history was resampled.
+     * @hide
+     */
+    public boolean rollupHistories(long bucketDuration) {
+        boolean changed = false;
+        for (Key key : getAllKeys()) {
+            final NetworkStatsHistory history = findMutableHistory(key);
+            if (history.getBucketDuration() >= bucketDuration) continue;
+            final NetworkStatsHistory combined = new NetworkStatsHistory(history, bucketDuration);
+            final ArrayList<NetworkStatsHistory> rolledUp = mRolledUp.get(key);
+            if (rolledUp != null) {
+                while (!rolledUp.isEmpty()
+                        && rolledUp.get(0).getBucketDuration() <= bucketDuration) {
+                    combined.recordEntireHistory(rolledUp.remove(0));
+                }
+                if (rolledUp.isEmpty()) mRolledUp.remove(key);
+            }
+            mStats.put(key, combined);
+            changed = true;
+        }
+        if (changed) {
+            mDirty = true;
+            mEstimatedSizeStale = true;
+        }
+        return changed;
     }
 
     /**
@@ -449,35 +962,210 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             final NetworkStatsHistory value = another.mStats.valueAt(i);
             recordHistory(key, value);
         }
+        for (int i = 0; i < another.mEncoded.size(); i++) {
+            final Key key = another.mEncoded.keyAt(i);
+            final NetworkStatsHistory value = another.mEncoded.valueAt(i).decode();
+            recordHistory(key, value);
+        }
+        for (int i = 0; i < another.mRolledUp.size(); i++) {
+            final Key key = another.mRolledUp.keyAt(i);
+            for (NetworkStatsHistory value : another.mRolledUp.valueAt(i)) {
+                recordHistory(key, value);
+            }
+        }
     }
 
     private NetworkStatsHistory findOrCreateHistory(
             NetworkIdentitySet ident, int uid, int set, int tag) {
-        final Key key = new Key(ident, uid, set, tag);
-        final NetworkStatsHistory existing = mStats.get(key);
+        return findOrCreateHistory(new Key(ident, uid, set, tag));
+    }
+
+    private NetworkStatsHistory findOrCreateHistory(@NonNull Key key) {
+        final NetworkStatsHistory existing = findMutableHistory(key);
 
         // update when no existing, or when bucket duration changed
         NetworkStatsHistory updated = null;
         if (existing == null) {
             updated = new NetworkStatsHistory(mBucketDurationMillis, 10);
+            mEstimatedSizeBytes += ESTIMATED_ENTRY_OVERHEAD_BYTES;
+        } else if (existing.getBucketDuration() > mBucketDurationMillis) {
+            // Keep rolled up data at its own resolution, and record new data next to it.
+            demoteHistory(key);
+            updated = new NetworkStatsHistory(mBucketDurationMillis, 10);
+            mEstimatedSizeStale = true;
         } else if (existing.getBucketDuration() != mBucketDurationMillis) {
             updated = new NetworkStatsHistory(existing, mBucketDurationMillis);
+            mEstimatedSizeStale = true;
         }
 
         if (updated != null) {
-            mStats.put(key, updated);
+            putHistory(key, updated);
             return updated;
         } else {
             return existing;
         }
     }
 
+    /**
+     * Associate the given history with the key in {@link #mStats}, keeping the secondary
+     * indexes up to date.
+     */
+    private void putHistory(@NonNull Key key, @NonNull NetworkStatsHistory history) {
+        if (mStats.put(key, history) != null) return;
+        addKeyToIndexes(key);
+    }
+
+    private void addKeyToIndexes(@NonNull Key key) {
+        ArraySet<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys == null) {
+            uidKeys = new ArraySet<>();
+            mKeysByUid.put(key.uid, uidKeys);
+        }
+        uidKeys.add(key);
+
+        ArraySet<Key> identKeys = mKeysByIdent.get(key.ident);
+        if (identKeys == null) {
+            identKeys = new ArraySet<>();
+            mKeysByIdent.put(key.ident, identKeys);
+            invalidateTemplateCache();
+        }
+        identKeys.add(key);
+    }
+
+    /**
+     * Remove the given key from {@link #mStats}, keeping the secondary indexes up to date.
+     */
+    private void removeHistory(@NonNull Key key) {
+        mEstimatedSizeStale = true;
+        mRolledUp.remove(key);
+        if (mStats.remove(key) == null && mEncoded.remove(key) == null) return;
+
+        final ArraySet<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys != null) {
+            uidKeys.remove(key);
+            if (uidKeys.isEmpty()) mKeysByUid.remove(key.uid);
+        }
+
+        final ArraySet<Key> identKeys = mKeysByIdent.get(key.ident);
+        if (identKeys != null) {
+            identKeys.remove(key);
+            if (identKeys.isEmpty()) {
+                mKeysByIdent.remove(key.ident);
+                invalidateTemplateCache();
+            }
+        }
+    }
+
+    /**
+     * Return the history of the given key, decoding it if it was read lazily. Does not
+     * change the structure of the collection, so it is safe to use from query paths.
+     */
+    @Nullable
+    private NetworkStatsHistory findHistory(@NonNull Key key) {
+        final NetworkStatsHistory history = mStats.get(key);
+        if (history != null) return history;
+        final EncodedHistory encoded = mEncoded.get(key);
+        if (encoded == null) return null;
+        final boolean wasDecoded = encoded.isDecoded();
+        final NetworkStatsHistory decoded = encoded.decode();
+        if (!wasDecoded) mEstimatedSizeStale = true;
+        return decoded;
+    }
+
+    /**
+     * Return the history of the given key for modification, moving it into {@link #mStats}
+     * first if it was read lazily.
+     */
+    @Nullable
+    private NetworkStatsHistory findMutableHistory(@NonNull Key key) {
+        final NetworkStatsHistory history = mStats.get(key);
+        if (history != null) return history;
+        final EncodedHistory encoded = mEncoded.remove(key);
+        if (encoded == null) return null;
+        final NetworkStatsHistory decoded = encoded.decode();
+        mEstimatedSizeStale = true;
+        // The key is already indexed, so bypass putHistory.
+        mStats.put(key, decoded);
+        return decoded;
+    }
+
+    /** Return all keys of this collection, whether their history is decoded or not. */
+    @NonNull
+    private ArrayList<Key> getAllKeys() {
+        final ArrayList<Key> keys = new ArrayList<>(mStats.size() + mEncoded.size());
+        keys.addAll(mStats.keySet());
+        keys.addAll(mEncoded.keySet());
+        return keys;
+    }
+
+    /**
+     * Return the groups of keys whose {@link NetworkIdentitySet} matches the given template.
+     * The template is evaluated once per distinct ident, see
+     * {@link NetworkIdentitySetRegistry#matches}, and the groups are cached until the set of
+     * idents in this collection changes.
+     */
+    @NonNull
+    private List<ArraySet<Key>> getKeysMatchingTemplate(@NonNull NetworkTemplate template) {
+        synchronized (mKeysByTemplate) {
+            final ArrayList<ArraySet<Key>> cached = mKeysByTemplate.get(template);
+            if (cached != null) return cached;
+        }
+
+        final ArrayList<ArraySet<Key>> matching = new ArrayList<>();
+        for (int i = 0; i < mKeysByIdent.size(); i++) {
+            if (NetworkIdentitySetRegistry.matches(template, mKeysByIdent.keyAt(i))) {
+                matching.add(mKeysByIdent.valueAt(i));
+            }
+        }
+
+        synchronized (mKeysByTemplate) {
+            mKeysByTemplate.put(template, matching);
+        }
+        return matching;
+    }
+
+    private void invalidateTemplateCache() {
+        synchronized (mKeysByTemplate) {
+            mKeysByTemplate.clear();
+        }
+    }
+
     /** @hide */
     @Override
     public void read(InputStream in) throws IOException {
+        if (in instanceof FileInputStream) {
+            // Map the rest of the file, so that indexed histories are only paged in when used.
+            final FileChannel channel = ((FileInputStream) in).getChannel();
+            final long position = channel.position();
+            read(channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position));
+            return;
+        }
         read((DataInput) new DataInputStream(in));
     }
 
+    /**
+     * Read a persisted collection from the given buffer, which can be a
+     * {@link java.nio.MappedByteBuffer}. Histories stored in the indexed format keep referring
+     * to the buffer until they are decoded.
+     * @hide
+     */
+    public void read(@NonNull ByteBuffer buffer) throws IOException {
+        final ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final DataInputStream dataIn = new DataInputStream(new ByteBufferInputStream(in));
+        try {
+            if (in.remaining() >= 8 && in.getInt(in.position()) == FILE_MAGIC
+                    && in.getInt(in.position() + 4) == VERSION_UNIFIED_INDEXED) {
+                dataIn.readInt();
+                dataIn.readInt();
+                readIndexed(dataIn, in);
+            } else {
+                read((DataInput) dataIn);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new ProtocolException("truncated stats: " + e);
+        }
+    }
+
     private void read(DataInput in) throws IOException {
         // verify file magic header intact
         final int magic = in.readInt();
@@ -491,7 +1179,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                 // uid := size *(NetworkIdentitySet size *(uid set tag NetworkStatsHistory))
                 final int identSize = in.readInt();
                 for (int i = 0; i < identSize; i++) {
-                    final NetworkIdentitySet ident = new NetworkIdentitySet(in);
+                    final NetworkIdentitySet ident = REGISTRY.intern(new NetworkIdentitySet(in));
 
                     final int size = in.readInt();
                     for (int j = 0; j < size; j++) {
@@ -506,23 +1194,132 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                 }
                 break;
             }
+            case VERSION_UNIFIED_INDEXED: {
+                readIndexed(in, null);
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
         }
     }
 
+    /**
+     * Read the body of a {@link #VERSION_UNIFIED_INDEXED} file, positioned after the version.
+     *
+     * <pre>
+     * body := identCount *(NetworkIdentitySet)
+     *         keyCount *(identIndex uid set tag start end totalBytes offset length)
+     *         dataLength data
+     * </pre>
+     *
+     * Histories of keys not yet in this collection are kept encoded until first used, others
+     * are decoded and combined right away.
+     *
+     * @param in stream positioned at the start of the body.
+     * @param buffer if non-null, the buffer backing {@code in}, whose data section is then
+     *               referenced in place instead of being copied.
+     */
+    private void readIndexed(DataInput in, @Nullable ByteBuffer buffer) throws IOException {
+        final int identCount = in.readInt();
+        if (identCount < 0) throw new ProtocolException("unexpected ident count: " + identCount);
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[identCount];
+        for (int i = 0; i < identCount; i++) {
+            idents[i] = REGISTRY.intern(new NetworkIdentitySet(in));
+        }
+
+        final int keyCount = in.readInt();
+        if (keyCount < 0) throw new ProtocolException("unexpected key count: " + keyCount);
+        final Key[] keys = new Key[keyCount];
+        final long[] starts = new long[keyCount];
+        final long[] ends = new long[keyCount];
+        final long[] totalBytes = new long[keyCount];
+        final int[] offsets = new int[keyCount];
+        final int[] lengths = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            final int identIndex = in.readInt();
+            if (identIndex < 0 || identIndex >= identCount) {
+                throw new ProtocolException("unexpected ident index: " + identIndex);
+            }
+            final int uid = in.readInt();
+            final int set = in.readInt();
+            final int tag = in.readInt();
+            keys[i] = new Key(idents[identIndex], uid, set, tag);
+            starts[i] = in.readLong();
+            ends[i] = in.readLong();
+            totalBytes[i] = in.readLong();
+            offsets[i] = in.readInt();
+            lengths[i] = in.readInt();
+        }
+
+        final int dataLength = in.readInt();
+        if (dataLength < 0) throw new ProtocolException("unexpected data length: " + dataLength);
+        final ByteBuffer data;
+        if (buffer != null) {
+            data = buffer.slice();
+            if (data.remaining() < dataLength) {
+                throw new ProtocolException("truncated data section: " + data.remaining());
+            }
+            data.limit(dataLength);
+            buffer.position(buffer.position() + dataLength);
+        } else {
+            final byte[] bytes = new byte[dataLength];
+            in.readFully(bytes);
+            data = ByteBuffer.wrap(bytes);
+        }
+
+        for (int i = 0; i < keyCount; i++) {
+            if (offsets[i] < 0 || lengths[i] < 0 || offsets[i] > dataLength - lengths[i]) {
+                throw new ProtocolException("history out of bounds: " + offsets[i]);
+            }
+            final ByteBuffer slice = data.duplicate();
+            slice.position(offsets[i]);
+            slice.limit(offsets[i] + lengths[i]);
+            recordEncodedHistory(keys[i], slice.slice(), starts[i], ends[i], totalBytes[i]);
+        }
+    }
+
+    private void recordEncodedHistory(@NonNull Key key, @NonNull ByteBuffer encoded,
+            long start, long end, long totalBytes) throws IOException {
+        // Empty histories are skipped, as in recordHistory().
+        if (start == Long.MAX_VALUE) return;
+        final boolean rolledUp = EncodedHistory.getBucketDuration(encoded) != mBucketDurationMillis;
+        final NetworkStatsHistory decoded = mStats.get(key);
+        if (!rolledUp && decoded != null && decoded.getBucketDuration() > mBucketDurationMillis) {
+            // Only rolled up data was read so far, keep it aside so this history stays encoded.
+            demoteHistory(key);
+        } else if (rolledUp || decoded != null) {
+            // Already decoded, or kept at its own resolution, combine right away.
+            recordHistory(key, EncodedHistory.decode(encoded));
+            return;
+        }
+        noteRecordedHistory(start, end, totalBytes);
+        mEstimatedSizeStale = true;
+        final EncodedHistory existing = mEncoded.get(key);
+        if (existing != null) {
+            // Same key read from several files, combined when first decoded.
+            existing.add(encoded, start, end, totalBytes);
+        } else {
+            mEncoded.put(key, new EncodedHistory(encoded, start, end, totalBytes));
+            addKeyToIndexes(key);
+        }
+    }
+
     /** @hide */
     @Override
     public void write(OutputStream out) throws IOException {
-        write((DataOutput) new DataOutputStream(out));
+        if (mUseIndexedFormat) {
+            writeIndexed(new DataOutputStream(out));
+        } else {
+            write((DataOutput) new DataOutputStream(out));
+        }
         out.flush();
     }
 
     private void write(DataOutput out) throws IOException {
         // cluster key lists grouped by ident
-        final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = new HashMap<>();
-        for (Key key : mStats.keySet()) {
+        final ArrayMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = new ArrayMap<>();
+        for (Key key : getAllKeys()) {
             ArrayList<Key> keys = keysByIdent.get(key.ident);
             if (keys == null) {
                 keys = new ArrayList<>();
@@ -535,19 +1332,111 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         out.writeInt(VERSION_UNIFIED_INIT);
 
         out.writeInt(keysByIdent.size());
-        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
-            final ArrayList<Key> keys = keysByIdent.get(ident);
-            ident.writeToStream(out);
-
-            out.writeInt(keys.size());
+        for (int i = 0; i < keysByIdent.size(); i++) {
+            keysByIdent.keyAt(i).writeToStream(out);
+            final ArrayList<Key> keys = keysByIdent.valueAt(i);
+
+            // Rolled up histories are written as further entries of the same key.
+            final ArrayList<ArrayList<NetworkStatsHistory>> histories =
+                    new ArrayList<>(keys.size());
+            int size = 0;
             for (Key key : keys) {
-                final NetworkStatsHistory history = mStats.get(key);
-                out.writeInt(key.uid);
-                out.writeInt(key.set);
-                out.writeInt(key.tag);
-                history.writeToStream(out);
+                final ArrayList<NetworkStatsHistory> keyHistories = findAllHistories(key);
+                histories.add(keyHistories);
+                size += keyHistories.size();
             }
+
+            out.writeInt(size);
+            for (int j = 0; j < keys.size(); j++) {
+                final Key key = keys.get(j);
+                for (NetworkStatsHistory history : histories.get(j)) {
+                    out.writeInt(key.uid);
+                    out.writeInt(key.set);
+                    out.writeInt(key.tag);
+                    history.writeToStream(out);
+                }
+            }
+        }
+    }
+
+    private void writeIndexed(DataOutputStream out) throws IOException {
+        // Index in the ident table of each ident, and the idents in table order.
+        final ArrayMap<NetworkIdentitySet, Integer> identIndexes = new ArrayMap<>();
+        final ArrayList<NetworkIdentitySet> idents = new ArrayList<>();
+        // One entry per history, rolled up histories being further entries of the same key,
+        // with a null history for the main history of the key.
+        final ArrayList<Key> keys = new ArrayList<>();
+        final ArrayList<NetworkStatsHistory> histories = new ArrayList<>();
+        for (Key key : getAllKeys()) {
+            keys.add(key);
+            histories.add(null);
+            final ArrayList<NetworkStatsHistory> rolledUp = mRolledUp.get(key);
+            if (rolledUp == null) continue;
+            for (NetworkStatsHistory history : rolledUp) {
+                keys.add(key);
+                histories.add(history);
+            }
+        }
+        final int keyCount = keys.size();
+        final long[] starts = new long[keyCount];
+        final long[] ends = new long[keyCount];
+        final long[] totalBytes = new long[keyCount];
+        final int[] offsets = new int[keyCount];
+        final int[] lengths = new int[keyCount];
+
+        // Encode the data section first, since the index needs the offset of each history.
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final DataOutputStream dataOut = new DataOutputStream(data);
+        for (int i = 0; i < keyCount; i++) {
+            final Key key = keys.get(i);
+            if (!identIndexes.containsKey(key.ident)) {
+                identIndexes.put(key.ident, idents.size());
+                idents.add(key.ident);
+            }
+            offsets[i] = dataOut.size();
+            NetworkStatsHistory history = histories.get(i);
+            final EncodedHistory encoded = (history == null) ? mEncoded.get(key) : null;
+            if (encoded != null && encoded.canCopy()) {
+                // Untouched since read, copy the encoded bytes as they are.
+                encoded.copyTo(dataOut);
+                starts[i] = encoded.getStart();
+                ends[i] = encoded.getEnd();
+                totalBytes[i] = encoded.getTotalBytes();
+            } else {
+                if (history == null) history = findHistory(key);
+                history.writeToStreamCompact(dataOut);
+                starts[i] = history.getStart();
+                ends[i] = history.getEnd();
+                totalBytes[i] = history.getTotalBytes();
+            }
+            lengths[i] = dataOut.size() - offsets[i];
+        }
+        dataOut.flush();
+
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(VERSION_UNIFIED_INDEXED);
+
+        out.writeInt(idents.size());
+        for (int i = 0; i < idents.size(); i++) {
+            idents.get(i).writeToStream(out);
         }
+
+        out.writeInt(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            final Key key = keys.get(i);
+            out.writeInt(identIndexes.get(key.ident));
+            out.writeInt(key.uid);
+            out.writeInt(key.set);
+            out.writeInt(key.tag);
+            out.writeLong(starts[i]);
+            out.writeLong(ends[i]);
+            out.writeLong(totalBytes[i]);
+            out.writeInt(offsets[i]);
+            out.writeInt(lengths[i]);
+        }
+
+        out.writeInt(data.size());
+        data.writeTo(out);
     }
 
     /**
@@ -668,6 +1557,17 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         }
     }
 
+    /**
+     * Whether any {@link NetworkStatsHistory} is attributed to one of the given UIDs.
+     * @hide
+     */
+    public boolean containsAnyUid(@NonNull int[] uids) {
+        for (int uid : uids) {
+            if (mKeysByUid.get(uid) != null) return true;
+        }
+        return false;
+    }
+
     /**
      * Remove any {@link NetworkStatsHistory} attributed to the requested UID,
      * moving any {@link NetworkStats#TAG_NONE} series to
@@ -675,22 +1575,23 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
      * @hide
      */
     public void removeUids(int[] uids) {
-        final ArrayList<Key> knownKeys = new ArrayList<>();
-        knownKeys.addAll(mStats.keySet());
+        final ArraySet<Key> knownKeys = new ArraySet<>();
+        for (int uid : uids) {
+            final ArraySet<Key> uidKeys = mKeysByUid.get(uid);
+            if (uidKeys != null) knownKeys.addAll(uidKeys);
+        }
 
         // migrate all UID stats into special "removed" bucket
         for (Key key : knownKeys) {
-            if (CollectionUtils.contains(uids, key.uid)) {
-                // only migrate combined TAG_NONE history
-                if (key.tag == TAG_NONE) {
-                    final NetworkStatsHistory uidHistory = mStats.get(key);
-                    final NetworkStatsHistory removedHistory = findOrCreateHistory(
-                            key.ident, UID_REMOVED, SET_DEFAULT, TAG_NONE);
-                    removedHistory.recordEntireHistory(uidHistory);
+            // only migrate combined TAG_NONE history
+            if (key.tag == TAG_NONE) {
+                final Key removedKey = new Key(key.ident, UID_REMOVED, SET_DEFAULT, TAG_NONE);
+                for (NetworkStatsHistory uidHistory : findAllHistories(key)) {
+                    addHistory(removedKey, uidHistory);
                 }
-                mStats.remove(key);
-                mDirty = true;
             }
+            removeHistory(key);
+            mDirty = true;
         }
     }
 
@@ -699,19 +1600,48 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
      * @hide
      */
     public void removeHistoryBefore(long cutoffMillis) {
-        final ArrayList<Key> knownKeys = new ArrayList<>();
-        knownKeys.addAll(mStats.keySet());
+        final ArrayList<Key> knownKeys = getAllKeys();
 
         for (Key key : knownKeys) {
-            final NetworkStatsHistory history = mStats.get(key);
+            final ArrayList<NetworkStatsHistory> rolledUp = mRolledUp.get(key);
+            if (rolledUp != null) {
+                for (int i = rolledUp.size() - 1; i >= 0; i--) {
+                    final NetworkStatsHistory history = rolledUp.get(i);
+                    if (history.getStart() > cutoffMillis) continue;
+                    history.removeBucketsStartingBefore(cutoffMillis);
+                    if (history.size() == 0) rolledUp.remove(i);
+                    mDirty = true;
+                }
+                if (rolledUp.isEmpty()) mRolledUp.remove(key);
+            }
+
+            final EncodedHistory encoded = mEncoded.get(key);
+            if (encoded != null && encoded.getStart() > cutoffMillis) continue;
+
+            final NetworkStatsHistory history = findMutableHistory(key);
             if (history.getStart() > cutoffMillis) continue;
 
             history.removeBucketsStartingBefore(cutoffMillis);
             if (history.size() == 0) {
-                mStats.remove(key);
+                removeEmptyHistory(key);
             }
             mDirty = true;
         }
+        mEstimatedSizeStale = true;
+    }
+
+    /**
+     * Remove the emptied main history of the given key, replacing it with its rolled up
+     * history with the shortest buckets if there is any.
+     */
+    private void removeEmptyHistory(@NonNull Key key) {
+        final ArrayList<NetworkStatsHistory> rolledUp = mRolledUp.get(key);
+        if (rolledUp == null) {
+            removeHistory(key);
+            return;
+        }
+        mStats.put(key, rolledUp.remove(0));
+        if (rolledUp.isEmpty()) mRolledUp.remove(key);
     }
 
     private void noteRecordedHistory(long startMillis, long endMillis, long totalBytes) {
@@ -727,8 +1657,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     }
 
     private ArrayList<Key> getSortedKeys() {
-        final ArrayList<Key> keys = new ArrayList<>();
-        keys.addAll(mStats.keySet());
+        final ArrayList<Key> keys = getAllKeys();
         Collections.sort(keys, (left, right) -> Key.compare(left, right));
         return keys;
     }
@@ -741,9 +1670,10 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             pw.print(" set="); pw.print(NetworkStats.setToString(key.set));
             pw.print(" tag="); pw.println(NetworkStats.tagToString(key.tag));
 
-            final NetworkStatsHistory history = mStats.get(key);
             pw.increaseIndent();
-            history.dump(pw, true);
+            for (NetworkStatsHistory history : findAllHistories(key)) {
+                history.dump(pw, true);
+            }
             pw.decreaseIndent();
         }
     }
@@ -753,20 +1683,22 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         final long start = proto.start(tag);
 
         for (Key key : getSortedKeys()) {
-            final long startStats = proto.start(NetworkStatsCollectionProto.STATS);
-
-            // Key
-            final long startKey = proto.start(NetworkStatsCollectionStatsProto.KEY);
-            key.ident.dumpDebug(proto, NetworkStatsCollectionKeyProto.IDENTITY);
-            proto.write(NetworkStatsCollectionKeyProto.UID, key.uid);
-            proto.write(NetworkStatsCollectionKeyProto.SET, key.set);
-            proto.write(NetworkStatsCollectionKeyProto.TAG, key.tag);
-            proto.end(startKey);
-
-            // Value
-            final NetworkStatsHistory history = mStats.get(key);
-            history.dumpDebug(proto, NetworkStatsCollectionStatsProto.HISTORY);
-            proto.end(startStats);
+            // Rolled up histories are dumped as further stats of the same key.
+            for (NetworkStatsHistory history : findAllHistories(key)) {
+                final long startStats = proto.start(NetworkStatsCollectionProto.STATS);
+
+                // Key
+                final long startKey = proto.start(NetworkStatsCollectionStatsProto.KEY);
+                key.ident.dumpDebug(proto, NetworkStatsCollectionKeyProto.IDENTITY);
+                proto.write(NetworkStatsCollectionKeyProto.UID, key.uid);
+                proto.write(NetworkStatsCollectionKeyProto.SET, key.set);
+                proto.write(NetworkStatsCollectionKeyProto.TAG, key.tag);
+                proto.end(startKey);
+
+                // Value
+                history.dumpDebug(proto, NetworkStatsCollectionStatsProto.HISTORY);
+                proto.end(startStats);
+            }
         }
 
         proto.end(start);
@@ -789,20 +1721,17 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         final ArrayMap<Key, NetworkStatsHistory> grouped = new ArrayMap<>();
 
         // Walk through all history, grouping by matching network templates
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            final NetworkStatsHistory value = mStats.valueAt(i);
-
-            if (!templateMatches(groupTemplate, key.ident)) continue;
+        for (Key key : getAllKeys()) {
+            if (!templateMatches(groupTemplate, key)) continue;
             if (key.set >= NetworkStats.SET_DEBUG_START) continue;
 
             final Key groupKey = new Key(new NetworkIdentitySet(), key.uid, key.set, key.tag);
             NetworkStatsHistory groupHistory = grouped.get(groupKey);
             if (groupHistory == null) {
-                groupHistory = new NetworkStatsHistory(value.getBucketDuration());
+                groupHistory = new NetworkStatsHistory(mBucketDurationMillis);
                 grouped.put(groupKey, groupHistory);
             }
-            groupHistory.recordHistory(value, start, end);
+            recordHistoryOfKey(groupHistory, key, start, end);
         }
 
         for (int i = 0; i < grouped.size(); i++) {
@@ -824,25 +1753,171 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
     /**
      * Test if given {@link NetworkTemplate} matches any {@link NetworkIdentity}
-     * in the given {@link NetworkIdentitySet}.
+     * in the {@link NetworkIdentitySet} of the given key.
      */
-    private static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
-        for (NetworkIdentity ident : identSet) {
-            if (template.matches(ident)) {
-                return true;
-            }
-        }
-        return false;
+    private static boolean templateMatches(NetworkTemplate template, Key key) {
+        return NetworkIdentitySetRegistry.matches(template, key.ident);
     }
 
     /**
      * Get the all historical stats of the collection {@link NetworkStatsCollection}.
      *
+     * <p>Each key maps to a single history, so rolled up histories of a key are recorded into
+     * a copy of its history with the shortest buckets.
+     *
      * @return All {@link NetworkStatsHistory} in this collection.
      */
     @NonNull
     public Map<Key, NetworkStatsHistory> getEntries() {
-        return new ArrayMap(mStats);
+        final ArrayMap<Key, NetworkStatsHistory> entries = new ArrayMap<>(mStats);
+        for (int i = 0; i < mEncoded.size(); i++) {
+            entries.put(mEncoded.keyAt(i), mEncoded.valueAt(i).decode());
+        }
+        for (int i = 0; i < mRolledUp.size(); i++) {
+            final NetworkStatsHistory combined = entries.get(mRolledUp.keyAt(i)).copy();
+            for (NetworkStatsHistory history : mRolledUp.valueAt(i)) {
+                combined.recordEntireHistory(history);
+            }
+            entries.put(mRolledUp.keyAt(i), combined);
+        }
+        return entries;
+    }
+
+    /**
+     * History of a single {@link Key} read from one or more indexed files, decoded on first
+     * use. Decoding may happen on query threads, so it is synchronized on this object.
+     */
+    private static final class EncodedHistory {
+        private final ArrayList<ByteBuffer> mSegments = new ArrayList<>(1);
+        private long mStart;
+        private long mEnd;
+        private long mTotalBytes;
+        @Nullable
+        private NetworkStatsHistory mDecoded;
+
+        EncodedHistory(@NonNull ByteBuffer encoded, long start, long end, long totalBytes) {
+            mSegments.add(encoded);
+            mStart = start;
+            mEnd = end;
+            mTotalBytes = totalBytes;
+        }
+
+        synchronized void add(@NonNull ByteBuffer encoded, long start, long end,
+                long totalBytes) {
+            mSegments.add(encoded);
+            mStart = Math.min(mStart, start);
+            mEnd = Math.max(mEnd, end);
+            mTotalBytes += totalBytes;
+            mDecoded = null;
+        }
+
+        long getStart() {
+            return mStart;
+        }
+
+        long getEnd() {
+            return mEnd;
+        }
+
+        long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        synchronized boolean isDecoded() {
+            return mDecoded != null;
+        }
+
+        synchronized long estimateSizeBytes() {
+            long size = 0;
+            for (ByteBuffer segment : mSegments) {
+                size += segment.remaining();
+            }
+            if (mDecoded != null) {
+                size += (long) mDecoded.size() * ESTIMATED_BUCKET_BYTES;
+            }
+            return size;
+        }
+
+        /** Whether the encoded form can be copied to a new file as is. */
+        boolean canCopy() {
+            return mSegments.size() == 1;
+        }
+
+        void copyTo(@NonNull OutputStream out) throws IOException {
+            final ByteBuffer segment = mSegments.get(0).duplicate();
+            final byte[] bytes = new byte[segment.remaining()];
+            segment.get(bytes);
+            out.write(bytes);
+        }
+
+        @NonNull
+        synchronized NetworkStatsHistory decode() {
+            if (mDecoded != null) return mDecoded;
+            try {
+                // All segments have the bucket duration of the collection, see
+                // NetworkStatsCollection#recordEncodedHistory.
+                NetworkStatsHistory result = null;
+                for (ByteBuffer segment : mSegments) {
+                    final NetworkStatsHistory history = decode(segment);
+                    if (result == null) {
+                        result = history;
+                    } else {
+                        result.recordEntireHistory(history);
+                    }
+                }
+                mDecoded = result;
+                return result;
+            } catch (IOException e) {
+                // The index was validated when read, so the backing file must have been
+                // truncated or modified since.
+                throw new IllegalStateException("problem decoding network stats history", e);
+            }
+        }
+
+        /**
+         * Read the bucket duration of an encoded history without decoding it. Every version
+         * of {@link NetworkStatsHistory} starts with its version then its bucket duration.
+         */
+        static long getBucketDuration(@NonNull ByteBuffer encoded) throws IOException {
+            if (encoded.remaining() < Integer.BYTES + Long.BYTES) {
+                throw new ProtocolException("truncated history: " + encoded.remaining());
+            }
+            return encoded.getLong(encoded.position() + Integer.BYTES);
+        }
+
+        @NonNull
+        static NetworkStatsHistory decode(@NonNull ByteBuffer encoded) throws IOException {
+            return new NetworkStatsHistory((DataInput) new DataInputStream(
+                    new ByteBufferInputStream(encoded.duplicate())));
+        }
+    }
+
+    /** {@link InputStream} reading from a {@link ByteBuffer}, advancing its position. */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(@NonNull ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            final int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
     }
 
     /**
@@ -921,7 +1996,11 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
      * a certain record in the {@link NetworkStatsCollection} object.
      */
     public static final class Key {
-        /** @hide */
+        /**
+         * The canonical instance of the set, shared by all keys holding equal sets, which
+         * throws on any attempt to modify it.
+         * @hide
+         */
         public final NetworkIdentitySet ident;
         /** @hide */
         public final int uid;
@@ -946,11 +2025,11 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
         /** @hide */
         public Key(@NonNull NetworkIdentitySet ident, int uid, int set, int tag) {
-            this.ident = Objects.requireNonNull(ident);
+            this.ident = REGISTRY.intern(Objects.requireNonNull(ident));
             this.uid = uid;
             this.set = set;
             this.tag = tag;
-            mHashCode = Objects.hash(ident, uid, set, tag);
+            mHashCode = Objects.hash(this.ident, uid, set, tag);
         }
 
         @Override
@@ -963,7 +2042,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             if (obj instanceof Key) {
                 final Key key = (Key) obj;
                 return uid == key.uid && set == key.set && tag == key.tag
-                        && Objects.equals(ident, key.ident);
+                        && ident == key.ident;
             }
             return false;
         }
@@ -22,8 +22,12 @@ import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.DataStreamUtils.readFullLongArray;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLong;
 import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLongArray;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readZigZagVarLong;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLong;
 import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLongArray;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeZigZagVarLong;
 import static android.net.NetworkStatsHistory.Entry.UNKNOWN;
 import static android.net.NetworkStatsHistory.ParcelUtils.readLongArray;
 import static android.net.NetworkStatsHistory.ParcelUtils.writeLongArray;
@@ -76,6 +80,7 @@ public final class NetworkStatsHistory implements Parcelable {
     private static final int VERSION_INIT = 1;
     private static final int VERSION_ADD_PACKETS = 2;
     private static final int VERSION_ADD_ACTIVE = 3;
+    private static final int VERSION_DELTA_VARINT = 4;
 
     /** @hide */
     public static final int FIELD_ACTIVE_TIME = 0x01;
@@ -103,6 +108,16 @@ public final class NetworkStatsHistory implements Parcelable {
     private long[] operations;
     private long totalBytes;
 
+    /**
+     * Minimum number of whole buckets a range query must cover before it is answered from
+     * {@link #prefixSums}, so that histories only queried over short ranges don't pay for them.
+     */
+    private static final int PREFIX_SUMS_MIN_BUCKETS = 16;
+
+    /** Lazily built running totals of the counters, see {@link PrefixSums}. */
+    @Nullable
+    private volatile PrefixSums prefixSums;
+
     /** @hide */
     public NetworkStatsHistory(long bucketDuration, long[] bucketStart, long[] activeTime,
             long[] rxBytes, long[] rxPackets, long[] txBytes, long[] txPackets,
@@ -309,6 +324,22 @@ public final class NetworkStatsHistory implements Parcelable {
         recordEntireHistory(existing);
     }
 
+    /**
+     * Return a deep copy of this history, with the same bucket duration and fields.
+     * @hide
+     */
+    @NonNull
+    public NetworkStatsHistory copy() {
+        return new NetworkStatsHistory(bucketDuration, copyOf(bucketStart), copyOf(activeTime),
+                copyOf(rxBytes), copyOf(rxPackets), copyOf(txBytes), copyOf(txPackets),
+                copyOf(operations), bucketCount, totalBytes);
+    }
+
+    @Nullable
+    private static long[] copyOf(@Nullable long[] array) {
+        return array != null ? array.clone() : null;
+    }
+
     /** @hide */
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     public NetworkStatsHistory(Parcel in) {
@@ -368,18 +399,54 @@ public final class NetworkStatsHistory implements Parcelable {
                 totalBytes = CollectionUtils.total(rxBytes) + CollectionUtils.total(txBytes);
                 break;
             }
+            case VERSION_DELTA_VARINT: {
+                bucketDuration = in.readLong();
+                final long size = readVarLong(in);
+                if (size < 0 || size > Integer.MAX_VALUE) {
+                    throw new ProtocolException("unexpected bucket count: " + size);
+                }
+                bucketCount = (int) size;
+                final boolean startsInBuckets = in.readBoolean();
+                final int fields = in.readUnsignedByte();
+                final int nonEmptyFields = in.readUnsignedByte();
+                bucketStart = new long[bucketCount];
+                final long step = startsInBuckets ? bucketDuration : 1;
+                for (int i = 0; i < bucketCount; i++) {
+                    final long delta = readZigZagVarLong(in);
+                    bucketStart[i] = (i == 0) ? delta : bucketStart[i - 1] + delta * step;
+                }
+                activeTime = readZigZagVarLongColumn(in, fields, nonEmptyFields,
+                        FIELD_ACTIVE_TIME, bucketCount);
+                rxBytes = readZigZagVarLongColumn(in, fields, nonEmptyFields,
+                        FIELD_RX_BYTES, bucketCount);
+                rxPackets = readZigZagVarLongColumn(in, fields, nonEmptyFields,
+                        FIELD_RX_PACKETS, bucketCount);
+                txBytes = readZigZagVarLongColumn(in, fields, nonEmptyFields,
+                        FIELD_TX_BYTES, bucketCount);
+                txPackets = readZigZagVarLongColumn(in, fields, nonEmptyFields,
+                        FIELD_TX_PACKETS, bucketCount);
+                operations = readZigZagVarLongColumn(in, fields, nonEmptyFields,
+                        FIELD_OPERATIONS, bucketCount);
+                totalBytes = CollectionUtils.total(rxBytes) + CollectionUtils.total(txBytes);
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
         }
 
-        if (bucketStart.length != bucketCount || rxBytes.length != bucketCount
-                || rxPackets.length != bucketCount || txBytes.length != bucketCount
-                || txPackets.length != bucketCount || operations.length != bucketCount) {
+        if (bucketStart.length != bucketCount || !hasLength(rxBytes, bucketCount)
+                || !hasLength(rxPackets, bucketCount) || !hasLength(txBytes, bucketCount)
+                || !hasLength(txPackets, bucketCount) || !hasLength(operations, bucketCount)) {
             throw new ProtocolException("Mismatched history lengths");
         }
     }
 
+    /** Whether the given column is missing, or has the given length. */
+    private static boolean hasLength(@Nullable long[] values, int length) {
+        return values == null || values.length == length;
+    }
+
     /** @hide */
     public void writeToStream(DataOutput out) throws IOException {
         out.writeInt(VERSION_ADD_ACTIVE);
@@ -393,6 +460,90 @@ public final class NetworkStatsHistory implements Parcelable {
         writeVarLongArray(out, operations, bucketCount);
     }
 
+    /**
+     * Write this history using {@link #VERSION_DELTA_VARINT}, which is considerably smaller than
+     * {@link #writeToStream(DataOutput)} but can only be read back by this version onwards.
+     *
+     * <pre>
+     * history := bucketDuration bucketCount startsInBuckets fields nonEmptyFields
+     *            *(bucketStart delta) *(column *(value))
+     * </pre>
+     *
+     * The first bucket start is written as is and the following ones as the difference to
+     * their predecessor, counted in {@link #bucketDuration} when all of them are aligned.
+     * {@code fields} are the columns this history has, which are read back as null otherwise,
+     * and only the columns of {@code nonEmptyFields}, which are not all zeroes, are written. All
+     * values after {@code nonEmptyFields} are zig-zag encoded variable-length longs.
+     * @hide
+     */
+    public void writeToStreamCompact(DataOutput out) throws IOException {
+        out.writeInt(VERSION_DELTA_VARINT);
+        out.writeLong(bucketDuration);
+        writeVarLong(out, bucketCount);
+
+        boolean startsInBuckets = bucketDuration > 0;
+        for (int i = 1; i < bucketCount && startsInBuckets; i++) {
+            startsInBuckets = (bucketStart[i] - bucketStart[i - 1]) % bucketDuration == 0;
+        }
+        out.writeBoolean(startsInBuckets);
+
+        final int fields = (activeTime != null ? FIELD_ACTIVE_TIME : 0)
+                | (rxBytes != null ? FIELD_RX_BYTES : 0)
+                | (rxPackets != null ? FIELD_RX_PACKETS : 0)
+                | (txBytes != null ? FIELD_TX_BYTES : 0)
+                | (txPackets != null ? FIELD_TX_PACKETS : 0)
+                | (operations != null ? FIELD_OPERATIONS : 0);
+        out.writeByte(fields);
+        final int nonEmptyFields = getNonEmptyFields(activeTime, FIELD_ACTIVE_TIME)
+                | getNonEmptyFields(rxBytes, FIELD_RX_BYTES)
+                | getNonEmptyFields(rxPackets, FIELD_RX_PACKETS)
+                | getNonEmptyFields(txBytes, FIELD_TX_BYTES)
+                | getNonEmptyFields(txPackets, FIELD_TX_PACKETS)
+                | getNonEmptyFields(operations, FIELD_OPERATIONS);
+        out.writeByte(nonEmptyFields);
+
+        final long step = startsInBuckets ? bucketDuration : 1;
+        for (int i = 0; i < bucketCount; i++) {
+            writeZigZagVarLong(out, (i == 0) ? bucketStart[i]
+                    : (bucketStart[i] - bucketStart[i - 1]) / step);
+        }
+        writeZigZagVarLongColumn(out, nonEmptyFields, FIELD_ACTIVE_TIME, activeTime, bucketCount);
+        writeZigZagVarLongColumn(out, nonEmptyFields, FIELD_RX_BYTES, rxBytes, bucketCount);
+        writeZigZagVarLongColumn(out, nonEmptyFields, FIELD_RX_PACKETS, rxPackets, bucketCount);
+        writeZigZagVarLongColumn(out, nonEmptyFields, FIELD_TX_BYTES, txBytes, bucketCount);
+        writeZigZagVarLongColumn(out, nonEmptyFields, FIELD_TX_PACKETS, txPackets, bucketCount);
+        writeZigZagVarLongColumn(out, nonEmptyFields, FIELD_OPERATIONS, operations,
+                bucketCount);
+    }
+
+    private int getNonEmptyFields(@Nullable long[] values, int field) {
+        if (values == null) return 0;
+        for (int i = 0; i < bucketCount; i++) {
+            if (values[i] != 0) return field;
+        }
+        return 0;
+    }
+
+    private static void writeZigZagVarLongColumn(DataOutput out, int fields, int field,
+            long[] values, int size) throws IOException {
+        if ((fields & field) == 0) return;
+        for (int i = 0; i < size; i++) {
+            writeZigZagVarLong(out, values[i]);
+        }
+    }
+
+    @Nullable
+    private static long[] readZigZagVarLongColumn(DataInput in, int fields, int nonEmptyFields,
+            int field, int size) throws IOException {
+        if ((fields & field) == 0) return null;
+        final long[] values = new long[size];
+        if ((nonEmptyFields & field) == 0) return values;
+        for (int i = 0; i < size; i++) {
+            values[i] = readZigZagVarLong(in);
+        }
+        return values;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -507,6 +658,7 @@ public final class NetworkStatsHistory implements Parcelable {
         // Unwind old values
         if (rxBytes != null) totalBytes -= rxBytes[i];
         if (txBytes != null) totalBytes -= txBytes[i];
+        invalidatePrefixSums(i);
 
         bucketStart[i] = entry.bucketStart;
         setLong(activeTime, i, entry.activeTime);
@@ -560,6 +712,7 @@ public final class NetworkStatsHistory implements Parcelable {
         // distribute data usage into buckets
         long duration = end - start;
         final int startIndex = getIndexAfter(end);
+        int lowestIndex = startIndex + 1;
         for (int i = startIndex; i >= 0; i--) {
             final long curStart = bucketStart[i];
             final long curEnd = curStart + bucketDuration;
@@ -588,8 +741,10 @@ public final class NetworkStatsHistory implements Parcelable {
             addLong(this.operations, i, fracOperations); operations -= fracOperations;
 
             duration -= overlap;
+            lowestIndex = i;
         }
 
+        invalidatePrefixSums(lowestIndex);
         totalBytes += entry.rxBytes + entry.txBytes;
     }
 
@@ -685,6 +840,7 @@ public final class NetworkStatsHistory implements Parcelable {
         setLong(txPackets, index, 0L);
         setLong(operations, index, 0L);
         bucketCount++;
+        invalidatePrefixSums(index);
     }
 
     /**
@@ -701,6 +857,7 @@ public final class NetworkStatsHistory implements Parcelable {
         if (operations != null) operations = EmptyArray.LONG;
         bucketCount = 0;
         totalBytes = 0;
+        prefixSums = null;
     }
 
     /**
@@ -731,6 +888,7 @@ public final class NetworkStatsHistory implements Parcelable {
             if (txPackets != null) txPackets = Arrays.copyOfRange(txPackets, i, length);
             if (operations != null) operations = Arrays.copyOfRange(operations, i, length);
             bucketCount -= i;
+            prefixSums = null;
 
             totalBytes = 0;
             if (rxBytes != null) totalBytes += CollectionUtils.total(rxBytes);
@@ -770,18 +928,61 @@ public final class NetworkStatsHistory implements Parcelable {
         final Entry entry = recycle != null ? recycle : new Entry();
         entry.bucketDuration = end - start;
         entry.bucketStart = start;
-        entry.activeTime = activeTime != null ? 0 : UNKNOWN;
-        entry.rxBytes = rxBytes != null ? 0 : UNKNOWN;
-        entry.rxPackets = rxPackets != null ? 0 : UNKNOWN;
-        entry.txBytes = txBytes != null ? 0 : UNKNOWN;
-        entry.txPackets = txPackets != null ? 0 : UNKNOWN;
-        entry.operations = operations != null ? 0 : UNKNOWN;
+        entry.activeTime = UNKNOWN;
+        entry.rxBytes = UNKNOWN;
+        entry.rxPackets = UNKNOWN;
+        entry.txBytes = UNKNOWN;
+        entry.txPackets = UNKNOWN;
+        entry.operations = UNKNOWN;
+        return addValues(start, end, now, entry);
+    }
+
+    /**
+     * Add interpolated data usage across the requested range to the given entry, as returned
+     * by {@link #getValues(long, long, long, Entry)}, so that the usage of several histories can
+     * be summed whatever their bucket durations. Fields of the entry which are
+     * {@link Entry#UNKNOWN} become known if this history has them.
+     *
+     * @return the given entry.
+     * @hide
+     */
+    @NonNull
+    public Entry addValues(long start, long end, long now, @NonNull Entry entry) {
+        if (activeTime != null && entry.activeTime == UNKNOWN) entry.activeTime = 0;
+        if (rxBytes != null && entry.rxBytes == UNKNOWN) entry.rxBytes = 0;
+        if (rxPackets != null && entry.rxPackets == UNKNOWN) entry.rxPackets = 0;
+        if (txBytes != null && entry.txBytes == UNKNOWN) entry.txBytes = 0;
+        if (txPackets != null && entry.txPackets == UNKNOWN) entry.txPackets = 0;
+        if (operations != null && entry.operations == UNKNOWN) entry.operations = 0;
 
         // Return fast if there is no entry.
         if (bucketCount == 0) return entry;
 
+        // Buckets entirely within the range and completed by now need no proration, so add them
+        // up from the prefix sums when there are enough of them. Only the remaining buckets at
+        // either edge of the range are prorated below.
+        int wholeFirst = -1;
+        int wholeLast = -2;
+        final long wholeLimit = Math.min(end, now);
+        if (bucketDuration > 0 && wholeLimit >= Long.MIN_VALUE + bucketDuration) {
+            wholeFirst = getFirstIndexAtOrAfter(start);
+            wholeLast = getFirstIndexAtOrAfter(wholeLimit - bucketDuration + 1) - 1;
+        }
+        if (wholeLast - wholeFirst + 1 >= PREFIX_SUMS_MIN_BUCKETS) {
+            addPrefixSums(entry, wholeFirst, wholeLast + 1);
+        } else {
+            wholeFirst = -1;
+            wholeLast = -2;
+        }
+
         final int startIndex = getIndexAfter(end);
         for (int i = startIndex; i >= 0; i--) {
+            // already accounted for from the prefix sums
+            if (i == wholeLast) {
+                i = wholeFirst;
+                continue;
+            }
+
             final long curStart = bucketStart[i];
             long curEnd = curStart + bucketDuration;
 
@@ -825,6 +1026,85 @@ public final class NetworkStatsHistory implements Parcelable {
         return entry;
     }
 
+    /**
+     * Return the index of the first bucket starting at or after the given time, or
+     * {@link #size()} when there is none.
+     */
+    private int getFirstIndexAtOrAfter(long time) {
+        final int index = Arrays.binarySearch(bucketStart, 0, bucketCount, time);
+        return index >= 0 ? index : ~index;
+    }
+
+    /**
+     * Add the counters of buckets {@code [from, to)} to the given entry, extending the prefix
+     * sums as needed.
+     */
+    private void addPrefixSums(Entry entry, int from, int to) {
+        PrefixSums sums = prefixSums;
+        if (sums == null) {
+            sums = new PrefixSums();
+            prefixSums = sums;
+        }
+        synchronized (sums) {
+            sums.ensureValid(this, to);
+            if (activeTime != null) entry.activeTime += sums.getRange(0, from, to);
+            if (rxBytes != null) entry.rxBytes += sums.getRange(1, from, to);
+            if (rxPackets != null) entry.rxPackets += sums.getRange(2, from, to);
+            if (txBytes != null) entry.txBytes += sums.getRange(3, from, to);
+            if (txPackets != null) entry.txPackets += sums.getRange(4, from, to);
+            if (operations != null) entry.operations += sums.getRange(5, from, to);
+        }
+    }
+
+    /**
+     * Note that buckets from the given index onwards have changed, or moved.
+     */
+    private void invalidatePrefixSums(int index) {
+        final PrefixSums sums = prefixSums;
+        if (sums == null) return;
+        synchronized (sums) {
+            sums.validCount = Math.min(sums.validCount, index);
+        }
+    }
+
+    /**
+     * Running totals of each counter column, so that the sum of any run of buckets can be
+     * read in constant time. Entry {@code i} of a column holds the sum of buckets
+     * {@code [0, i)}, and only the first {@link #validCount} + 1 entries are up to date.
+     * Mutations only lower {@link #validCount}; since data is usually recorded into the
+     * latest buckets, extending the sums again is cheap.
+     *
+     * Queries can run concurrently, so all access is synchronized on this object.
+     */
+    private static final class PrefixSums {
+        private final long[][] columns = new long[6][];
+        private int validCount = 0;
+
+        void ensureValid(NetworkStatsHistory history, int count) {
+            if (validCount >= count) return;
+            final long[][] sources = { history.activeTime, history.rxBytes,
+                    history.rxPackets, history.txBytes, history.txPackets, history.operations };
+            for (int c = 0; c < columns.length; c++) {
+                final long[] source = sources[c];
+                if (source == null) continue;
+                long[] sums = columns[c];
+                if (sums == null || sums.length <= count) {
+                    sums = (sums == null) ? new long[history.bucketStart.length + 1]
+                            : Arrays.copyOf(sums, history.bucketStart.length + 1);
+                    columns[c] = sums;
+                }
+                for (int i = validCount; i < count; i++) {
+                    sums[i + 1] = sums[i] + source[i];
+                }
+            }
+            validCount = count;
+        }
+
+        long getRange(int column, int from, int to) {
+            return columns[column][to] - columns[column][from];
+        }
+    }
+
     /**
      * @deprecated only for temporary testing
      * @hide
@@ -1070,6 +1350,22 @@ public final class NetworkStatsHistory implements Parcelable {
             }
         }
 
+        /**
+         * Read variable-length {@link Long} written by {@link #writeZigZagVarLong}.
+         */
+        public static long readZigZagVarLong(DataInput in) throws IOException {
+            final long value = readVarLong(in);
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /**
+         * Write variable-length {@link Long} using protobuf-style zig-zag approach, which keeps
+         * values of small magnitude short regardless of their sign.
+         */
+        public static void writeZigZagVarLong(DataOutput out, long value) throws IOException {
+            writeVarLong(out, (value << 1) ^ (value >> 63));
+        }
+
         public static long[] readVarLongArray(DataInput in) throws IOException {
             final int size = in.readInt();
             if (size == -1) return null;
@@ -1016,6 +1016,30 @@ public class TrafficStats {
         }
     }
 
+    /**
+     * Return the bytes and packets received and transmitted by the given UIDs since device
+     * boot, in a single call. Equivalent to calling {@link #getUidRxBytes(int)},
+     * {@link #getUidRxPackets(int)}, {@link #getUidTxBytes(int)} and
+     * {@link #getUidTxPackets(int)} for each UID, but reads the counters of all UIDs at once.
+     * <p>
+     * The counters of {@code uids[i]} are at indices {@code 4 * i} to {@code 4 * i + 3} of
+     * the result, in this order. Like the single UID methods, counters of UIDs other than the
+     * calling UID are {@link #UNSUPPORTED} unless the caller is the system.
+     *
+     * @param uids the UIDs to return the counters of.
+     * @return the counters, 4 per UID.
+     * @hide
+     */
+    @SystemApi(client = MODULE_LIBRARIES)
+    @NonNull
+    public static long[] getUidStats(@NonNull int[] uids) {
+        try {
+            return getStatsService().getUidStatsBatch(uids);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
     /**
      * @deprecated Starting in {@link android.os.Build.VERSION_CODES#JELLY_BEAN_MR2},
      *             transport layer statistics are no longer available, and will
@@ -1145,4 +1169,10 @@ public class TrafficStats {
     public static final int TYPE_TCP_RX_PACKETS = 4;
     /** {@hide} */
     public static final int TYPE_TCP_TX_PACKETS = 5;
+    /**
+     * Number of counters per uid returned by {@link #getUidStats(int[])}, which are indexed by
+     * {@link #TYPE_RX_BYTES} to {@link #TYPE_TX_PACKETS}.
+     * {@hide}
+     */
+    public static final int UID_STATS_TYPE_COUNT = 4;
 }
@@ -170,6 +170,22 @@ public abstract class NetworkStatsProvider {
         }
     }
 
+    /**
+     * Return whether this provider reports its stats on its own, by calling
+     * {@link #notifyStatsUpdated} whenever it has new stats, at its own cadence.
+     *
+     * The system does not call {@link #onRequestStatsUpdate} on such providers when it polls
+     * statistics, and does not wait for them, but uses the stats they reported so far. This is
+     * read once, when the provider is registered. Older versions of the system ignore it and
+     * request updates from all providers, so providers must still respond to
+     * {@link #onRequestStatsUpdate}.
+     *
+     * @return false by default.
+     */
+    public boolean isStatsPushEnabled() {
+        return false;
+    }
+
     /**
      * Called by {@code NetworkStatsService} when it requires to know updated stats.
      * The provider MUST respond by calling {@link #notifyStatsUpdated} as soon as possible.
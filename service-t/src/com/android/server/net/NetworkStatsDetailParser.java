@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.TAG_ALL;
+import static android.net.NetworkStats.UID_ALL;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStats;
+
+import com.android.net.module.util.CollectionUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Parses files in the {@code /proc/net/xt_qtaguid/stats} format into {@link NetworkStats}.
+ *
+ * <p>The file is read at once into a direct buffer that is reused across reads, and fields
+ * are decoded in place, so that parsing does not allocate per line. Interface names are
+ * interned, so the same {@link String} instances are returned by successive reads. Not
+ * thread-safe.
+ */
+public class NetworkStatsDetailParser {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    /** Size of the interface name table, a power of two. Devices have a handful of them. */
+    private static final int IFACE_TABLE_SIZE = 64;
+
+    private ByteBuffer mBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    /** Read position in, and length of, the data in {@link #mBuffer}. */
+    private int mPos;
+    private int mLimit;
+
+    /** Open addressing table of interned interface names, and their bytes. */
+    private final byte[][] mIfaceBytes = new byte[IFACE_TABLE_SIZE][];
+    private final String[] mIfaceNames = new String[IFACE_TABLE_SIZE];
+    private int mIfaceCount;
+
+    private final NetworkStats.Entry mEntry = new NetworkStats.Entry();
+
+    /**
+     * Parse the given file into the given {@link NetworkStats}, replacing its content. Only
+     * rows matching the given uid, interfaces and tag are kept.
+     *
+     * @return the given {@link NetworkStats}.
+     */
+    @NonNull
+    public NetworkStats read(@NonNull File path, @NonNull NetworkStats stats, long elapsedRealtime,
+            int limitUid, @Nullable String[] limitIfaces, int limitTag) throws IOException {
+        fill(path);
+        stats.reset(elapsedRealtime);
+
+        final NetworkStats.Entry entry = mEntry;
+        int idx = 1;
+        int lastIdx = 1;
+        try {
+            // Consume header line
+            finishLine();
+
+            while (mPos < mLimit) {
+                idx = nextInt();
+                if (idx != lastIdx + 1) {
+                    throw new ProtocolException(
+                            "inconsistent idx=" + idx + " after lastIdx=" + lastIdx);
+                }
+                lastIdx = idx;
+
+                entry.iface = nextIface();
+                entry.tag = nextTag();
+                entry.uid = nextInt();
+                entry.set = nextInt();
+                entry.rxBytes = nextLong();
+                entry.rxPackets = nextLong();
+                entry.txBytes = nextLong();
+                entry.txPackets = nextLong();
+
+                if ((limitIfaces == null || CollectionUtils.contains(limitIfaces, entry.iface))
+                        && (limitUid == UID_ALL || limitUid == entry.uid)
+                        && (limitTag == TAG_ALL || limitTag == entry.tag)) {
+                    stats.insertEntry(entry);
+                }
+
+                finishLine();
+            }
+        } catch (ProtocolException e) {
+            final ProtocolException pe = new ProtocolException("problem parsing idx " + idx);
+            pe.initCause(e);
+            throw pe;
+        }
+        return stats;
+    }
+
+    /** Read the whole file into {@link #mBuffer}, growing it as needed. */
+    private void fill(@NonNull File path) throws IOException {
+        // Files in /proc report a size of 0, so read until the end.
+        try (FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ)) {
+            mBuffer.clear();
+            while (true) {
+                if (!mBuffer.hasRemaining()) {
+                    final ByteBuffer grown = ByteBuffer.allocateDirect(mBuffer.capacity() * 2);
+                    mBuffer.flip();
+                    grown.put(mBuffer);
+                    mBuffer = grown;
+                }
+                if (channel.read(mBuffer) < 0) break;
+            }
+        }
+        mPos = 0;
+        mLimit = mBuffer.position();
+    }
+
+    /** Skip spaces before a field, and return its start. Throws if the line has ended. */
+    private int startField() throws ProtocolException {
+        while (mPos < mLimit && mBuffer.get(mPos) == ' ') mPos++;
+        if (mPos >= mLimit || mBuffer.get(mPos) == '\n') {
+            throw new ProtocolException("missing field at offset " + mPos);
+        }
+        return mPos;
+    }
+
+    /** Move to the end of the current field, and return it. */
+    private int endField() {
+        while (mPos < mLimit) {
+            final byte b = mBuffer.get(mPos);
+            if (b == ' ' || b == '\n') break;
+            mPos++;
+        }
+        return mPos;
+    }
+
+    /** Skip the rest of the current line, including the line break. */
+    private void finishLine() {
+        while (mPos < mLimit && mBuffer.get(mPos) != '\n') mPos++;
+        if (mPos < mLimit) mPos++;
+    }
+
+    private long nextLong() throws ProtocolException {
+        final int start = startField();
+        final boolean negative = mBuffer.get(start) == '-';
+        if (negative) mPos++;
+        final int digitsStart = mPos;
+        long value = 0;
+        try {
+            while (mPos < mLimit) {
+                final int digit = mBuffer.get(mPos) - '0';
+                if (digit < 0 || digit > 9) break;
+                value = Math.addExact(Math.multiplyExact(value, 10), digit);
+                mPos++;
+            }
+        } catch (ArithmeticException e) {
+            throw invalidField(start);
+        }
+        if (mPos == digitsStart || !atFieldEnd()) throw invalidField(start);
+        return negative ? -value : value;
+    }
+
+    private int nextInt() throws ProtocolException {
+        final int start = mPos;
+        final long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw invalidField(start);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Decode a tag in the {@code /proc/} format, like {@code 0x7fffffff00000000}, in place.
+     */
+    private int nextTag() throws ProtocolException {
+        final int start = startField();
+        if (mPos + 2 > mLimit || mBuffer.get(mPos) != '0'
+                || (mBuffer.get(mPos + 1) != 'x' && mBuffer.get(mPos + 1) != 'X')) {
+            throw invalidField(start);
+        }
+        mPos += 2;
+        long value = 0;
+        int digits = 0;
+        while (mPos < mLimit) {
+            final int digit = Character.digit(mBuffer.get(mPos), 16);
+            if (digit < 0) break;
+            value = (value << 4) | digit;
+            digits++;
+            mPos++;
+        }
+        if (digits == 0 || digits > 16 || !atFieldEnd()) throw invalidField(start);
+        // The tag is in the upper 32 bits, shorter values carry no tag.
+        return digits > 8 ? (int) (value >>> 32) : 0;
+    }
+
+    private boolean atFieldEnd() {
+        if (mPos >= mLimit) return true;
+        final byte b = mBuffer.get(mPos);
+        return b == ' ' || b == '\n';
+    }
+
+    /** Return the interned name of the interface in the next field. */
+    private String nextIface() throws ProtocolException {
+        final int start = startField();
+        final int end = endField();
+        final int length = end - start;
+
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + mBuffer.get(i);
+        }
+        int slot = hash & (IFACE_TABLE_SIZE - 1);
+        while (mIfaceBytes[slot] != null) {
+            if (matches(mIfaceBytes[slot], start, length)) return mIfaceNames[slot];
+            slot = (slot + 1) & (IFACE_TABLE_SIZE - 1);
+        }
+
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(start + i);
+        }
+        final String name = new String(bytes, StandardCharsets.UTF_8);
+        // Keep the table sparse; names past its capacity are returned without being interned.
+        if (mIfaceCount < IFACE_TABLE_SIZE / 2) {
+            mIfaceBytes[slot] = bytes;
+            mIfaceNames[slot] = name;
+            mIfaceCount++;
+        }
+        return name;
+    }
+
+    private boolean matches(@NonNull byte[] bytes, int start, int length) {
+        if (bytes.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != mBuffer.get(start + i)) return false;
+        }
+        return true;
+    }
+
+    private ProtocolException invalidField(int start) {
+        mPos = start;
+        while (mPos < mLimit && mBuffer.get(mPos) == ' ') mPos++;
+        start = mPos;
+        final int end = endField();
+        final byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mBuffer.get(start + i);
+        }
+        return new ProtocolException("invalid field at offset " + start + ": "
+                + new String(bytes, StandardCharsets.UTF_8));
+    }
+}
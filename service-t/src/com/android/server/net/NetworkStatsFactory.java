@@ -34,7 +34,6 @@ import android.os.SystemClock;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ProcFileReader;
-import com.android.net.module.util.CollectionUtils;
 import com.android.server.BpfNetMaps;
 
 import libcore.io.IoUtils;
@@ -85,6 +84,10 @@ public class NetworkStatsFactory {
      */
     private final Object mPersistentDataLock = new Object();
 
+    /** Where to record the latency of reads, if anywhere. */
+    @Nullable
+    private volatile NetworkStatsPollLatency mPollLatency;
+
     /** Set containing info about active VPNs and their underlying networks. */
     private volatile UnderlyingNetworkInfo[] mUnderlyingNetworkInfos = new UnderlyingNetworkInfo[0];
 
@@ -96,6 +99,22 @@ public class NetworkStatsFactory {
     @GuardedBy("mPersistentDataLock")
     private NetworkStats mTunAnd464xlatAdjustedStats;
 
+    // Buffers reused across reads, so that polling does not allocate full-size snapshots
+    // besides the one returned to the caller. The spare snapshot holds the previous value of
+    // mPersistSnapshot while computing the delta, and the native parsing target when stats are
+    // not incremental, in which case it is swapped with mPersistSnapshot.
+    @GuardedBy("mPersistentDataLock")
+    private NetworkStats mSpareSnapshot;
+    @GuardedBy("mPersistentDataLock")
+    private NetworkStats mIncrementalStats;
+    @GuardedBy("mPersistentDataLock")
+    private NetworkStats mDelta;
+
+    // Parser of the detailed stats file, reused so that its buffer and interned interface
+    // names are kept across reads.
+    @GuardedBy("mPersistentDataLock")
+    private final NetworkStatsDetailParser mDetailParser = new NetworkStatsDetailParser();
+
     /**
      * (Stacked interface) -> (base interface) association for all connected ifaces since boot.
      *
@@ -125,6 +144,19 @@ public class NetworkStatsFactory {
         mUnderlyingNetworkInfos = vpnArray.clone();
     }
 
+    /** Record the latency of the phases of per-uid stats reads in the given histograms. */
+    public void setPollLatency(@Nullable NetworkStatsPollLatency pollLatency) {
+        mPollLatency = pollLatency;
+    }
+
+    private void recordLatency(@NetworkStatsPollLatency.Phase int phase, long startNanos,
+            long entries) {
+        final NetworkStatsPollLatency pollLatency = mPollLatency;
+        if (pollLatency != null) {
+            pollLatency.record(phase, SystemClock.elapsedRealtimeNanos() - startNanos, entries);
+        }
+    }
+
     /**
      * Get a set of interfaces containing specified ifaces and stacked interfaces.
      *
@@ -177,6 +209,9 @@ public class NetworkStatsFactory {
         synchronized (mPersistentDataLock) {
             mPersistSnapshot = new NetworkStats(SystemClock.elapsedRealtime(), -1);
             mTunAnd464xlatAdjustedStats = new NetworkStats(SystemClock.elapsedRealtime(), -1);
+            mSpareSnapshot = new NetworkStats(SystemClock.elapsedRealtime(), -1);
+            mIncrementalStats = new NetworkStats(SystemClock.elapsedRealtime(), -1);
+            mDelta = new NetworkStats(SystemClock.elapsedRealtime(), -1);
         }
         mContext = ctx;
     }
@@ -327,43 +362,66 @@ public class NetworkStatsFactory {
         synchronized (mPersistentDataLock) {
             // Take a reference. If this gets swapped out, we still have the old reference.
             final UnderlyingNetworkInfo[] vpnArray = mUnderlyingNetworkInfos;
-            // Take a defensive copy. mPersistSnapshot is mutated in some cases below
-            final NetworkStats prev = mPersistSnapshot.clone();
+            final NetworkStats prev;
 
             if (USE_NATIVE_PARSING) {
-                final NetworkStats stats =
-                        new NetworkStats(SystemClock.elapsedRealtime(), 0 /* initialSize */);
                 if (mUseBpfStats) {
+                    final NetworkStats stats = mIncrementalStats;
+                    stats.reset(SystemClock.elapsedRealtime());
+                    long startNanos = SystemClock.elapsedRealtimeNanos();
                     requestSwapActiveStatsMapLocked();
+                    recordLatency(NetworkStatsPollLatency.PHASE_MAP_SWAP, startNanos, 0);
                     // Stats are always read from the inactive map, so they must be read after the
                     // swap
+                    startNanos = SystemClock.elapsedRealtimeNanos();
                     if (nativeReadNetworkStatsDetail(stats, mStatsXtUid.getAbsolutePath(), UID_ALL,
                             INTERFACES_ALL, TAG_ALL, mUseBpfStats) != 0) {
                         throw new IOException("Failed to parse network stats");
                     }
+                    recordLatency(NetworkStatsPollLatency.PHASE_READ_UID, startNanos,
+                            stats.size());
 
+                    // Keep a copy, mPersistSnapshot is mutated below.
+                    prev = mSpareSnapshot.copyFrom(mPersistSnapshot);
                     // BPF stats are incremental; fold into mPersistSnapshot.
                     mPersistSnapshot.setElapsedRealtime(stats.getElapsedRealtime());
                     mPersistSnapshot.combineAllValues(stats);
                 } else {
+                    final NetworkStats stats = mSpareSnapshot;
+                    stats.reset(SystemClock.elapsedRealtime());
+                    final long startNanos = SystemClock.elapsedRealtimeNanos();
                     if (nativeReadNetworkStatsDetail(stats, mStatsXtUid.getAbsolutePath(), UID_ALL,
                             INTERFACES_ALL, TAG_ALL, mUseBpfStats) != 0) {
                         throw new IOException("Failed to parse network stats");
                     }
+                    recordLatency(NetworkStatsPollLatency.PHASE_READ_UID, startNanos,
+                            stats.size());
                     if (VALIDATE_NATIVE_STATS) {
-                        final NetworkStats javaStats = javaReadNetworkStatsDetail(mStatsXtUid,
+                        final NetworkStats javaStats = javaReadNetworkStatsDetail(mDetailParser,
+                                new NetworkStats(SystemClock.elapsedRealtime(), 24), mStatsXtUid,
                                 UID_ALL, INTERFACES_ALL, TAG_ALL);
                         assertEquals(javaStats, stats);
                     }
 
+                    // Swap buffers, the previous snapshot is overwritten by the next read.
+                    prev = mPersistSnapshot;
+                    mSpareSnapshot = prev;
                     mPersistSnapshot = stats;
                 }
             } else {
-                mPersistSnapshot = javaReadNetworkStatsDetail(mStatsXtUid, UID_ALL, INTERFACES_ALL,
-                        TAG_ALL);
+                final long startNanos = SystemClock.elapsedRealtimeNanos();
+                final NetworkStats stats = javaReadNetworkStatsDetail(mDetailParser,
+                        mSpareSnapshot, mStatsXtUid, UID_ALL, INTERFACES_ALL, TAG_ALL);
+                recordLatency(NetworkStatsPollLatency.PHASE_READ_UID, startNanos, stats.size());
+                prev = mPersistSnapshot;
+                mSpareSnapshot = prev;
+                mPersistSnapshot = stats;
             }
 
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
             NetworkStats adjustedStats = adjustForTunAnd464Xlat(mPersistSnapshot, prev, vpnArray);
+            recordLatency(NetworkStatsPollLatency.PHASE_ADJUST_UID, startNanos,
+                    adjustedStats.size());
 
             // Filter return values
             adjustedStats.filter(limitUid, limitIfaces, limitTag);
@@ -374,8 +432,10 @@ public class NetworkStatsFactory {
     @GuardedBy("mPersistentDataLock")
     private NetworkStats adjustForTunAnd464Xlat(NetworkStats uidDetailStats,
             NetworkStats previousStats, UnderlyingNetworkInfo[] vpnArray) {
-        // Calculate delta from last snapshot
-        final NetworkStats delta = uidDetailStats.subtract(previousStats);
+        // Calculate delta from last snapshot, reusing the delta buffer of the previous read.
+        final NetworkStats delta = NetworkStats.subtract(uidDetailStats, previousStats,
+                null /* observer */, null /* cookie */, mDelta);
+        mDelta = delta;
 
         // Apply 464xlat adjustments before VPN adjustments. If VPNs are using v4 on a v6 only
         // network, the overhead is their fault.
@@ -383,13 +443,9 @@ public class NetworkStatsFactory {
         // ConcurrentHashMap.
         delta.apply464xlatAdjustments(mStackedIfaces);
 
-        // Migrate data usage over a VPN to the TUN network.
-        for (UnderlyingNetworkInfo info : vpnArray) {
-            delta.migrateTun(info.getOwnerUid(), info.getInterface(),
-                    info.getUnderlyingInterfaces());
-            // Filter out debug entries as that may lead to over counting.
-            delta.filterDebugEntries();
-        }
+        // Migrate data usage over VPNs to their TUN networks, filtering out debug entries as
+        // that may lead to over counting.
+        delta.migrateAllTun(vpnArray);
 
         // Update mTunAnd464xlatAdjustedStats with migrated delta.
         mTunAnd464xlatAdjustedStats.combineAllValues(delta);
@@ -406,53 +462,21 @@ public class NetworkStatsFactory {
     public static NetworkStats javaReadNetworkStatsDetail(File detailPath, int limitUid,
             String[] limitIfaces, int limitTag)
             throws IOException {
-        final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
-
-        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 24);
-        final NetworkStats.Entry entry = new NetworkStats.Entry();
-
-        int idx = 1;
-        int lastIdx = 1;
+        return javaReadNetworkStatsDetail(new NetworkStatsDetailParser(),
+                new NetworkStats(SystemClock.elapsedRealtime(), 24), detailPath, limitUid,
+                limitIfaces, limitTag);
+    }
 
-        ProcFileReader reader = null;
+    private static NetworkStats javaReadNetworkStatsDetail(NetworkStatsDetailParser parser,
+            NetworkStats stats, File detailPath, int limitUid, String[] limitIfaces,
+            int limitTag) throws IOException {
+        final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            // open and consume header line
-            reader = new ProcFileReader(new FileInputStream(detailPath));
-            reader.finishLine();
-
-            while (reader.hasMoreData()) {
-                idx = reader.nextInt();
-                if (idx != lastIdx + 1) {
-                    throw new ProtocolException(
-                            "inconsistent idx=" + idx + " after lastIdx=" + lastIdx);
-                }
-                lastIdx = idx;
-
-                entry.iface = reader.nextString();
-                entry.tag = kernelToTag(reader.nextString());
-                entry.uid = reader.nextInt();
-                entry.set = reader.nextInt();
-                entry.rxBytes = reader.nextLong();
-                entry.rxPackets = reader.nextLong();
-                entry.txBytes = reader.nextLong();
-                entry.txPackets = reader.nextLong();
-
-                if ((limitIfaces == null || CollectionUtils.contains(limitIfaces, entry.iface))
-                        && (limitUid == UID_ALL || limitUid == entry.uid)
-                        && (limitTag == TAG_ALL || limitTag == entry.tag)) {
-                    stats.insertEntry(entry);
-                }
-
-                reader.finishLine();
-            }
-        } catch (NullPointerException|NumberFormatException e) {
-            throw protocolExceptionWithCause("problem parsing idx " + idx, e);
+            return parser.read(detailPath, stats, SystemClock.elapsedRealtime(), limitUid,
+                    limitIfaces, limitTag);
         } finally {
-            IoUtils.closeQuietly(reader);
             StrictMode.setThreadPolicy(savedPolicy);
         }
-
-        return stats;
     }
 
     public void assertEquals(NetworkStats expected, NetworkStats actual) {
@@ -473,19 +497,6 @@ public class NetworkStatsFactory {
         }
     }
 
-    /**
-     * Convert {@code /proc/} tag format to {@link Integer}. Assumes incoming
-     * format like {@code 0x7fffffff00000000}.
-     */
-    public static int kernelToTag(String string) {
-        int length = string.length();
-        if (length > 10) {
-            return Long.decode(string.substring(0, length - 8)).intValue();
-        } else {
-            return 0;
-        }
-    }
-
     /**
      * Parse statistics from file into given {@link NetworkStats} object. Values
      * are expected to monotonically increase since device boot.
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStatsCollection;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of {@link NetworkStatsCollection} deltas, backed by a single file.
+ * Each append writes one checksummed record and syncs it, so a crash can at worst lose the
+ * record being written, which is dropped the next time the journal is read.
+ * <p>
+ * Merging the journal into another file can't be atomic with deleting it, so a marker
+ * describing the file it is merged into is written first, see {@link #startCompaction}. After
+ * a crash, comparing it with that file tells whether the journal was merged. Not thread-safe.
+ */
+public class NetworkStatsJournal {
+    private static final String TAG = "NetworkStatsJournal";
+
+    /** File header magic number: "NSJR" */
+    private static final int FILE_MAGIC = 0x4E534A52;
+    private static final int VERSION_INIT = 1;
+    private static final int HEADER_LENGTH = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER_LENGTH = Integer.BYTES + Long.BYTES;
+
+    /** Header magic number of the compaction marker: "NSJC" */
+    private static final int COMPACTION_MAGIC = 0x4E534A43;
+    private static final String COMPACTION_SUFFIX = ".compacting";
+
+    private final File mFile;
+    private final AtomicFile mCompactionFile;
+
+    /** Length of the valid part of {@link #mFile}, or -1 when not checked yet. */
+    private long mValidLength = -1;
+
+    public NetworkStatsJournal(@NonNull File file) {
+        mFile = file;
+        mCompactionFile = new AtomicFile(new File(file.getPath() + COMPACTION_SUFFIX));
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Whether the journal holds no records. */
+    public boolean isEmpty() {
+        return getSizeBytes() <= HEADER_LENGTH;
+    }
+
+    /** Size of the journal file, in bytes. */
+    public long getSizeBytes() {
+        return mFile.length();
+    }
+
+    /**
+     * Append the given collection as a new record, and sync it to disk before returning.
+     */
+    public void append(@NonNull NetworkStatsCollection collection) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        collection.write(payload);
+        final byte[] bytes = payload.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        final long validLength = checkValidLength();
+        try (FileOutputStream fos = new FileOutputStream(mFile, true /* append */)) {
+            final DataOutputStream out = new DataOutputStream(fos);
+            if (validLength == 0) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(VERSION_INIT);
+            }
+            out.writeInt(bytes.length);
+            out.writeLong(crc.getValue());
+            out.write(bytes);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            // Part of the record may have been written, check again before the next append.
+            mValidLength = -1;
+            throw e;
+        }
+        mValidLength = (validLength == 0 ? HEADER_LENGTH : validLength)
+                + RECORD_HEADER_LENGTH + bytes.length;
+    }
+
+    /**
+     * Read every record of the journal into the given collection.
+     */
+    public void replay(@NonNull NetworkStatsCollection target) throws IOException {
+        mValidLength = readRecords(target);
+        truncateToValidLength();
+    }
+
+    /** Delete the journal, dropping all its records, and any compaction marker. */
+    public void delete() {
+        mValidLength = -1;
+        if (mFile.exists() && !mFile.delete()) {
+            // Keep the marker, so that the records are not replayed on top of a merge.
+            Log.w(TAG, "failed to delete " + mFile);
+            return;
+        }
+        mValidLength = 0;
+        mCompactionFile.delete();
+    }
+
+    /**
+     * Mark the journal as being merged into a file, and sync the marker to disk before
+     * returning. Must be called before the merged file is committed, and followed by
+     * {@link #delete()} once it is.
+     *
+     * @param compaction the file the journal is merged into, as it was before the merge.
+     */
+    public void startCompaction(@NonNull Compaction compaction) throws IOException {
+        FileOutputStream fos = null;
+        try {
+            fos = mCompactionFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(COMPACTION_MAGIC);
+            out.writeInt(VERSION_INIT);
+            out.writeLong(compaction.startMillis);
+            out.writeLong(compaction.checksum);
+            out.flush();
+            mCompactionFile.finishWrite(fos);
+        } catch (IOException e) {
+            if (fos != null) {
+                mCompactionFile.failWrite(fos);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return the compaction the journal was marked with, if it was interrupted before the
+     * journal was deleted.
+     */
+    @Nullable
+    public Compaction getCompaction() throws IOException {
+        try (DataInputStream in = new DataInputStream(mCompactionFile.openRead())) {
+            final int magic = in.readInt();
+            if (magic != COMPACTION_MAGIC) {
+                throw new ProtocolException("unexpected magic: " + magic);
+            }
+            final int version = in.readInt();
+            if (version != VERSION_INIT) {
+                throw new ProtocolException("unexpected version: " + version);
+            }
+            return new Compaction(in.readLong(), in.readLong());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /** Remove the compaction marker, once the merged file is known not to be committed. */
+    public void abortCompaction() {
+        mCompactionFile.delete();
+    }
+
+    private long checkValidLength() throws IOException {
+        if (mValidLength < 0) {
+            mValidLength = readRecords(null);
+            truncateToValidLength();
+        }
+        return mValidLength;
+    }
+
+    /**
+     * Drop anything after the valid records, such as a record which was being appended when
+     * the device crashed, so that later appends can be read back.
+     */
+    private void truncateToValidLength() throws IOException {
+        if (mFile.length() <= mValidLength) return;
+        Log.w(TAG, "dropping " + (mFile.length() - mValidLength) + " bytes of incomplete "
+                + "records from " + mFile);
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(mValidLength);
+        }
+    }
+
+    /**
+     * Read records from the journal into the given collection, if any, and return the length
+     * of the valid part of the file.
+     */
+    private long readRecords(@Nullable NetworkStatsCollection target) throws IOException {
+        if (!mFile.exists() || mFile.length() == 0) return 0;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            final int magic;
+            final int version;
+            try {
+                magic = in.readInt();
+                version = in.readInt();
+            } catch (EOFException e) {
+                // Crashed while writing the header.
+                return 0;
+            }
+            if (magic != FILE_MAGIC) {
+                throw new ProtocolException("unexpected magic: " + magic);
+            }
+            if (version != VERSION_INIT) {
+                throw new ProtocolException("unexpected version: " + version);
+            }
+
+            final long fileLength = mFile.length();
+            long validLength = HEADER_LENGTH;
+            while (validLength + RECORD_HEADER_LENGTH <= fileLength) {
+                final int length = in.readInt();
+                final long checksum = in.readLong();
+                if (length < 0 || validLength + RECORD_HEADER_LENGTH + length > fileLength) {
+                    break;
+                }
+                final byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                final CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (crc.getValue() != checksum) break;
+
+                if (target != null) {
+                    target.read(new ByteArrayInputStream(bytes));
+                }
+                validLength += RECORD_HEADER_LENGTH + length;
+            }
+            return validLength;
+        }
+    }
+
+    /** File the journal is merged into, as it was before the merge. */
+    public static final class Compaction {
+        /** Start of the file, for the {@link com.android.internal.util.FileRotator}. */
+        public final long startMillis;
+        /** CRC32 of the content of the file, 0 if it did not exist. */
+        public final long checksum;
+
+        public Compaction(long startMillis, long checksum) {
+            this.startMillis = startMillis;
+            this.checksum = checksum;
+        }
+    }
+}
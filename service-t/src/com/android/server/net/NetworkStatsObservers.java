@@ -23,12 +23,11 @@ import android.app.usage.NetworkStatsManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.net.DataUsageRequest;
+import android.net.NetworkIdentity;
 import android.net.NetworkIdentitySet;
 import android.net.NetworkStack;
 import android.net.NetworkStats;
 import android.net.NetworkStatsAccess;
-import android.net.NetworkStatsCollection;
-import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.netstats.IUsageCallback;
 import android.os.Handler;
@@ -42,10 +41,13 @@ import android.util.ArrayMap;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.PerUidCounter;
 
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -78,6 +80,14 @@ class NetworkStatsObservers {
     // Sequence number of DataUsageRequests
     private final AtomicInteger mNextDataUsageRequestId = new AtomicInteger();
 
+    // Running usage shared by all requests on the same template, indexed by template.
+    // All access to this map must be done from the handler thread.
+    private final ArrayMap<NetworkTemplate, TemplateUsage> mTemplateUsages = new ArrayMap<>();
+
+    // Last snapshots received, to compute the usage since. Only accessed on the handler thread.
+    private NetworkStats mLastXtSnapshot;
+    private NetworkStats mLastUidSnapshot;
+
     // Lazily instantiated when an observer is registered.
     private volatile Handler mHandler;
 
@@ -176,6 +186,13 @@ class NetworkStatsObservers {
      * on mDataUsageRequests.
      */
     private void handleRegister(RequestInfo requestInfo) {
+        final NetworkTemplate template = requestInfo.mRequest.template;
+        TemplateUsage usage = mTemplateUsages.get(template);
+        if (usage == null) {
+            usage = new TemplateUsage(template);
+            mTemplateUsages.put(template, usage);
+        }
+        requestInfo.attach(usage);
         mDataUsageRequests.put(requestInfo.mRequest.requestId, requestInfo);
     }
 
@@ -199,18 +216,90 @@ class NetworkStatsObservers {
         if (LOG) Log.d(TAG, "Unregistering " + requestInfo);
         mDataUsageRequests.remove(request.requestId);
         mDataUsageRequestsPerUid.decrementCountOrThrow(requestInfo.mCallingUid);
+        requestInfo.detach();
+        if (requestInfo.mUsage.isUnused()) {
+            mTemplateUsages.remove(requestInfo.mRequest.template);
+        }
         requestInfo.unlinkDeathRecipient();
         requestInfo.callCallback(NetworkStatsManager.CALLBACK_RELEASED);
     }
 
     private void handleUpdateStats(StatsContext statsContext) {
         if (mDataUsageRequests.size() == 0) {
+            // Don't hold on to snapshots nobody needs; the next requests establish a new
+            // baseline anyway.
+            mLastXtSnapshot = null;
+            mLastUidSnapshot = null;
             return;
         }
 
+        for (int i = 0; i < mTemplateUsages.size(); i++) {
+            mTemplateUsages.valueAt(i).clearChangedUids();
+        }
+        // Deltas are computed once and accumulated per template, so that the cost of an
+        // update does not grow with the number of requests.
+        if (statsContext.mXtSnapshot != null) {
+            if (mLastXtSnapshot != null) {
+                recordDelta(NetworkStats.subtract(statsContext.mXtSnapshot, mLastXtSnapshot,
+                        null /* observer */, null /* cookie */),
+                        statsContext.mActiveIfaces, false /* perUid */);
+            }
+            mLastXtSnapshot = statsContext.mXtSnapshot;
+        }
+        if (statsContext.mUidSnapshot != null) {
+            if (mLastUidSnapshot != null) {
+                recordDelta(NetworkStats.subtract(statsContext.mUidSnapshot, mLastUidSnapshot,
+                        null /* observer */, null /* cookie */),
+                        statsContext.mActiveUidIfaces, true /* perUid */);
+            }
+            mLastUidSnapshot = statsContext.mUidSnapshot;
+        }
+
         for (int i = 0; i < mDataUsageRequests.size(); i++) {
             RequestInfo requestInfo = mDataUsageRequests.valueAt(i);
-            requestInfo.updateStats(statsContext);
+            requestInfo.updateStats();
+        }
+    }
+
+    /**
+     * Add the untagged usage of the given delta to the running usage of each template its
+     * interfaces match, either in total or per uid.
+     */
+    private void recordDelta(NetworkStats delta, ArrayMap<String, NetworkIdentitySet> ifaceIdent,
+            boolean perUid) {
+        // Templates matching each interface, computed once per update.
+        final ArrayMap<String, ArrayList<TemplateUsage>> usagesByIface = new ArrayMap<>();
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < delta.size(); i++) {
+            entry = delta.getValues(i, entry);
+            // Tagged usage is already counted in TAG_NONE.
+            if (entry.tag != NetworkStats.TAG_NONE
+                    || entry.set >= NetworkStats.SET_DEBUG_START) {
+                continue;
+            }
+            final long bytes = entry.rxBytes + entry.txBytes;
+            if (bytes == 0) continue;
+
+            ArrayList<TemplateUsage> usages = usagesByIface.get(entry.iface);
+            if (usages == null) {
+                usages = new ArrayList<>();
+                final NetworkIdentitySet ident = ifaceIdent.get(entry.iface);
+                for (int j = 0; ident != null && j < mTemplateUsages.size(); j++) {
+                    final TemplateUsage usage = mTemplateUsages.valueAt(j);
+                    if (usage.isTracking(perUid) && usage.matches(ident)) {
+                        usages.add(usage);
+                    }
+                }
+                usagesByIface.put(entry.iface, usages);
+            }
+
+            for (int j = 0; j < usages.size(); j++) {
+                if (perUid) {
+                    usages.get(j).addUidBytes(entry.uid, bytes);
+                } else {
+                    usages.get(j).addTotalBytes(bytes);
+                }
+            }
         }
     }
 
@@ -259,8 +348,9 @@ class NetworkStatsObservers {
         protected final int mCallingUid;
         protected final String mCallingPackage;
         protected final @NetworkStatsAccess.Level int mAccessLevel;
-        protected NetworkStatsRecorder mRecorder;
-        protected NetworkStatsCollection mCollection;
+        protected TemplateUsage mUsage;
+        // Whether the next update should only establish the baseline.
+        private boolean mNeedsBaseline = true;
 
         RequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
@@ -301,19 +391,18 @@ class NetworkStatsObservers {
         }
 
         /**
-         * Update stats given the samples and interface to identity mappings.
+         * Check the running usage of the template, once the latest deltas were recorded.
          */
-        private void updateStats(StatsContext statsContext) {
-            if (mRecorder == null) {
+        private void updateStats() {
+            if (mNeedsBaseline) {
                 // First run; establish baseline stats
-                resetRecorder();
-                recordSample(statsContext);
+                mNeedsBaseline = false;
+                resetBaseline();
                 return;
             }
-            recordSample(statsContext);
 
             if (checkStats()) {
-                resetRecorder();
+                resetBaseline();
                 callCallback(NetworkStatsManager.CALLBACK_LIMIT_REACHED);
             }
         }
@@ -338,14 +427,16 @@ class NetworkStatsObservers {
             }
         }
 
-        private void resetRecorder() {
-            mRecorder = new NetworkStatsRecorder();
-            mCollection = mRecorder.getSinceBoot();
-        }
+        /** Start tracking the given running usage of the template of the request. */
+        protected abstract void attach(TemplateUsage usage);
+
+        /** Stop tracking the running usage of the template. */
+        protected abstract void detach();
 
         protected abstract boolean checkStats();
 
-        protected abstract void recordSample(StatsContext statsContext);
+        /** Count usage from now on. */
+        protected abstract void resetBaseline();
 
         private String callbackTypeToName(int callbackType) {
             switch (callbackType) {
@@ -367,9 +458,23 @@ class NetworkStatsObservers {
                     accessLevel);
         }
 
+        // Total bytes of the template when the request was last notified.
+        private long mBaselineBytes;
+
+        @Override
+        protected void attach(TemplateUsage usage) {
+            mUsage = usage;
+            mUsage.mNetworkRequestCount++;
+        }
+
+        @Override
+        protected void detach() {
+            mUsage.mNetworkRequestCount--;
+        }
+
         @Override
         protected boolean checkStats() {
-            long bytesSoFar = getTotalBytesForNetwork(mRequest.template);
+            long bytesSoFar = mUsage.mTotalBytes - mBaselineBytes;
             if (LOGV) {
                 Log.v(TAG, bytesSoFar + " bytes so far since notification for "
                         + mRequest.template);
@@ -381,24 +486,8 @@ class NetworkStatsObservers {
         }
 
         @Override
-        protected void recordSample(StatsContext statsContext) {
-            // Recorder does not need to be locked in this context since only the handler
-            // thread will update it. We pass a null VPN array because usage is aggregated by uid
-            // for this snapshot, so VPN traffic can't be reattributed to responsible apps.
-            mRecorder.recordSnapshotLocked(statsContext.mXtSnapshot, statsContext.mActiveIfaces,
-                    statsContext.mCurrentTime);
-        }
-
-        /**
-         * Reads stats matching the given template. {@link NetworkStatsCollection} will aggregate
-         * over all buckets, which in this case should be only one since we built it big enough
-         * that it will outlive the caller. If it doesn't, then there will be multiple buckets.
-         */
-        private long getTotalBytesForNetwork(NetworkTemplate template) {
-            NetworkStats stats = mCollection.getSummary(template,
-                    Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
-                    mAccessLevel, mCallingUid);
-            return stats.getTotalBytes();
+        protected void resetBaseline() {
+            mBaselineBytes = mUsage.mTotalBytes;
         }
     }
 
@@ -410,12 +499,30 @@ class NetworkStatsObservers {
                     callingPackage, accessLevel);
         }
 
+        // Bytes of each uid on the template when the request was last notified.
+        private SparseLongArray mBaselineUidBytes = new SparseLongArray();
+
         @Override
-        protected boolean checkStats() {
-            int[] uidsToMonitor = mCollection.getRelevantUids(mAccessLevel, mCallingUid);
+        protected void attach(TemplateUsage usage) {
+            mUsage = usage;
+            mUsage.mUidRequestCount++;
+        }
+
+        @Override
+        protected void detach() {
+            mUsage.mUidRequestCount--;
+        }
 
-            for (int i = 0; i < uidsToMonitor.length; i++) {
-                long bytesSoFar = getTotalBytesForNetworkUid(mRequest.template, uidsToMonitor[i]);
+        @Override
+        protected boolean checkStats() {
+            // Uids which did not change were already below the threshold.
+            final SparseBooleanArray changedUids = mUsage.mChangedUids;
+            for (int i = 0; i < changedUids.size(); i++) {
+                final int uid = changedUids.keyAt(i);
+                if (!NetworkStatsAccess.isAccessibleToUser(uid, mCallingUid, mAccessLevel)) {
+                    continue;
+                }
+                long bytesSoFar = mUsage.mUidBytes.get(uid) - mBaselineUidBytes.get(uid);
                 if (bytesSoFar > mRequest.thresholdInBytes) {
                     return true;
                 }
@@ -424,34 +531,59 @@ class NetworkStatsObservers {
         }
 
         @Override
-        protected void recordSample(StatsContext statsContext) {
-            // Recorder does not need to be locked in this context since only the handler
-            // thread will update it. We pass the VPN info so VPN traffic is reattributed to
-            // responsible apps.
-            mRecorder.recordSnapshotLocked(statsContext.mUidSnapshot, statsContext.mActiveUidIfaces,
-                    statsContext.mCurrentTime);
+        protected void resetBaseline() {
+            mBaselineUidBytes = mUsage.mUidBytes.clone();
         }
+    }
 
-        /**
-         * Reads all stats matching the given template and uid. Ther history will likely only
-         * contain one bucket per ident since we build it big enough that it will outlive the
-         * caller lifetime.
-         */
-        private long getTotalBytesForNetworkUid(NetworkTemplate template, int uid) {
-            try {
-                NetworkStatsHistory history = mCollection.getHistory(template, null, uid,
-                        NetworkStats.SET_ALL, NetworkStats.TAG_NONE,
-                        NetworkStatsHistory.FIELD_ALL,
-                        Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
-                        mAccessLevel, mCallingUid);
-                return history.getTotalBytes();
-            } catch (SecurityException e) {
-                if (LOGV) {
-                    Log.w(TAG, "CallerUid " + mCallingUid + " may have lost access to uid "
-                            + uid);
+    /**
+     * Running usage of the networks matching a template, shared by all the requests on that
+     * template. Counters only grow, each request keeps the values they had when it was last
+     * notified.
+     */
+    private static class TemplateUsage {
+        private final NetworkTemplate mTemplate;
+        int mNetworkRequestCount;
+        int mUidRequestCount;
+        // Total bytes, only tracked while there are network requests.
+        long mTotalBytes;
+        // Bytes per uid, only tracked while there are uid requests.
+        final SparseLongArray mUidBytes = new SparseLongArray();
+        // Uids whose bytes changed during the current update.
+        final SparseBooleanArray mChangedUids = new SparseBooleanArray();
+
+        TemplateUsage(NetworkTemplate template) {
+            mTemplate = template;
+        }
+
+        boolean isUnused() {
+            return mNetworkRequestCount == 0 && mUidRequestCount == 0;
+        }
+
+        boolean isTracking(boolean perUid) {
+            return perUid ? mUidRequestCount > 0 : mNetworkRequestCount > 0;
+        }
+
+        boolean matches(NetworkIdentitySet identSet) {
+            for (NetworkIdentity ident : identSet) {
+                if (mTemplate.matches(ident)) {
+                    return true;
                 }
-                return 0;
             }
+            return false;
+        }
+
+        void addTotalBytes(long bytes) {
+            mTotalBytes += bytes;
+        }
+
+        void addUidBytes(int uid, long bytes) {
+            mUidBytes.put(uid, mUidBytes.get(uid) + bytes);
+            mChangedUids.put(uid, true);
+        }
+
+        void clearChangedUids() {
+            mChangedUids.clear();
         }
     }
 
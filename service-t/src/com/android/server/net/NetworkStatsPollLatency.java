@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.annotation.IntDef;
+import android.annotation.NonNull;
+import android.service.NetworkStatsPollPhaseProto;
+import android.util.IndentingPrintWriter;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Latency histograms of the phases of a stats poll, kept since boot. Each phase counts its
+ * samples in exponential buckets of microseconds, from which tail latencies are estimated,
+ * and sums the number of entries, such as snapshot rows, it processed. Recording a sample
+ * costs a few arithmetic operations, so this is always enabled. Thread-safe.
+ */
+public class NetworkStatsPollLatency {
+    @IntDef(prefix = { "PHASE_" }, value = {
+            PHASE_PROVIDERS,
+            PHASE_MAP_SWAP,
+            PHASE_READ_UID,
+            PHASE_ADJUST_UID,
+            PHASE_SNAPSHOT_UID,
+            PHASE_SNAPSHOT_IFACE,
+            PHASE_RECORD_DEV,
+            PHASE_RECORD_XT,
+            PHASE_RECORD_UID,
+            PHASE_RECORD_UID_TAG,
+            PHASE_OBSERVERS,
+            PHASE_PERSIST,
+            PHASE_POLL,
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Phase {}
+
+    /** Requesting stats from the providers and waiting for them to report. */
+    public static final int PHASE_PROVIDERS = 0;
+    /** Swapping the active BPF stats map. */
+    public static final int PHASE_MAP_SWAP = 1;
+    /** Reading the per-uid stats, from BPF maps or /proc. */
+    public static final int PHASE_READ_UID = 2;
+    /** Applying the TUN and 464xlat adjustments to the per-uid stats. */
+    public static final int PHASE_ADJUST_UID = 3;
+    /** Building the per-uid snapshot, including the above and tethering stats. */
+    public static final int PHASE_SNAPSHOT_UID = 4;
+    /** Building the dev and xt snapshots. */
+    public static final int PHASE_SNAPSHOT_IFACE = 5;
+    public static final int PHASE_RECORD_DEV = 6;
+    public static final int PHASE_RECORD_XT = 7;
+    public static final int PHASE_RECORD_UID = 8;
+    public static final int PHASE_RECORD_UID_TAG = 9;
+    /** Handing the snapshots to the usage observers. */
+    public static final int PHASE_OBSERVERS = 10;
+    /** Persisting pending stats, or handing them to the persist thread. */
+    public static final int PHASE_PERSIST = 11;
+    /** The whole poll. */
+    public static final int PHASE_POLL = 12;
+
+    private static final int PHASE_COUNT = 13;
+
+    private static final String[] PHASE_NAMES = {
+            "providers", "map_swap", "read_uid", "adjust_uid", "snapshot_uid", "snapshot_iface",
+            "record_dev", "record_xt", "record_uid", "record_uid_tag", "observers", "persist",
+            "poll",
+    };
+
+    /**
+     * Number of buckets. Bucket 0 counts samples below 1us, bucket i counts samples in
+     * [2^(i-1), 2^i) us, and the last bucket counts everything above, i.e. over ~17 minutes.
+     */
+    @VisibleForTesting
+    static final int BUCKET_COUNT = 32;
+
+    @GuardedBy("this")
+    private final long[][] mBuckets = new long[PHASE_COUNT][BUCKET_COUNT];
+    @GuardedBy("this")
+    private final long[] mCounts = new long[PHASE_COUNT];
+    @GuardedBy("this")
+    private final long[] mEntries = new long[PHASE_COUNT];
+    @GuardedBy("this")
+    private final long[] mTotalMicros = new long[PHASE_COUNT];
+    @GuardedBy("this")
+    private final long[] mMaxMicros = new long[PHASE_COUNT];
+
+    /** Record that the given phase took the given time, and processed the given entries. */
+    public synchronized void record(@Phase int phase, long durationNanos, long entries) {
+        final long micros = Math.max(0, durationNanos / 1000);
+        mBuckets[phase][getBucket(micros)]++;
+        mCounts[phase]++;
+        mEntries[phase] += entries;
+        mTotalMicros[phase] += micros;
+        mMaxMicros[phase] = Math.max(mMaxMicros[phase], micros);
+    }
+
+    @VisibleForTesting
+    static int getBucket(long micros) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /** Number of samples recorded for the given phase. */
+    public synchronized long getCount(@Phase int phase) {
+        return mCounts[phase];
+    }
+
+    /** Number of entries recorded for the given phase. */
+    public synchronized long getEntries(@Phase int phase) {
+        return mEntries[phase];
+    }
+
+    /**
+     * Estimate the given percentile of the latency of the given phase, as the upper bound of
+     * the bucket it falls in, capped by the maximum recorded. Returns 0 without samples.
+     */
+    public synchronized long getPercentileMicros(@Phase int phase, int percentile) {
+        final long count = mCounts[phase];
+        if (count == 0) return 0;
+        // Rank of the sample at the given percentile, 1-based and rounded up.
+        final long rank = Math.max(1, (count * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[phase][i];
+            if (seen >= rank) {
+                return Math.min(mMaxMicros[phase], (1L << i) - 1);
+            }
+        }
+        return mMaxMicros[phase];
+    }
+
+    /** Dump a line per phase with samples. */
+    public synchronized void dump(@NonNull IndentingPrintWriter pw) {
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            final long count = mCounts[phase];
+            if (count == 0) continue;
+            pw.print(PHASE_NAMES[phase]);
+            pw.print(": count="); pw.print(count);
+            pw.print(" entries="); pw.print(mEntries[phase]);
+            pw.print(" meanUs="); pw.print(mTotalMicros[phase] / count);
+            pw.print(" p50Us="); pw.print(getPercentileMicros(phase, 50));
+            pw.print(" p90Us="); pw.print(getPercentileMicros(phase, 90));
+            pw.print(" p99Us="); pw.print(getPercentileMicros(phase, 99));
+            pw.print(" maxUs="); pw.println(mMaxMicros[phase]);
+        }
+    }
+
+    /** Write a {@link NetworkStatsPollPhaseProto} per phase with samples. */
+    public synchronized void dumpDebug(@NonNull ProtoOutputStream proto, long tag) {
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            if (mCounts[phase] == 0) continue;
+            final long start = proto.start(tag);
+            proto.write(NetworkStatsPollPhaseProto.NAME, PHASE_NAMES[phase]);
+            proto.write(NetworkStatsPollPhaseProto.COUNT, mCounts[phase]);
+            proto.write(NetworkStatsPollPhaseProto.ENTRIES, mEntries[phase]);
+            proto.write(NetworkStatsPollPhaseProto.TOTAL_DURATION_US, mTotalMicros[phase]);
+            proto.write(NetworkStatsPollPhaseProto.MAX_DURATION_US, mMaxMicros[phase]);
+            proto.write(NetworkStatsPollPhaseProto.P50_DURATION_US,
+                    getPercentileMicros(phase, 50));
+            proto.write(NetworkStatsPollPhaseProto.P90_DURATION_US,
+                    getPercentileMicros(phase, 90));
+            proto.write(NetworkStatsPollPhaseProto.P99_DURATION_US,
+                    getPercentileMicros(phase, 99));
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                proto.write(NetworkStatsPollPhaseProto.BUCKET_COUNTS, mBuckets[phase][i]);
+            }
+            proto.end(start);
+        }
+    }
+}
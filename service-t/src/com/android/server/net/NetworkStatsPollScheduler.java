@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.annotation.NonNull;
+import android.util.IndentingPrintWriter;
+
+/**
+ * Picks the delay until the next stats poll from the traffic rate observed by recent polls.
+ * Polls are spread out up to a maximum interval while the device is idle, and brought closer,
+ * down to a minimum interval, when traffic would otherwise go well past the bytes worth
+ * polling for, such as the global alert or the quota left on a provider interface, before the
+ * next poll. Not thread-safe.
+ */
+public class NetworkStatsPollScheduler {
+    private final long mMinIntervalMillis;
+    private final long mMaxIntervalMillis;
+
+    /** Total bytes and time of the last poll, or -1 before the first one. */
+    private long mLastTotalBytes = -1;
+    private long mLastElapsedRealtime;
+    /**
+     * Estimated traffic rate in bytes per millisecond. Follows increases immediately, so that
+     * bursts are caught quickly, and halves its distance to slower rates on each poll.
+     */
+    private double mRateBytesPerMillis = 0;
+    private long mTargetBytes;
+    private long mNextPollDelayMillis;
+
+    public NetworkStatsPollScheduler(long minIntervalMillis, long maxIntervalMillis) {
+        if (minIntervalMillis < 0 || maxIntervalMillis < minIntervalMillis) {
+            throw new IllegalArgumentException("Invalid poll interval bounds: "
+                    + minIntervalMillis + ", " + maxIntervalMillis);
+        }
+        mMinIntervalMillis = minIntervalMillis;
+        mMaxIntervalMillis = maxIntervalMillis;
+        mNextPollDelayMillis = maxIntervalMillis;
+    }
+
+    /**
+     * Account for a poll, and update the delay until the next one.
+     *
+     * @param elapsedRealtime time of the poll.
+     * @param totalBytes total bytes counted since boot, as of the poll.
+     * @param targetBytes bytes worth polling for, the next poll is planned for when the
+     *                    current rate would have transferred them.
+     */
+    public void onPoll(long elapsedRealtime, long totalBytes, long targetBytes) {
+        if (mLastTotalBytes >= 0 && elapsedRealtime > mLastElapsedRealtime) {
+            // Counters can go backwards, e.g. when interfaces go away, count no traffic then.
+            final long deltaBytes = Math.max(0, totalBytes - mLastTotalBytes);
+            final double rate = (double) deltaBytes / (elapsedRealtime - mLastElapsedRealtime);
+            mRateBytesPerMillis = rate >= mRateBytesPerMillis
+                    ? rate : (mRateBytesPerMillis + rate) / 2;
+        }
+        mLastTotalBytes = totalBytes;
+        mLastElapsedRealtime = elapsedRealtime;
+        mTargetBytes = Math.max(0, targetBytes);
+
+        // Below a byte per second, the device is considered idle.
+        final double delay = mRateBytesPerMillis < 0.001
+                ? mMaxIntervalMillis : mTargetBytes / mRateBytesPerMillis;
+        mNextPollDelayMillis = (long) Math.max(mMinIntervalMillis,
+                Math.min(mMaxIntervalMillis, delay));
+    }
+
+    /** Delay until the next poll, as of the last one. */
+    public long getNextPollDelayMillis() {
+        return mNextPollDelayMillis;
+    }
+
+    /** Dump the current estimate. */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.print("minIntervalMs="); pw.print(mMinIntervalMillis);
+        pw.print(" maxIntervalMs="); pw.print(mMaxIntervalMillis);
+        pw.print(" rateBytesPerSec="); pw.print((long) (mRateBytesPerMillis * 1000));
+        pw.print(" targetBytes="); pw.print(mTargetBytes);
+        pw.print(" nextPollDelayMs="); pw.println(mNextPollDelayMillis);
+    }
+}
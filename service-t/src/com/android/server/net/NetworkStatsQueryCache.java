@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStats;
+import android.net.NetworkStatsAccess;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.telephony.SubscriptionPlan;
+import android.util.IndentingPrintWriter;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Memory-bounded cache of {@link NetworkStats} and {@link NetworkStatsHistory} query results,
+ * evicting the least recently used first. All results are dropped by {@link #invalidate()},
+ * and results computed across an invalidation are not cached, see {@link #getGeneration()}.
+ * Results are copied in and out, so callers are free to modify them. Thread-safe.
+ */
+public class NetworkStatsQueryCache {
+    /** Estimated heap used by an entry besides its result: key, map node and result object. */
+    private static final long ENTRY_OVERHEAD_BYTES = 256;
+    /** Estimated heap used by a {@link NetworkStats} row: strings are shared, the rest is not. */
+    private static final long STATS_ROW_BYTES = 9 * Integer.BYTES + 5 * Long.BYTES;
+    /** Estimated heap used by a {@link NetworkStatsHistory} bucket: seven {@code long}s. */
+    private static final long HISTORY_BUCKET_BYTES = 7 * Long.BYTES;
+
+    private final long mMaxBytes;
+
+    @GuardedBy("this")
+    private final LinkedHashMap<Key, Object> mResults =
+            new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+    @GuardedBy("this")
+    private long mBytes = 0;
+    @GuardedBy("this")
+    private long mGeneration = 0;
+    @GuardedBy("this")
+    private long mHits = 0;
+    @GuardedBy("this")
+    private long mMisses = 0;
+
+    /**
+     * @param maxBytes estimated heap results may use, nothing is cached when 0.
+     */
+    public NetworkStatsQueryCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Return the current generation, to be passed when putting a result computed after this
+     * call.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /** Drop all results, and start a new generation. */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mResults.clear();
+        mBytes = 0;
+    }
+
+    /** Return a copy of the cached summary for the given key, if any. */
+    @Nullable
+    public synchronized NetworkStats getSummary(@NonNull Key key) {
+        final NetworkStats stats = (NetworkStats) get(key);
+        return stats != null ? stats.clone() : null;
+    }
+
+    /** Return a copy of the cached history for the given key, if any. */
+    @Nullable
+    public synchronized NetworkStatsHistory getHistory(@NonNull Key key) {
+        final NetworkStatsHistory history = (NetworkStatsHistory) get(key);
+        return history != null ? history.copy() : null;
+    }
+
+    /**
+     * Cache a copy of the given summary, unless the cache was invalidated since the given
+     * generation.
+     */
+    public synchronized void putSummary(@NonNull Key key, @NonNull NetworkStats stats,
+            long generation) {
+        if (generation != mGeneration || mMaxBytes == 0) return;
+        put(key, stats.clone(), ENTRY_OVERHEAD_BYTES + stats.size() * STATS_ROW_BYTES);
+    }
+
+    /**
+     * Cache a copy of the given history, unless the cache was invalidated since the given
+     * generation.
+     */
+    public synchronized void putHistory(@NonNull Key key, @NonNull NetworkStatsHistory history,
+            long generation) {
+        if (generation != mGeneration || mMaxBytes == 0) return;
+        put(key, history.copy(), ENTRY_OVERHEAD_BYTES + history.size() * HISTORY_BUCKET_BYTES);
+    }
+
+    @GuardedBy("this")
+    @Nullable
+    private Object get(@NonNull Key key) {
+        final Object result = mResults.get(key);
+        if (result != null) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return result;
+    }
+
+    @GuardedBy("this")
+    private void put(@NonNull Key key, @NonNull Object result, long sizeBytes) {
+        // Results larger than the whole budget are not worth evicting everything else for.
+        if (sizeBytes > mMaxBytes) return;
+        final Object previous = mResults.put(key, result);
+        if (previous != null) mBytes -= estimateSizeBytes(previous);
+        mBytes += sizeBytes;
+
+        final Iterator<Map.Entry<Key, Object>> it = mResults.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            mBytes -= estimateSizeBytes(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private static long estimateSizeBytes(@NonNull Object result) {
+        if (result instanceof NetworkStats) {
+            return ENTRY_OVERHEAD_BYTES + ((NetworkStats) result).size() * STATS_ROW_BYTES;
+        }
+        return ENTRY_OVERHEAD_BYTES + ((NetworkStatsHistory) result).size() * HISTORY_BUCKET_BYTES;
+    }
+
+    /** Dump hit/miss counters and usage. */
+    public synchronized void dump(@NonNull IndentingPrintWriter pw) {
+        pw.print("hits="); pw.print(mHits);
+        pw.print(" misses="); pw.print(mMisses);
+        pw.print(" entries="); pw.print(mResults.size());
+        pw.print(" bytes="); pw.print(mBytes);
+        pw.print(" maxBytes="); pw.print(mMaxBytes);
+        pw.print(" generation="); pw.println(mGeneration);
+    }
+
+    /**
+     * Identifies a query result. Results which depend on the current time, for example through
+     * the bucket in progress, should include it in {@link #timeSlot}.
+     */
+    public static final class Key {
+        public final int type;
+        @NonNull
+        public final NetworkTemplate template;
+        public final long start;
+        public final long end;
+        public final int fields;
+        @NetworkStatsAccess.Level
+        public final int accessLevel;
+        public final int callingUid;
+        @Nullable
+        public final SubscriptionPlan augmentPlan;
+        public final long timeSlot;
+
+        /**
+         * @param callingUid the calling uid, ignored when {@code accessLevel} grants access
+         *                   to usage of all uids.
+         */
+        public Key(int type, @NonNull NetworkTemplate template, long start, long end, int fields,
+                @NetworkStatsAccess.Level int accessLevel, int callingUid,
+                @Nullable SubscriptionPlan augmentPlan, long timeSlot) {
+            this.type = type;
+            this.template = Objects.requireNonNull(template);
+            this.start = start;
+            this.end = end;
+            this.fields = fields;
+            this.accessLevel = accessLevel;
+            this.callingUid = accessLevel == NetworkStatsAccess.Level.DEVICE ? 0 : callingUid;
+            this.augmentPlan = augmentPlan;
+            this.timeSlot = timeSlot;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, template, start, end, fields, accessLevel, callingUid,
+                    augmentPlan, timeSlot);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof Key)) return false;
+            final Key key = (Key) obj;
+            return type == key.type && start == key.start && end == key.end
+                    && fields == key.fields && accessLevel == key.accessLevel
+                    && callingUid == key.callingUid && timeSlot == key.timeSlot
+                    && template.equals(key.template)
+                    && Objects.equals(augmentPlan, key.augmentPlan);
+        }
+    }
+}
@@ -19,9 +19,11 @@ package com.android.server.net;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.TrafficStats.KB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.YEAR_IN_MILLIS;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.net.NetworkIdentitySet;
 import android.net.NetworkStats;
 import android.net.NetworkStats.NonMonotonicObserver;
@@ -32,27 +34,38 @@ import android.net.NetworkTemplate;
 import android.net.TrafficStats;
 import android.os.Binder;
 import android.os.DropBoxManager;
+import android.os.Handler;
 import android.service.NetworkStatsRecorderProto;
+import android.util.AtomicFile;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.FileRotator;
 import com.android.net.module.util.NetworkStatsUtils;
 
 import libcore.io.IoUtils;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.net.ProtocolException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 /**
  * Logic to record deltas between periodic {@link NetworkStats} snapshots into
@@ -72,6 +85,28 @@ public class NetworkStatsRecorder {
     /** Dump before deleting in {@link #recoverAndDeleteData()}. */
     private static final boolean DUMP_BEFORE_DELETE = true;
 
+    /** Minimum interval between two passes of {@link #maybeRollupLocked(long)}. */
+    private static final long ROLLUP_INTERVAL_MILLIS = DAY_IN_MILLIS;
+
+    /** Header magic number of {@link #mRollupDeadlineFile}: "NSRD" */
+    private static final int ROLLUP_DEADLINE_MAGIC = 0x4E535244;
+    private static final int ROLLUP_DEADLINE_VERSION_INIT = 1;
+
+    /** Default for {@link #setCacheBudgetBytes(long)}. */
+    private static final long DEFAULT_CACHE_BUDGET_BYTES = 8 * MB_IN_BYTES;
+
+    /** Size of {@link #mJournal} past which it is merged into the active file. */
+    private static final long JOURNAL_COMPACT_THRESHOLD_BYTES = 2 * MB_IN_BYTES;
+
+    /**
+     * Minimum interval between two rotations while {@link #mJournal} holds deltas, since it is
+     * merged into the active file before each rotation.
+     */
+    private static final long JOURNAL_ROTATE_INTERVAL_MILLIS = DAY_IN_MILLIS;
+
+    /** Number of {@link #mUidTombstones} past which removing UIDs rewrites all files. */
+    private static final int MAX_UID_TOMBSTONES = 512;
+
     private final FileRotator mRotator;
     private final NonMonotonicObserver<String> mObserver;
     private final DropBoxManager mDropBox;
@@ -82,14 +117,67 @@ public class NetworkStatsRecorder {
     private final boolean mWipeOnError;
 
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
+    private boolean mUseIndexedFormat = false;
+    @NonNull
+    private RollupTier[] mRollupTiers = new RollupTier[0];
+    /** Time of the next rollup, or 0 until read from {@link #mRollupDeadlineFile}. */
+    private long mNextRollupMillis = 0;
+    @Nullable
+    private AtomicFile mRollupDeadlineFile;
+    private long mCacheBudgetBytes = DEFAULT_CACHE_BUDGET_BYTES;
+    @Nullable
+    private NetworkStatsJournal mJournal;
+    /** Whether a compaction of {@link #mJournal} interrupted by a crash was dealt with. */
+    private boolean mJournalRecovered = false;
+    private boolean mUseJournal = false;
+    private long mNextJournalRotateMillis = 0;
+    @Nullable
+    private NetworkStatsUidTombstones mUidTombstones;
+    private boolean mUseUidTombstones = false;
+    /** Handler of the thread pending deltas are written on, or null to write them inline. */
+    @Nullable
+    private Handler mPersistHandler;
+    private final Object mPersistLock = new Object();
+    /** Whether pending deltas were handed off to {@link #mPersistHandler} and not written yet. */
+    @GuardedBy("mPersistLock")
+    private boolean mPersistInFlight = false;
+    /** Deltas handed off to {@link #mPersistHandler} which are not in files yet, if any. */
+    @GuardedBy("mPersistLock")
+    @Nullable
+    private NetworkStatsCollection mPersistPending;
+    /**
+     * Whether writing on {@link #mPersistHandler} failed. Recovering changes state owned by the
+     * caller's thread, so it is left to the next call holding the caller's lock.
+     */
+    @GuardedBy("mPersistLock")
+    private boolean mPersistFailed = false;
+    /**
+     * Held by {@link #mPersistHandler} while it writes files, and by loads while a write is in
+     * flight, so that loads never see files half written nor wait for writes not started yet.
+     */
+    private final Object mFileLock = new Object();
     private NetworkStats mLastSnapshot;
-
-    private final NetworkStatsCollection mPending;
+    /** Delta of the last recorded snapshot, reused by the next one to avoid allocating. */
+    @Nullable
+    private NetworkStats mDeltaBuffer;
+    /** Recent deltas of untagged traffic, see {@link #getRecentUsageLocked(long[])}. */
+    @Nullable
+    private NetworkStatsThroughputTracker mThroughputTracker;
+
+    private NetworkStatsCollection mPending;
     private final NetworkStatsCollection mSinceBoot;
 
-    private final CombiningRewriter mPendingRewriter;
-
-    private WeakReference<NetworkStatsCollection> mComplete;
+    /**
+     * Time ranges loaded from disk, most recently used first, kept up to date with
+     * {@link #recordSnapshotLocked(NetworkStats, Map, long)} snapshots. Evicted least recently
+     * used first when their estimated size goes over {@link #mCacheBudgetBytes}, after which
+     * they are only weakly referenced, and still kept up to date until no caller uses them.
+     */
+    private final ArrayList<LoadedSlice> mCache = new ArrayList<>();
+    /** Estimated size of the ranges of {@link #mCache} which are not evicted. */
+    private long mCacheBytes = 0;
+    private long mCacheHits = 0;
+    private long mCacheMisses = 0;
 
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
@@ -108,8 +196,6 @@ public class NetworkStatsRecorder {
 
         mPending = null;
         mSinceBoot = new NetworkStatsCollection(mBucketDuration);
-
-        mPendingRewriter = null;
     }
 
     /**
@@ -129,8 +215,6 @@ public class NetworkStatsRecorder {
 
         mPending = new NetworkStatsCollection(bucketDuration);
         mSinceBoot = new NetworkStatsCollection(bucketDuration);
-
-        mPendingRewriter = new CombiningRewriter(mPending);
     }
 
     public void setPersistThreshold(long thresholdBytes) {
@@ -139,6 +223,101 @@ public class NetworkStatsRecorder {
                 thresholdBytes, 1 * KB_IN_BYTES, 100 * MB_IN_BYTES);
     }
 
+    /**
+     * Set whether files written from now on use the indexed format, see
+     * {@link NetworkStatsCollection#setUseIndexedFormat(boolean)}. Files in either format
+     * can always be read.
+     */
+    public void setUseIndexedFormat(boolean useIndexedFormat) {
+        mUseIndexedFormat = useIndexedFormat;
+        if (mPending != null) {
+            mPending.setUseIndexedFormat(useIndexedFormat);
+        }
+    }
+
+    /**
+     * Set the journal holding pending deltas persisted since the active file was last
+     * rewritten. It is replayed when loading and merged into the active file once large
+     * enough, or before any rewrite of all files, whether or not it is used for new deltas.
+     */
+    public void setJournal(@Nullable NetworkStatsJournal journal) {
+        mJournal = journal;
+        mJournalRecovered = false;
+    }
+
+    /**
+     * Set whether {@link #forcePersistLocked(long)} appends pending deltas to the journal
+     * set with {@link #setJournal(NetworkStatsJournal)}, instead of rewriting the active file.
+     */
+    public void setUseJournal(boolean useJournal) {
+        mUseJournal = useJournal;
+    }
+
+    /**
+     * Set the UIDs removed from persisted history without rewriting it. Loaded history is
+     * filtered through them, and they are migrated by the next rewrite of all files, whether or
+     * not they are used for new removals.
+     */
+    public void setUidTombstones(@Nullable NetworkStatsUidTombstones tombstones) {
+        mUidTombstones = tombstones;
+    }
+
+    /**
+     * Set whether {@link #removeUidsLocked(int[])} tombstones UIDs, see
+     * {@link #setUidTombstones(NetworkStatsUidTombstones)}, instead of rewriting all files.
+     */
+    public void setUseUidTombstones(boolean useUidTombstones) {
+        mUseUidTombstones = useUidTombstones;
+    }
+
+    /**
+     * Set the tracker that recent deltas of untagged traffic are recorded into, so that
+     * {@link #getRecentUsageLocked(long[])} can answer queries on recent throughput.
+     */
+    public void setThroughputTracker(@Nullable NetworkStatsThroughputTracker tracker) {
+        mThroughputTracker = tracker;
+    }
+
+    /**
+     * Set the handler of the thread that {@link #forcePersistLocked(long)} hands pending deltas
+     * off to, so that files are written without holding the caller's lock. Until written, they
+     * are still visible in loaded ranges, loads merge them from memory, and anything rewriting
+     * files waits for them. A null handler writes them inline.
+     */
+    public void setPersistHandler(@Nullable Handler handler) {
+        mPersistHandler = handler;
+    }
+
+    /**
+     * Set the estimated number of bytes loaded data may use while cached. The most recently
+     * used range is always kept, even when larger than the budget.
+     */
+    public void setCacheBudgetBytes(long budgetBytes) {
+        mCacheBudgetBytes = Math.max(0, budgetBytes);
+        trimCacheLocked();
+    }
+
+    /**
+     * Set the tiers persisted data is rolled up into as it ages, see {@link RollupTier}.
+     * An empty array disables rolling up.
+     */
+    public void setRollupTiers(@NonNull RollupTier[] tiers) {
+        final RollupTier[] sorted = tiers.clone();
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.ageMillis, b.ageMillis));
+        mRollupTiers = sorted;
+    }
+
+    /**
+     * Set the file the time of the next rollup is persisted in, so that rolling up, which
+     * rewrites all files, happens once every {@link #ROLLUP_INTERVAL_MILLIS} across reboots
+     * instead of on the first persist after each boot. Without it, or while the file does not
+     * exist, the first call to {@link #maybeRollupLocked(long)} rolls up.
+     */
+    public void setRollupDeadlineFile(@Nullable File file) {
+        mRollupDeadlineFile = (file != null) ? new AtomicFile(file) : null;
+        mNextRollupMillis = 0;
+    }
+
     public void resetLocked() {
         mLastSnapshot = null;
         if (mPending != null) {
@@ -147,9 +326,8 @@ public class NetworkStatsRecorder {
         if (mSinceBoot != null) {
             mSinceBoot.reset();
         }
-        if (mComplete != null) {
-            mComplete.clear();
-        }
+        mCache.clear();
+        mCacheBytes = 0;
     }
 
     public NetworkStats.Entry getTotalSinceBootLocked(NetworkTemplate template) {
@@ -172,34 +350,110 @@ public class NetworkStatsRecorder {
 
     /**
      * Load complete history represented by {@link FileRotator}. Caches
-     * internally as a {@link WeakReference}, and updated with future
+     * internally within {@link #mCacheBudgetBytes}, and updated with future
      * {@link #recordSnapshotLocked(NetworkStats, Map, long)} snapshots as long
-     * as reference is valid.
+     * as it stays cached.
      */
     public NetworkStatsCollection getOrLoadCompleteLocked() {
-        Objects.requireNonNull(mRotator, "missing FileRotator");
-        NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
-        if (res == null) {
-            res = loadLocked(Long.MIN_VALUE, Long.MAX_VALUE);
-            mComplete = new WeakReference<NetworkStatsCollection>(res);
-        }
-        return res;
+        return getOrLoadPartialLocked(Long.MIN_VALUE, Long.MAX_VALUE);
     }
 
+    /**
+     * Load history represented by {@link FileRotator} which covers at least the given range.
+     * Served from any cached range covering it, otherwise loaded and cached like
+     * {@link #getOrLoadCompleteLocked()}.
+     */
     public NetworkStatsCollection getOrLoadPartialLocked(long start, long end) {
         Objects.requireNonNull(mRotator, "missing FileRotator");
-        NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
-        if (res == null) {
-            res = loadLocked(start, end);
+        for (int i = 0; i < mCache.size(); i++) {
+            final LoadedSlice slice = mCache.get(i);
+            final NetworkStatsCollection collection = slice.get();
+            if (collection != null && slice.start <= start && slice.end >= end) {
+                mCacheHits++;
+                // Evicted ranges still in use are cached again.
+                slice.pinned = collection;
+                if (i > 0) {
+                    mCache.remove(i);
+                    mCache.add(0, slice);
+                }
+                trimCacheLocked();
+                return collection;
+            }
+        }
+
+        mCacheMisses++;
+        final NetworkStatsCollection res = loadLocked(start, end);
+        // Ranges covered by the new one are not needed anymore, but are still kept up to date
+        // while used.
+        for (LoadedSlice cached : mCache) {
+            if (cached.start >= start && cached.end <= end) {
+                cached.pinned = null;
+            }
         }
+        mCache.add(0, new LoadedSlice(start, end, res));
+        trimCacheLocked();
         return res;
     }
 
+    /**
+     * Drop ranges which are not used anymore, and evict the least recently used ones while
+     * the estimated size of cached ranges, which grow as snapshots are recorded and histories
+     * decoded, is over budget.
+     */
+    private void trimCacheLocked() {
+        mCacheBytes = 0;
+        int lastPinned = -1;
+        for (int i = 0; i < mCache.size(); i++) {
+            final LoadedSlice slice = mCache.get(i);
+            if (slice.get() == null) {
+                mCache.remove(i--);
+            } else if (slice.pinned != null) {
+                // The estimate is kept up to date by the collection, so this is cheap.
+                mCacheBytes += slice.pinned.estimateSizeBytes();
+                lastPinned = i;
+            }
+        }
+        // The most recently used range is always kept.
+        for (int i = lastPinned; i > 0 && mCacheBytes > mCacheBudgetBytes; i--) {
+            final LoadedSlice slice = mCache.get(i);
+            if (slice.pinned == null) continue;
+            mCacheBytes -= slice.pinned.estimateSizeBytes();
+            slice.pinned = null;
+        }
+    }
+
+    long getCacheHits() {
+        return mCacheHits;
+    }
+
+    long getCacheMisses() {
+        return mCacheMisses;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) Log.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
         try {
-            mRotator.readMatching(res, start, end);
+            // Rather than waiting for a write in flight, read files as they were before it
+            // and merge the deltas being written.
+            synchronized (mFileLock) {
+                maybeRecoverFromPersistFailureLocked();
+                mRotator.readMatching(res, start, end);
+                final NetworkStatsJournal journal = getJournal();
+                if (journal != null) {
+                    journal.replay(res);
+                }
+                final NetworkStatsCollection inFlight;
+                synchronized (mPersistLock) {
+                    inFlight = mPersistPending;
+                }
+                if (inFlight != null) {
+                    res.recordCollection(inFlight);
+                }
+            }
+            if (hasUidTombstones()) {
+                res.removeUids(mUidTombstones.getUids());
+            }
             res.recordCollection(mPending);
         } catch (IOException e) {
             Log.wtf(TAG, "problem completely reading network stats", e);
@@ -229,12 +483,14 @@ public class NetworkStatsRecorder {
             return;
         }
 
-        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
-
         final NetworkStats delta = NetworkStats.subtract(
-                snapshot, mLastSnapshot, mObserver, mCookie);
+                snapshot, mLastSnapshot, mObserver, mCookie, mDeltaBuffer);
+        mDeltaBuffer = delta;
         final long end = currentTimeMillis;
         final long start = end - delta.getElapsedRealtime();
+        if (mThroughputTracker != null) {
+            mThroughputTracker.startDelta();
+        }
 
         NetworkStats.Entry entry = null;
         for (int i = 0; i < delta.size(); i++) {
@@ -262,6 +518,10 @@ public class NetworkStatsRecorder {
             // skip when no delta occurred
             if (entry.isEmpty()) continue;
 
+            if (mThroughputTracker != null && entry.tag == TAG_NONE) {
+                mThroughputTracker.recordEntry(entry);
+            }
+
             // only record tag data when requested
             if ((entry.tag == TAG_NONE) != mOnlyTags) {
                 if (mPending != null) {
@@ -273,14 +533,23 @@ public class NetworkStatsRecorder {
                     mSinceBoot.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
                 }
 
-                // also record against complete dataset when present
-                if (complete != null) {
-                    complete.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
+                // also record against cached ranges the delta falls in
+                for (int j = 0; j < mCache.size(); j++) {
+                    final LoadedSlice slice = mCache.get(j);
+                    if (slice.start > end || slice.end < start) continue;
+                    final NetworkStatsCollection collection = slice.get();
+                    if (collection != null) {
+                        collection.recordData(
+                                ident, entry.uid, entry.set, entry.tag, start, end, entry);
+                    }
                 }
             }
         }
 
         mLastSnapshot = snapshot;
+        if (mThroughputTracker != null) {
+            mThroughputTracker.finishDelta(start, end);
+        }
 
         if (LOGV && unknownIfaces.size() > 0) {
             Log.w(TAG, "unknown interfaces " + unknownIfaces + ", ignoring those stats");
@@ -293,44 +562,307 @@ public class NetworkStatsRecorder {
      */
     public void maybePersistLocked(long currentTimeMillis) {
         Objects.requireNonNull(mRotator, "missing FileRotator");
+        // Files are busy, try again on the next call rather than waiting.
+        if (isPersistInFlight()) return;
+        maybeRecoverFromPersistFailureLocked();
         final long pendingBytes = mPending.getTotalBytes();
         if (pendingBytes >= mPersistThresholdBytes) {
             forcePersistLocked(currentTimeMillis);
         } else {
-            mRotator.maybeRotate(currentTimeMillis);
+            try {
+                maybeRotate(currentTimeMillis);
+            } catch (IOException e) {
+                Log.wtf(TAG, "problem rotating stats", e);
+                recoverAndDeleteData();
+            } catch (OutOfMemoryError e) {
+                Log.wtf(TAG, "problem rotating stats", e);
+                recoverAndDeleteData();
+            }
+        }
+        // Tombstones left over from when they were enabled are migrated once.
+        if (!mUseUidTombstones && hasUidTombstones()) {
+            foldUidTombstonesLocked();
+        }
+        maybeRollupLocked(currentTimeMillis);
+        trimCacheLocked();
+    }
+
+    /**
+     * Roll up persisted data that aged past one of the {@link #mRollupTiers}, at most once
+     * every {@link #ROLLUP_INTERVAL_MILLIS}.
+     */
+    public void maybeRollupLocked(long currentTimeMillis) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        if (mRollupTiers.length == 0) return;
+        if (mNextRollupMillis == 0) {
+            mNextRollupMillis = readRollupDeadline(currentTimeMillis);
+        }
+        if (currentTimeMillis < mNextRollupMillis) return;
+        mNextRollupMillis = currentTimeMillis + ROLLUP_INTERVAL_MILLIS;
+        waitForPersistLocked();
+
+        if (LOGD) Log.d(TAG, "maybeRollupLocked() rolling up for " + mCookie);
+        try {
+            // All files are rewritten, so merge the journal and migrate tombstoned UIDs at the
+            // same time.
+            final int[] removedUids = hasUidTombstones() ? mUidTombstones.getUids() : new int[0];
+            compactJournal();
+            mRotator.rewriteAll(new RollupRewriter(mBucketDuration, mRollupTiers,
+                    currentTimeMillis, mUseIndexedFormat, removedUids));
+            if (removedUids.length > 0) {
+                mUidTombstones.clear();
+            }
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem rolling up stats", e);
+            recoverAndDeleteData();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem rolling up stats", e);
+            recoverAndDeleteData();
+        }
+        writeRollupDeadline(mNextRollupMillis);
+    }
+
+    /**
+     * Read the time of the next rollup from {@link #mRollupDeadlineFile}, or return the given
+     * current time to roll up right away if it is unknown. A time further away than
+     * {@link #ROLLUP_INTERVAL_MILLIS}, as left by the clock going backwards, is ignored.
+     */
+    private long readRollupDeadline(long currentTimeMillis) {
+        if (mRollupDeadlineFile == null) return currentTimeMillis;
+        try (DataInputStream in = new DataInputStream(mRollupDeadlineFile.openRead())) {
+            final int magic = in.readInt();
+            if (magic != ROLLUP_DEADLINE_MAGIC) {
+                throw new ProtocolException("unexpected magic: " + magic);
+            }
+            final int version = in.readInt();
+            if (version != ROLLUP_DEADLINE_VERSION_INIT) {
+                throw new ProtocolException("unexpected version: " + version);
+            }
+            final long deadline = in.readLong();
+            return (deadline > currentTimeMillis + ROLLUP_INTERVAL_MILLIS)
+                    ? currentTimeMillis : deadline;
+        } catch (FileNotFoundException e) {
+            return currentTimeMillis;
+        } catch (IOException e) {
+            Log.w(TAG, "problem reading " + mRollupDeadlineFile.getBaseFile(), e);
+            return currentTimeMillis;
+        }
+    }
+
+    private void writeRollupDeadline(long deadline) {
+        if (mRollupDeadlineFile == null) return;
+        FileOutputStream fos = null;
+        try {
+            fos = mRollupDeadlineFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(ROLLUP_DEADLINE_MAGIC);
+            out.writeInt(ROLLUP_DEADLINE_VERSION_INIT);
+            out.writeLong(deadline);
+            out.flush();
+            mRollupDeadlineFile.finishWrite(fos);
+        } catch (IOException e) {
+            // Rolling up again after the next boot is only wasted work.
+            Log.w(TAG, "problem writing " + mRollupDeadlineFile.getBaseFile(), e);
+            if (fos != null) {
+                mRollupDeadlineFile.failWrite(fos);
+            }
         }
     }
 
     /**
-     * Force persisting any pending deltas.
+     * Force persisting any pending deltas, on the thread set with
+     * {@link #setPersistHandler(Handler)} if any.
      */
     public void forcePersistLocked(long currentTimeMillis) {
         Objects.requireNonNull(mRotator, "missing FileRotator");
         if (mPending.isDirty()) {
             if (LOGD) Log.d(TAG, "forcePersistLocked() writing for " + mCookie);
-            try {
-                mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
-                mRotator.maybeRotate(currentTimeMillis);
-                mPending.reset();
-            } catch (IOException e) {
-                Log.wtf(TAG, "problem persisting pending stats", e);
-                recoverAndDeleteData();
-            } catch (OutOfMemoryError e) {
-                Log.wtf(TAG, "problem persisting pending stats", e);
-                recoverAndDeleteData();
+            waitForPersistLocked();
+            // A tombstoned UID was reused, the history of the removed one must be migrated
+            // before history of the new one is persisted.
+            if (hasUidTombstones() && mPending.containsAnyUid(mUidTombstones.getUids())) {
+                foldUidTombstonesLocked();
+            }
+            if (mPersistHandler == null) {
+                if (!writePending(mPending, currentTimeMillis)) {
+                    recoverAndDeleteData();
+                }
+                return;
+            }
+
+            // Swap in an empty collection and write the pending one on the persist thread.
+            final NetworkStatsCollection pending = mPending;
+            mPending = new NetworkStatsCollection(mBucketDuration);
+            mPending.setUseIndexedFormat(mUseIndexedFormat);
+            synchronized (mPersistLock) {
+                mPersistInFlight = true;
+                mPersistPending = pending;
+            }
+            mPersistHandler.post(() -> {
+                synchronized (mFileLock) {
+                    final boolean written = writePending(pending, currentTimeMillis);
+                    synchronized (mPersistLock) {
+                        mPersistInFlight = false;
+                        mPersistPending = null;
+                        mPersistFailed = !written;
+                        mPersistLock.notifyAll();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Write the given pending deltas to disk, and reset them once written. Only touches files,
+     * so that it can run on {@link #mPersistHandler}.
+     *
+     * @return whether writing succeeded, otherwise {@link #recoverAndDeleteData()} must run.
+     */
+    private boolean writePending(@NonNull NetworkStatsCollection pending,
+            long currentTimeMillis) {
+        try {
+            final NetworkStatsJournal journal = getJournal();
+            if (mUseJournal && journal != null) {
+                journal.append(pending);
+                pending.reset();
+                if (journal.getSizeBytes() >= JOURNAL_COMPACT_THRESHOLD_BYTES) {
+                    compactJournal();
+                }
+                maybeRotate(currentTimeMillis);
+            } else {
+                compactJournal();
+                mRotator.rewriteActive(new CombiningRewriter(pending), currentTimeMillis);
+                maybeRotate(currentTimeMillis);
+                pending.reset();
+            }
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem persisting pending stats", e);
+            return false;
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem persisting pending stats", e);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isPersistInFlight() {
+        synchronized (mPersistLock) {
+            return mPersistInFlight;
+        }
+    }
+
+    /**
+     * Wait for pending deltas handed off to the persist thread to be written, so that files
+     * can be read or rewritten, and recover if writing them failed.
+     */
+    public void waitForPersistLocked() {
+        boolean interrupted = false;
+        synchronized (mPersistLock) {
+            while (mPersistInFlight) {
+                try {
+                    mPersistLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        maybeRecoverFromPersistFailureLocked();
+    }
+
+    /**
+     * Run {@link #recoverAndDeleteData()} if writing on the persist thread failed since the
+     * last call. No write is in flight then, since none is handed off until this ran.
+     */
+    private void maybeRecoverFromPersistFailureLocked() {
+        synchronized (mPersistLock) {
+            if (!mPersistFailed) return;
+            mPersistFailed = false;
+        }
+        recoverAndDeleteData();
+    }
+
+    /**
+     * Rotate files if needed. Journaled deltas must be merged into the active file before it is
+     * rotated, so that they end up in the file covering their time, so while the journal holds
+     * any, files are only rotated once every {@link #JOURNAL_ROTATE_INTERVAL_MILLIS}.
+     */
+    private void maybeRotate(long currentTimeMillis) throws IOException {
+        final NetworkStatsJournal journal = getJournal();
+        if (journal != null && !journal.isEmpty()) {
+            if (currentTimeMillis < mNextJournalRotateMillis) return;
+            compactJournal();
+        }
+        mNextJournalRotateMillis = currentTimeMillis + JOURNAL_ROTATE_INTERVAL_MILLIS;
+        mRotator.maybeRotate(currentTimeMillis);
+    }
+
+    /**
+     * Merge the journal, if any, into the active file and delete it.
+     */
+    private void compactJournal() throws IOException {
+        final NetworkStatsJournal journal = getJournal();
+        if (journal == null || journal.isEmpty()) return;
+        if (LOGD) Log.d(TAG, "compactJournal() writing for " + mCookie);
+        final NetworkStatsCollection journaled = new NetworkStatsCollection(mBucketDuration);
+        journaled.setUseIndexedFormat(mUseIndexedFormat);
+        journal.replay(journaled);
+        if (!journaled.isEmpty()) {
+            // Only creates a file when there is no active one, in which case it should start
+            // no later than the journaled data.
+            mRotator.rewriteActive(new CompactingRewriter(journaled, journal,
+                    journaled.getStartMillis()), journaled.getStartMillis());
+        }
+        journal.delete();
+    }
+
+    /**
+     * Return the journal, if any, after dealing with a compaction interrupted by a crash
+     * before the journal was deleted: if the active file is still as it was before the merge,
+     * the journal is kept, otherwise it was merged and is deleted.
+     */
+    @Nullable
+    private NetworkStatsJournal getJournal() throws IOException {
+        if (mJournal == null || mJournalRecovered) return mJournal;
+        final NetworkStatsJournal.Compaction compaction = mJournal.getCompaction();
+        if (compaction != null) {
+            final ChecksumReader active = new ChecksumReader(mBucketDuration);
+            if (!mJournal.isEmpty()) {
+                mRotator.rewriteActive(active, compaction.startMillis);
+            }
+            if (!mJournal.isEmpty() && active.getChecksum() == compaction.checksum) {
+                Log.w(TAG, "discarding interrupted journal compaction for " + mCookie);
+                mJournal.abortCompaction();
+            } else {
+                Log.w(TAG, "finishing interrupted journal compaction for " + mCookie);
+                mJournal.delete();
             }
         }
+        mJournalRecovered = true;
+        return mJournal;
     }
 
     /**
      * Remove the given UID from all {@link FileRotator} history, migrating it
-     * to {@link TrafficStats#UID_REMOVED}.
+     * to {@link TrafficStats#UID_REMOVED}. If enabled, the UIDs are only tombstoned, and their
+     * history is migrated by the next rewrite of all files.
      */
     public void removeUidsLocked(int[] uids) {
-        if (mRotator != null) {
+        if (mRotator != null && !maybeTombstoneUidsLocked(uids)) {
+            waitForPersistLocked();
+            // Migrate tombstoned UIDs too, since all files are rewritten anyway.
+            final int[] removedUids = hasUidTombstones()
+                    ? concat(uids, mUidTombstones.getUids()) : uids;
             try {
                 // Rewrite all persisted data to migrate UID stats
-                mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+                compactJournal();
+                mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, removedUids,
+                        mUseIndexedFormat));
+                if (mUidTombstones != null) {
+                    mUidTombstones.clear();
+                }
             } catch (IOException e) {
                 Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
                 recoverAndDeleteData();
@@ -353,12 +885,79 @@ public class NetworkStatsRecorder {
             mLastSnapshot.removeUids(uids);
         }
 
-        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
-        if (complete != null) {
-            complete.removeUids(uids);
+        for (LoadedSlice slice : mCache) {
+            final NetworkStatsCollection collection = slice.get();
+            if (collection != null) {
+                collection.removeUids(uids);
+            }
+        }
+
+        if (mThroughputTracker != null) {
+            mThroughputTracker.removeUids(uids);
+        }
+    }
+
+    /**
+     * Return the untagged usage of each interface and uid over each of the given windows
+     * before the most recent snapshot, see
+     * {@link NetworkStatsThroughputTracker#getRecentUsage(long[])}.
+     */
+    @NonNull
+    public NetworkStats[] getRecentUsageLocked(@NonNull long[] windowsMillis) {
+        Objects.requireNonNull(mThroughputTracker, "missing NetworkStatsThroughputTracker");
+        return mThroughputTracker.getRecentUsage(windowsMillis);
+    }
+
+    private boolean hasUidTombstones() {
+        return mUidTombstones != null && !mUidTombstones.isEmpty();
+    }
+
+    /**
+     * Tombstone the given UIDs, if enabled and below {@link #MAX_UID_TOMBSTONES}, so that
+     * their persisted history is migrated by a later rewrite of all files.
+     *
+     * @return whether the UIDs were tombstoned.
+     */
+    private boolean maybeTombstoneUidsLocked(int[] uids) {
+        if (!mUseUidTombstones || mUidTombstones == null
+                || mUidTombstones.size() + uids.length > MAX_UID_TOMBSTONES) {
+            return false;
+        }
+        try {
+            mUidTombstones.add(uids);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "problem tombstoning UIDs " + Arrays.toString(uids), e);
+            return false;
+        }
+    }
+
+    /**
+     * Migrate the persisted history of all tombstoned UIDs, and clear the tombstones.
+     */
+    private void foldUidTombstonesLocked() {
+        final int[] uids = mUidTombstones.getUids();
+        if (LOGD) Log.d(TAG, "foldUidTombstonesLocked() rewriting for " + mCookie);
+        waitForPersistLocked();
+        try {
+            compactJournal();
+            mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids, mUseIndexedFormat));
+            mUidTombstones.clear();
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
+            recoverAndDeleteData();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
+            recoverAndDeleteData();
         }
     }
 
+    private static int[] concat(int[] first, int[] second) {
+        final int[] res = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, res, first.length, second.length);
+        return res;
+    }
+
     /**
      * Rewriter that will combine current {@link NetworkStatsCollection} values
      * with anything read from disk, and write combined set to disk.
@@ -391,6 +990,87 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /**
+     * Rewriter combining the journal into the active file, which marks the journal with the
+     * checksum of the file it read before the merged file is committed, see
+     * {@link NetworkStatsJournal#startCompaction}.
+     */
+    private static class CompactingRewriter extends CombiningRewriter {
+        private final NetworkStatsJournal mJournal;
+        private final long mStartMillis;
+        private final CRC32 mChecksum = new CRC32();
+
+        CompactingRewriter(@NonNull NetworkStatsCollection journaled,
+                @NonNull NetworkStatsJournal journal, long startMillis) {
+            super(journaled);
+            mJournal = journal;
+            mStartMillis = startMillis;
+        }
+
+        @Override
+        public void reset() {
+            mChecksum.reset();
+        }
+
+        @Override
+        public void read(InputStream in) throws IOException {
+            final CheckedInputStream checked = new CheckedInputStream(in, mChecksum);
+            super.read(checked);
+            drain(checked);
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            mJournal.startCompaction(
+                    new NetworkStatsJournal.Compaction(mStartMillis, mChecksum.getValue()));
+            super.write(out);
+        }
+    }
+
+    /**
+     * Rewriter computing the checksum of the active file, as {@link CompactingRewriter} does,
+     * without modifying it. A missing file is created empty.
+     */
+    private static class ChecksumReader implements FileRotator.Rewriter {
+        private final long mBucketDuration;
+        private final CRC32 mChecksum = new CRC32();
+
+        ChecksumReader(long bucketDuration) {
+            mBucketDuration = bucketDuration;
+        }
+
+        long getChecksum() {
+            return mChecksum.getValue();
+        }
+
+        @Override
+        public void reset() {
+            mChecksum.reset();
+        }
+
+        @Override
+        public void read(InputStream in) throws IOException {
+            drain(new CheckedInputStream(in, mChecksum));
+        }
+
+        @Override
+        public boolean shouldWrite() {
+            return false;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            new NetworkStatsCollection(mBucketDuration).write(out);
+        }
+    }
+
+    private static void drain(@NonNull InputStream in) throws IOException {
+        final byte[] buffer = new byte[8 * (int) KB_IN_BYTES];
+        while (in.read(buffer) != -1) {
+            // Only read for the checksum.
+        }
+    }
+
     /**
      * Rewriter that will remove any {@link NetworkStatsHistory} attributed to
      * the requested UID, only writing data back when modified.
@@ -400,7 +1080,12 @@ public class NetworkStatsRecorder {
         private final int[] mUids;
 
         public RemoveUidRewriter(long bucketDuration, int[] uids) {
+            this(bucketDuration, uids, false /* useIndexedFormat */);
+        }
+
+        public RemoveUidRewriter(long bucketDuration, int[] uids, boolean useIndexedFormat) {
             mTemp = new NetworkStatsCollection(bucketDuration);
+            mTemp.setUseIndexedFormat(useIndexedFormat);
             mUids = uids;
         }
 
@@ -429,11 +1114,13 @@ public class NetworkStatsRecorder {
 
     public void importLegacyNetworkLocked(File file) throws IOException {
         Objects.requireNonNull(mRotator, "missing FileRotator");
+        waitForPersistLocked();
 
         // legacy file still exists; start empty to avoid double importing
         mRotator.deleteAll();
 
         final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
+        collection.setUseIndexedFormat(mUseIndexedFormat);
         collection.readLegacyNetwork(file);
 
         final long startMillis = collection.getStartMillis();
@@ -449,11 +1136,13 @@ public class NetworkStatsRecorder {
 
     public void importLegacyUidLocked(File file) throws IOException {
         Objects.requireNonNull(mRotator, "missing FileRotator");
+        waitForPersistLocked();
 
         // legacy file still exists; start empty to avoid double importing
         mRotator.deleteAll();
 
         final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
+        collection.setUseIndexedFormat(mUseIndexedFormat);
         collection.readLegacyUid(file, mOnlyTags);
 
         final long startMillis = collection.getStartMillis();
@@ -475,11 +1164,12 @@ public class NetworkStatsRecorder {
     public void importCollectionLocked(@NonNull NetworkStatsCollection collection)
             throws IOException {
         if (mRotator != null) {
+            waitForPersistLocked();
             mRotator.rewriteSingle(new CombiningRewriter(collection), collection.getStartMillis(),
                     collection.getEndMillis());
         }
 
-        if (mComplete != null) {
+        if (!mCache.isEmpty()) {
             throw new IllegalStateException("cannot import data when data already loaded");
         }
     }
@@ -493,7 +1183,13 @@ public class NetworkStatsRecorder {
         private final long mCutoffMills;
 
         public RemoveDataBeforeRewriter(long bucketDuration, long cutoffMills) {
+            this(bucketDuration, cutoffMills, false /* useIndexedFormat */);
+        }
+
+        public RemoveDataBeforeRewriter(long bucketDuration, long cutoffMills,
+                boolean useIndexedFormat) {
             mTemp = new NetworkStatsCollection(bucketDuration);
+            mTemp.setUseIndexedFormat(useIndexedFormat);
             mCutoffMills = cutoffMills;
         }
 
@@ -520,14 +1216,133 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /** Data loaded from disk which covers at least the range from {@link #start} to {@link #end}. */
+    private static final class LoadedSlice {
+        final long start;
+        final long end;
+        final WeakReference<NetworkStatsCollection> collection;
+        /** The collection while cached, or null once evicted. */
+        @Nullable
+        NetworkStatsCollection pinned;
+
+        LoadedSlice(long start, long end, NetworkStatsCollection collection) {
+            this.start = start;
+            this.end = end;
+            this.collection = new WeakReference<>(collection);
+            this.pinned = collection;
+        }
+
+        /** The collection, or null if it was evicted and is not used anymore. */
+        @Nullable
+        NetworkStatsCollection get() {
+            return (pinned != null) ? pinned : collection.get();
+        }
+    }
+
+    /**
+     * Tier of persisted data: once data is older than {@link #ageMillis}, it is rolled up into
+     * buckets of {@link #bucketDuration}. Queries over rolled up data prorate the coarser
+     * buckets, and histories read from several tiers are each kept at their own resolution.
+     */
+    public static final class RollupTier {
+        public final long ageMillis;
+        public final long bucketDuration;
+
+        public RollupTier(long ageMillis, long bucketDuration) {
+            this.ageMillis = ageMillis;
+            this.bucketDuration = bucketDuration;
+        }
+
+        @Override
+        public String toString() {
+            return "RollupTier{ageMillis=" + ageMillis + ", bucketDuration=" + bucketDuration
+                    + "}";
+        }
+    }
+
+    /**
+     * Return the bucket duration that data of the given age should be rolled up into, or 0
+     * when it is too recent for any of the given tiers, which must be sorted by age.
+     */
+    static long getRollupBucketDuration(@NonNull RollupTier[] tiers, long ageMillis) {
+        long bucketDuration = 0;
+        for (RollupTier tier : tiers) {
+            if (ageMillis < tier.ageMillis) break;
+            bucketDuration = tier.bucketDuration;
+        }
+        return bucketDuration;
+    }
+
+    /**
+     * Rewriter that will roll up files that only contain data older than one of the given
+     * {@link RollupTier}s into that tier's bucket duration, only writing data back when
+     * modified.
+     */
+    public static class RollupRewriter implements FileRotator.Rewriter {
+        private final NetworkStatsCollection mTemp;
+        private final RollupTier[] mTiers;
+        private final long mCurrentTimeMillis;
+        private final int[] mRemovedUids;
+
+        public RollupRewriter(long bucketDuration, @NonNull RollupTier[] tiers,
+                long currentTimeMillis, boolean useIndexedFormat) {
+            this(bucketDuration, tiers, currentTimeMillis, useIndexedFormat, new int[0]);
+        }
+
+        /**
+         * @param removedUids UIDs whose history is migrated to
+         *                    {@link TrafficStats#UID_REMOVED} at the same time.
+         */
+        public RollupRewriter(long bucketDuration, @NonNull RollupTier[] tiers,
+                long currentTimeMillis, boolean useIndexedFormat, @NonNull int[] removedUids) {
+            mTemp = new NetworkStatsCollection(bucketDuration);
+            mTemp.setUseIndexedFormat(useIndexedFormat);
+            mTiers = tiers;
+            mCurrentTimeMillis = currentTimeMillis;
+            mRemovedUids = removedUids;
+        }
+
+        @Override
+        public void reset() {
+            mTemp.reset();
+        }
+
+        @Override
+        public void read(InputStream in) throws IOException {
+            mTemp.read(in);
+            mTemp.clearDirty();
+            if (mRemovedUids.length > 0) {
+                mTemp.removeUids(mRemovedUids);
+            }
+            if (mTemp.isEmpty()) return;
+            final long bucketDuration = getRollupBucketDuration(mTiers,
+                    mCurrentTimeMillis - mTemp.getEndMillis());
+            if (bucketDuration > 0) {
+                mTemp.rollupHistories(bucketDuration);
+            }
+        }
+
+        @Override
+        public boolean shouldWrite() {
+            return mTemp.isDirty();
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            mTemp.write(out);
+        }
+    }
+
     /**
      * Remove persisted data which contains or is before the cutoff timestamp.
      */
     public void removeDataBefore(long cutoffMillis) throws IOException {
         if (mRotator != null) {
+            waitForPersistLocked();
             try {
+                compactJournal();
                 mRotator.rewriteAll(new RemoveDataBeforeRewriter(
-                        mBucketDuration, cutoffMillis));
+                        mBucketDuration, cutoffMillis, mUseIndexedFormat));
             } catch (IOException e) {
                 Log.wtf(TAG, "problem importing netstats", e);
                 recoverAndDeleteData();
@@ -545,15 +1360,28 @@ public class NetworkStatsRecorder {
             mSinceBoot.removeHistoryBefore(cutoffMillis);
         }
 
-        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
-        if (complete != null) {
-            complete.removeHistoryBefore(cutoffMillis);
+        for (LoadedSlice slice : mCache) {
+            final NetworkStatsCollection collection = slice.get();
+            if (collection != null) {
+                collection.removeHistoryBefore(cutoffMillis);
+            }
         }
     }
 
     public void dumpLocked(IndentingPrintWriter pw, boolean fullHistory) {
         if (mPending != null) {
             pw.print("Pending bytes: "); pw.println(mPending.getTotalBytes());
+            pw.print("Cache: hits="); pw.print(mCacheHits);
+            pw.print(" misses="); pw.print(mCacheMisses);
+            pw.print(" ranges="); pw.print(mCache.size());
+            pw.print(" bytes="); pw.print(mCacheBytes);
+            pw.print(" budget="); pw.println(mCacheBudgetBytes);
+        }
+        if (mUidTombstones != null) {
+            pw.print("UID tombstones: "); pw.println(mUidTombstones.size());
+        }
+        if (mThroughputTracker != null) {
+            pw.print("Recent deltas: "); pw.println(mThroughputTracker.size());
         }
         if (fullHistory) {
             pw.println("Complete history:");
@@ -600,6 +1428,12 @@ public class NetworkStatsRecorder {
         // Delete all files if this recorder is set wipe on error.
         if (mWipeOnError) {
             mRotator.deleteAll();
+            if (mJournal != null) {
+                mJournal.delete();
+            }
+            if (mUidTombstones != null) {
+                mUidTombstones.clear();
+            }
         }
     }
 }
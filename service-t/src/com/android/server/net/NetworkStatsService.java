@@ -177,10 +177,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Collect and persist detailed network statistics, and provide this data to
@@ -258,6 +260,61 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             "netstats_import_legacy_target_attempts";
     static final int DEFAULT_NETSTATS_IMPORT_LEGACY_TARGET_ATTEMPTS = 1;
     static final String NETSTATS_IMPORT_ATTEMPTS_COUNTER_NAME = "import.attempts";
+    /**
+     * DeviceConfig flag used to indicate whether stats files should be written in the indexed
+     * format, whose histories are only decoded when queried. Files in either format can always
+     * be read, so the value can be rolled back safely.
+     */
+    static final String NETSTATS_INDEXED_FILE_FORMAT = "netstats_indexed_file_format";
+    /**
+     * DeviceConfig flag used to indicate whether persisted data should be rolled up into
+     * coarser buckets as it ages, see {@link NetworkStatsRecorder.RollupTier}.
+     */
+    static final String NETSTATS_ROLLUP_ENABLED = "netstats_rollup_enabled";
+    /** Suffix of the file holding the time of the next rollup of each recorder. */
+    private static final String ROLLUP_DEADLINE_SUFFIX = ".rollup";
+    /**
+     * DeviceConfig flag used to indicate whether pending deltas should be appended to a
+     * journal, see {@link NetworkStatsJournal}, instead of rewriting the active file. The
+     * journal is merged back into the active file whenever the flag is off, so the value can
+     * be rolled back safely.
+     */
+    static final String NETSTATS_JOURNAL_ENABLED = "netstats_journal_enabled";
+    /** Suffix of the {@link NetworkStatsJournal} file of each recorder, after its prefix. */
+    private static final String JOURNAL_SUFFIX = ".journal";
+    /**
+     * DeviceConfig flag used to indicate whether removed UIDs should be tombstoned, see
+     * {@link NetworkStatsUidTombstones}, instead of rewriting all persisted history right away.
+     * Tombstones are migrated whenever the flag is off, so the value can be rolled back safely.
+     */
+    static final String NETSTATS_UID_TOMBSTONES_ENABLED = "netstats_uid_tombstones_enabled";
+    /** Suffix of the {@link NetworkStatsUidTombstones} file of each recorder, after its prefix. */
+    private static final String UID_TOMBSTONES_SUFFIX = ".tombstones";
+    /**
+     * DeviceConfig flag used to indicate whether pending deltas should be written to disk on a
+     * dedicated thread, see {@link NetworkStatsRecorder#setPersistHandler(Handler)}, instead of
+     * while holding {@code mStatsLock}.
+     */
+    static final String NETSTATS_ASYNC_PERSIST = "netstats_async_persist";
+    /**
+     * DeviceConfig flag used to indicate whether session query results should be cached
+     * between polls, see {@link NetworkStatsQueryCache}.
+     */
+    static final String NETSTATS_QUERY_CACHE_ENABLED = "netstats_query_cache_enabled";
+    /**
+     * DeviceConfig flag used to indicate whether the poll interval should adapt to the observed
+     * traffic rate, see {@link NetworkStatsPollScheduler}, instead of being fixed.
+     */
+    static final String NETSTATS_ADAPTIVE_POLL_ENABLED = "netstats_adaptive_poll_enabled";
+    /** Estimated heap that cached session query results may use. */
+    private static final long QUERY_CACHE_MAX_BYTES = 512 * KB_IN_BYTES;
+
+    /** Types of {@link NetworkStatsQueryCache.Key}. */
+    private static final int QUERY_SUMMARY_FOR_NETWORK = 0;
+    private static final int QUERY_HISTORY_FOR_NETWORK = 1;
+    private static final int QUERY_SUMMARY_FOR_ALL_UID = 2;
+    private static final int QUERY_SUMMARY_FOR_ALL_UID_WITH_TAGS = 3;
+    private static final int QUERY_TAGGED_SUMMARY_FOR_ALL_UID = 4;
     static final String NETSTATS_IMPORT_SUCCESSES_COUNTER_NAME = "import.successes";
     static final String NETSTATS_IMPORT_FALLBACKS_COUNTER_NAME = "import.fallbacks";
 
@@ -299,6 +356,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     public interface NetworkStatsSettings {
         long getPollInterval();
         long getPollDelay();
+        /** Shortest interval between polls when the interval adapts to traffic. */
+        long getMinPollInterval();
+        /** Longest interval between polls when the interval adapts to traffic. */
+        long getMaxPollInterval();
         boolean getSampleEnabled();
         boolean getAugmentEnabled();
         /**
@@ -314,11 +375,20 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public final long bucketDuration;
             public final long rotateAgeMillis;
             public final long deleteAgeMillis;
+            @NonNull
+            public final NetworkStatsRecorder.RollupTier[] rollupTiers;
 
             public Config(long bucketDuration, long rotateAgeMillis, long deleteAgeMillis) {
+                this(bucketDuration, rotateAgeMillis, deleteAgeMillis,
+                        new NetworkStatsRecorder.RollupTier[0]);
+            }
+
+            public Config(long bucketDuration, long rotateAgeMillis, long deleteAgeMillis,
+                    @NonNull NetworkStatsRecorder.RollupTier[] rollupTiers) {
                 this.bucketDuration = bucketDuration;
                 this.rotateAgeMillis = rotateAgeMillis;
                 this.deleteAgeMillis = deleteAgeMillis;
+                this.rollupTiers = rollupTiers;
             }
         }
 
@@ -372,6 +442,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             new DropBoxNonMonotonicObserver();
 
     private static final int MAX_STATS_PROVIDER_POLL_WAIT_TIME_MS = 100;
+
+    /** Longest window of {@link #getRecentUidUsage(long[])}. */
+    private static final long RECENT_USAGE_MAX_WINDOW_MILLIS = 15 * MINUTE_IN_MILLIS;
+    /** Number of poll deltas kept for {@link #getRecentUidUsage(long[])}. */
+    private static final int RECENT_USAGE_MAX_DELTAS = 64;
     private final CopyOnWriteArrayList<NetworkStatsProviderCallbackImpl> mStatsProviderCbList =
             new CopyOnWriteArrayList<>();
     /** Semaphore used to wait for stats provider to respond to request stats update. */
@@ -408,6 +483,26 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
     @NonNull
     private final Handler mHandler;
+    /** Handler of the thread recorders write pending deltas on, if enabled. */
+    @Nullable
+    private Handler mPersistHandler;
+    /** Cache of session query results, invalidated whenever recorded data changes. */
+    @NonNull
+    private volatile NetworkStatsQueryCache mQueryCache = new NetworkStatsQueryCache(0);
+
+    /** Schedules polls when their interval adapts to traffic, null when it is fixed. */
+    @GuardedBy("mStatsLock")
+    @Nullable
+    private NetworkStatsPollScheduler mPollScheduler;
+
+    /**
+     * Smallest warning or limit last set on the stats providers for each interface, in bytes
+     * from when it was set. Interfaces without warning nor limit are absent.
+     */
+    private final ConcurrentHashMap<String, Long> mProviderQuotaBytes = new ConcurrentHashMap<>();
+
+    /** Latency of the phases of stats polling since boot. */
+    private final NetworkStatsPollLatency mPollLatency = new NetworkStatsPollLatency();
 
     private volatile boolean mSystemReady;
     private long mPersistThreshold = 2 * MB_IN_BYTES;
@@ -555,6 +650,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         mSettings = Objects.requireNonNull(settings, "missing NetworkStatsSettings");
         mWakeLock = Objects.requireNonNull(wakeLock, "missing WakeLock");
         mStatsFactory = Objects.requireNonNull(factory, "missing factory");
+        mStatsFactory.setPollLatency(mPollLatency);
         mStatsObservers = Objects.requireNonNull(statsObservers, "missing NetworkStatsObservers");
         mDeps = Objects.requireNonNull(deps, "missing Dependencies");
         mStatsDir = mDeps.getOrCreateStatsDir();
@@ -651,6 +747,76 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NETSTATS_STORE_FILES_IN_APEXDATA, true);
         }
 
+        /**
+         * Get the flag of writing stats files in the indexed format.
+         * @return whether to write stats files in the indexed format.
+         */
+        public boolean getUseIndexedFileFormat() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_INDEXED_FILE_FORMAT, false);
+        }
+
+        /**
+         * Get the flag of rolling up aged persisted data into coarser buckets.
+         * @return whether to roll up aged persisted data.
+         */
+        public boolean getRollupEnabled() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_ROLLUP_ENABLED, false);
+        }
+
+        /**
+         * Get the flag of appending pending deltas to a journal instead of rewriting files.
+         * @return whether to append pending deltas to a journal.
+         */
+        public boolean getJournalEnabled() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_JOURNAL_ENABLED, false);
+        }
+
+        /**
+         * Get the flag of tombstoning removed UIDs instead of rewriting all files.
+         * @return whether to tombstone removed UIDs.
+         */
+        public boolean getUidTombstonesEnabled() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_UID_TOMBSTONES_ENABLED, false);
+        }
+
+        /**
+         * Get the flag of writing pending deltas to disk on a dedicated thread.
+         * @return whether to write pending deltas on a dedicated thread.
+         */
+        public boolean getAsyncPersistEnabled() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_ASYNC_PERSIST, false);
+        }
+
+        /**
+         * Get the flag of caching session query results between polls.
+         * @return whether to cache session query results.
+         */
+        public boolean getQueryCacheEnabled() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_QUERY_CACHE_ENABLED, false);
+        }
+
+        /**
+         * Get the flag of adapting the poll interval to the observed traffic rate.
+         * @return whether the poll interval adapts to traffic.
+         */
+        public boolean getAdaptivePollEnabled() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_ADAPTIVE_POLL_ENABLED, false);
+        }
+
         /**
          * Read legacy persisted network stats from disk.
          */
@@ -668,6 +834,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             return new HandlerThread(TAG);
         }
 
+        /**
+         * Create a HandlerThread for recorders to write pending deltas on.
+         */
+        @NonNull
+        public HandlerThread makePersistHandlerThread() {
+            return new HandlerThread(TAG + "Persist");
+        }
+
         /**
          * Create a {@link NetworkStatsSubscriptionsMonitor}, can be used to monitor RAT change
          * event in NetworkStatsService.
@@ -799,6 +973,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         synchronized (mStatsLock) {
             mSystemReady = true;
 
+            if (mDeps.getAsyncPersistEnabled()) {
+                final HandlerThread persistThread = mDeps.makePersistHandlerThread();
+                persistThread.start();
+                mPersistHandler = new Handler(persistThread.getLooper());
+            }
+
             // create data recorders along with historical rotators
             mDevRecorder = buildRecorder(PREFIX_DEV, mSettings.getDevConfig(), false, mStatsDir,
                     true /* wipeOnError */);
@@ -806,6 +986,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     true /* wipeOnError */);
             mUidRecorder = buildRecorder(PREFIX_UID, mSettings.getUidConfig(), false, mStatsDir,
                     true /* wipeOnError */);
+            mUidRecorder.setThroughputTracker(new NetworkStatsThroughputTracker(
+                    RECENT_USAGE_MAX_DELTAS, RECENT_USAGE_MAX_WINDOW_MILLIS));
             mUidTagRecorder = buildRecorder(PREFIX_UID_TAG, mSettings.getUidTagConfig(), true,
                     mStatsDir, true /* wipeOnError */);
 
@@ -818,6 +1000,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             // might need them right away.
             mXtStatsCached = mXtRecorder.getOrLoadCompleteLocked();
 
+            if (mDeps.getQueryCacheEnabled()) {
+                mQueryCache = new NetworkStatsQueryCache(QUERY_CACHE_MAX_BYTES);
+            }
+
+            if (mDeps.getAdaptivePollEnabled()) {
+                mPollScheduler = new NetworkStatsPollScheduler(mSettings.getMinPollInterval(),
+                        mSettings.getMaxPollInterval());
+            }
+
             // bootstrap initial stats to prevent double-counting later
             bootstrapStatsLocked();
         }
@@ -850,13 +1041,23 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         }
 
         //  schedule periodic pall alarm based on {@link NetworkStatsSettings#getPollInterval()}.
-        final PendingIntent pollIntent =
+        mPollIntent =
                 PendingIntent.getBroadcast(mContext, 0, new Intent(ACTION_NETWORK_STATS_POLL),
                         PendingIntent.FLAG_IMMUTABLE);
 
         final long currentRealtime = SystemClock.elapsedRealtime();
-        mAlarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, currentRealtime,
-                mSettings.getPollInterval(), pollIntent);
+        final boolean adaptivePoll;
+        synchronized (mStatsLock) {
+            adaptivePoll = mPollScheduler != null;
+        }
+        if (adaptivePoll) {
+            // The next alarm is set after each poll, see performPoll.
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME,
+                    currentRealtime + mSettings.getPollInterval(), mPollIntent);
+        } else {
+            mAlarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, currentRealtime,
+                    mSettings.getPollInterval(), mPollIntent);
+        }
 
         mContentResolver.registerContentObserver(Settings.Global
                 .getUriFor(NETSTATS_COMBINE_SUBTYPE_ENABLED),
@@ -875,10 +1076,23 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             File baseDir, boolean wipeOnError) {
         final DropBoxManager dropBox = (DropBoxManager) mContext.getSystemService(
                 Context.DROPBOX_SERVICE);
-        return new NetworkStatsRecorder(new FileRotator(
+        final NetworkStatsRecorder recorder = new NetworkStatsRecorder(new FileRotator(
                 baseDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
                 mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags,
                 wipeOnError);
+        recorder.setUseIndexedFormat(mDeps.getUseIndexedFileFormat());
+        if (mDeps.getRollupEnabled()) {
+            recorder.setRollupTiers(config.rollupTiers);
+            recorder.setRollupDeadlineFile(new File(baseDir, prefix + ROLLUP_DEADLINE_SUFFIX));
+        }
+        // Always set, so that a journal left over from when the flag was on is merged back.
+        recorder.setJournal(new NetworkStatsJournal(new File(baseDir, prefix + JOURNAL_SUFFIX)));
+        recorder.setUseJournal(mDeps.getJournalEnabled());
+        recorder.setUidTombstones(new NetworkStatsUidTombstones(
+                new File(baseDir, prefix + UID_TOMBSTONES_SUFFIX)));
+        recorder.setUseUidTombstones(mDeps.getUidTombstonesEnabled());
+        recorder.setPersistHandler(mPersistHandler);
+        return recorder;
     }
 
     @GuardedBy("mStatsLock")
@@ -903,6 +1117,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         mXtRecorder.forcePersistLocked(currentTime);
         mUidRecorder.forcePersistLocked(currentTime);
         mUidTagRecorder.forcePersistLocked(currentTime);
+        mDevRecorder.waitForPersistLocked();
+        mXtRecorder.waitForPersistLocked();
+        mUidRecorder.waitForPersistLocked();
+        mUidTagRecorder.waitForPersistLocked();
 
         mSystemReady = false;
     }
@@ -1369,6 +1587,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             private NetworkStatsCollection mUidComplete;
             private NetworkStatsCollection mUidTagComplete;
 
+            @GuardedBy("this")
+            private NetworkStatsSummaryCursor mSummaryCursor;
+
             private NetworkStatsCollection getUidComplete() {
                 synchronized (mStatsLock) {
                     if (mUidComplete == null) {
@@ -1400,6 +1621,16 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                         mAccessLevel, mCallingUid);
             }
 
+            @Override
+            public NetworkStats[] getDeviceSummariesForNetworks(NetworkTemplate[] templates,
+                    long[] starts, long[] ends) {
+                for (NetworkTemplate template : templates) {
+                    enforceTemplatePermissions(template, callingPackage);
+                }
+                return internalGetSummariesForNetworks(templates, restrictedFlags, starts, ends,
+                        mAccessLevel, mCallingUid);
+            }
+
             @Override
             public NetworkStats getSummaryForNetwork(
                     NetworkTemplate template, long start, long end) {
@@ -1430,31 +1661,77 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStats getSummaryForAllUid(
                     NetworkTemplate template, long start, long end, boolean includeTags) {
                 enforceTemplatePermissions(template, callingPackage);
-                try {
-                    final NetworkStats stats = getUidComplete()
-                            .getSummary(template, start, end, mAccessLevel, mCallingUid);
-                    if (includeTags) {
-                        final NetworkStats tagStats = getUidTagComplete()
+                final NetworkStatsQueryCache.Key key = new NetworkStatsQueryCache.Key(
+                        includeTags ? QUERY_SUMMARY_FOR_ALL_UID_WITH_TAGS
+                                : QUERY_SUMMARY_FOR_ALL_UID,
+                        template, start, end, FIELD_ALL, mAccessLevel, mCallingUid,
+                        null /* augmentPlan */, getQueryTimeSlot(mUidRecorder));
+                return getOrComputeSummary(key, () -> {
+                    try {
+                        final NetworkStats stats = getUidComplete()
                                 .getSummary(template, start, end, mAccessLevel, mCallingUid);
-                        stats.combineAllValues(tagStats);
+                        if (includeTags) {
+                            final NetworkStats tagStats = getUidTagComplete()
+                                    .getSummary(template, start, end, mAccessLevel,
+                                            mCallingUid);
+                            stats.combineAllValues(tagStats);
+                        }
+                        return stats;
+                    } catch (NullPointerException e) {
+                        throw e;
                     }
-                    return stats;
-                } catch (NullPointerException e) {
-                    throw e;
+                });
+            }
+
+            @Override
+            public void startSummaryPagingForAllUid(NetworkTemplate template, long start,
+                    long end, boolean includeTags) {
+                enforceTemplatePermissions(template, callingPackage);
+                synchronized (this) {
+                    mSummaryCursor = new NetworkStatsSummaryCursor(template, start, end,
+                            includeTags);
+                }
+            }
+
+            @Override
+            public NetworkStats getNextSummaryPage(int minEntries) {
+                synchronized (this) {
+                    if (mSummaryCursor == null) return null;
+                    // Pages are computed from the live collections, not from a cached summary,
+                    // so that large summaries are never held in memory at once.
+                    final NetworkStats page = mSummaryCursor.next(getUidComplete(),
+                            mSummaryCursor.includesTags() ? getUidTagComplete() : null,
+                            minEntries, mAccessLevel, mCallingUid);
+                    if (page == null) mSummaryCursor = null;
+                    return page;
                 }
             }
 
+            @Override
+            public NetworkStats getTopUidsForNetwork(NetworkTemplate template, long start,
+                    long end, int rankBy, int limit) {
+                enforceTemplatePermissions(template, callingPackage);
+                return getUidComplete().getTopUids(template, start, end, rankBy, limit,
+                        mAccessLevel, mCallingUid);
+            }
+
             @Override
             public NetworkStats getTaggedSummaryForAllUid(
                     NetworkTemplate template, long start, long end) {
                 enforceTemplatePermissions(template, callingPackage);
-                try {
-                    final NetworkStats tagStats = getUidTagComplete()
-                            .getSummary(template, start, end, mAccessLevel, mCallingUid);
-                    return tagStats;
-                } catch (NullPointerException e) {
-                    throw e;
-                }
+                final NetworkStatsQueryCache.Key key = new NetworkStatsQueryCache.Key(
+                        QUERY_TAGGED_SUMMARY_FOR_ALL_UID, template, start, end, FIELD_ALL,
+                        mAccessLevel, mCallingUid, null /* augmentPlan */,
+                        getQueryTimeSlot(mUidTagRecorder));
+                return getOrComputeSummary(key, () -> {
+                    try {
+                        final NetworkStats tagStats = getUidTagComplete()
+                                .getSummary(template, start, end, mAccessLevel, mCallingUid);
+                        return tagStats;
+                    } catch (NullPointerException e) {
+                        throw e;
+                    }
+                });
             }
 
             @Override
@@ -1495,6 +1772,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public void close() {
                 mUidComplete = null;
                 mUidTagComplete = null;
+                synchronized (this) {
+                    mSummaryCursor = null;
+                }
             }
         };
     }
@@ -1552,19 +1832,83 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
      */
     private NetworkStats internalGetSummaryForNetwork(NetworkTemplate template, int flags,
             long start, long end, @NetworkStatsAccess.Level int accessLevel, int callingUid) {
-        // We've been using pure XT stats long enough that we no longer need to
-        // splice DEV and XT together.
-        final NetworkStatsHistory history = internalGetHistoryForNetwork(template, flags, FIELD_ALL,
-                accessLevel, callingUid, Long.MIN_VALUE, Long.MAX_VALUE);
+        final SubscriptionPlan augmentPlan = resolveSubscriptionPlan(template, flags);
+        final NetworkStatsQueryCache.Key key = new NetworkStatsQueryCache.Key(
+                QUERY_SUMMARY_FOR_NETWORK, template, start, end, FIELD_ALL, accessLevel,
+                callingUid, augmentPlan, getQueryTimeSlot(mXtRecorder));
+        return getOrComputeSummary(key, () -> {
+            // We've been using pure XT stats long enough that we no longer need to
+            // splice DEV and XT together.
+            final NetworkStatsHistory history = internalGetHistoryForNetwork(template,
+                    augmentPlan, FIELD_ALL, accessLevel, callingUid, Long.MIN_VALUE,
+                    Long.MAX_VALUE);
+
+            final long now = mClock.millis();
+            final NetworkStatsHistory.Entry entry = history.getValues(start, end, now, null);
+
+            final NetworkStats stats = new NetworkStats(end - start, 1);
+            stats.insertEntry(new NetworkStats.Entry(IFACE_ALL, UID_ALL, SET_ALL, TAG_NONE,
+                    METERED_ALL, ROAMING_ALL, DEFAULT_NETWORK_ALL, entry.rxBytes,
+                    entry.rxPackets, entry.txBytes, entry.txPackets, entry.operations));
+            return stats;
+        });
+    }
 
-        final long now = mClock.millis();
-        final NetworkStatsHistory.Entry entry = history.getValues(start, end, now, null);
+    /**
+     * Return network summaries for each of the given templates across each of the given ranges,
+     * ordered by template, then by range. The history of each template is read once for all
+     * ranges, resolving its subscription plan once, and templates which are not augmented with
+     * a plan are collected together in a single pass.
+     */
+    private NetworkStats[] internalGetSummariesForNetworks(NetworkTemplate[] templates, int flags,
+            long[] starts, long[] ends, @NetworkStatsAccess.Level int accessLevel,
+            int callingUid) {
+        Objects.requireNonNull(templates);
+        if (starts.length != ends.length) {
+            throw new IllegalArgumentException("Mismatched range starts and ends: "
+                    + starts.length + " != " + ends.length);
+        }
+
+        final NetworkStatsHistory[] histories = new NetworkStatsHistory[templates.length];
+        final ArrayList<NetworkTemplate> batched = new ArrayList<>();
+        final ArrayList<Integer> batchedIndexes = new ArrayList<>();
+        for (int i = 0; i < templates.length; i++) {
+            Objects.requireNonNull(templates[i]);
+            final SubscriptionPlan augmentPlan = resolveSubscriptionPlan(templates[i], flags);
+            if (augmentPlan == null) {
+                batched.add(templates[i]);
+                batchedIndexes.add(i);
+                continue;
+            }
+            histories[i] = internalGetHistoryForNetwork(templates[i], augmentPlan, FIELD_ALL,
+                    accessLevel, callingUid, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+        if (!batched.isEmpty()) {
+            final NetworkStatsHistory[] batchedHistories;
+            synchronized (mStatsLock) {
+                batchedHistories = mXtStatsCached.getHistories(
+                        batched.toArray(new NetworkTemplate[0]), UID_ALL, SET_ALL, TAG_NONE,
+                        FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE, accessLevel, callingUid);
+            }
+            for (int k = 0; k < batchedHistories.length; k++) {
+                histories[batchedIndexes.get(k)] = batchedHistories[k];
+            }
+        }
 
-        final NetworkStats stats = new NetworkStats(end - start, 1);
-        stats.insertEntry(new NetworkStats.Entry(IFACE_ALL, UID_ALL, SET_ALL, TAG_NONE,
-                METERED_ALL, ROAMING_ALL, DEFAULT_NETWORK_ALL, entry.rxBytes, entry.rxPackets,
-                entry.txBytes, entry.txPackets, entry.operations));
-        return stats;
+        final NetworkStats[] results = new NetworkStats[templates.length * starts.length];
+        final long now = mClock.millis();
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < histories.length; i++) {
+            for (int j = 0; j < starts.length; j++) {
+                entry = histories[i].getValues(starts[j], ends[j], now, entry);
+                final NetworkStats stats = new NetworkStats(ends[j] - starts[j], 1);
+                stats.insertEntry(new NetworkStats.Entry(IFACE_ALL, UID_ALL, SET_ALL, TAG_NONE,
+                        METERED_ALL, ROAMING_ALL, DEFAULT_NETWORK_ALL, entry.rxBytes,
+                        entry.rxPackets, entry.txBytes, entry.txPackets, entry.operations));
+                results[i * starts.length + j] = stats;
+            }
+        }
+        return results;
     }
 
     /**
@@ -1574,13 +1918,59 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     private NetworkStatsHistory internalGetHistoryForNetwork(NetworkTemplate template,
             int flags, int fields, @NetworkStatsAccess.Level int accessLevel, int callingUid,
             long start, long end) {
-        // We've been using pure XT stats long enough that we no longer need to
-        // splice DEV and XT together.
-        final SubscriptionPlan augmentPlan = resolveSubscriptionPlan(template, flags);
-        synchronized (mStatsLock) {
-            return mXtStatsCached.getHistory(template, augmentPlan,
-                    UID_ALL, SET_ALL, TAG_NONE, fields, start, end, accessLevel, callingUid);
-        }
+        return internalGetHistoryForNetwork(template, resolveSubscriptionPlan(template, flags),
+                fields, accessLevel, callingUid, start, end);
+    }
+
+    private NetworkStatsHistory internalGetHistoryForNetwork(NetworkTemplate template,
+            @Nullable SubscriptionPlan augmentPlan, int fields,
+            @NetworkStatsAccess.Level int accessLevel, int callingUid, long start, long end) {
+        final NetworkStatsQueryCache.Key key = new NetworkStatsQueryCache.Key(
+                QUERY_HISTORY_FOR_NETWORK, template, start, end, fields, accessLevel, callingUid,
+                augmentPlan, 0 /* timeSlot */);
+        return getOrComputeHistory(key, () -> {
+            // We've been using pure XT stats long enough that we no longer need to
+            // splice DEV and XT together.
+            synchronized (mStatsLock) {
+                return mXtStatsCached.getHistory(template, augmentPlan,
+                        UID_ALL, SET_ALL, TAG_NONE, fields, start, end, accessLevel, callingUid);
+            }
+        });
+    }
+
+    /**
+     * Return the cached result of the given query, or compute and cache it. Results computed
+     * while recorded data changes are returned but not cached.
+     */
+    private NetworkStats getOrComputeSummary(@NonNull NetworkStatsQueryCache.Key key,
+            @NonNull Supplier<NetworkStats> query) {
+        final NetworkStatsQueryCache cache = mQueryCache;
+        final NetworkStats cached = cache.getSummary(key);
+        if (cached != null) return cached;
+        final long generation = cache.getGeneration();
+        final NetworkStats stats = query.get();
+        cache.putSummary(key, stats, generation);
+        return stats;
+    }
+
+    /** Same as {@link #getOrComputeSummary} for history queries. */
+    private NetworkStatsHistory getOrComputeHistory(@NonNull NetworkStatsQueryCache.Key key,
+            @NonNull Supplier<NetworkStatsHistory> query) {
+        final NetworkStatsQueryCache cache = mQueryCache;
+        final NetworkStatsHistory cached = cache.getHistory(key);
+        if (cached != null) return cached;
+        final long generation = cache.getGeneration();
+        final NetworkStatsHistory history = query.get();
+        cache.putHistory(key, history, generation);
+        return history;
+    }
+
+    /**
+     * Return the slot of time that summaries over data of the given recorder are valid in:
+     * they depend on the current time through the bucket in progress.
+     */
+    private long getQueryTimeSlot(@NonNull NetworkStatsRecorder recorder) {
+        return mClock.millis() / recorder.getBucketDuration();
     }
 
     private long getNetworkTotalBytes(NetworkTemplate template, long start, long end) {
@@ -1675,6 +2065,16 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         }
     }
 
+    @Override
+    public NetworkStats[] getRecentUidUsage(long[] windowsMillis) {
+        PermissionUtils.enforceNetworkStackPermission(mContext);
+        Objects.requireNonNull(windowsMillis);
+        synchronized (mStatsLock) {
+            assertSystemReady();
+            return mUidRecorder.getRecentUsageLocked(windowsMillis);
+        }
+    }
+
     @Override
     public String[] getMobileIfaces() {
         // TODO (b/192758557): Remove debug log.
@@ -1857,6 +2257,54 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         return nativeGetUidStat(uid, type);
     }
 
+    @Override
+    public long[] getUidStatsBatch(@NonNull int[] uids) {
+        Objects.requireNonNull(uids);
+        final int callingUid = Binder.getCallingUid();
+        final long[] stats = new long[uids.length * TrafficStats.UID_STATS_TYPE_COUNT];
+        Arrays.fill(stats, UNSUPPORTED);
+        if (mAppUidStatsMap == null) return stats;
+
+        // Index of the first request of each uid the caller may read, as getUidStats does.
+        final SparseIntArray indices = new SparseIntArray(uids.length);
+        for (int i = 0; i < uids.length; i++) {
+            final int uid = uids[i];
+            if (callingUid != android.os.Process.SYSTEM_UID && callingUid != uid) continue;
+            if (indices.indexOfKey(uid) < 0) {
+                indices.put(uid, i);
+                // Uids without traffic are not in the map.
+                Arrays.fill(stats, i * TrafficStats.UID_STATS_TYPE_COUNT,
+                        (i + 1) * TrafficStats.UID_STATS_TYPE_COUNT, 0L);
+            }
+        }
+        if (indices.size() == 0) return stats;
+
+        try {
+            mAppUidStatsMap.forEach((key, value) -> {
+                final int index = indices.get((int) key.uid, -1);
+                if (index < 0) return;
+                final int offset = index * TrafficStats.UID_STATS_TYPE_COUNT;
+                stats[offset + TrafficStats.TYPE_RX_BYTES] = value.rxBytes;
+                stats[offset + TrafficStats.TYPE_RX_PACKETS] = value.rxPackets;
+                stats[offset + TrafficStats.TYPE_TX_BYTES] = value.txBytes;
+                stats[offset + TrafficStats.TYPE_TX_PACKETS] = value.txPackets;
+            });
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to read app uid stats map", e);
+            Arrays.fill(stats, UNSUPPORTED);
+            return stats;
+        }
+
+        // Copy the counters of uids requested more than once.
+        for (int i = 0; i < uids.length; i++) {
+            final int first = indices.get(uids[i], -1);
+            if (first < 0 || first == i) continue;
+            System.arraycopy(stats, first * TrafficStats.UID_STATS_TYPE_COUNT, stats,
+                    i * TrafficStats.UID_STATS_TYPE_COUNT, TrafficStats.UID_STATS_TYPE_COUNT);
+        }
+        return stats;
+    }
+
     @Override
     public long getIfaceStats(@NonNull String iface, int type) {
         Objects.requireNonNull(iface);
@@ -2201,8 +2649,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         // snapshot and record current counters; read UID stats first to
         // avoid over counting dev stats.
         Trace.traceBegin(TRACE_TAG_NETWORK, "snapshotUid");
+        long startNanos = SystemClock.elapsedRealtimeNanos();
         final NetworkStats uidSnapshot = getNetworkStatsUidDetail(INTERFACES_ALL);
+        recordPollLatency(NetworkStatsPollLatency.PHASE_SNAPSHOT_UID, startNanos,
+                uidSnapshot.size());
         Trace.traceEnd(TRACE_TAG_NETWORK);
+        startNanos = SystemClock.elapsedRealtimeNanos();
         Trace.traceBegin(TRACE_TAG_NETWORK, "snapshotXt");
         final NetworkStats xtSnapshot = readNetworkStatsSummaryXt();
         Trace.traceEnd(TRACE_TAG_NETWORK);
@@ -2217,28 +2669,52 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         Trace.traceEnd(TRACE_TAG_NETWORK);
         xtSnapshot.combineAllValues(providersnapshot);
         devSnapshot.combineAllValues(providersnapshot);
+        recordPollLatency(NetworkStatsPollLatency.PHASE_SNAPSHOT_IFACE, startNanos,
+                xtSnapshot.size() + devSnapshot.size());
 
         // For xt/dev, we pass a null VPN array because usage is aggregated by UID, so VPN traffic
         // can't be reattributed to responsible apps.
         Trace.traceBegin(TRACE_TAG_NETWORK, "recordDev");
+        startNanos = SystemClock.elapsedRealtimeNanos();
         mDevRecorder.recordSnapshotLocked(devSnapshot, mActiveIfaces, currentTime);
+        recordPollLatency(NetworkStatsPollLatency.PHASE_RECORD_DEV, startNanos,
+                devSnapshot.size());
         Trace.traceEnd(TRACE_TAG_NETWORK);
         Trace.traceBegin(TRACE_TAG_NETWORK, "recordXt");
+        startNanos = SystemClock.elapsedRealtimeNanos();
         mXtRecorder.recordSnapshotLocked(xtSnapshot, mActiveIfaces, currentTime);
+        recordPollLatency(NetworkStatsPollLatency.PHASE_RECORD_XT, startNanos,
+                xtSnapshot.size());
         Trace.traceEnd(TRACE_TAG_NETWORK);
 
         // For per-UID stats, pass the VPN info so VPN traffic is reattributed to responsible apps.
         Trace.traceBegin(TRACE_TAG_NETWORK, "recordUid");
+        startNanos = SystemClock.elapsedRealtimeNanos();
         mUidRecorder.recordSnapshotLocked(uidSnapshot, mActiveUidIfaces, currentTime);
+        recordPollLatency(NetworkStatsPollLatency.PHASE_RECORD_UID, startNanos,
+                uidSnapshot.size());
         Trace.traceEnd(TRACE_TAG_NETWORK);
         Trace.traceBegin(TRACE_TAG_NETWORK, "recordUidTag");
+        startNanos = SystemClock.elapsedRealtimeNanos();
         mUidTagRecorder.recordSnapshotLocked(uidSnapshot, mActiveUidIfaces, currentTime);
+        recordPollLatency(NetworkStatsPollLatency.PHASE_RECORD_UID_TAG, startNanos,
+                uidSnapshot.size());
         Trace.traceEnd(TRACE_TAG_NETWORK);
 
+        startNanos = SystemClock.elapsedRealtimeNanos();
         // We need to make copies of member fields that are sent to the observer to avoid
         // a race condition between the service handler thread and the observer's
         mStatsObservers.updateStats(xtSnapshot, uidSnapshot, new ArrayMap<>(mActiveIfaces),
                 new ArrayMap<>(mActiveUidIfaces), currentTime);
+        recordPollLatency(NetworkStatsPollLatency.PHASE_OBSERVERS, startNanos, 0);
+
+        if (mPollScheduler != null) {
+            mPollScheduler.onPoll(xtSnapshot.getElapsedRealtime(), xtSnapshot.getTotalBytes(),
+                    getPollTargetBytes());
+            rearmPollAlarmLocked();
+        }
+
+        mQueryCache.invalidate();
     }
 
     /**
@@ -2270,6 +2746,31 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         }
     }
 
+    /**
+     * Plan the next poll alarm from the poll just made, whatever triggered it, so that it
+     * follows what {@link #mPollScheduler} computed. Setting the alarm again replaces the
+     * pending one.
+     */
+    @GuardedBy("mStatsLock")
+    private void rearmPollAlarmLocked() {
+        if (mPollScheduler == null || mPollIntent == null) return;
+        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + mPollScheduler.getNextPollDelayMillis(),
+                mPollIntent);
+    }
+
+    /**
+     * Bytes worth polling for: the global alert, or less when a provider interface is close to
+     * its warning or limit, so that it is polled at least twice before reaching it.
+     */
+    private long getPollTargetBytes() {
+        long targetBytes = mGlobalAlertBytes;
+        for (long quotaBytes : mProviderQuotaBytes.values()) {
+            targetBytes = Math.min(targetBytes, quotaBytes / 2);
+        }
+        return targetBytes;
+    }
+
     /**
      * Periodic poll operation, reading current statistics and recording into
      * {@link NetworkStatsHistory}.
@@ -2283,6 +2784,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         final boolean persistNetwork = (flags & FLAG_PERSIST_NETWORK) != 0;
         final boolean persistUid = (flags & FLAG_PERSIST_UID) != 0;
         final boolean persistForce = (flags & FLAG_PERSIST_FORCE) != 0;
+        final long pollStartNanos = SystemClock.elapsedRealtimeNanos();
 
         performPollFromProvidersLocked();
 
@@ -2301,6 +2803,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
         // persist any pending data depending on requested flags
         Trace.traceBegin(TRACE_TAG_NETWORK, "[persisting]");
+        final long persistStartNanos = SystemClock.elapsedRealtimeNanos();
         if (persistForce) {
             mDevRecorder.forcePersistLocked(currentTime);
             mXtRecorder.forcePersistLocked(currentTime);
@@ -2316,6 +2819,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 mUidTagRecorder.maybePersistLocked(currentTime);
             }
         }
+        recordPollLatency(NetworkStatsPollLatency.PHASE_PERSIST, persistStartNanos, 0);
         Trace.traceEnd(TRACE_TAG_NETWORK);
 
         if (mSettings.getSampleEnabled()) {
@@ -2326,9 +2830,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         // finally, dispatch updated event to any listeners
         mHandler.sendMessage(mHandler.obtainMessage(MSG_BROADCAST_NETWORK_STATS_UPDATED));
 
+        recordPollLatency(NetworkStatsPollLatency.PHASE_POLL, pollStartNanos, 0);
         Trace.traceEnd(TRACE_TAG_NETWORK);
     }
 
+    private void recordPollLatency(@NetworkStatsPollLatency.Phase int phase, long startNanos,
+            long entries) {
+        mPollLatency.record(phase, SystemClock.elapsedRealtimeNanos() - startNanos, entries);
+    }
+
     @GuardedBy("mStatsLock")
     private void performPollFromProvidersLocked() {
         // Request asynchronous stats update from all providers for next poll. And wait a bit of
@@ -2336,13 +2846,19 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         // that size of list might be changed because addition/removing at the same time. For
         // addition, the stats of the missed provider can only be collected in next poll;
         // for removal, wait might take up to MAX_STATS_PROVIDER_POLL_WAIT_TIME_MS
-        // once that happened.
+        // once that happened. Providers in push mode report on their own, and whatever they
+        // reported so far is used without waiting for them.
         // TODO: request with a valid token.
         Trace.traceBegin(TRACE_TAG_NETWORK, "provider.requestStatsUpdate");
-        final int registeredCallbackCount = mStatsProviderCbList.size();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        int registeredCallbackCount = 0;
+        for (final NetworkStatsProviderCallbackImpl cb : mStatsProviderCbList) {
+            if (!cb.mPushMode) registeredCallbackCount++;
+        }
         mStatsProviderSem.drainPermits();
-        invokeForAllStatsProviderCallbacks(
-                (cb) -> cb.mProvider.onRequestStatsUpdate(0 /* unused */));
+        invokeForAllStatsProviderCallbacks((cb) -> {
+            if (!cb.mPushMode) cb.mProvider.onRequestStatsUpdate(0 /* unused */);
+        });
         try {
             mStatsProviderSem.tryAcquire(registeredCallbackCount,
                     MAX_STATS_PROVIDER_POLL_WAIT_TIME_MS, TimeUnit.MILLISECONDS);
@@ -2353,6 +2869,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     + mStatsProviderSem.availablePermits()
                     + "/" + registeredCallbackCount + " : " + e);
         }
+        recordPollLatency(NetworkStatsPollLatency.PHASE_PROVIDERS, startNanos,
+                registeredCallbackCount);
         Trace.traceEnd(TRACE_TAG_NETWORK);
     }
 
@@ -2469,6 +2987,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
         mUidRecorder.removeUidsLocked(uids);
         mUidTagRecorder.removeUidsLocked(uids);
+        mQueryCache.invalidate();
 
         // Clear kernel stats associated with UID
         for (int uid : uids) {
@@ -2510,6 +3029,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             Log.v(TAG, "setStatsProviderWarningAndLimitAsync("
                     + iface + "," + warning + "," + limit + ")");
         }
+        long quotaBytes = Long.MAX_VALUE;
+        if (warning != NetworkStatsProvider.QUOTA_UNLIMITED) quotaBytes = warning;
+        if (limit != NetworkStatsProvider.QUOTA_UNLIMITED) quotaBytes = Math.min(quotaBytes, limit);
+        if (quotaBytes == Long.MAX_VALUE) {
+            mProviderQuotaBytes.remove(iface);
+        } else {
+            mProviderQuotaBytes.put(iface, quotaBytes);
+        }
         invokeForAllStatsProviderCallbacks((cb) -> cb.mProvider.onSetWarningAndLimit(iface,
                 warning, limit));
     }
@@ -2588,6 +3115,20 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             pw.println();
             pw.print(NETSTATS_IMPORT_LEGACY_TARGET_ATTEMPTS, mDeps.getImportLegacyTargetAttempts());
             pw.println();
+            pw.print(NETSTATS_INDEXED_FILE_FORMAT, mDeps.getUseIndexedFileFormat());
+            pw.println();
+            pw.print(NETSTATS_ROLLUP_ENABLED, mDeps.getRollupEnabled());
+            pw.println();
+            pw.print(NETSTATS_JOURNAL_ENABLED, mDeps.getJournalEnabled());
+            pw.println();
+            pw.print(NETSTATS_UID_TOMBSTONES_ENABLED, mDeps.getUidTombstonesEnabled());
+            pw.println();
+            pw.print(NETSTATS_ASYNC_PERSIST, mDeps.getAsyncPersistEnabled());
+            pw.println();
+            pw.print(NETSTATS_QUERY_CACHE_ENABLED, mDeps.getQueryCacheEnabled());
+            pw.println();
+            pw.print(NETSTATS_ADAPTIVE_POLL_ENABLED, mDeps.getAdaptivePollEnabled());
+            pw.println();
             if (mDeps.getStoreFilesInApexData()) {
                 try {
                     pw.print("platform legacy stats import attempts count",
@@ -2683,6 +3224,27 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             pw.decreaseIndent();
             pw.println();
 
+            pw.println("Query cache:");
+            pw.increaseIndent();
+            mQueryCache.dump(pw);
+            pw.decreaseIndent();
+            pw.println();
+
+            pw.println("Poll latency:");
+            pw.increaseIndent();
+            mPollLatency.dump(pw);
+            pw.decreaseIndent();
+            pw.println();
+
+            if (mPollScheduler != null) {
+                pw.println("Adaptive poll:");
+                pw.increaseIndent();
+                mPollScheduler.dump(pw);
+                pw.print("providerQuotaBytes="); pw.println(mProviderQuotaBytes);
+                pw.decreaseIndent();
+                pw.println();
+            }
+
             pw.println("Dev stats:");
             pw.increaseIndent();
             mDevRecorder.dumpLocked(pw, fullHistory);
@@ -2724,6 +3286,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         mUidRecorder.dumpDebugLocked(proto, NetworkStatsServiceDumpProto.UID_STATS);
         mUidTagRecorder.dumpDebugLocked(proto,
                 NetworkStatsServiceDumpProto.UID_TAG_STATS);
+        mPollLatency.dumpDebug(proto, NetworkStatsServiceDumpProto.POLL_PHASES);
 
         proto.flush();
     }
@@ -2858,6 +3421,23 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
      */
     public @NonNull INetworkStatsProviderCallback registerNetworkStatsProvider(
             @NonNull String tag, @NonNull INetworkStatsProvider provider) {
+        return registerNetworkStatsProviderInternal(tag, provider, false /* pushMode */);
+    }
+
+    /**
+     * Registers a custom provider of {@link android.net.NetworkStats} which reports its
+     * statistics on its own. Polls do not request updates from such providers and do not wait
+     * for them, but use the statistics they reported so far.
+     *
+     * @see #registerNetworkStatsProvider(String, INetworkStatsProvider)
+     */
+    public @NonNull INetworkStatsProviderCallback registerPushNetworkStatsProvider(
+            @NonNull String tag, @NonNull INetworkStatsProvider provider) {
+        return registerNetworkStatsProviderInternal(tag, provider, true /* pushMode */);
+    }
+
+    private @NonNull INetworkStatsProviderCallback registerNetworkStatsProviderInternal(
+            @NonNull String tag, @NonNull INetworkStatsProvider provider, boolean pushMode) {
         enforceAnyPermissionOf(NETWORK_STATS_PROVIDER,
                 NetworkStack.PERMISSION_MAINLINE_NETWORK_STACK);
         Objects.requireNonNull(provider, "provider is null");
@@ -2866,11 +3446,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 .getSystemService(NetworkPolicyManager.class);
         try {
             NetworkStatsProviderCallbackImpl callback = new NetworkStatsProviderCallbackImpl(
-                    tag, provider, mStatsProviderSem, mAlertObserver,
+                    tag, provider, pushMode, mStatsProviderSem, mAlertObserver,
                     mStatsProviderCbList, netPolicyManager);
             mStatsProviderCbList.add(callback);
             Log.d(TAG, "registerNetworkStatsProvider from " + callback.mTag + " uid/pid="
-                    + getCallingUid() + "/" + getCallingPid());
+                    + getCallingUid() + "/" + getCallingPid() + " pushMode=" + pushMode);
             return callback;
         } catch (RemoteException e) {
             Log.e(TAG, "registerNetworkStatsProvider failed", e);
@@ -2906,6 +3486,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         @NonNull final String mTag;
 
         @NonNull final INetworkStatsProvider mProvider;
+        // Whether the provider reports its stats on its own, instead of when requested.
+        final boolean mPushMode;
         @NonNull private final Semaphore mSemaphore;
         @NonNull final AlertObserver mAlertObserver;
         @NonNull final CopyOnWriteArrayList<NetworkStatsProviderCallbackImpl> mStatsProviderCbList;
@@ -2919,8 +3501,18 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         @GuardedBy("mProviderStatsLock")
         private final NetworkStats mUidStats = new NetworkStats(0L, 0);
 
+        // Deltas reported by the provider and not yet combined into the stats above. Binder
+        // threads only combine into these under a lock held for the duration of the combine,
+        // so that reporting never waits for readers of the stats; readers swap them out before
+        // reading. They hold at most one entry per key.
+        @NonNull private final Object mPendingStatsLock = new Object();
+        @GuardedBy("mPendingStatsLock")
+        private NetworkStats mPendingIfaceStats = new NetworkStats(0L, 0);
+        @GuardedBy("mPendingStatsLock")
+        private NetworkStats mPendingUidStats = new NetworkStats(0L, 0);
+
         NetworkStatsProviderCallbackImpl(
-                @NonNull String tag, @NonNull INetworkStatsProvider provider,
+                @NonNull String tag, @NonNull INetworkStatsProvider provider, boolean pushMode,
                 @NonNull Semaphore semaphore,
                 @NonNull AlertObserver alertObserver,
                 @NonNull CopyOnWriteArrayList<NetworkStatsProviderCallbackImpl> cbList,
@@ -2928,6 +3520,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 throws RemoteException {
             mTag = tag;
             mProvider = provider;
+            mPushMode = pushMode;
             mProvider.asBinder().linkToDeath(this, 0);
             mSemaphore = semaphore;
             mAlertObserver = alertObserver;
@@ -2939,16 +3532,26 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         public NetworkStats getCachedStats(int how) {
             synchronized (mProviderStatsLock) {
                 NetworkStats stats;
+                final NetworkStats pending;
                 switch (how) {
                     case STATS_PER_IFACE:
                         stats = mIfaceStats;
+                        synchronized (mPendingStatsLock) {
+                            pending = mPendingIfaceStats;
+                            mPendingIfaceStats = new NetworkStats(0L, pending.size());
+                        }
                         break;
                     case STATS_PER_UID:
                         stats = mUidStats;
+                        synchronized (mPendingStatsLock) {
+                            pending = mPendingUidStats;
+                            mPendingUidStats = new NetworkStats(0L, pending.size());
+                        }
                         break;
                     default:
                         throw new IllegalArgumentException("Invalid type: " + how);
                 }
+                stats.combineAllValues(pending);
                 // Callers might be able to mutate the returned object. Return a defensive copy
                 // instead of local reference.
                 return stats.clone();
@@ -2960,11 +3563,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 @Nullable NetworkStats uidStats) {
             // TODO: 1. Use token to map ifaces to correct NetworkIdentity.
             //       2. Store the difference and store it directly to the recorder.
-            synchronized (mProviderStatsLock) {
-                if (ifaceStats != null) mIfaceStats.combineAllValues(ifaceStats);
-                if (uidStats != null) mUidStats.combineAllValues(uidStats);
+            synchronized (mPendingStatsLock) {
+                if (ifaceStats != null) mPendingIfaceStats.combineAllValues(ifaceStats);
+                if (uidStats != null) mPendingUidStats.combineAllValues(uidStats);
             }
-            mSemaphore.release();
+            // Only requested updates are waited for.
+            if (!mPushMode) mSemaphore.release();
         }
 
         @Override
@@ -3045,6 +3649,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
      * {@link android.provider.Settings.Global}.
      */
     private static class DefaultNetworkStatsSettings implements NetworkStatsSettings {
+        /**
+         * Daily buckets after a week, and 30-day buckets after 90 days for configurations that
+         * keep data that long.
+         */
+        private static final NetworkStatsRecorder.RollupTier[] DEFAULT_ROLLUP_TIERS = {
+                new NetworkStatsRecorder.RollupTier(7 * DAY_IN_MILLIS, DAY_IN_MILLIS),
+                new NetworkStatsRecorder.RollupTier(90 * DAY_IN_MILLIS, 30 * DAY_IN_MILLIS),
+        };
+
         DefaultNetworkStatsSettings() {}
 
         @Override
@@ -3056,6 +3669,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             return DEFAULT_PERFORM_POLL_DELAY_MS;
         }
         @Override
+        public long getMinPollInterval() {
+            return 5 * MINUTE_IN_MILLIS;
+        }
+        @Override
+        public long getMaxPollInterval() {
+            return 2 * HOUR_IN_MILLIS;
+        }
+        @Override
         public long getGlobalAlertBytes(long def) {
             return def;
         }
@@ -3073,7 +3694,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         }
         @Override
         public Config getDevConfig() {
-            return new Config(HOUR_IN_MILLIS, 15 * DAY_IN_MILLIS, 90 * DAY_IN_MILLIS);
+            return new Config(HOUR_IN_MILLIS, 15 * DAY_IN_MILLIS, 90 * DAY_IN_MILLIS,
+                    DEFAULT_ROLLUP_TIERS);
         }
         @Override
         public Config getXtConfig() {
@@ -3081,11 +3703,13 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         }
         @Override
         public Config getUidConfig() {
-            return new Config(2 * HOUR_IN_MILLIS, 15 * DAY_IN_MILLIS, 90 * DAY_IN_MILLIS);
+            return new Config(2 * HOUR_IN_MILLIS, 15 * DAY_IN_MILLIS, 90 * DAY_IN_MILLIS,
+                    DEFAULT_ROLLUP_TIERS);
         }
         @Override
         public Config getUidTagConfig() {
-            return new Config(2 * HOUR_IN_MILLIS, 5 * DAY_IN_MILLIS, 15 * DAY_IN_MILLIS);
+            return new Config(2 * HOUR_IN_MILLIS, 5 * DAY_IN_MILLIS, 15 * DAY_IN_MILLIS,
+                    DEFAULT_ROLLUP_TIERS);
         }
         @Override
         public long getDevPersistBytes(long def) {
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStats;
+import android.net.NetworkStatsAccess;
+import android.net.NetworkStatsCollection;
+import android.net.NetworkTemplate;
+
+/**
+ * Pages through the usage summary per uid of the uid collection, and optionally of the uid
+ * tag collection, see {@link NetworkStatsCollection#getSummaryForUidRange}. The cursor only
+ * holds the query and the next uid to summarize, and each page is computed from the
+ * collections when it is requested, so neither process holds the whole summary. Not
+ * thread-safe.
+ */
+public class NetworkStatsSummaryCursor {
+    @NonNull
+    private final NetworkTemplate mTemplate;
+    private final long mStart;
+    private final long mEnd;
+    private final boolean mIncludeTags;
+
+    /** Lowest uid which was not summarized yet. Uids of removed apps and tethering are < 0. */
+    private int mNextUid = Integer.MIN_VALUE;
+    private boolean mDone;
+
+    public NetworkStatsSummaryCursor(@NonNull NetworkTemplate template, long start, long end,
+            boolean includeTags) {
+        mTemplate = template;
+        mStart = start;
+        mEnd = end;
+        mIncludeTags = includeTags;
+    }
+
+    /** Whether tagged usage is summarized, in which case the uid tag collection is needed. */
+    public boolean includesTags() {
+        return mIncludeTags;
+    }
+
+    /**
+     * Summarize the next uids, until at least {@code minEntries} entries are returned.
+     *
+     * @param uidTagComplete the uid tag collection, only used if {@link #includesTags()}.
+     * @return the next page, or null once all uids were returned.
+     */
+    @Nullable
+    public NetworkStats next(@NonNull NetworkStatsCollection uidComplete,
+            @Nullable NetworkStatsCollection uidTagComplete, int minEntries,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        if (minEntries <= 0) {
+            throw new IllegalArgumentException("Invalid page size: " + minEntries);
+        }
+        if (mDone) return null;
+
+        final NetworkStats page = new NetworkStats(mEnd - mStart, 24);
+        final int lastUid = uidComplete.getSummaryForUidRange(page, mTemplate, mStart, mEnd,
+                mNextUid, Integer.MAX_VALUE, minEntries, accessLevel, callerUid);
+        if (mIncludeTags && uidTagComplete != null) {
+            // Tagged usage of the same uids, however many entries it has.
+            uidTagComplete.getSummaryForUidRange(page, mTemplate, mStart, mEnd, mNextUid,
+                    lastUid, Integer.MAX_VALUE, accessLevel, callerUid);
+        }
+        if (lastUid == Integer.MAX_VALUE) {
+            mDone = true;
+        } else {
+            mNextUid = lastUid + 1;
+        }
+        // Only the last page may be empty, if the last uids have no usage.
+        return page.size() > 0 ? page : null;
+    }
+}
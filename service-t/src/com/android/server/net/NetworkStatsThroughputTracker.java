@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.DEFAULT_NETWORK_ALL;
+import static android.net.NetworkStats.METERED_ALL;
+import static android.net.NetworkStats.ROAMING_ALL;
+import static android.net.NetworkStats.SET_ALL;
+import static android.net.NetworkStats.TAG_NONE;
+
+import android.annotation.NonNull;
+import android.net.NetworkStats;
+
+import java.util.Arrays;
+
+/**
+ * Ring of the most recent poll deltas of a {@link NetworkStatsRecorder}, grouped by interface
+ * and uid, so that recent throughput can be answered without loading or diffing history.
+ * Deltas older than the maximum window, or past the capacity of the ring, are dropped, and
+ * their {@link NetworkStats} objects are reused for the next ones. Not thread-safe.
+ *
+ * <p>Deltas are never split, so the resolution of the windows is the poll interval: windows
+ * only cover different usage when polls are closer than the difference between them. At the
+ * default poll interval of 30 minutes, all windows of up to 15 minutes cover the last poll.
+ * Telling 1, 5 and 15 minute windows apart needs polls at least every minute, as forced by
+ * the caller or set with {@code NETSTATS_POLL_INTERVAL}.
+ */
+public class NetworkStatsThroughputTracker {
+    private final long mMaxWindowMillis;
+
+    /** Deltas by slot, grouped by interface and uid, and the time range of each. */
+    private final NetworkStats[] mDeltas;
+    private final long[] mStarts;
+    private final long[] mEnds;
+    /** Slot of the next delta, and number of deltas in the ring. */
+    private int mNext;
+    private int mSize;
+    private boolean mRecording;
+
+    private final NetworkStats.Entry mEntry = new NetworkStats.Entry();
+
+    /**
+     * @param capacity maximum number of deltas kept.
+     * @param maxWindowMillis age past which deltas are dropped, and maximum window which can
+     *                        be queried.
+     */
+    public NetworkStatsThroughputTracker(int capacity, long maxWindowMillis) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mMaxWindowMillis = maxWindowMillis;
+        mDeltas = new NetworkStats[capacity];
+        mStarts = new long[capacity];
+        mEnds = new long[capacity];
+    }
+
+    public long getMaxWindowMillis() {
+        return mMaxWindowMillis;
+    }
+
+    /** Start recording a new delta, taking the slot of the oldest one if the ring is full. */
+    public void startDelta() {
+        if (mDeltas[mNext] == null) {
+            mDeltas[mNext] = new NetworkStats(0L, 10);
+        } else {
+            mDeltas[mNext].reset(0L);
+        }
+        mRecording = true;
+    }
+
+    /** Add an entry of the delta being recorded, see {@link #startDelta()}. */
+    public void recordEntry(@NonNull NetworkStats.Entry entry) {
+        if (!mRecording) throw new IllegalStateException("No delta started");
+        mEntry.iface = entry.iface;
+        mEntry.uid = entry.uid;
+        mEntry.set = SET_ALL;
+        mEntry.tag = TAG_NONE;
+        mEntry.metered = METERED_ALL;
+        mEntry.roaming = ROAMING_ALL;
+        mEntry.defaultNetwork = DEFAULT_NETWORK_ALL;
+        mEntry.rxBytes = entry.rxBytes;
+        mEntry.rxPackets = entry.rxPackets;
+        mEntry.txBytes = entry.txBytes;
+        mEntry.txPackets = entry.txPackets;
+        mEntry.operations = entry.operations;
+        mDeltas[mNext].combineValues(mEntry);
+    }
+
+    /**
+     * Finish recording the delta started by {@link #startDelta()}, covering the given range
+     * in milliseconds since the epoch.
+     */
+    public void finishDelta(long start, long end) {
+        if (!mRecording) throw new IllegalStateException("No delta started");
+        mRecording = false;
+        mDeltas[mNext].setElapsedRealtime(end - start);
+        mStarts[mNext] = start;
+        mEnds[mNext] = end;
+        mNext = (mNext + 1) % mDeltas.length;
+        mSize = Math.min(mSize + 1, mDeltas.length);
+
+        // Drop deltas which can no longer be part of any window.
+        while (mSize > 0 && mEnds[slotOf(0)] <= end - mMaxWindowMillis) {
+            mSize--;
+        }
+    }
+
+    /**
+     * Remove the given uids from all deltas.
+     */
+    public void removeUids(@NonNull int[] uids) {
+        for (int i = 0; i < mSize; i++) {
+            mDeltas[slotOf(i)].removeUids(uids);
+        }
+    }
+
+    /**
+     * Sum the deltas ending within each of the given windows before the most recent delta,
+     * by interface and uid, in a single pass over the ring. Deltas are not split, so each
+     * window is widened to the start of the oldest delta overlapping it.
+     *
+     * @param windowsMillis lengths of the windows, in increasing order, each at most the
+     *                      maximum window.
+     * @return the usage in each window, in the same order, with
+     *         {@link NetworkStats#getElapsedRealtime()} set to the exact duration it covers, in
+     *         milliseconds. Throughput is the usage divided by this duration, which may be
+     *         longer than the window, see the class documentation. Empty, with a duration of
+     *         0, if no delta was recorded.
+     */
+    @NonNull
+    public NetworkStats[] getRecentUsage(@NonNull long[] windowsMillis) {
+        for (int w = 0; w < windowsMillis.length; w++) {
+            if (windowsMillis[w] <= 0 || windowsMillis[w] > mMaxWindowMillis
+                    || (w > 0 && windowsMillis[w] < windowsMillis[w - 1])) {
+                throw new IllegalArgumentException("Invalid windows: "
+                        + Arrays.toString(windowsMillis));
+            }
+        }
+        final NetworkStats[] usages = new NetworkStats[windowsMillis.length];
+        if (mSize == 0) {
+            for (int w = 0; w < usages.length; w++) {
+                usages[w] = new NetworkStats(0L, 0);
+            }
+            return usages;
+        }
+
+        final long end = mEnds[slotOf(mSize - 1)];
+        long start = end;
+        final NetworkStats usage = new NetworkStats(0L, 10);
+        NetworkStats.Entry entry = null;
+        int i = mSize - 1;
+        for (int w = 0; w < windowsMillis.length; w++) {
+            // Add the deltas of this window not in the previous, shorter one.
+            for (; i >= 0; i--) {
+                final int slot = slotOf(i);
+                if (mEnds[slot] <= end - windowsMillis[w]) break;
+                start = Math.min(start, mStarts[slot]);
+                final NetworkStats delta = mDeltas[slot];
+                for (int j = 0; j < delta.size(); j++) {
+                    entry = delta.getValues(j, entry);
+                    usage.combineValues(entry);
+                }
+            }
+            usages[w] = usage.clone();
+            usages[w].setElapsedRealtime(end - start);
+        }
+        return usages;
+    }
+
+    /** Number of deltas in the ring. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Slot of the i-th delta in the ring, from the oldest. */
+    private int slotOf(int i) {
+        return (mNext - mSize + i + mDeltas.length) % mDeltas.length;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.annotation.NonNull;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+/**
+ * Set of removed UIDs whose persisted history was not migrated to
+ * {@link android.net.TrafficStats#UID_REMOVED} yet, backed by a single {@link AtomicFile}.
+ * Persisted history must be filtered through it when read, until it is rewritten. The file is
+ * only read the first time the set is used. Not thread-safe.
+ */
+public class NetworkStatsUidTombstones {
+    private static final String TAG = "NetworkStatsUidTombstones";
+
+    /** File header magic number: "NSUT" */
+    private static final int FILE_MAGIC = 0x4E535554;
+    private static final int VERSION_INIT = 1;
+
+    private final AtomicFile mFile;
+
+    /** Sorted tombstoned UIDs, or null when not read yet. */
+    private int[] mUids;
+
+    public NetworkStatsUidTombstones(@NonNull File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile.getBaseFile();
+    }
+
+    /** Whether no UIDs are tombstoned. */
+    public boolean isEmpty() {
+        return getUids().length == 0;
+    }
+
+    /** Number of tombstoned UIDs. */
+    public int size() {
+        return getUids().length;
+    }
+
+    /** The tombstoned UIDs, sorted. Must not be modified. */
+    @NonNull
+    public int[] getUids() {
+        if (mUids == null) {
+            mUids = read();
+        }
+        return mUids;
+    }
+
+    /** Whether the given UID is tombstoned. */
+    public boolean contains(int uid) {
+        return Arrays.binarySearch(getUids(), uid) >= 0;
+    }
+
+    /**
+     * Tombstone the given UIDs, and write the set to disk before returning.
+     */
+    public void add(@NonNull int[] uids) throws IOException {
+        final int[] current = getUids();
+        final int[] merged = Arrays.copyOf(current, current.length + uids.length);
+        System.arraycopy(uids, 0, merged, current.length, uids.length);
+        Arrays.sort(merged);
+        int size = 0;
+        for (int i = 0; i < merged.length; i++) {
+            if (size == 0 || merged[size - 1] != merged[i]) {
+                merged[size++] = merged[i];
+            }
+        }
+        final int[] updated = Arrays.copyOf(merged, size);
+        if (updated.length == current.length) return;
+
+        write(updated);
+        mUids = updated;
+    }
+
+    /** Remove all tombstones, once persisted history does not contain the UIDs anymore. */
+    public void clear() {
+        mFile.delete();
+        mUids = new int[0];
+    }
+
+    private int[] read() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mFile.openRead()))) {
+            final int magic = in.readInt();
+            if (magic != FILE_MAGIC) {
+                throw new ProtocolException("unexpected magic: " + magic);
+            }
+            final int version = in.readInt();
+            if (version != VERSION_INIT) {
+                throw new ProtocolException("unexpected version: " + version);
+            }
+            final int count = in.readInt();
+            if (count < 0) {
+                throw new ProtocolException("unexpected count: " + count);
+            }
+            final int[] uids = new int[count];
+            for (int i = 0; i < count; i++) {
+                uids[i] = in.readInt();
+            }
+            Arrays.sort(uids);
+            return uids;
+        } catch (FileNotFoundException e) {
+            return new int[0];
+        } catch (IOException e) {
+            // Writes are atomic, so this is unexpected. The history of the UIDs will show up
+            // until they are removed again, which is better than dropping all history.
+            Log.wtf(TAG, "problem reading " + getFile(), e);
+            return new int[0];
+        }
+    }
+
+    private void write(@NonNull int[] uids) throws IOException {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(VERSION_INIT);
+            out.writeInt(uids.length);
+            for (int uid : uids) {
+                out.writeInt(uid);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.tests.net.benchmark;
+
+import static com.android.frameworks.tests.net.benchmark.NetworkStatsDataset.TUN_IFACE;
+
+import android.net.NetworkStats;
+import android.net.UnderlyingNetworkInfo;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Benchmarks of the {@link NetworkStats} operations done on every poll of the service.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NetworkStatsBenchmark {
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private NetworkStatsDataset mDataset;
+    private NetworkStats mSnapshot;
+    private NetworkStats mNextSnapshot;
+    private NetworkStats mVpnDelta;
+
+    @Before
+    public void setUp() {
+        mDataset = NetworkStatsDataset.fromArguments();
+        mSnapshot = mDataset.buildSnapshot();
+        mNextSnapshot = mDataset.buildNextSnapshot(mSnapshot);
+        mVpnDelta = mDataset.buildVpnDelta();
+    }
+
+    @Test
+    public void subtract() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            NetworkStats.subtract(mNextSnapshot, mSnapshot, null, null);
+        }
+    }
+
+    @Test
+    public void subtract_recycled() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        NetworkStats recycle = null;
+        while (state.keepRunning()) {
+            recycle = NetworkStats.subtract(mNextSnapshot, mSnapshot, null, null, recycle);
+        }
+    }
+
+    @Test
+    public void combineAllValues_empty() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            final NetworkStats stats = new NetworkStats(0L, 10);
+            stats.combineAllValues(mSnapshot);
+        }
+    }
+
+    @Test
+    public void combineAllValues_existing() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            final NetworkStats stats = mSnapshot.clone();
+            state.resumeTiming();
+            stats.combineAllValues(mNextSnapshot);
+        }
+    }
+
+    @Test
+    public void groupedByUid() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mSnapshot.groupedByUid();
+        }
+    }
+
+    @Test
+    public void migrateTun() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        final List<String> underlyingIfaces = mDataset.getIfaces();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            final NetworkStats delta = mVpnDelta.clone();
+            state.resumeTiming();
+            delta.migrateTun(mDataset.getVpnUid(), TUN_IFACE, underlyingIfaces);
+            delta.filterDebugEntries();
+        }
+    }
+
+    @Test
+    public void migrateAllTun() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        final UnderlyingNetworkInfo[] vpnArray = new UnderlyingNetworkInfo[] {
+                new UnderlyingNetworkInfo(mDataset.getVpnUid(), TUN_IFACE, mDataset.getIfaces())
+        };
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            final NetworkStats delta = mVpnDelta.clone();
+            state.resumeTiming();
+            delta.migrateAllTun(vpnArray);
+        }
+    }
+}
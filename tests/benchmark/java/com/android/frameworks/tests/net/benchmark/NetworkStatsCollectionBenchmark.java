@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.tests.net.benchmark;
+
+import static android.net.NetworkStats.SET_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStatsHistory.FIELD_ALL;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+
+import static com.android.frameworks.tests.net.benchmark.NetworkStatsDataset.BUCKET_DURATION;
+
+import android.net.NetworkIdentitySet;
+import android.net.NetworkStats;
+import android.net.NetworkStatsAccess;
+import android.net.NetworkStatsCollection;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.os.Process;
+import android.util.ArrayMap;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Benchmarks of recording into, querying and persisting {@link NetworkStatsCollection} and
+ * {@link NetworkStatsHistory}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NetworkStatsCollectionBenchmark {
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private NetworkStatsDataset mDataset;
+    private NetworkStatsCollection mCollection;
+    private NetworkTemplate mTemplate;
+
+    @Before
+    public void setUp() {
+        mDataset = NetworkStatsDataset.fromArguments();
+        mCollection = mDataset.buildCollection();
+        mTemplate = mDataset.getWifiTemplate();
+    }
+
+    /** Record one poll: one bucket of usage for every key. */
+    @Test
+    public void recordData() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        final NetworkStats delta = mDataset.buildSnapshot();
+        // As the recorder does, find the identity of each entry by its interface.
+        final ArrayMap<String, NetworkIdentitySet> idents = new ArrayMap<>();
+        for (int i = 0; i < mDataset.ifaceCount; i++) {
+            idents.put(mDataset.getIface(i), mDataset.getIdentitySet(i));
+        }
+        final long start = mDataset.getEnd();
+        NetworkStats.Entry entry = null;
+        while (state.keepRunning()) {
+            for (int i = 0; i < delta.size(); i++) {
+                entry = delta.getValues(i, entry);
+                mCollection.recordData(idents.get(entry.iface), entry.uid, entry.set,
+                        entry.tag, start, start + BUCKET_DURATION, entry);
+            }
+        }
+    }
+
+    @Test
+    public void getHistory_uid() {
+        benchmarkGetHistory(mTemplate);
+    }
+
+    @Test
+    public void getHistory_uidMobile() {
+        benchmarkGetHistory(mDataset.getMobileTemplate());
+    }
+
+    private void benchmarkGetHistory(NetworkTemplate template) {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        final int uid = mDataset.getUid(0);
+        while (state.keepRunning()) {
+            mCollection.getHistory(template, null, uid, SET_ALL, TAG_NONE, FIELD_ALL,
+                    Long.MIN_VALUE, Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE,
+                    Process.SYSTEM_UID);
+        }
+    }
+
+    @Test
+    public void getSummary() {
+        benchmarkGetSummary(mTemplate);
+    }
+
+    @Test
+    public void getSummary_mobile() {
+        benchmarkGetSummary(mDataset.getMobileTemplate());
+    }
+
+    private void benchmarkGetSummary(NetworkTemplate template) {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        // The most recent week, as shown in the settings app.
+        final long end = mDataset.getEnd();
+        final long start = Math.max(mDataset.getStart(), end - 7 * DAY_IN_MILLIS);
+        while (state.keepRunning()) {
+            mCollection.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
+                    Process.SYSTEM_UID);
+        }
+    }
+
+    @Test
+    public void writeRead_legacyFormat() throws IOException {
+        benchmarkWriteRead(false /* useIndexedFormat */);
+    }
+
+    @Test
+    public void writeRead_indexedFormat() throws IOException {
+        benchmarkWriteRead(true /* useIndexedFormat */);
+    }
+
+    private void benchmarkWriteRead(boolean useIndexedFormat) throws IOException {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        mCollection.setUseIndexedFormat(useIndexedFormat);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        while (state.keepRunning()) {
+            bytes.reset();
+            mCollection.write(bytes);
+            final NetworkStatsCollection read = new NetworkStatsCollection(BUCKET_DURATION);
+            read.read(new ByteArrayInputStream(bytes.toByteArray()));
+            // Indexed histories are only decoded when used, so query them all.
+            read.getSummary(mTemplate, Long.MIN_VALUE, Long.MAX_VALUE,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+        }
+    }
+
+    @Test
+    public void historyWriteRead() throws IOException {
+        benchmarkHistoryWriteRead(false /* compact */);
+    }
+
+    @Test
+    public void historyWriteRead_compact() throws IOException {
+        benchmarkHistoryWriteRead(true /* compact */);
+    }
+
+    private void benchmarkHistoryWriteRead(boolean compact) throws IOException {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        final NetworkStatsHistory history = mCollection.getHistory(mTemplate, null,
+                mDataset.getUid(0), SET_DEFAULT, TAG_NONE, FIELD_ALL, Long.MIN_VALUE,
+                Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        while (state.keepRunning()) {
+            bytes.reset();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            if (compact) {
+                history.writeToStreamCompact(out);
+            } else {
+                history.writeToStream(out);
+            }
+            out.flush();
+            new NetworkStatsHistory(new DataInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.frameworks.tests.net.benchmark;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
+import static android.net.NetworkStats.DEFAULT_NETWORK_NO;
+import static android.net.NetworkStats.METERED_NO;
+import static android.net.NetworkStats.ROAMING_NO;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.annotation.NonNull;
+import android.net.NetworkIdentity;
+import android.net.NetworkIdentitySet;
+import android.net.NetworkStats;
+import android.net.NetworkStatsCollection;
+import android.net.NetworkTemplate;
+import android.os.Bundle;
+import android.os.Process;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic netstats data for the benchmarks, shaped like what the service records: one entry
+ * per interface, uid, set and tag. The cardinality of each dimension and the length of the
+ * history can be set with instrumentation arguments, see AndroidTest.xml. Data is generated
+ * from a fixed seed, so that runs with the same arguments are comparable.
+ */
+public class NetworkStatsDataset {
+    public static final String ARG_UIDS = "netstats.uids";
+    public static final String ARG_TAGS = "netstats.tags";
+    public static final String ARG_IFACES = "netstats.ifaces";
+    public static final String ARG_HISTORY_DAYS = "netstats.historyDays";
+
+    public static final long BUCKET_DURATION = 2 * HOUR_IN_MILLIS;
+    public static final String TUN_IFACE = "tun0";
+    public static final String TEST_IMSI = "310260000000000";
+
+    private static final long TEST_START = 1194220800000L;
+    private static final int FIRST_UID = Process.FIRST_APPLICATION_UID;
+    private static final int FIRST_TAG = 0xF00D;
+    private static final long SEED = 0x4E53;
+
+    /** Number of app uids. */
+    public final int uidCount;
+    /** Number of tags per uid, in addition to {@link NetworkStats#TAG_NONE}. */
+    public final int tagCount;
+    /** Number of interfaces, alternately wifi and mobile. */
+    public final int ifaceCount;
+    /** Length of the history of each key, in days. */
+    public final int historyDays;
+
+    private final Random mRandom = new Random(SEED);
+
+    public NetworkStatsDataset(int uidCount, int tagCount, int ifaceCount, int historyDays) {
+        this.uidCount = uidCount;
+        this.tagCount = tagCount;
+        this.ifaceCount = ifaceCount;
+        this.historyDays = historyDays;
+    }
+
+    /** Build the dataset from the instrumentation arguments. */
+    @NonNull
+    public static NetworkStatsDataset fromArguments() {
+        final Bundle args = InstrumentationRegistry.getArguments();
+        return new NetworkStatsDataset(getInt(args, ARG_UIDS, 100), getInt(args, ARG_TAGS, 2),
+                getInt(args, ARG_IFACES, 2), getInt(args, ARG_HISTORY_DAYS, 14));
+    }
+
+    private static int getInt(@NonNull Bundle args, @NonNull String key, int defaultValue) {
+        final String value = args.getString(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    @NonNull
+    public String getIface(int i) {
+        return (i % 2 == 0 ? "wlan" : "rmnet") + (i / 2);
+    }
+
+    @NonNull
+    public List<String> getIfaces() {
+        final List<String> ifaces = new ArrayList<>(ifaceCount);
+        for (int i = 0; i < ifaceCount; i++) {
+            ifaces.add(getIface(i));
+        }
+        return ifaces;
+    }
+
+    public int getUid(int i) {
+        return FIRST_UID + i;
+    }
+
+    /** The uid owning the VPN of {@link #buildVpnDelta()}. */
+    public int getVpnUid() {
+        return getUid(uidCount - 1);
+    }
+
+    public long getStart() {
+        return TEST_START;
+    }
+
+    public long getEnd() {
+        return TEST_START + historyDays * DAY_IN_MILLIS;
+    }
+
+    /**
+     * Build a snapshot, as read from the kernel, with one entry per interface, uid, set and
+     * tag.
+     */
+    @NonNull
+    public NetworkStats buildSnapshot() {
+        final NetworkStats stats = new NetworkStats(0L, ifaceCount * uidCount * 2 * (tagCount + 1));
+        for (int i = 0; i < ifaceCount; i++) {
+            addAppEntries(stats, getIface(i));
+        }
+        return stats;
+    }
+
+    /** Build the snapshot following the given one, with every counter increased. */
+    @NonNull
+    public NetworkStats buildNextSnapshot(@NonNull NetworkStats previous) {
+        final NetworkStats stats = new NetworkStats(previous.getElapsedRealtime() + 30_000L,
+                previous.size());
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < previous.size(); i++) {
+            entry = previous.getValues(i, entry);
+            entry.rxBytes += nextBytes();
+            entry.rxPackets += 1;
+            entry.txBytes += nextBytes() / 4;
+            entry.txPackets += 1;
+            stats.insertEntry(entry);
+        }
+        return stats;
+    }
+
+    /**
+     * Build a delta where all apps send their traffic on {@link #TUN_IFACE}, through a VPN owned
+     * by {@link #getVpnUid()} over all the interfaces.
+     */
+    @NonNull
+    public NetworkStats buildVpnDelta() {
+        final NetworkStats stats = new NetworkStats(0L, (ifaceCount + 1) * uidCount * 2);
+        addAppEntries(stats, TUN_IFACE);
+        // The VPN app carries the tunneled traffic, plus some overhead, on the real interfaces.
+        final NetworkStats.Entry tunTotal = new NetworkStats.Entry();
+        NetworkStats.Entry entry = null;
+        for (int i = 0; i < stats.size(); i++) {
+            entry = stats.getValues(i, entry);
+            if (entry.tag != TAG_NONE) continue;
+            tunTotal.rxBytes += entry.rxBytes;
+            tunTotal.rxPackets += entry.rxPackets;
+            tunTotal.txBytes += entry.txBytes;
+            tunTotal.txPackets += entry.txPackets;
+        }
+        for (int i = 0; i < ifaceCount; i++) {
+            stats.insertEntry(getIface(i), getVpnUid(), SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO, tunTotal.rxBytes * 11 / 10 / ifaceCount,
+                    tunTotal.rxPackets / ifaceCount, tunTotal.txBytes * 11 / 10 / ifaceCount,
+                    tunTotal.txPackets / ifaceCount, 0L);
+        }
+        return stats;
+    }
+
+    private void addAppEntries(@NonNull NetworkStats stats, @NonNull String iface) {
+        for (int u = 0; u < uidCount; u++) {
+            for (int set : new int[] {SET_DEFAULT, SET_FOREGROUND}) {
+                for (int t = 0; t <= tagCount; t++) {
+                    final int tag = (t == 0) ? TAG_NONE : FIRST_TAG + t;
+                    final long rxBytes = nextBytes();
+                    final long txBytes = nextBytes() / 4;
+                    stats.insertEntry(iface, getUid(u), set, tag, METERED_NO, ROAMING_NO,
+                            DEFAULT_NETWORK_NO, rxBytes, rxBytes / 1024 + 1, txBytes,
+                            txBytes / 1024 + 1, 0L);
+                }
+            }
+        }
+    }
+
+    /** The identity of the network of the i-th interface. */
+    @NonNull
+    public NetworkIdentitySet getIdentitySet(int i) {
+        final NetworkIdentity.Builder builder = new NetworkIdentity.Builder();
+        if (i % 2 == 0) {
+            builder.setType(TYPE_WIFI).setWifiNetworkKey("\"benchmark" + i + "\"");
+        } else {
+            builder.setType(TYPE_MOBILE).setSubscriberId(TEST_IMSI);
+        }
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(builder.build());
+        return ident;
+    }
+
+    /** A template matching the wifi interfaces. */
+    @NonNull
+    public NetworkTemplate getWifiTemplate() {
+        return NetworkTemplate.buildTemplateWifiWildcard();
+    }
+
+    /** A template matching the mobile interfaces. */
+    @NonNull
+    public NetworkTemplate getMobileTemplate() {
+        return NetworkTemplate.buildTemplateMobileAll(TEST_IMSI);
+    }
+
+    /**
+     * Build a collection holding the full history of every key of {@link #buildSnapshot()},
+     * with one entry per bucket.
+     */
+    @NonNull
+    public NetworkStatsCollection buildCollection() {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(BUCKET_DURATION);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < ifaceCount; i++) {
+            final NetworkIdentitySet ident = getIdentitySet(i);
+            for (int u = 0; u < uidCount; u++) {
+                for (int set : new int[] {SET_DEFAULT, SET_FOREGROUND}) {
+                    for (int t = 0; t <= tagCount; t++) {
+                        final int tag = (t == 0) ? TAG_NONE : FIRST_TAG + t;
+                        for (long start = getStart(); start < getEnd();
+                                start += BUCKET_DURATION) {
+                            entry.rxBytes = nextBytes();
+                            entry.rxPackets = entry.rxBytes / 1024 + 1;
+                            entry.txBytes = nextBytes() / 4;
+                            entry.txPackets = entry.txBytes / 1024 + 1;
+                            collection.recordData(ident, getUid(u), set, tag, start,
+                                    start + BUCKET_DURATION, entry);
+                        }
+                    }
+                }
+            }
+        }
+        return collection;
+    }
+
+    private long nextBytes() {
+        // Mostly small values, with the occasional large transfer.
+        return mRandom.nextInt(10) == 0 ? mRandom.nextInt(100_000_000)
+                : mRandom.nextInt(100_000);
+    }
+}
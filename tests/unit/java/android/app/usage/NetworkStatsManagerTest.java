@@ -24,6 +24,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.aryEq;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
@@ -38,6 +39,7 @@ import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Build;
 import android.os.RemoteException;
+import android.util.Range;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SmallTest;
@@ -52,6 +54,8 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 
+import java.util.List;
+
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
 @DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
@@ -170,6 +174,59 @@ public class NetworkStatsManagerTest {
         assertFalse(stats.hasNextBucket());
     }
 
+    @Test
+    public void testQueryDetails_fetchesHistoriesLazily() throws RemoteException {
+        final long startTime = 1;
+        final long endTime = 100;
+        final int uid1 = 10001;
+        final int uid2 = 10002;
+        final int uid3 = 10003;
+        final Entry entry = new Entry("if1", uid1, android.net.NetworkStats.SET_DEFAULT,
+                android.net.NetworkStats.TAG_NONE, 100, 10, 200, 20, 0);
+        final NetworkStatsHistory history1 = new NetworkStatsHistory(10, 1);
+        history1.recordData(10, 20, entry);
+        final NetworkStatsHistory history3 = new NetworkStatsHistory(10, 1);
+        history3.recordData(30, 40, entry);
+
+        reset(mStatsSession);
+        when(mService.openSessionForUsageStats(anyInt(), anyString())).thenReturn(mStatsSession);
+        when(mStatsSession.getRelevantUids()).thenReturn(new int[] { uid1, uid2, uid3 });
+        when(mStatsSession.getHistoryIntervalForUid(any(NetworkTemplate.class), anyInt(),
+                anyInt(), anyInt(), anyInt(), anyLong(), anyLong()))
+                .thenReturn(new NetworkStatsHistory(10, 0));
+        when(mStatsSession.getHistoryIntervalForUid(any(NetworkTemplate.class), eq(uid1),
+                anyInt(), anyInt(), anyInt(), anyLong(), anyLong())).thenReturn(history1);
+        when(mStatsSession.getHistoryIntervalForUid(any(NetworkTemplate.class), eq(uid3),
+                anyInt(), anyInt(), anyInt(), anyLong(), anyLong())).thenReturn(history3);
+
+        // Only the history of the first uid is fetched by the query.
+        final NetworkStats stats = mManager.queryDetails(
+                ConnectivityManager.TYPE_MOBILE, TEST_SUBSCRIBER_ID, startTime, endTime);
+        verifyHistoryFetched(uid1, 1);
+        verifyHistoryFetched(uid2, 0);
+        verifyHistoryFetched(uid3, 0);
+
+        // The following ones are fetched once, as the enumeration reaches them, and uids with
+        // empty history are skipped.
+        final NetworkStats.Bucket bucket = new NetworkStats.Bucket();
+        assertTrue(stats.getNextBucket(bucket));
+        assertEquals(uid1, bucket.getUid());
+        assertTrue(stats.hasNextBucket());
+        assertTrue(stats.getNextBucket(bucket));
+        assertEquals(uid3, bucket.getUid());
+        assertEquals(30, bucket.getStartTimeStamp());
+        assertFalse(stats.hasNextBucket());
+        verifyHistoryFetched(uid1, 1);
+        verifyHistoryFetched(uid2, 1);
+        verifyHistoryFetched(uid3, 1);
+    }
+
+    private void verifyHistoryFetched(int uid, int count) throws RemoteException {
+        verify(mStatsSession, times(count)).getHistoryIntervalForUid(
+                any(NetworkTemplate.class), eq(uid), anyInt(), anyInt(), anyInt(), anyLong(),
+                anyLong());
+    }
+
     private void runQueryDetailsAndCheckTemplate(int networkType, String subscriberId,
             NetworkTemplate expectedTemplate) throws RemoteException {
         final long startTime = 1;
@@ -241,6 +298,40 @@ public class NetworkStatsManagerTest {
     }
 
 
+    @Test
+    public void testQueryTopUids() throws Exception {
+        final long startTime = 1;
+        final long endTime = 100;
+        final Entry uid1Entry = new Entry(android.net.NetworkStats.IFACE_ALL, 10001,
+                android.net.NetworkStats.SET_ALL, android.net.NetworkStats.TAG_NONE,
+                300, 30, 400, 40, 0);
+        final Entry uid2Entry = new Entry(android.net.NetworkStats.IFACE_ALL, 10002,
+                android.net.NetworkStats.SET_ALL, android.net.NetworkStats.TAG_NONE,
+                100, 10, 200, 20, 0);
+
+        reset(mStatsSession);
+        when(mService.openSessionForUsageStats(anyInt(), anyString())).thenReturn(mStatsSession);
+        when(mStatsSession.getTopUidsForNetwork(any(NetworkTemplate.class), anyLong(), anyLong(),
+                anyInt(), anyInt()))
+                .thenReturn(new android.net.NetworkStats(0, 2)
+                        .insertEntry(uid1Entry).insertEntry(uid2Entry));
+        final NetworkTemplate template = new NetworkTemplate.Builder(NetworkTemplate.MATCH_MOBILE)
+                .setMeteredness(NetworkStats.Bucket.METERED_YES).build();
+        NetworkStats stats = mManager.queryTopUids(template, startTime, endTime,
+                NetworkStatsManager.RANK_BY_RX_BYTES, 2);
+
+        verify(mStatsSession, times(1)).getTopUidsForNetwork(eq(template), eq(startTime),
+                eq(endTime), eq(NetworkStatsManager.RANK_BY_RX_BYTES), eq(2));
+
+        // Buckets are returned in the order of the service.
+        final NetworkStats.Bucket bucket = new NetworkStats.Bucket();
+        assertTrue(stats.getNextBucket(bucket));
+        assertBucketMatches(uid1Entry, bucket);
+        assertTrue(stats.getNextBucket(bucket));
+        assertBucketMatches(uid2Entry, bucket);
+        assertFalse(stats.hasNextBucket());
+    }
+
     @Test
     public void testQueryDetailsForDevice() throws Exception {
         final long startTime = 1;
@@ -261,6 +352,71 @@ public class NetworkStatsManagerTest {
         assertFalse(stats.hasNextBucket());
     }
 
+    @Test
+    public void testQuerySummariesForDevice() throws Exception {
+        final NetworkTemplate mobileTemplate = new NetworkTemplate.Builder(
+                NetworkTemplate.MATCH_MOBILE).setMeteredness(NetworkStats.Bucket.METERED_YES)
+                .build();
+        final NetworkTemplate wifiTemplate =
+                new NetworkTemplate.Builder(NetworkTemplate.MATCH_WIFI).build();
+        final android.net.NetworkStats[] summaries = new android.net.NetworkStats[4];
+        for (int i = 0; i < summaries.length; i++) {
+            summaries[i] = new android.net.NetworkStats(0, 1).insertEntry(
+                    android.net.NetworkStats.IFACE_ALL, android.net.NetworkStats.UID_ALL,
+                    android.net.NetworkStats.SET_ALL, android.net.NetworkStats.TAG_NONE,
+                    100 * i, 10 * i, 200 * i, 20 * i, 0);
+        }
+
+        reset(mStatsSession);
+        when(mService.openSessionForUsageStats(anyInt(), anyString())).thenReturn(mStatsSession);
+        when(mStatsSession.getDeviceSummariesForNetworks(any(), any(), any()))
+                .thenReturn(summaries);
+        final List<NetworkStats.Bucket> buckets = mManager.querySummariesForDevice(
+                List.of(mobileTemplate, wifiTemplate),
+                List.of(new Range<>(1L, 100L), new Range<>(100L, 200L)));
+
+        verify(mStatsSession, times(1)).getDeviceSummariesForNetworks(
+                aryEq(new NetworkTemplate[] {mobileTemplate, wifiTemplate}),
+                aryEq(new long[] {1L, 100L}), aryEq(new long[] {100L, 200L}));
+        verify(mStatsSession, times(1)).close();
+
+        // Buckets are ordered by template, then by range.
+        assertEquals(summaries.length, buckets.size());
+        for (int i = 0; i < summaries.length; i++) {
+            final NetworkStats.Bucket bucket = buckets.get(i);
+            assertBucketMatches(summaries[i].getValues(0, null), bucket);
+            assertEquals(i % 2 == 0 ? 1L : 100L, bucket.getStartTimeStamp());
+            assertEquals(i % 2 == 0 ? 100L : 200L, bucket.getEndTimeStamp());
+        }
+    }
+
+    @Test
+    public void testGetRecentUidUsage() throws Exception {
+        final long[] windows = new long[] {60_000L, 300_000L};
+        // Usage is returned as is, with the exact duration it covers, so that low rates
+        // are not rounded down to 0.
+        final android.net.NetworkStats[] usages = new android.net.NetworkStats[] {
+                new android.net.NetworkStats(61_000L, 1)
+                        .insertEntry("wlan0", 10001, android.net.NetworkStats.SET_ALL,
+                                android.net.NetworkStats.TAG_NONE, 40, 1, 10, 1, 0),
+                new android.net.NetworkStats(305_000L, 1)
+                        .insertEntry("wlan0", 10001, android.net.NetworkStats.SET_ALL,
+                                android.net.NetworkStats.TAG_NONE, 200, 5, 50, 5, 0)};
+        when(mService.getRecentUidUsage(aryEq(windows))).thenReturn(usages);
+
+        final android.net.NetworkStats[] result = mManager.getRecentUidUsage(windows);
+        verify(mService, times(1)).getRecentUidUsage(aryEq(windows));
+        assertEquals(2, result.length);
+        assertEquals(61_000L, result[0].getElapsedRealtime());
+        assertEquals(305_000L, result[1].getElapsedRealtime());
+        final Entry entry = result[0].getValues(0, null);
+        assertEquals("wlan0", entry.iface);
+        assertEquals(10001, entry.uid);
+        assertEquals(40, entry.rxBytes);
+        assertEquals(10, entry.txBytes);
+        assertEquals(200, result[1].getValues(0, null).rxBytes);
+    }
+
     private void assertBucketMatches(Entry expected, NetworkStats.Bucket actual) {
         assertEquals(expected.uid, actual.getUid());
         assertEquals(expected.rxBytes, actual.getRxBytes());
@@ -17,14 +17,19 @@
 package android.net;
 
 import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
 import static android.net.NetworkIdentity.OEM_NONE;
 import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
+import static android.net.TrafficStats.UID_REMOVED;
 import static android.os.Process.myUid;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 
@@ -34,10 +39,14 @@ import static com.android.testutils.MiscAsserts.assertThrows;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import android.annotation.NonNull;
+import android.app.usage.NetworkStatsManager;
 import android.content.res.Resources;
 import android.net.NetworkStatsCollection.Key;
 import android.os.Process;
@@ -68,8 +77,10 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
@@ -167,6 +178,52 @@ public class NetworkStatsCollectionTest {
                 637073904L, 711398L, 88342093L, 521006L, NetworkStatsAccess.Level.DEVICE);
     }
 
+    @Test
+    public void testReadWriteIndexedFormat() throws Exception {
+        final File testFile =
+                new File(InstrumentationRegistry.getContext().getFilesDir(), TEST_FILE);
+        stageFile(R.raw.netstats_uid_v4, testFile);
+
+        final NetworkStatsCollection collection = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        collection.readLegacyUid(testFile, false);
+
+        // export into the indexed format
+        collection.setUseIndexedFormat(true);
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(bos);
+        final byte[] indexed = bos.toByteArray();
+
+        // and read back from a stream, verifying that totals are same
+        final NetworkStatsCollection fromStream =
+                new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        fromStream.read(new ByteArrayInputStream(indexed));
+        assertSummaryTotal(fromStream, buildTemplateMobileAll(TEST_IMSI),
+                637073904L, 711398L, 88342093L, 521006L, NetworkStatsAccess.Level.DEVICE);
+        assertArrayEquals(collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE),
+                fromStream.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+
+        // reading the same data again from a buffer combines both copies
+        fromStream.read(ByteBuffer.wrap(indexed));
+        assertSummaryTotal(fromStream, buildTemplateMobileAll(TEST_IMSI),
+                2 * 637073904L, 2 * 711398L, 2 * 88342093L, 2 * 521006L,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // histories that were not decoded are written back in the legacy format as well
+        final NetworkStatsCollection fromBuffer =
+                new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        fromBuffer.read(ByteBuffer.wrap(indexed));
+        bos.reset();
+        fromBuffer.write(bos);
+        fromBuffer.reset();
+        fromBuffer.read(new ByteArrayInputStream(bos.toByteArray()));
+        assertSummaryTotal(fromBuffer, buildTemplateMobileAll(TEST_IMSI),
+                637073904L, 711398L, 88342093L, 521006L, NetworkStatsAccess.Level.DEVICE);
+
+        // truncated files are rejected
+        assertThrows(IOException.class, () -> new NetworkStatsCollection(30 * MINUTE_IN_MILLIS)
+                .read(ByteBuffer.wrap(indexed, 0, indexed.length / 2)));
+    }
+
     @Test
     public void testReadLegacyUidTags() throws Exception {
         final File testFile =
@@ -271,6 +328,380 @@ public class NetworkStatsCollectionTest {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    @Test
+    public void testIndexedQueries() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet mobileIdent = new NetworkIdentitySet();
+        mobileIdent.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true, OEM_NONE, TEST_SUBID));
+        final NetworkIdentitySet wifiIdent = new NetworkIdentitySet();
+        wifiIdent.add(new NetworkIdentity.Builder().setType(TYPE_WIFI).build());
+
+        final int myUid = Process.myUid();
+        final int otherUid = myUid + 1;
+        entry.rxBytes = 32;
+        collection.recordData(mobileIdent, myUid, SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        entry.rxBytes = 64;
+        collection.recordData(mobileIdent, otherUid, SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        entry.rxBytes = 128;
+        collection.recordData(mobileIdent, otherUid, SET_DEFAULT, 0xF00D, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+
+        final NetworkTemplate mobileTemplate = buildTemplateMobileAll(TEST_IMSI);
+        final NetworkTemplate wifiTemplate = buildTemplateWifiWildcard();
+        assertSummaryTotal(collection, mobileTemplate, 32 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertSummaryTotal(collection, wifiTemplate, 0, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // A new ident must be picked up by templates that were already queried.
+        entry.rxBytes = 256;
+        collection.recordData(wifiIdent, otherUid, SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        assertSummaryTotal(collection, wifiTemplate, 256, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertSummaryTotal(collection, mobileTemplate, 32 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // Per-uid history only covers the keys of the requested uid.
+        assertEquals(64, collection.getHistory(mobileTemplate, null, otherUid,
+                SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid).getTotalBytes());
+        assertEquals(128, collection.getHistory(mobileTemplate, null, otherUid,
+                SET_ALL, 0xF00D, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid).getTotalBytes());
+
+        // Removing a uid moves its untagged usage to UID_REMOVED and drops its keys.
+        collection.removeUids(new int[] { otherUid, otherUid });
+        assertArrayEquals(new int[] { UID_REMOVED, myUid },
+                collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+        assertEquals(0, collection.getHistory(mobileTemplate, null, otherUid,
+                SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid).getTotalBytes());
+        assertEquals(64, collection.getHistory(mobileTemplate, null, UID_REMOVED,
+                SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, myUid).getTotalBytes());
+        assertSummaryTotal(collection, mobileTemplate, 32 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertSummaryTotal(collection, wifiTemplate, 256, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+    }
+
+    @Test
+    public void testGetHistories() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet mobileIdent = new NetworkIdentitySet();
+        mobileIdent.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true, OEM_NONE, TEST_SUBID));
+        final NetworkIdentitySet wifiIdent = new NetworkIdentitySet();
+        wifiIdent.add(new NetworkIdentity.Builder().setType(TYPE_WIFI).build());
+
+        entry.rxBytes = 32;
+        collection.recordData(mobileIdent, UID_ALL, SET_DEFAULT, TAG_NONE, TIME_A,
+                TIME_A + HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 64;
+        collection.recordData(mobileIdent, UID_ALL, SET_FOREGROUND, TAG_NONE, TIME_B,
+                TIME_B + HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 128;
+        collection.recordData(wifiIdent, UID_ALL, SET_DEFAULT, TAG_NONE, TIME_B,
+                TIME_B + HOUR_IN_MILLIS, entry);
+
+        final NetworkTemplate[] templates = new NetworkTemplate[] {
+                buildTemplateMobileAll(TEST_IMSI),
+                buildTemplateWifiWildcard(),
+                new NetworkTemplate.Builder(NetworkTemplate.MATCH_ETHERNET).build(),
+                buildTemplateMobileAll(TEST_IMSI),
+        };
+        final NetworkStatsHistory[] histories = collection.getHistories(templates, UID_ALL,
+                SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                NetworkStatsAccess.Level.DEVICE, Process.myUid());
+        assertEquals(templates.length, histories.length);
+        for (int i = 0; i < templates.length; i++) {
+            final NetworkStatsHistory expected = collection.getHistory(templates[i], null,
+                    UID_ALL, SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                    NetworkStatsAccess.Level.DEVICE, Process.myUid());
+            assertTrue(expected.isSameAs(histories[i]));
+        }
+        assertEquals(32 + 64, histories[0].getTotalBytes());
+        assertEquals(128, histories[1].getTotalBytes());
+        assertEquals(0, histories[2].getTotalBytes());
+        assertEquals(32 + 64, histories[3].getTotalBytes());
+
+        // Ranges and sets are applied to every template.
+        final NetworkStatsHistory[] ranged = collection.getHistories(templates, UID_ALL,
+                SET_DEFAULT, TAG_NONE, FIELD_ALL, TIME_B, TIME_C,
+                NetworkStatsAccess.Level.DEVICE, Process.myUid());
+        assertEquals(0, ranged[0].getTotalBytes());
+        assertEquals(128, ranged[1].getTotalBytes());
+
+        // Access is checked once for all templates.
+        assertThrows(SecurityException.class, () -> collection.getHistories(templates,
+                Process.myUid() + 1, SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE,
+                Long.MAX_VALUE, NetworkStatsAccess.Level.DEFAULT, Process.myUid()));
+    }
+
+    @Test
+    public void testGetTopUids() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet mobileIdent = new NetworkIdentitySet();
+        mobileIdent.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true, OEM_NONE, TEST_SUBID));
+        final NetworkIdentitySet wifiIdent = new NetworkIdentitySet();
+        wifiIdent.add(new NetworkIdentity.Builder().setType(TYPE_WIFI).build());
+
+        final int uid1 = 10001;
+        final int uid2 = 10002;
+        final int uid3 = 10003;
+        // uid1 uses the most in total, uid2 receives the most, uid3 transmits the most.
+        entry.rxBytes = 300;
+        entry.txBytes = 300;
+        collection.recordData(mobileIdent, uid1, SET_DEFAULT, TAG_NONE, TIME_A,
+                TIME_A + HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 500;
+        entry.txBytes = 0;
+        collection.recordData(mobileIdent, uid2, SET_FOREGROUND, TAG_NONE, TIME_A,
+                TIME_A + HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 0;
+        entry.txBytes = 400;
+        collection.recordData(mobileIdent, uid3, SET_DEFAULT, TAG_NONE, TIME_A,
+                TIME_A + HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 200;
+        entry.txBytes = 200;
+        collection.recordData(mobileIdent, uid3, SET_FOREGROUND, TAG_NONE, TIME_A,
+                TIME_A + HOUR_IN_MILLIS, entry);
+        // Tagged usage is already counted, and other networks do not match.
+        entry.rxBytes = 1000;
+        entry.txBytes = 1000;
+        collection.recordData(mobileIdent, uid2, SET_DEFAULT, 0xF00D, TIME_A,
+                TIME_A + HOUR_IN_MILLIS, entry);
+        collection.recordData(wifiIdent, uid2, SET_DEFAULT, TAG_NONE, TIME_A,
+                TIME_A + HOUR_IN_MILLIS, entry);
+
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        NetworkStats top = collection.getTopUids(template, TIME_A, TIME_C,
+                NetworkStatsManager.RANK_BY_TOTAL_BYTES, 2, NetworkStatsAccess.Level.DEVICE,
+                Process.myUid());
+        assertEquals(2, top.size());
+        assertTopUid(top, 0, uid3, 200, 600);
+        assertTopUid(top, 1, uid1, 300, 300);
+
+        top = collection.getTopUids(template, TIME_A, TIME_C,
+                NetworkStatsManager.RANK_BY_RX_BYTES, 10, NetworkStatsAccess.Level.DEVICE,
+                Process.myUid());
+        assertEquals(3, top.size());
+        assertTopUid(top, 0, uid2, 500, 0);
+        assertTopUid(top, 1, uid1, 300, 300);
+        assertTopUid(top, 2, uid3, 200, 600);
+
+        top = collection.getTopUids(template, TIME_A, TIME_C,
+                NetworkStatsManager.RANK_BY_TX_BYTES, 1, NetworkStatsAccess.Level.DEVICE,
+                Process.myUid());
+        assertEquals(1, top.size());
+        assertTopUid(top, 0, uid3, 200, 600);
+
+        // Uids without usage in the range are not returned.
+        assertEquals(0, collection.getTopUids(template, TIME_B, TIME_C,
+                NetworkStatsManager.RANK_BY_TOTAL_BYTES, 10, NetworkStatsAccess.Level.DEVICE,
+                Process.myUid()).size());
+        assertThrows(IllegalArgumentException.class, () -> collection.getTopUids(template,
+                TIME_A, TIME_C, NetworkStatsManager.RANK_BY_TOTAL_BYTES, -1,
+                NetworkStatsAccess.Level.DEVICE, Process.myUid()));
+    }
+
+    @Test
+    public void testGetSummaryForUidRange() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet mobileIdent = new NetworkIdentitySet();
+        mobileIdent.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true, OEM_NONE, TEST_SUBID));
+        final NetworkIdentitySet wifiIdent = new NetworkIdentitySet();
+        wifiIdent.add(new NetworkIdentity.Builder().setType(TYPE_WIFI).build());
+
+        entry.rxBytes = 100;
+        entry.txBytes = 10;
+        for (int uid : new int[] {UID_REMOVED, 10001, 10002, 10003}) {
+            collection.recordData(mobileIdent, uid, SET_DEFAULT, TAG_NONE, TIME_A,
+                    TIME_A + HOUR_IN_MILLIS, entry);
+            collection.recordData(mobileIdent, uid, SET_FOREGROUND, TAG_NONE, TIME_A,
+                    TIME_A + HOUR_IN_MILLIS, entry);
+        }
+        // Other networks do not match.
+        collection.recordData(wifiIdent, 10004, SET_DEFAULT, TAG_NONE, TIME_A,
+                TIME_A + HOUR_IN_MILLIS, entry);
+
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        final NetworkStats summary = collection.getSummary(template, TIME_A, TIME_C,
+                NetworkStatsAccess.Level.DEVICE, Process.myUid());
+        assertEquals(8, summary.size());
+
+        // Pages hold all entries of their uids, in increasing uid order.
+        NetworkStats page = new NetworkStats(0L, 1);
+        assertEquals(UID_REMOVED, collection.getSummaryForUidRange(page, template, TIME_A,
+                TIME_C, Integer.MIN_VALUE, Integer.MAX_VALUE, 1,
+                NetworkStatsAccess.Level.DEVICE, Process.myUid()));
+        assertEquals(2, page.size());
+        assertEquals(UID_REMOVED, page.getValues(0, null).uid);
+
+        page = new NetworkStats(0L, 1);
+        assertEquals(10002, collection.getSummaryForUidRange(page, template, TIME_A, TIME_C,
+                UID_REMOVED + 1, Integer.MAX_VALUE, 3, NetworkStatsAccess.Level.DEVICE,
+                Process.myUid()));
+        assertEquals(4, page.size());
+
+        // The rest of the range, whatever its size.
+        page = new NetworkStats(0L, 1);
+        assertEquals(Integer.MAX_VALUE, collection.getSummaryForUidRange(page, template, TIME_A,
+                TIME_C, 10003, Integer.MAX_VALUE, 100, NetworkStatsAccess.Level.DEVICE,
+                Process.myUid()));
+        assertEquals(2, page.size());
+        for (int i = 0; i < page.size(); i++) {
+            final NetworkStats.Entry pageEntry = page.getValues(i, null);
+            assertEquals(10003, pageEntry.uid);
+            final int j = summary.findIndex(pageEntry.iface, pageEntry.uid, pageEntry.set,
+                    pageEntry.tag, pageEntry.metered, pageEntry.roaming,
+                    pageEntry.defaultNetwork);
+            assertEquals(summary.getValues(j, null), pageEntry);
+        }
+
+        // Ranges are bounded, and only accessible uids are summarized.
+        page = new NetworkStats(0L, 1);
+        assertEquals(10002, collection.getSummaryForUidRange(page, template, TIME_A, TIME_C,
+                10001, 10002, 100, NetworkStatsAccess.Level.DEVICE, Process.myUid()));
+        assertEquals(4, page.size());
+        page = new NetworkStats(0L, 1);
+        collection.getSummaryForUidRange(page, template, TIME_A, TIME_C, Integer.MIN_VALUE,
+                Integer.MAX_VALUE, 100, NetworkStatsAccess.Level.DEFAULT, 10001);
+        assertEquals(2, page.size());
+    }
+
+    @Test
+    public void testRollupHistories() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true, OEM_NONE, TEST_SUBID));
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = 48;
+        entry.txBytes = 96;
+        collection.recordData(ident, UID_ALL, SET_DEFAULT, TAG_NONE, TIME_A,
+                TIME_A + 2 * DAY_IN_MILLIS, entry);
+        collection.clearDirty();
+
+        // Rolling up keeps totals, and is only done once.
+        assertTrue(collection.rollupHistories(DAY_IN_MILLIS));
+        assertTrue(collection.isDirty());
+        assertFalse(collection.rollupHistories(DAY_IN_MILLIS));
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        assertSummaryTotal(collection, template, 48, 0, 96, 0, NetworkStatsAccess.Level.DEVICE);
+        final NetworkStatsCollection.Key key =
+                new NetworkStatsCollection.Key(ident, UID_ALL, SET_DEFAULT, TAG_NONE);
+        assertEquals(DAY_IN_MILLIS, collection.getEntries().get(key).getBucketDuration());
+
+        // Finer data recorded into rolled up data keeps its resolution.
+        final NetworkStatsHistory recent = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        recent.recordData(TIME_C + DAY_IN_MILLIS, TIME_C + DAY_IN_MILLIS + HOUR_IN_MILLIS,
+                new NetworkStats.Entry(10L, 0L, 20L, 0L, 0L));
+        collection.recordHistory(key, recent);
+        assertEquals(HOUR_IN_MILLIS, collection.getEntries().get(key).getBucketDuration());
+        assertSummaryTotal(collection, template, 58, 0, 116, 0, NetworkStatsAccess.Level.DEVICE);
+    }
+
+    @Test
+    public void testRolledUpHistoriesKeepResolution() throws Exception {
+        final NetworkStatsCollection rolledUp = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet ident = new NetworkIdentitySet();
+        ident.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true, OEM_NONE, TEST_SUBID));
+        rolledUp.recordData(ident, UID_ALL, SET_DEFAULT, TAG_NONE, TIME_A,
+                TIME_A + 2 * DAY_IN_MILLIS, new NetworkStats.Entry(48L, 0L, 96L, 0L, 0L));
+        assertTrue(rolledUp.rollupHistories(DAY_IN_MILLIS));
+        final NetworkStatsCollection recent = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        recent.recordData(ident, UID_ALL, SET_DEFAULT, TAG_NONE, TIME_C,
+                TIME_C + HOUR_IN_MILLIS, new NetworkStats.Entry(10L, 0L, 20L, 0L, 0L));
+        final NetworkStatsCollection.Key key =
+                new NetworkStatsCollection.Key(ident, UID_ALL, SET_DEFAULT, TAG_NONE);
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        final long[] expectedDurations = new long[] {HOUR_IN_MILLIS, DAY_IN_MILLIS};
+
+        for (boolean indexed : new boolean[] {false, true}) {
+            rolledUp.setUseIndexedFormat(indexed);
+            recent.setUseIndexedFormat(indexed);
+            final byte[] rolledUpBytes = writeToBytes(rolledUp);
+            final byte[] recentBytes = writeToBytes(recent);
+
+            // Files of different resolutions are kept side by side, whatever the read order.
+            final NetworkStatsCollection oldestFirst = new NetworkStatsCollection(HOUR_IN_MILLIS);
+            oldestFirst.read(new ByteArrayInputStream(rolledUpBytes));
+            oldestFirst.read(new ByteArrayInputStream(recentBytes));
+            assertArrayEquals(expectedDurations, oldestFirst.getBucketDurations(key));
+            assertSummaryTotal(oldestFirst, template, 58, 0, 116, 0,
+                    NetworkStatsAccess.Level.DEVICE);
+
+            final NetworkStatsCollection newestFirst = new NetworkStatsCollection(HOUR_IN_MILLIS);
+            newestFirst.read(new ByteArrayInputStream(recentBytes));
+            newestFirst.read(new ByteArrayInputStream(rolledUpBytes));
+            assertArrayEquals(expectedDurations, newestFirst.getBucketDurations(key));
+
+            // Writing keeps each resolution, and rolling up merges them.
+            final NetworkStatsCollection reread = new NetworkStatsCollection(HOUR_IN_MILLIS);
+            reread.read(new ByteArrayInputStream(writeToBytes(newestFirst)));
+            assertArrayEquals(expectedDurations, reread.getBucketDurations(key));
+            assertSummaryTotal(reread, template, 58, 0, 116, 0, NetworkStatsAccess.Level.DEVICE);
+            assertTrue(reread.rollupHistories(DAY_IN_MILLIS));
+            assertArrayEquals(new long[] {DAY_IN_MILLIS}, reread.getBucketDurations(key));
+            assertSummaryTotal(reread, template, 58, 0, 116, 0, NetworkStatsAccess.Level.DEVICE);
+        }
+    }
+
+    private static byte[] writeToBytes(NetworkStatsCollection collection) throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(bos);
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testKeysShareInternedIdents() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = 48;
+        for (int uid = 1000; uid < 1003; uid++) {
+            final NetworkIdentitySet ident = new NetworkIdentitySet();
+            ident.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                    TEST_IMSI, null, false, true, true, OEM_NONE, TEST_SUBID));
+            collection.recordData(ident, uid, SET_DEFAULT, TAG_NONE, TIME_A,
+                    TIME_A + HOUR_IN_MILLIS, entry);
+        }
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(bos);
+
+        // Keys read from separate files, or recorded with equal sets, share a single instance.
+        final NetworkStatsCollection read = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        read.read(new ByteArrayInputStream(bos.toByteArray()));
+        read.removeUids(new int[] {1000});
+        read.read(new ByteArrayInputStream(bos.toByteArray()));
+        NetworkIdentitySet shared = null;
+        for (Key key : read.getEntries().keySet()) {
+            if (shared == null) shared = key.ident;
+            assertSame(shared, key.ident);
+        }
+        assertEquals(4, read.getEntries().size());
+        assertSummaryTotal(read, buildTemplateMobileAll(TEST_IMSI), 288, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // The shared instance cannot be modified.
+        final NetworkIdentitySet ident = shared;
+        assertThrows(UnsupportedOperationException.class, () -> ident.clear());
+        assertThrows(UnsupportedOperationException.class,
+                () -> ident.iterator().remove());
+        assertEquals(1, ident.size());
+    }
+
     @Test
     public void testAugmentPlan() throws Exception {
         final File testFile =
@@ -640,6 +1071,16 @@ public class NetworkStatsCollectionTest {
                 SET_ALL, TAG_NONE, FIELD_ALL, start, end, NetworkStatsAccess.Level.DEVICE, myUid());
     }
 
+    private static void assertTopUid(NetworkStats top, int index, int uid, long rxBytes,
+            long txBytes) {
+        final NetworkStats.Entry entry = top.getValues(index, null);
+        assertEquals(uid, entry.uid);
+        assertEquals(SET_ALL, entry.set);
+        assertEquals(TAG_NONE, entry.tag);
+        assertEquals(rxBytes, entry.rxBytes);
+        assertEquals(txBytes, entry.txBytes);
+    }
+
     private static void assertSummaryTotal(NetworkStatsCollection collection,
             NetworkTemplate template, long rxBytes, long rxPackets, long txBytes, long txPackets,
             @NetworkStatsAccess.Level int accessLevel) {
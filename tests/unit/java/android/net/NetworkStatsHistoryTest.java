@@ -17,7 +17,9 @@
 package android.net;
 
 import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLong;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readZigZagVarLong;
 import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLong;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeZigZagVarLong;
 import static android.net.NetworkStatsHistory.Entry.UNKNOWN;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
 import static android.net.NetworkStatsHistory.FIELD_OPERATIONS;
@@ -328,6 +330,40 @@ public class NetworkStatsHistoryTest {
 
     }
 
+    @Test
+    public void testTotalDataLongRange() throws Exception {
+        final long BUCKET_SIZE = HOUR_IN_MILLIS;
+        stats = new NetworkStatsHistory(BUCKET_SIZE);
+
+        // record uniform data across two days
+        stats.recordData(TEST_START, TEST_START + 2 * DAY_IN_MILLIS, 4800L, 9600L);
+
+        // verify everything total
+        assertValues(stats, TEST_START - WEEK_IN_MILLIS, TEST_START + WEEK_IN_MILLIS,
+                4800L, 9600L);
+
+        // verify total across 40 hours, prorating the half buckets at both ends
+        final long start = TEST_START + 30 * MINUTE_IN_MILLIS;
+        final long end = start + 40 * HOUR_IN_MILLIS;
+        assertValues(stats, start, end, 4000L, 8000L);
+
+        // verify that recording into or before the range is reflected
+        stats.recordData(TEST_START + 10 * HOUR_IN_MILLIS, TEST_START + 11 * HOUR_IN_MILLIS,
+                100L, 200L);
+        assertValues(stats, start, end, 4100L, 8200L);
+        stats.recordData(TEST_START - DAY_IN_MILLIS, TEST_START - DAY_IN_MILLIS + HOUR_IN_MILLIS,
+                100L, 200L);
+        assertValues(stats, start, end, 4100L, 8200L);
+        assertValues(stats, TEST_START - WEEK_IN_MILLIS, TEST_START + WEEK_IN_MILLIS,
+                5000L, 10000L);
+
+        // verify that buckets not yet started by the current time are left out
+        final NetworkStatsHistory.Entry entry = stats.getValues(TEST_START,
+                TEST_START + 2 * DAY_IN_MILLIS, TEST_START + 30 * HOUR_IN_MILLIS, null);
+        assertEquals(3100L, entry.rxBytes);
+        assertEquals(6200L, entry.txBytes);
+    }
+
     @Test
     public void testFuzzing() throws Exception {
         try {
@@ -424,6 +460,78 @@ public class NetworkStatsHistoryTest {
         assertFullValues(after, 5 * MINUTE_IN_MILLIS, 1034L, 30L, 2078L, 60L, 54L);
     }
 
+    @Test
+    public void testSerializeCompact() throws Exception {
+        final NetworkStatsHistory before = new NetworkStatsHistory(MINUTE_IN_MILLIS, 40, FIELD_ALL);
+        before.recordData(0, 4 * MINUTE_IN_MILLIS,
+                new NetworkStats.Entry(1024L, 10L, 2048L, 20L, 4L));
+        before.recordData(DAY_IN_MILLIS, DAY_IN_MILLIS + MINUTE_IN_MILLIS,
+                new NetworkStats.Entry(10L, 20L, 30L, 40L, 50L));
+
+        final ByteArrayOutputStream full = new ByteArrayOutputStream();
+        before.writeToStream(new DataOutputStream(full));
+        final ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        before.writeToStreamCompact(new DataOutputStream(compact));
+        assertTrue(compact.size() < full.size());
+
+        final ByteArrayInputStream in = new ByteArrayInputStream(compact.toByteArray());
+        final NetworkStatsHistory after = new NetworkStatsHistory(new DataInputStream(in));
+
+        // must have identical buckets before and after
+        assertEquals(before.size(), after.size());
+        for (int i = 0; i < before.size(); i++) {
+            assertEquals(before.getValues(i, null), after.getValues(i, null));
+        }
+        assertFullValues(after, 5 * MINUTE_IN_MILLIS, 1034L, 30L, 2078L, 60L, 54L);
+        assertEquals(before.getTotalBytes(), after.getTotalBytes());
+    }
+
+    @Test
+    public void testSerializeCompactUnalignedBuckets() throws Exception {
+        final NetworkStatsHistory before = new NetworkStatsHistory.Builder(HOUR_IN_MILLIS, 2)
+                .addEntry(new NetworkStatsHistory.Entry(0L, HOUR_IN_MILLIS, 16L, 1L, 0L, 0L, 0L))
+                .addEntry(new NetworkStatsHistory.Entry(HOUR_IN_MILLIS + SECOND_IN_MILLIS,
+                        HOUR_IN_MILLIS, 0L, 0L, 32L, 2L, 0L))
+                .build();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        before.writeToStreamCompact(new DataOutputStream(out));
+        final ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        final NetworkStatsHistory after = new NetworkStatsHistory(new DataInputStream(in));
+
+        assertEquals(before.size(), after.size());
+        for (int i = 0; i < before.size(); i++) {
+            assertEquals(before.getValues(i, null), after.getValues(i, null));
+        }
+    }
+
+    @Test
+    public void testSerializeCompactIgnoreFields() throws Exception {
+        final NetworkStatsHistory before = new NetworkStatsHistory(
+                MINUTE_IN_MILLIS, 0, FIELD_RX_BYTES | FIELD_TX_BYTES | FIELD_OPERATIONS);
+        before.recordData(0, MINUTE_IN_MILLIS,
+                new NetworkStats.Entry(1024L, 10L, 2048L, 20L, 0L));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        before.writeToStreamCompact(new DataOutputStream(out));
+        final ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        final NetworkStatsHistory after = new NetworkStatsHistory(new DataInputStream(in));
+
+        // Fields which were not tracked stay unknown, while tracked zeroes are kept.
+        assertFullValues(after, UNKNOWN, 1024L, UNKNOWN, 2048L, UNKNOWN, 0L);
+    }
+
+    @Test
+    public void testZigZagVarLong() throws Exception {
+        assertEquals(0L, performZigZagVarLong(0L));
+        assertEquals(-1L, performZigZagVarLong(-1L));
+        assertEquals(1024L, performZigZagVarLong(1024L));
+        assertEquals(-1024L, performZigZagVarLong(-1024L));
+        assertEquals(512 * GB_IN_BYTES, performZigZagVarLong(512 * GB_IN_BYTES));
+        assertEquals(Long.MIN_VALUE, performZigZagVarLong(Long.MIN_VALUE));
+        assertEquals(Long.MAX_VALUE, performZigZagVarLong(Long.MAX_VALUE));
+    }
+
     @Test
     public void testVarLong() throws Exception {
         assertEquals(0L, performVarLong(0L));
@@ -546,6 +654,14 @@ public class NetworkStatsHistoryTest {
         return readVarLong(new DataInputStream(in));
     }
 
+    private static long performZigZagVarLong(long before) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeZigZagVarLong(new DataOutputStream(out), before);
+
+        final ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        return readZigZagVarLong(new DataInputStream(in));
+    }
+
     private static void assertConsistent(NetworkStatsHistory stats) {
         // verify timestamps are monotonic
         long lastStart = Long.MIN_VALUE;
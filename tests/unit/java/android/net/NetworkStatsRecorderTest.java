@@ -16,21 +16,40 @@
 
 package com.android.server.net;
 
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import android.net.NetworkIdentitySet;
 import android.net.NetworkStats;
+import android.net.NetworkStatsCollection;
+import android.net.NetworkStatsHistory;
 import android.os.DropBoxManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.ArrayMap;
 
 import androidx.test.filters.SmallTest;
 
@@ -38,13 +57,20 @@ import com.android.internal.util.FileRotator;
 import com.android.testutils.DevSdkIgnoreRule;
 import com.android.testutils.DevSdkIgnoreRunner;
 
+import libcore.testing.io.TestIoUtils;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
 
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
@@ -53,6 +79,8 @@ public final class NetworkStatsRecorderTest {
     private static final String TAG = NetworkStatsRecorderTest.class.getSimpleName();
 
     private static final String TEST_PREFIX = "test";
+    private static final long TEST_START = 1194220800000L;
+    private static final String TEST_IFACE = "test0";
 
     @Mock private DropBoxManager mDropBox;
     @Mock private NetworkStats.NonMonotonicObserver mObserver;
@@ -85,4 +113,312 @@ public final class NetworkStatsRecorderTest {
         // Verify that the rotator won't delete files.
         verify(rotator, never()).deleteAll();
     }
+
+    @Test
+    public void testGetRollupBucketDuration() {
+        final NetworkStatsRecorder.RollupTier[] tiers = {
+                new NetworkStatsRecorder.RollupTier(7 * DAY_IN_MILLIS, DAY_IN_MILLIS),
+                new NetworkStatsRecorder.RollupTier(90 * DAY_IN_MILLIS, 30 * DAY_IN_MILLIS),
+        };
+        assertEquals(0, NetworkStatsRecorder.getRollupBucketDuration(tiers, DAY_IN_MILLIS));
+        assertEquals(DAY_IN_MILLIS,
+                NetworkStatsRecorder.getRollupBucketDuration(tiers, 7 * DAY_IN_MILLIS));
+        assertEquals(30 * DAY_IN_MILLIS,
+                NetworkStatsRecorder.getRollupBucketDuration(tiers, 100 * DAY_IN_MILLIS));
+    }
+
+    @Test
+    public void testRollupRewriter() throws Exception {
+        final NetworkStatsRecorder.RollupTier[] tiers = {
+                new NetworkStatsRecorder.RollupTier(7 * DAY_IN_MILLIS, DAY_IN_MILLIS),
+        };
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = 1024;
+        collection.recordData(new NetworkIdentitySet(), UID_ALL, SET_DEFAULT, TAG_NONE,
+                TEST_START, TEST_START + DAY_IN_MILLIS, entry);
+        final ByteArrayOutputStream hourly = new ByteArrayOutputStream();
+        collection.write(hourly);
+
+        // Data that is too recent is left as is.
+        NetworkStatsRecorder.RollupRewriter rewriter = new NetworkStatsRecorder.RollupRewriter(
+                HOUR_IN_MILLIS, tiers, TEST_START + 2 * DAY_IN_MILLIS, false);
+        rewriter.read(new ByteArrayInputStream(hourly.toByteArray()));
+        assertFalse(rewriter.shouldWrite());
+
+        // Data older than the tier is rolled up into daily buckets.
+        rewriter = new NetworkStatsRecorder.RollupRewriter(
+                HOUR_IN_MILLIS, tiers, TEST_START + 8 * DAY_IN_MILLIS, false);
+        rewriter.read(new ByteArrayInputStream(hourly.toByteArray()));
+        assertTrue(rewriter.shouldWrite());
+        final ByteArrayOutputStream daily = new ByteArrayOutputStream();
+        rewriter.write(daily);
+
+        final NetworkStatsCollection rolled = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        rolled.read(new ByteArrayInputStream(daily.toByteArray()));
+        assertEquals(1, rolled.getEntries().size());
+        for (NetworkStatsHistory history : rolled.getEntries().values()) {
+            assertEquals(DAY_IN_MILLIS, history.getBucketDuration());
+            assertEquals(1024, history.getTotalBytes());
+        }
+
+        // Data that is already rolled up is not written again.
+        rewriter = new NetworkStatsRecorder.RollupRewriter(
+                HOUR_IN_MILLIS, tiers, TEST_START + 9 * DAY_IN_MILLIS, false);
+        rewriter.read(new ByteArrayInputStream(daily.toByteArray()));
+        assertFalse(rewriter.shouldWrite());
+    }
+
+    @Test
+    public void testRollupDeadlinePersisted() throws Exception {
+        final File deadlineFile = new File(
+                TestIoUtils.createTemporaryDirectory("netstats"), "test.rollup");
+        final NetworkStatsRecorder.RollupTier[] tiers = {
+                new NetworkStatsRecorder.RollupTier(7 * DAY_IN_MILLIS, DAY_IN_MILLIS),
+        };
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, false);
+        recorder.setRollupTiers(tiers);
+        recorder.setRollupDeadlineFile(deadlineFile);
+
+        // Without a persisted deadline, the first call rolls up, then once a day.
+        recorder.maybeRollupLocked(TEST_START);
+        recorder.maybeRollupLocked(TEST_START + HOUR_IN_MILLIS);
+        verify(rotator, times(1)).rewriteAll(any());
+
+        // After a reboot, the persisted deadline still applies.
+        final FileRotator rebootedRotator = mock(FileRotator.class);
+        final NetworkStatsRecorder rebooted = buildRecorder(rebootedRotator, false);
+        rebooted.setRollupTiers(tiers);
+        rebooted.setRollupDeadlineFile(deadlineFile);
+        rebooted.maybeRollupLocked(TEST_START + 2 * HOUR_IN_MILLIS);
+        verify(rebootedRotator, never()).rewriteAll(any());
+        rebooted.maybeRollupLocked(TEST_START + DAY_IN_MILLIS);
+        verify(rebootedRotator, times(1)).rewriteAll(any());
+    }
+
+    @Test
+    public void testRemoveUidsWithTombstones() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, false);
+        final NetworkStatsUidTombstones tombstones = new NetworkStatsUidTombstones(new File(
+                TestIoUtils.createTemporaryDirectory("netstats"), "test.tombstones"));
+        recorder.setUidTombstones(tombstones);
+        recorder.setUseUidTombstones(true);
+
+        // Removed UIDs are tombstoned instead of rewriting all files.
+        recorder.removeUidsLocked(new int[] {10010});
+        verify(rotator, never()).rewriteAll(any());
+        assertTrue(tombstones.contains(10010));
+
+        // Once disabled, tombstones are migrated along with the next removed UIDs.
+        recorder.setUseUidTombstones(false);
+        recorder.removeUidsLocked(new int[] {10011});
+        verify(rotator, times(1)).rewriteAll(any());
+        assertTrue(tombstones.isEmpty());
+    }
+
+    @Test
+    public void testLoadedRangeCache() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, false);
+
+        // Ranges covered by a cached one are not read again.
+        final NetworkStatsCollection partial =
+                recorder.getOrLoadPartialLocked(TEST_START, TEST_START + DAY_IN_MILLIS);
+        assertSame(partial, recorder.getOrLoadPartialLocked(
+                TEST_START + HOUR_IN_MILLIS, TEST_START + 2 * HOUR_IN_MILLIS));
+        verify(rotator, times(1)).readMatching(any(), anyLong(), anyLong());
+        assertEquals(1, recorder.getCacheHits());
+        assertEquals(1, recorder.getCacheMisses());
+
+        final NetworkStatsCollection complete = recorder.getOrLoadCompleteLocked();
+        assertSame(complete, recorder.getOrLoadCompleteLocked());
+        assertSame(complete, recorder.getOrLoadPartialLocked(TEST_START, TEST_START + 1));
+        verify(rotator, times(2)).readMatching(any(), anyLong(), anyLong());
+        assertEquals(3, recorder.getCacheHits());
+        assertEquals(2, recorder.getCacheMisses());
+
+        // Reset drops cached ranges.
+        recorder.resetLocked();
+        assertNotSame(complete, recorder.getOrLoadCompleteLocked());
+        verify(rotator, times(3)).readMatching(any(), anyLong(), anyLong());
+
+        // Over budget, only the most recently used range is kept cached, but evicted ranges
+        // still in use are served again.
+        recorder.resetLocked();
+        recorder.setCacheBudgetBytes(0);
+        final NetworkStatsCollection first =
+                recorder.getOrLoadPartialLocked(TEST_START, TEST_START + DAY_IN_MILLIS);
+        recorder.getOrLoadPartialLocked(TEST_START + 2 * DAY_IN_MILLIS,
+                TEST_START + 3 * DAY_IN_MILLIS);
+        assertSame(first,
+                recorder.getOrLoadPartialLocked(TEST_START, TEST_START + DAY_IN_MILLIS));
+        verify(rotator, times(5)).readMatching(any(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void testEvictedRangeStillUpdated() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, false);
+        recorder.setCacheBudgetBytes(0);
+        final NetworkStatsCollection first =
+                recorder.getOrLoadPartialLocked(TEST_START, TEST_START + DAY_IN_MILLIS);
+        final NetworkStatsCollection second = recorder.getOrLoadPartialLocked(
+                TEST_START + 2 * DAY_IN_MILLIS, TEST_START + 3 * DAY_IN_MILLIS);
+        assertNotSame(first, second);
+
+        // The first range was evicted, but deltas falling in it are still recorded into it.
+        final ArrayMap<String, NetworkIdentitySet> ifaceIdent = new ArrayMap<>();
+        ifaceIdent.put(TEST_IFACE, new NetworkIdentitySet());
+        recorder.recordSnapshotLocked(new NetworkStats(0L, 1)
+                .insertEntry(TEST_IFACE, 0L, 0L, 0L, 0L), ifaceIdent, TEST_START);
+        recorder.recordSnapshotLocked(new NetworkStats(HOUR_IN_MILLIS, 1)
+                .insertEntry(TEST_IFACE, 1024L, 8L, 2048L, 16L), ifaceIdent,
+                TEST_START + HOUR_IN_MILLIS);
+        assertEquals(3072L, first.getTotalBytes());
+        assertEquals(0L, second.getTotalBytes());
+    }
+
+    @Test
+    public void testJournalMergedBeforeRotating() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, false);
+        final NetworkStatsJournal journal = new NetworkStatsJournal(new File(
+                TestIoUtils.createTemporaryDirectory("netstats"), "test.journal"));
+        recorder.setJournal(journal);
+        recorder.setUseJournal(true);
+        final ArrayMap<String, NetworkIdentitySet> ifaceIdent = new ArrayMap<>();
+        ifaceIdent.put(TEST_IFACE, new NetworkIdentitySet());
+        recorder.recordSnapshotLocked(new NetworkStats(0L, 1)
+                .insertEntry(TEST_IFACE, 0L, 0L, 0L, 0L), ifaceIdent, TEST_START);
+
+        // The journal is merged into the active file before rotating it.
+        recorder.recordSnapshotLocked(new NetworkStats(HOUR_IN_MILLIS, 1)
+                .insertEntry(TEST_IFACE, 1024L, 8L, 2048L, 16L), ifaceIdent,
+                TEST_START + HOUR_IN_MILLIS);
+        recorder.forcePersistLocked(TEST_START + HOUR_IN_MILLIS);
+        final InOrder inOrder = inOrder(rotator);
+        inOrder.verify(rotator).rewriteActive(any(), eq(TEST_START));
+        inOrder.verify(rotator).maybeRotate(TEST_START + HOUR_IN_MILLIS);
+        assertTrue(journal.isEmpty());
+
+        // Later deltas stay in the journal, without rotating, for a while.
+        recorder.recordSnapshotLocked(new NetworkStats(2 * HOUR_IN_MILLIS, 1)
+                .insertEntry(TEST_IFACE, 2048L, 16L, 4096L, 32L), ifaceIdent,
+                TEST_START + 2 * HOUR_IN_MILLIS);
+        recorder.forcePersistLocked(TEST_START + 2 * HOUR_IN_MILLIS);
+        verify(rotator, times(1)).rewriteActive(any(), anyLong());
+        verify(rotator, times(1)).maybeRotate(anyLong());
+        assertFalse(journal.isEmpty());
+        assertNull(journal.getCompaction());
+    }
+
+    @Test
+    public void testPersistOnHandler() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, false);
+        final HandlerThread persistThread = new HandlerThread(TAG);
+        persistThread.start();
+        recorder.setPersistHandler(new Handler(persistThread.getLooper()));
+
+        // Block the write until released.
+        final CountDownLatch writeLatch = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            writeLatch.await();
+            return null;
+        }).when(rotator).rewriteActive(any(), anyLong());
+
+        final ArrayMap<String, NetworkIdentitySet> ifaceIdent = new ArrayMap<>();
+        ifaceIdent.put(TEST_IFACE, new NetworkIdentitySet());
+        recorder.recordSnapshotLocked(new NetworkStats(0L, 1)
+                .insertEntry(TEST_IFACE, 0L, 0L, 0L, 0L), ifaceIdent, TEST_START);
+        recorder.recordSnapshotLocked(new NetworkStats(HOUR_IN_MILLIS, 1)
+                .insertEntry(TEST_IFACE, 1024L, 8L, 2048L, 16L), ifaceIdent,
+                TEST_START + HOUR_IN_MILLIS);
+
+        // Pending deltas are handed off, and files are left alone until they are written.
+        recorder.forcePersistLocked(TEST_START + HOUR_IN_MILLIS);
+        recorder.maybePersistLocked(TEST_START + HOUR_IN_MILLIS);
+        verify(rotator, never()).maybeRotate(anyLong());
+
+        writeLatch.countDown();
+        recorder.waitForPersistLocked();
+        verify(rotator).rewriteActive(any(), eq(TEST_START + HOUR_IN_MILLIS));
+        verify(rotator).maybeRotate(TEST_START + HOUR_IN_MILLIS);
+        persistThread.quitSafely();
+    }
+
+    @Test
+    public void testLoadDuringPersist() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, false);
+        final HandlerThread persistThread = new HandlerThread(TAG);
+        persistThread.start();
+        final Handler persistHandler = new Handler(persistThread.getLooper());
+        recorder.setPersistHandler(persistHandler);
+
+        // Hold the persist thread, so that the write stays in flight until released.
+        final CountDownLatch writeLatch = new CountDownLatch(1);
+        persistHandler.post(() -> {
+            try {
+                writeLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        final ArrayMap<String, NetworkIdentitySet> ifaceIdent = new ArrayMap<>();
+        ifaceIdent.put(TEST_IFACE, new NetworkIdentitySet());
+        recorder.recordSnapshotLocked(new NetworkStats(0L, 1)
+                .insertEntry(TEST_IFACE, 0L, 0L, 0L, 0L), ifaceIdent, TEST_START);
+        recorder.recordSnapshotLocked(new NetworkStats(HOUR_IN_MILLIS, 1)
+                .insertEntry(TEST_IFACE, 1024L, 8L, 2048L, 16L), ifaceIdent,
+                TEST_START + HOUR_IN_MILLIS);
+        recorder.forcePersistLocked(TEST_START + HOUR_IN_MILLIS);
+
+        // Loading does not wait for the write, and includes the deltas being written.
+        final NetworkStatsCollection loaded =
+                recorder.getOrLoadPartialLocked(TEST_START, TEST_START + DAY_IN_MILLIS);
+        assertEquals(3072L, loaded.getTotalBytes());
+        verify(rotator).readMatching(any(), anyLong(), anyLong());
+        verify(rotator, never()).rewriteActive(any(), anyLong());
+
+        writeLatch.countDown();
+        recorder.waitForPersistLocked();
+        verify(rotator).rewriteActive(any(), eq(TEST_START + HOUR_IN_MILLIS));
+        assertEquals(3072L, loaded.getTotalBytes());
+        persistThread.quitSafely();
+    }
+
+    @Test
+    public void testPersistFailureRecoveredByCaller() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, true /* wipeOnError */);
+        final HandlerThread persistThread = new HandlerThread(TAG);
+        persistThread.start();
+        final Handler persistHandler = new Handler(persistThread.getLooper());
+        recorder.setPersistHandler(persistHandler);
+        doThrow(new IOException()).when(rotator).rewriteActive(any(), anyLong());
+
+        final ArrayMap<String, NetworkIdentitySet> ifaceIdent = new ArrayMap<>();
+        ifaceIdent.put(TEST_IFACE, new NetworkIdentitySet());
+        recorder.recordSnapshotLocked(new NetworkStats(0L, 1)
+                .insertEntry(TEST_IFACE, 0L, 0L, 0L, 0L), ifaceIdent, TEST_START);
+        recorder.recordSnapshotLocked(new NetworkStats(HOUR_IN_MILLIS, 1)
+                .insertEntry(TEST_IFACE, 1024L, 8L, 2048L, 16L), ifaceIdent,
+                TEST_START + HOUR_IN_MILLIS);
+        recorder.forcePersistLocked(TEST_START + HOUR_IN_MILLIS);
+
+        // The failed write leaves recovering to the caller's thread.
+        final CountDownLatch writtenLatch = new CountDownLatch(1);
+        persistHandler.post(writtenLatch::countDown);
+        writtenLatch.await();
+        verify(rotator).rewriteActive(any(), anyLong());
+        verify(rotator, never()).deleteAll();
+
+        recorder.waitForPersistLocked();
+        verify(rotator).deleteAll();
+        persistThread.quitSafely();
+    }
 }
@@ -38,6 +38,7 @@ import static android.net.NetworkStats.UID_ALL;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 import android.os.Build;
@@ -144,6 +145,53 @@ public class NetworkStatsTest {
         }
     }
 
+    @Test
+    public void testFindIndex_LargeStats() {
+        final NetworkStats stats = new NetworkStats(TEST_START, 0);
+        for (int uid = 0; uid < 100; uid++) {
+            stats.insertEntry(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                    DEFAULT_NETWORK_NO, uid, 1L, 0L, 0L, 0);
+            stats.insertEntry(TEST_IFACE2, uid, SET_FOREGROUND, 0xF00D, METERED_YES, ROAMING_NO,
+                    DEFAULT_NETWORK_YES, uid, 1L, 0L, 0L, 0);
+        }
+        // Duplicate key, findIndex must keep returning the first matching row.
+        stats.insertEntry(TEST_IFACE, 42, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 1L, 1L, 0L, 0L, 0);
+
+        for (int uid = 0; uid < 100; uid++) {
+            assertEquals(uid * 2, stats.findIndex(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE,
+                    METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO));
+            assertEquals(uid * 2 + 1, stats.findIndexHinted(TEST_IFACE2, uid, SET_FOREGROUND,
+                    0xF00D, METERED_YES, ROAMING_NO, DEFAULT_NETWORK_YES, 0));
+        }
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        assertEquals(-1, stats.findIndex(IFACE_ALL, 1, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+
+        // Rows inserted through combineValues must be found afterwards.
+        stats.combineValues(IFACE_ALL, 1, SET_DEFAULT, TAG_NONE, 5L, 1L, 0L, 0L, 0);
+        stats.combineValues(IFACE_ALL, 1, SET_DEFAULT, TAG_NONE, 5L, 1L, 0L, 0L, 0);
+        final int i = stats.findIndex(IFACE_ALL, 1, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO);
+        assertEquals(201, i);
+        assertValues(stats, i, IFACE_ALL, 1, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 10L, 2L, 0L, 0L, 0);
+
+        // Compaction moves rows; lookups must follow.
+        stats.removeUids(new int[] { 0, 1, 2 });
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 1, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        assertEquals(0, stats.findIndex(TEST_IFACE, 3, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+
+        stats.clearInterfaces();
+        assertEquals(0, stats.findIndex(IFACE_ALL, 3, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 3, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+    }
+
     @Test
     public void testAddEntryGrow() throws Exception {
         final NetworkStats stats = new NetworkStats(TEST_START, 4);
@@ -574,6 +622,44 @@ public class NetworkStatsTest {
         assertEquals(128L + 512L, clone.getTotalBytes());
     }
 
+    @Test
+    public void testCopyFromAndReset() throws Exception {
+        final NetworkStats original = new NetworkStats(TEST_START, 5)
+                .insertEntry(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_YES, ROAMING_NO,
+                        DEFAULT_NETWORK_YES, 128L, 8L, 0L, 2L, 20L)
+                .insertEntry(TEST_IFACE2, 100, SET_DEFAULT, TAG_NONE, 512L, 32L, 0L, 0L, 0L);
+
+        // Copying into a buffer too small for the rows grows it.
+        final NetworkStats copy = new NetworkStats(TEST_START + 1, 1)
+                .insertEntry(TEST_IFACE, 101, SET_DEFAULT, TAG_NONE, 1L, 1L, 1L, 1L, 1L);
+        assertTrue(copy == copy.copyFrom(original));
+        original.insertEntry(TEST_IFACE, 101, SET_DEFAULT, TAG_NONE, 128L, 8L, 0L, 0L, 0L);
+        assertEquals(TEST_START, copy.getElapsedRealtime());
+        assertEquals(2, copy.size());
+        assertEquals(128L + 512L, copy.getTotalBytes());
+        assertValues(copy, 0, TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_YES, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 128L, 8L, 0L, 2L, 20L);
+
+        // Copying again reuses the arrays, and rows can still be looked up.
+        final int capacity = copy.internalSize();
+        copy.copyFrom(original);
+        assertEquals(capacity, copy.internalSize());
+        assertEquals(3, copy.size());
+        assertEquals(2, copy.findIndex(TEST_IFACE, 101, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+
+        // Reset drops the rows, but keeps the arrays.
+        copy.reset(TEST_START + 2);
+        assertEquals(TEST_START + 2, copy.getElapsedRealtime());
+        assertEquals(0, copy.size());
+        assertEquals(capacity, copy.internalSize());
+        assertEquals(-1, copy.findIndex(TEST_IFACE, 101, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        copy.insertEntry(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, 1L, 1L, 1L, 1L, 1L);
+        assertValues(copy, 0, TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 1L, 1L, 1L, 1L, 1L);
+    }
+
     @Test
     public void testAddWhenEmpty() throws Exception {
         final NetworkStats red = new NetworkStats(TEST_START, -1);
@@ -787,6 +873,65 @@ public class NetworkStatsTest {
                 ROAMING_NO, DEFAULT_NETWORK_NO, 2000L, 20L, 3000L, 30L, 0L);
     }
 
+    @Test
+    public void testMigrateAllTun() {
+        final int tunUid1 = 10030;
+        final int tunUid2 = 10031;
+        // The first VPN runs over the second one, and the platform VPN over wlan0.
+        final UnderlyingNetworkInfo[] vpnArray = new UnderlyingNetworkInfo[] {
+                new UnderlyingNetworkInfo(tunUid2, "tun1", Arrays.asList("tun0")),
+                new UnderlyingNetworkInfo(tunUid1, "tun0", Arrays.asList("wlan0", "rmnet0")),
+                new UnderlyingNetworkInfo(Process.SYSTEM_UID, "ipsec1", Arrays.asList("wlan0")),
+        };
+        final NetworkStats delta = new NetworkStats(TEST_START, 12)
+                .insertEntry("tun1", 10100, SET_DEFAULT, TAG_NONE, 3000L, 30L, 1500L, 15L, 0L)
+                .insertEntry("tun1", 10100, SET_DEFAULT, 8888, 1000L, 10L, 500L, 5L, 0L)
+                .insertEntry("tun0", 10120, SET_FOREGROUND, TAG_NONE, 6000L, 60L, 2000L, 20L,
+                        0L)
+                .insertEntry("tun0", tunUid2, SET_DEFAULT, TAG_NONE, 3300L, 33L, 1650L, 16L, 0L)
+                .insertEntry("tun0", tunUid1, SET_DEFAULT, TAG_NONE, 100L, 1L, 100L, 1L, 0L)
+                .insertEntry("wlan0", tunUid1, SET_DEFAULT, TAG_NONE, 7000L, 70L, 3000L, 30L, 0L)
+                .insertEntry("rmnet0", tunUid1, SET_FOREGROUND, TAG_NONE, 3000L, 30L, 1000L,
+                        10L, 0L)
+                .insertEntry("ipsec1", 10100, SET_DEFAULT, TAG_NONE, 500L, 5L, 200L, 2L, 0L)
+                .insertEntry("wlan0", 10100, SET_DEFAULT, TAG_NONE, 1000L, 10L, 2000L, 20L, 0L);
+
+        final NetworkStats expected = delta.clone();
+        for (UnderlyingNetworkInfo info : vpnArray) {
+            expected.migrateTun(info.getOwnerUid(), info.getInterface(),
+                    info.getUnderlyingInterfaces());
+            expected.filterDebugEntries();
+        }
+        delta.migrateAllTun(vpnArray);
+
+        assertEquals(expected.size(), delta.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getValues(i, null), delta.getValues(i, null));
+        }
+        for (int i = 0; i < delta.size(); i++) {
+            assertTrue(delta.getValues(i, null).set < SET_DBG_VPN_IN);
+        }
+        // Traffic of the nested VPN app is moved to the app using it, then to the underlying
+        // networks of the outer VPN.
+        assertContains(delta, "tun0", 10100, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 3000L, 30L, 1500L, 15L, 0L);
+        final int i = delta.findIndex("wlan0", 10100, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO);
+        assertTrue(delta.getValues(i, null).rxBytes > 1000L + 500L);
+    }
+
+    @Test
+    public void testMigrateAllTun_aggregatedStats() {
+        final NetworkStats stats = new NetworkStats(TEST_START, 1)
+                .insertEntry(TEST_IFACE, UID_ALL, SET_DEFAULT, TAG_NONE, 1L, 1L, 1L, 1L, 0L);
+        assertThrows(IllegalStateException.class, () -> stats.migrateAllTun(
+                new UnderlyingNetworkInfo[] {
+                        new UnderlyingNetworkInfo(10030, "tun0", Arrays.asList(TEST_IFACE))}));
+        // Nothing to migrate without VPNs.
+        stats.migrateAllTun(new UnderlyingNetworkInfo[0]);
+        assertEquals(1, stats.size());
+    }
+
     @Test
     public void testFilter_NoFilter() {
         NetworkStats.Entry entry1 = new NetworkStats.Entry(
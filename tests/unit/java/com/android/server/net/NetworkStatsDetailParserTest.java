@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.DEFAULT_NETWORK_NO;
+import static android.net.NetworkStats.INTERFACES_ALL;
+import static android.net.NetworkStats.METERED_NO;
+import static android.net.NetworkStats.ROAMING_NO;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_ALL;
+import static android.net.NetworkStats.UID_ALL;
+
+import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import android.net.NetworkStats;
+import android.net.TrafficStats;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import libcore.testing.io.TestIoUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.ProtocolException;
+
+/** Tests for {@link NetworkStatsDetailParser}. */
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(SC_V2)
+public class NetworkStatsDetailParserTest {
+    private static final String HEADER = "idx iface acct_tag_hex uid_tag_int cnt_set rx_bytes "
+            + "rx_packets tx_bytes tx_packets rx_tcp_bytes rx_tcp_packets\n";
+
+    private File mFile;
+    private NetworkStatsDetailParser mParser;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(TestIoUtils.createTemporaryDirectory("proc"), "stats");
+        mParser = new NetworkStatsDetailParser();
+    }
+
+    private void stage(String content) throws Exception {
+        try (FileWriter out = new FileWriter(mFile)) {
+            out.write(content);
+        }
+    }
+
+    private NetworkStats read() throws Exception {
+        return mParser.read(mFile, new NetworkStats(0L, 1), 0L, UID_ALL, INTERFACES_ALL,
+                TAG_ALL);
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        stage(HEADER
+                + "2 wlan0 0x0 10011 0 35777 46 5718 41 0 0\n"
+                + "3 wlan0 0x7fffff0100000000 10021 0 562386 573 49228 546 0 0\n"
+                + "4 rmnet2 0x0000003200000000 10001 1 1125899906842624 984 984 12 0 0\n"
+                + "5 rmnet2 0xFFFFFF0100000000 1000 0 1 2 3 4 0 0");
+
+        final NetworkStats stats = read();
+        assertEquals(4, stats.size());
+        assertEntry(stats, "wlan0", 10011, SET_DEFAULT, 0x0, 35777L, 46L, 5718L, 41L);
+        assertEntry(stats, "wlan0", 10021, SET_DEFAULT, 0x7fffff01, 562386L, 573L, 49228L, 546L);
+        assertEntry(stats, "rmnet2", 10001, SET_FOREGROUND, 0x32, 1125899906842624L, 984L,
+                984L, 12L);
+        assertEntry(stats, "rmnet2", 1000, SET_DEFAULT, TrafficStats.TAG_SYSTEM_DOWNLOAD,
+                1L, 2L, 3L, 4L);
+    }
+
+    @Test
+    public void testRead_tags() throws Exception {
+        final String[] kernelTags = {"0x0000000000000000", "0x0000003200000000",
+                "0x7fffffff00000000", "0x7FFFFE0000000000", "0x0", "0xf00d", "0x100000000",
+                "0xdc4e7700000000", "0xffffff0100000000"};
+        final int[] tags = {0, 0x32, 2147483647, 2147483136, 0, 0, 1, 14438007,
+                TrafficStats.TAG_SYSTEM_DOWNLOAD};
+        final StringBuilder content = new StringBuilder(HEADER);
+        for (int i = 0; i < kernelTags.length; i++) {
+            content.append(i + 2).append(" wlan0 ").append(kernelTags[i]).append(' ')
+                    .append(10000 + i).append(" 0 1 1 1 1\n");
+        }
+        stage(content.toString());
+
+        final NetworkStats stats = read();
+        assertEquals(kernelTags.length, stats.size());
+        for (int i = 0; i < kernelTags.length; i++) {
+            assertEntry(stats, "wlan0", 10000 + i, SET_DEFAULT, tags[i], 1L, 1L, 1L, 1L);
+        }
+    }
+
+    @Test
+    public void testRead_filters() throws Exception {
+        stage(HEADER
+                + "2 wlan0 0x0 10011 0 1 1 1 1\n"
+                + "3 wlan0 0x3200000000 10012 0 1 1 1 1\n"
+                + "4 rmnet0 0x0 10012 0 1 1 1 1\n");
+
+        assertEquals(2, mParser.read(mFile, new NetworkStats(0L, 1), 0L, 10012, INTERFACES_ALL,
+                TAG_ALL).size());
+        assertEquals(1, mParser.read(mFile, new NetworkStats(0L, 1), 0L, UID_ALL,
+                new String[] {"rmnet0"}, TAG_ALL).size());
+        assertEquals(1, mParser.read(mFile, new NetworkStats(0L, 1), 0L, UID_ALL,
+                INTERFACES_ALL, 0x32).size());
+    }
+
+    @Test
+    public void testRead_reusesNamesAndBuffers() throws Exception {
+        // Larger than the initial buffer.
+        final StringBuilder content = new StringBuilder(HEADER);
+        for (int i = 0; i < 2000; i++) {
+            content.append(i + 2).append(" wlan0 0x0 ").append(10000 + i).append(" 0 1 1 1 1\n");
+        }
+        stage(content.toString());
+
+        final NetworkStats first = read();
+        assertEquals(2000, first.size());
+        final NetworkStats second = mParser.read(mFile, first, 0L, UID_ALL, INTERFACES_ALL,
+                TAG_ALL);
+        assertSame(first, second);
+        assertEquals(2000, second.size());
+        assertSame(first.getValues(0, null).iface, second.getValues(1999, null).iface);
+    }
+
+    @Test
+    public void testRead_malformed() throws Exception {
+        stage(HEADER + "2 wlan0 0x0 10011 0 35777 46 5718\n");
+        assertMalformed("problem parsing idx 2");
+
+        stage(HEADER + "2 wlan0 0x0 10011 0 35777 46 5718 41\n4 wlan0 0x0 1 0 1 1 1 1\n");
+        assertMalformed("inconsistent idx=4 after lastIdx=2");
+
+        stage(HEADER + "2 wlan0 0xzz 10011 0 35777 46 5718 41\n");
+        assertMalformed("problem parsing idx 2");
+
+        stage(HEADER + "2 wlan0 0x0 3000000000 0 35777 46 5718 41\n");
+        assertMalformed("problem parsing idx 2");
+
+        stage(HEADER + "2 wlan0 0x0 10011 0 99999999999999999999 46 5718 41\n");
+        assertMalformed("problem parsing idx 2");
+    }
+
+    private void assertMalformed(String message) {
+        final ProtocolException e = assertThrows(ProtocolException.class, () -> read());
+        assertTrue(e.getMessage(), e.getMessage().contains(message));
+    }
+
+    private static void assertEntry(NetworkStats stats, String iface, int uid, int set, int tag,
+            long rxBytes, long rxPackets, long txBytes, long txPackets) {
+        final int i = stats.findIndex(iface, uid, set, tag, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO);
+        assertTrue("missing " + iface + " " + uid + " " + set + " " + tag, i >= 0);
+        final NetworkStats.Entry entry = stats.getValues(i, null);
+        assertEquals(rxBytes, entry.rxBytes);
+        assertEquals(rxPackets, entry.rxPackets);
+        assertEquals(txBytes, entry.txBytes);
+        assertEquals(txPackets, entry.txPackets);
+    }
+}
@@ -18,6 +18,7 @@ package com.android.server.net;
 
 import static android.net.NetworkStats.DEFAULT_NETWORK_ALL;
 import static android.net.NetworkStats.DEFAULT_NETWORK_NO;
+import static android.net.NetworkStats.INTERFACES_ALL;
 import static android.net.NetworkStats.METERED_ALL;
 import static android.net.NetworkStats.METERED_NO;
 import static android.net.NetworkStats.ROAMING_ALL;
@@ -25,10 +26,10 @@ import static android.net.NetworkStats.ROAMING_NO;
 import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_ALL;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 
-import static com.android.server.net.NetworkStatsFactory.kernelToTag;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
@@ -36,7 +37,6 @@ import static org.junit.Assert.fail;
 import android.content.Context;
 import android.content.res.Resources;
 import android.net.NetworkStats;
-import android.net.TrafficStats;
 import android.net.UnderlyingNetworkInfo;
 import android.os.Build;
 
@@ -105,6 +105,23 @@ public class NetworkStatsFactoryTest extends NetworkStatsBaseTest {
         assertStatsEntry(stats, "rmnet2", 10001, SET_DEFAULT, 0x0, 1125899906842624L, 984L);
     }
 
+    @Test
+    public void testNetworkStatsDetail_repeatedReads() throws Exception {
+        // Buffers reused across reads must not leak into the snapshots returned earlier, and
+        // callers are free to modify the returned snapshots.
+        final NetworkStats first = parseDetailedStats(R.raw.xt_qtaguid_typical);
+        final NetworkStats second = parseDetailedStats(R.raw.xt_qtaguid_typical);
+        second.filter(10021, INTERFACES_ALL, TAG_ALL);
+        final NetworkStats third = parseDetailedStats(R.raw.xt_qtaguid_typical);
+
+        assertEquals(70, first.size());
+        assertEquals(70, third.size());
+        assertStatsEntry(first, "wlan0", 10011, SET_DEFAULT, 0x0, 35777L, 5718L);
+        assertStatsEntry(first, "rmnet2", 10001, SET_DEFAULT, 0x0, 1125899906842624L, 984L);
+        assertStatsEntry(third, "wlan0", 10011, SET_DEFAULT, 0x0, 35777L, 5718L);
+        assertStatsEntry(third, "rmnet2", 10001, SET_DEFAULT, 0x0, 1125899906842624L, 984L);
+    }
+
     @Test
     public void testVpnRewriteTrafficThroughItself() throws Exception {
         UnderlyingNetworkInfo[] underlyingNetworkInfos =
@@ -384,21 +401,6 @@ public class NetworkStatsFactoryTest extends NetworkStatsBaseTest {
         assertValues(tunStats, TEST_IFACE2, UID_VPN, 1100L, 100L, 1100L, 100L);
     }
 
-    @Test
-    public void testKernelTags() throws Exception {
-        assertEquals(0, kernelToTag("0x0000000000000000"));
-        assertEquals(0x32, kernelToTag("0x0000003200000000"));
-        assertEquals(2147483647, kernelToTag("0x7fffffff00000000"));
-        assertEquals(0, kernelToTag("0x0000000000000000"));
-        assertEquals(2147483136, kernelToTag("0x7FFFFE0000000000"));
-
-        assertEquals(0, kernelToTag("0x0"));
-        assertEquals(0, kernelToTag("0xf00d"));
-        assertEquals(1, kernelToTag("0x100000000"));
-        assertEquals(14438007, kernelToTag("0xdc4e7700000000"));
-        assertEquals(TrafficStats.TAG_SYSTEM_DOWNLOAD, kernelToTag("0xffffff0100000000"));
-    }
-
     @Test
     public void testNetworkStatsWithSet() throws Exception {
         final NetworkStats stats = parseDetailedStats(R.raw.xt_qtaguid_typical);
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.net.NetworkIdentitySet;
+import android.net.NetworkStats;
+import android.net.NetworkStatsCollection;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import libcore.testing.io.TestIoUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/** Tests for {@link NetworkStatsJournal}. */
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(SC_V2)
+public class NetworkStatsJournalTest {
+    private static final long TEST_START = 1194220800000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(TestIoUtils.createTemporaryDirectory("netstats"), "test.journal");
+    }
+
+    private static NetworkStatsCollection buildCollection(long rxBytes) {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = rxBytes;
+        collection.recordData(new NetworkIdentitySet(), UID_ALL, SET_DEFAULT, TAG_NONE,
+                TEST_START, TEST_START + HOUR_IN_MILLIS, entry);
+        return collection;
+    }
+
+    private long replayTotalBytes(NetworkStatsJournal journal) throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        journal.replay(collection);
+        return collection.getTotalBytes();
+    }
+
+    @Test
+    public void testAppendReplay() throws Exception {
+        final NetworkStatsJournal journal = new NetworkStatsJournal(mFile);
+        assertTrue(journal.isEmpty());
+        assertEquals(0, replayTotalBytes(journal));
+
+        journal.append(buildCollection(100));
+        final NetworkStatsCollection indexed = buildCollection(200);
+        indexed.setUseIndexedFormat(true);
+        journal.append(indexed);
+        assertFalse(journal.isEmpty());
+
+        // Records are read back by a new instance, as after a reboot.
+        assertEquals(300, replayTotalBytes(new NetworkStatsJournal(mFile)));
+
+        journal.delete();
+        assertFalse(mFile.exists());
+        assertTrue(journal.isEmpty());
+        journal.append(buildCollection(400));
+        assertEquals(400, replayTotalBytes(journal));
+    }
+
+    @Test
+    public void testIncompleteRecordDropped() throws Exception {
+        final NetworkStatsJournal journal = new NetworkStatsJournal(mFile);
+        journal.append(buildCollection(100));
+        journal.append(buildCollection(200));
+
+        // Simulate a crash while writing the last record.
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(mFile.length() - 1);
+        }
+
+        // The incomplete record is dropped, and later appends can be read back.
+        final NetworkStatsJournal reopened = new NetworkStatsJournal(mFile);
+        reopened.append(buildCollection(400));
+        assertEquals(500, replayTotalBytes(reopened));
+
+        // Same for a record whose content does not match its checksum.
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(mFile.length() - 1);
+            final int lastByte = raf.read();
+            raf.seek(mFile.length() - 1);
+            raf.write(lastByte ^ 0xFF);
+        }
+        assertEquals(100, replayTotalBytes(new NetworkStatsJournal(mFile)));
+    }
+
+    @Test
+    public void testCompactionMarker() throws Exception {
+        final NetworkStatsJournal journal = new NetworkStatsJournal(mFile);
+        journal.append(buildCollection(100));
+        assertNull(journal.getCompaction());
+
+        // The marker survives a reboot, and is kept until the merge is finished or aborted.
+        journal.startCompaction(new NetworkStatsJournal.Compaction(TEST_START, 0x1234L));
+        final NetworkStatsJournal reopened = new NetworkStatsJournal(mFile);
+        final NetworkStatsJournal.Compaction compaction = reopened.getCompaction();
+        assertEquals(TEST_START, compaction.startMillis);
+        assertEquals(0x1234L, compaction.checksum);
+
+        reopened.abortCompaction();
+        assertNull(reopened.getCompaction());
+        assertEquals(100, replayTotalBytes(reopened));
+
+        journal.startCompaction(new NetworkStatsJournal.Compaction(TEST_START, 0L));
+        journal.delete();
+        assertNull(journal.getCompaction());
+        assertTrue(journal.isEmpty());
+    }
+}
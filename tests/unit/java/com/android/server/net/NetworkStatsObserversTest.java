@@ -506,6 +506,54 @@ public class NetworkStatsObserversTest {
         waitForObserverToIdle();
     }
 
+    @Test
+    public void testUpdateStats_sameTemplate_countsFromEachBaseline() throws Exception {
+        DataUsageRequest inputRequest = new DataUsageRequest(
+                DataUsageRequest.REQUEST_ID_UNSET, sTemplateImsi1, THRESHOLD_BYTES);
+        DataUsageRequest request1 = mStatsObservers.register(mContext, inputRequest,
+                mUsageCallback, PID_SYSTEM, Process.SYSTEM_UID, PACKAGE_SYSTEM,
+                NetworkStatsAccess.Level.DEVICE);
+
+        NetworkIdentitySet identSet = makeTestIdentSet();
+        mActiveIfaces.put(TEST_IFACE, identSet);
+
+        // Baseline of the first request
+        NetworkStats xtSnapshot = new NetworkStats(TEST_START, 1 /* initialSize */)
+                .insertEntry(TEST_IFACE, BASE_BYTES, 8L, BASE_BYTES, 16L);
+        mStatsObservers.updateStats(
+                xtSnapshot, null /* uidSnapshot */, mActiveIfaces, mActiveUidIfaces, TEST_START);
+
+        // The second request on the same template only counts usage from its own baseline.
+        DataUsageRequest request2 = mStatsObservers.register(mContext, inputRequest,
+                mUsageCallback, PID_SYSTEM, Process.SYSTEM_UID, PACKAGE_SYSTEM,
+                NetworkStatsAccess.Level.DEVICE);
+        xtSnapshot = new NetworkStats(TEST_START, 1 /* initialSize */)
+                .insertEntry(TEST_IFACE, BASE_BYTES + THRESHOLD_BYTES, 10L, BASE_BYTES, 16L);
+        mStatsObservers.updateStats(
+                xtSnapshot, null /* uidSnapshot */, mActiveIfaces, mActiveUidIfaces, TEST_START);
+        waitForObserverToIdle();
+        mUsageCallback.assertNoCallback();
+
+        // Only the first request reaches its threshold, and starts counting again.
+        xtSnapshot = new NetworkStats(TEST_START, 1 /* initialSize */)
+                .insertEntry(TEST_IFACE, BASE_BYTES + THRESHOLD_BYTES + 1024L, 11L,
+                        BASE_BYTES, 16L);
+        mStatsObservers.updateStats(
+                xtSnapshot, null /* uidSnapshot */, mActiveIfaces, mActiveUidIfaces, TEST_START);
+        waitForObserverToIdle();
+        mUsageCallback.expectOnThresholdReached(request1);
+        mUsageCallback.assertNoCallback();
+
+        xtSnapshot = new NetworkStats(TEST_START, 1 /* initialSize */)
+                .insertEntry(TEST_IFACE, BASE_BYTES + 2 * THRESHOLD_BYTES + 1024L, 12L,
+                        BASE_BYTES, 16L);
+        mStatsObservers.updateStats(
+                xtSnapshot, null /* uidSnapshot */, mActiveIfaces, mActiveUidIfaces, TEST_START);
+        waitForObserverToIdle();
+        mUsageCallback.expectOnThresholdReached(request2);
+        mUsageCallback.assertNoCallback();
+    }
+
     private void waitForObserverToIdle() {
         HandlerUtils.waitForIdle(mObserverHandlerThread, WAIT_TIMEOUT_MS);
     }
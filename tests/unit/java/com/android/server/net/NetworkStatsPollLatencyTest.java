@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static com.android.server.net.NetworkStatsPollLatency.BUCKET_COUNT;
+import static com.android.server.net.NetworkStatsPollLatency.PHASE_POLL;
+import static com.android.server.net.NetworkStatsPollLatency.PHASE_READ_UID;
+import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.IndentingPrintWriter;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+
+/** Tests for {@link NetworkStatsPollLatency}. */
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(SC_V2)
+public class NetworkStatsPollLatencyTest {
+    private static final long US_IN_NANOS = 1000;
+
+    @Test
+    public void testGetBucket() {
+        assertEquals(0, NetworkStatsPollLatency.getBucket(0));
+        assertEquals(1, NetworkStatsPollLatency.getBucket(1));
+        assertEquals(2, NetworkStatsPollLatency.getBucket(2));
+        assertEquals(2, NetworkStatsPollLatency.getBucket(3));
+        assertEquals(11, NetworkStatsPollLatency.getBucket(1024));
+        assertEquals(BUCKET_COUNT - 1, NetworkStatsPollLatency.getBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        final NetworkStatsPollLatency latency = new NetworkStatsPollLatency();
+        assertEquals(0, latency.getPercentileMicros(PHASE_READ_UID, 50));
+
+        // 98 fast samples, and 2 slow ones.
+        for (int i = 0; i < 98; i++) {
+            latency.record(PHASE_READ_UID, 100 * US_IN_NANOS, 10);
+        }
+        latency.record(PHASE_READ_UID, 5000 * US_IN_NANOS, 10);
+        latency.record(PHASE_READ_UID, 20_000 * US_IN_NANOS, 10);
+
+        assertEquals(100, latency.getCount(PHASE_READ_UID));
+        assertEquals(1000, latency.getEntries(PHASE_READ_UID));
+        // Percentiles are the upper bound of their bucket, capped by the maximum.
+        assertEquals(127, latency.getPercentileMicros(PHASE_READ_UID, 50));
+        assertEquals(127, latency.getPercentileMicros(PHASE_READ_UID, 98));
+        assertEquals(8191, latency.getPercentileMicros(PHASE_READ_UID, 99));
+        assertEquals(20_000, latency.getPercentileMicros(PHASE_READ_UID, 100));
+        assertEquals(0, latency.getCount(PHASE_POLL));
+    }
+
+    @Test
+    public void testDump() {
+        final NetworkStatsPollLatency latency = new NetworkStatsPollLatency();
+        latency.record(PHASE_POLL, 3000 * US_IN_NANOS, 0);
+        latency.record(PHASE_POLL, 1000 * US_IN_NANOS, 0);
+
+        final StringWriter sw = new StringWriter();
+        latency.dump(new IndentingPrintWriter(sw, "  "));
+        final String dump = sw.toString();
+        assertTrue(dump, dump.contains("poll: count=2 entries=0 meanUs=2000"));
+        assertTrue(dump, dump.contains("maxUs=3000"));
+        // Phases without samples are not dumped.
+        assertFalse(dump, dump.contains("read_uid"));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.TrafficStats.MB_IN_BYTES;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+
+import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests for {@link NetworkStatsPollScheduler}. */
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(SC_V2)
+public class NetworkStatsPollSchedulerTest {
+    private static final long MIN_INTERVAL = 5 * MINUTE_IN_MILLIS;
+    private static final long MAX_INTERVAL = 2 * HOUR_IN_MILLIS;
+    private static final long TARGET_BYTES = 2 * MB_IN_BYTES;
+
+    @Test
+    public void testInvalidBounds() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new NetworkStatsPollScheduler(-1, MAX_INTERVAL));
+        assertThrows(IllegalArgumentException.class,
+                () -> new NetworkStatsPollScheduler(MAX_INTERVAL, MIN_INTERVAL));
+    }
+
+    @Test
+    public void testIdle() {
+        final NetworkStatsPollScheduler scheduler =
+                new NetworkStatsPollScheduler(MIN_INTERVAL, MAX_INTERVAL);
+        assertEquals(MAX_INTERVAL, scheduler.getNextPollDelayMillis());
+
+        scheduler.onPoll(0, 1000, TARGET_BYTES);
+        assertEquals(MAX_INTERVAL, scheduler.getNextPollDelayMillis());
+        // A few bytes over an hour is idle.
+        scheduler.onPoll(HOUR_IN_MILLIS, 1100, TARGET_BYTES);
+        assertEquals(MAX_INTERVAL, scheduler.getNextPollDelayMillis());
+        // Counters going backwards count as no traffic.
+        scheduler.onPoll(2 * HOUR_IN_MILLIS, 0, TARGET_BYTES);
+        assertEquals(MAX_INTERVAL, scheduler.getNextPollDelayMillis());
+    }
+
+    @Test
+    public void testRateChanges() {
+        final NetworkStatsPollScheduler scheduler =
+                new NetworkStatsPollScheduler(MIN_INTERVAL, MAX_INTERVAL);
+        long now = 0;
+        long totalBytes = 0;
+        scheduler.onPoll(now, totalBytes, TARGET_BYTES);
+
+        // 2MB in 20 minutes: the next poll is planned for when 2MB more are transferred.
+        now += 20 * MINUTE_IN_MILLIS;
+        totalBytes += TARGET_BYTES;
+        scheduler.onPoll(now, totalBytes, TARGET_BYTES);
+        assertEquals(20 * MINUTE_IN_MILLIS, scheduler.getNextPollDelayMillis());
+
+        // Increases are followed immediately.
+        now += 10 * MINUTE_IN_MILLIS;
+        totalBytes += TARGET_BYTES;
+        scheduler.onPoll(now, totalBytes, TARGET_BYTES);
+        assertEquals(10 * MINUTE_IN_MILLIS, scheduler.getNextPollDelayMillis());
+
+        // Decreases only halve the distance to the new rate.
+        now += 30 * MINUTE_IN_MILLIS;
+        scheduler.onPoll(now, totalBytes, TARGET_BYTES);
+        assertEquals(20 * MINUTE_IN_MILLIS, scheduler.getNextPollDelayMillis());
+
+        // Closer thresholds bring polls closer.
+        scheduler.onPoll(now, totalBytes, TARGET_BYTES / 2);
+        assertEquals(10 * MINUTE_IN_MILLIS, scheduler.getNextPollDelayMillis());
+
+        // Delays stay within bounds.
+        now += 10 * MINUTE_IN_MILLIS;
+        totalBytes += 100 * TARGET_BYTES;
+        scheduler.onPoll(now, totalBytes, TARGET_BYTES);
+        assertEquals(MIN_INTERVAL, scheduler.getNextPollDelayMillis());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStatsHistory.FIELD_ALL;
+import static android.net.NetworkTemplate.MATCH_WIFI;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsAccess;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests for {@link NetworkStatsQueryCache}. */
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(SC_V2)
+public class NetworkStatsQueryCacheTest {
+    private static final long TEST_START = 1194220800000L;
+    private static final int TEST_UID = 10001;
+    private static final NetworkTemplate TEMPLATE_WIFI =
+            new NetworkTemplate.Builder(MATCH_WIFI).build();
+
+    private static NetworkStatsQueryCache.Key buildKey(int type, long end, int accessLevel,
+            int callingUid) {
+        return new NetworkStatsQueryCache.Key(type, TEMPLATE_WIFI, TEST_START, end, FIELD_ALL,
+                accessLevel, callingUid, null /* augmentPlan */, 0 /* timeSlot */);
+    }
+
+    private static NetworkStats buildStats(long rxBytes) {
+        return new NetworkStats(0L, 1).insertEntry(
+                "wlan0", TEST_UID, SET_DEFAULT, TAG_NONE, rxBytes, 1L, 0L, 0L, 0L);
+    }
+
+    @Test
+    public void testSummaryCopiedInAndOut() {
+        final NetworkStatsQueryCache cache = new NetworkStatsQueryCache(1024 * 1024);
+        final NetworkStatsQueryCache.Key key = buildKey(0, TEST_START + HOUR_IN_MILLIS,
+                NetworkStatsAccess.Level.DEFAULT, TEST_UID);
+        assertNull(cache.getSummary(key));
+
+        final NetworkStats stats = buildStats(1024);
+        cache.putSummary(key, stats, cache.getGeneration());
+        stats.combineAllValues(buildStats(1024));
+
+        final NetworkStats cached = cache.getSummary(key);
+        assertEquals(1024, cached.getTotalBytes());
+        cached.combineAllValues(buildStats(1024));
+        assertEquals(1024, cache.getSummary(key).getTotalBytes());
+        assertNotSame(cached, cache.getSummary(key));
+
+        // The calling uid only matters below device access.
+        assertNull(cache.getSummary(buildKey(0, TEST_START + HOUR_IN_MILLIS,
+                NetworkStatsAccess.Level.DEFAULT, TEST_UID + 1)));
+        final NetworkStatsQueryCache.Key deviceKey = buildKey(0, TEST_START + HOUR_IN_MILLIS,
+                NetworkStatsAccess.Level.DEVICE, TEST_UID);
+        cache.putSummary(deviceKey, stats, cache.getGeneration());
+        assertNotNull(cache.getSummary(buildKey(0, TEST_START + HOUR_IN_MILLIS,
+                NetworkStatsAccess.Level.DEVICE, TEST_UID + 1)));
+    }
+
+    @Test
+    public void testHistoryCopiedInAndOut() {
+        final NetworkStatsQueryCache cache = new NetworkStatsQueryCache(1024 * 1024);
+        final NetworkStatsQueryCache.Key key = buildKey(1, TEST_START + HOUR_IN_MILLIS,
+                NetworkStatsAccess.Level.DEVICE, TEST_UID);
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS, 1,
+                NetworkStatsHistory.FIELD_RX_BYTES);
+        history.recordData(TEST_START, TEST_START + HOUR_IN_MILLIS,
+                new NetworkStats.Entry(1024L, 0L, 0L, 0L, 0L));
+        cache.putHistory(key, history, cache.getGeneration());
+
+        final NetworkStatsHistory cached = cache.getHistory(key);
+        assertTrue(history.isSameAs(cached));
+        assertNotSame(history, cached);
+        // Fields that were not requested stay unknown.
+        assertEquals(NetworkStatsHistory.Entry.UNKNOWN,
+                cached.getValues(0, null).txBytes);
+    }
+
+    @Test
+    public void testInvalidate() {
+        final NetworkStatsQueryCache cache = new NetworkStatsQueryCache(1024 * 1024);
+        final NetworkStatsQueryCache.Key key = buildKey(0, TEST_START + HOUR_IN_MILLIS,
+                NetworkStatsAccess.Level.DEVICE, TEST_UID);
+        final long generation = cache.getGeneration();
+        cache.putSummary(key, buildStats(1024), generation);
+        cache.invalidate();
+        assertNull(cache.getSummary(key));
+
+        // Results computed across an invalidation are dropped.
+        cache.putSummary(key, buildStats(1024), generation);
+        assertNull(cache.getSummary(key));
+        cache.putSummary(key, buildStats(1024), cache.getGeneration());
+        assertNotNull(cache.getSummary(key));
+    }
+
+    @Test
+    public void testEviction() {
+        // Room for about two single-row summaries.
+        final NetworkStatsQueryCache cache = new NetworkStatsQueryCache(700);
+        final NetworkStatsQueryCache.Key key1 = buildKey(0, TEST_START + 1,
+                NetworkStatsAccess.Level.DEVICE, TEST_UID);
+        final NetworkStatsQueryCache.Key key2 = buildKey(0, TEST_START + 2,
+                NetworkStatsAccess.Level.DEVICE, TEST_UID);
+        final NetworkStatsQueryCache.Key key3 = buildKey(0, TEST_START + 3,
+                NetworkStatsAccess.Level.DEVICE, TEST_UID);
+        cache.putSummary(key1, buildStats(1), cache.getGeneration());
+        cache.putSummary(key2, buildStats(2), cache.getGeneration());
+        // Use the first one, so that the second one is evicted first.
+        assertNotNull(cache.getSummary(key1));
+        cache.putSummary(key3, buildStats(3), cache.getGeneration());
+
+        assertNotNull(cache.getSummary(key1));
+        assertNull(cache.getSummary(key2));
+        assertNotNull(cache.getSummary(key3));
+
+        // Nothing is cached without a budget.
+        final NetworkStatsQueryCache disabled = new NetworkStatsQueryCache(0);
+        disabled.putSummary(key1, buildStats(1), disabled.getGeneration());
+        assertNull(disabled.getSummary(key1));
+    }
+}
@@ -54,12 +54,15 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateMobileWithRatType;
 import static android.net.NetworkTemplate.buildTemplateWifi;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
+import static android.net.TrafficStats.KB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
 import static android.net.TrafficStats.UID_REMOVED;
 import static android.net.TrafficStats.UID_TETHERING;
+import static android.net.TrafficStats.UNSUPPORTED;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID_TAG;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_XT;
+import static android.net.netstats.provider.NetworkStatsProvider.QUOTA_UNLIMITED;
 import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
@@ -72,9 +75,11 @@ import static com.android.server.net.NetworkStatsService.NETSTATS_IMPORT_FALLBAC
 import static com.android.server.net.NetworkStatsService.NETSTATS_IMPORT_SUCCESSES_COUNTER_NAME;
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
@@ -83,6 +88,7 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -121,7 +127,9 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.SimpleClock;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.system.ErrnoException;
 import android.telephony.TelephonyManager;
@@ -249,6 +257,7 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
             new ArrayMap<String, NetworkStatsCollection>();
     private boolean mStoreFilesInApexData = false;
     private int mImportLegacyTargetAttempts = 0;
+    private boolean mAdaptivePollEnabled = false;
     private @Mock PersistentInt mImportLegacyAttemptsCounter;
     private @Mock PersistentInt mImportLegacySuccessesCounter;
     private @Mock PersistentInt mImportLegacyFallbacksCounter;
@@ -399,6 +408,11 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
                 return mImportLegacyTargetAttempts;
             }
 
+            @Override
+            public boolean getAdaptivePollEnabled() {
+                return mAdaptivePollEnabled;
+            }
+
             @Override
             public PersistentInt createPersistentCounter(@androidx.annotation.NonNull Path dir,
                     @androidx.annotation.NonNull String name) throws IOException {
@@ -771,6 +785,55 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
 
     }
 
+    @Test
+    public void testDeviceSummariesForNetworks() throws Exception {
+        // pretend first mobile network comes online
+        expectDefaultSettings();
+        NetworkStateSnapshot[] states = new NetworkStateSnapshot[] {buildMobileState(IMSI_1)};
+        expectNetworkStatsSummary(buildEmptyStats());
+        expectNetworkStatsUidDetail(buildEmptyStats());
+
+        mService.notifyNetworkStatus(NETWORKS_MOBILE, states, getActiveIface(states),
+                new UnderlyingNetworkInfo[0]);
+
+        // create some traffic on first network
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectDefaultSettings();
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 2048L, 16L, 512L, 4L));
+        expectNetworkStatsUidDetail(buildEmptyStats());
+        forcePollAndWaitForIdle();
+
+        // switch networks, then create traffic on second network
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectDefaultSettings();
+        states = new NetworkStateSnapshot[] {buildMobileState(IMSI_2)};
+        mService.notifyNetworkStatus(NETWORKS_MOBILE, states, getActiveIface(states),
+                new UnderlyingNetworkInfo[0]);
+        forcePollAndWaitForIdle();
+
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectDefaultSettings();
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 2176L, 17L, 1536L, 12L));
+        forcePollAndWaitForIdle();
+
+        // verify the batched summary API returns the totals of each template, for each range
+        final NetworkStats[] summaries = mSession.getDeviceSummariesForNetworks(
+                new NetworkTemplate[] {sTemplateImsi1, sTemplateImsi2, sTemplateWifi},
+                new long[] {Long.MIN_VALUE, Long.MIN_VALUE},
+                new long[] {Long.MAX_VALUE, startTimeMillis()});
+        assertEquals(6, summaries.length);
+        assertValues(summaries[0], IFACE_ALL, UID_ALL, SET_ALL, TAG_NONE, METERED_ALL,
+                ROAMING_ALL, DEFAULT_NETWORK_ALL, 2048L, 16L, 512L, 4L, 0);
+        assertValues(summaries[2], IFACE_ALL, UID_ALL, SET_ALL, TAG_NONE, METERED_ALL,
+                ROAMING_ALL, DEFAULT_NETWORK_ALL, 128L, 1L, 1024L, 8L, 0);
+        for (int i : new int[] {1, 3, 4, 5}) {
+            assertValues(summaries[i], IFACE_ALL, UID_ALL, SET_ALL, TAG_NONE, METERED_ALL,
+                    ROAMING_ALL, DEFAULT_NETWORK_ALL, 0L, 0L, 0L, 0L, 0);
+        }
+    }
+
     @Test
     public void testUidRemovedIsMoved() throws Exception {
         // pretend that network comes online
@@ -1133,6 +1196,51 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
                 DEFAULT_NETWORK_YES, 1024L, 8L, 512L, 4L, 0);
     }
 
+    @Test
+    public void testSummaryPagesForAllUid() throws Exception {
+        // pretend that network comes online
+        expectDefaultSettings();
+        NetworkStateSnapshot[] states = new NetworkStateSnapshot[] {buildWifiState()};
+        expectNetworkStatsSummary(buildEmptyStats());
+        expectNetworkStatsUidDetail(buildEmptyStats());
+
+        mService.notifyNetworkStatus(NETWORKS_WIFI, states, getActiveIface(states),
+                new UnderlyingNetworkInfo[0]);
+
+        // create some traffic for two apps
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectDefaultSettings();
+        expectNetworkStatsSummary(buildEmptyStats());
+        expectNetworkStatsUidDetail(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, TAG_NONE, 50L, 5L, 50L, 5L, 0L)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, 0xF00D, 10L, 1L, 10L, 1L, 0L)
+                .insertEntry(TEST_IFACE, UID_BLUE, SET_DEFAULT, TAG_NONE, 1024L, 8L, 512L, 4L, 0L));
+        mService.incrementOperationCount(UID_RED, 0xF00D, 1);
+
+        forcePollAndWaitForIdle();
+
+        // pages cover the whole summary, one uid at a time
+        mSession.startSummaryPagingForAllUid(sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE,
+                true);
+        NetworkStats stats = mSession.getNextSummaryPage(1);
+        assertEquals(2, stats.size());
+        assertValues(stats, IFACE_ALL, UID_RED, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 50L, 5L, 50L, 5L, 1);
+        assertValues(stats, IFACE_ALL, UID_RED, SET_DEFAULT, 0xF00D, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 10L, 1L, 10L, 1L, 1);
+        stats = mSession.getNextSummaryPage(1);
+        assertEquals(1, stats.size());
+        assertValues(stats, IFACE_ALL, UID_BLUE, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 1024L, 8L, 512L, 4L, 0);
+        assertNull(mSession.getNextSummaryPage(1));
+
+        // a single page when it is large enough
+        mSession.startSummaryPagingForAllUid(sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE,
+                true);
+        assertEquals(3, mSession.getNextSummaryPage(100).size());
+        assertNull(mSession.getNextSummaryPage(100));
+    }
+
     @Test
     public void testGetLatestSummary() throws Exception {
         // Pretend that network comes online.
@@ -1207,6 +1315,45 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
         assertEquals(entry3, stats.getValues(2, null));
     }
 
+    @Test
+    public void testRecentUidUsage() throws Exception {
+        // pretend that network comes online
+        expectDefaultSettings();
+        NetworkStateSnapshot[] states = new NetworkStateSnapshot[] {buildWifiState()};
+        expectNetworkStatsSummary(buildEmptyStats());
+        expectNetworkStatsUidDetail(buildEmptyStats());
+
+        mService.notifyNetworkStatus(NETWORKS_WIFI, states, getActiveIface(states),
+                new UnderlyingNetworkInfo[0]);
+
+        // create some traffic
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectDefaultSettings();
+        expectNetworkStatsSummary(buildEmptyStats());
+        expectNetworkStatsUidDetail(new NetworkStats(getElapsedRealtime(), 3)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, TAG_NONE, 1024L, 8L, 512L, 4L, 0L)
+                .insertEntry(TEST_IFACE, UID_RED, SET_FOREGROUND, TAG_NONE, 1024L, 8L, 512L, 4L,
+                        0L)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, 0xF00D, 512L, 4L, 512L, 4L, 0L));
+        forcePollAndWaitForIdle();
+
+        // The windows are widened to the last poll, and tagged traffic is not counted twice.
+        final NetworkStats[] usages = mService.getRecentUidUsage(
+                new long[] {MINUTE_IN_MILLIS, 5 * MINUTE_IN_MILLIS, 15 * MINUTE_IN_MILLIS});
+        assertEquals(3, usages.length);
+        for (NetworkStats usage : usages) {
+            assertEquals(HOUR_IN_MILLIS, usage.getElapsedRealtime());
+            assertEquals(1, usage.size());
+        }
+        final NetworkStats.Entry entry = usages[0].getValues(0, null);
+        assertEquals(TEST_IFACE, entry.iface);
+        assertEquals(UID_RED, entry.uid);
+        assertEquals(2048L, entry.rxBytes);
+        assertEquals(16L, entry.rxPackets);
+        assertEquals(1024L, entry.txBytes);
+        assertEquals(8L, entry.txPackets);
+    }
+
     @Test
     public void testForegroundBackground() throws Exception {
         // pretend that network comes online
@@ -1555,6 +1702,43 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
         provider.assertNoCallback();
     }
 
+    @Test
+    public void testPushStatsProviderUpdateStats() throws Exception {
+        // Pretend that network comes online.
+        expectDefaultSettings();
+        final NetworkStateSnapshot[] states =
+                new NetworkStateSnapshot[]{buildWifiState(true /* isMetered */, TEST_IFACE)};
+        expectNetworkStatsSummary(buildEmptyStats());
+        expectNetworkStatsUidDetail(buildEmptyStats());
+
+        // Register custom provider in push mode and retrieve callback.
+        final TestableNetworkStatsProviderBinder provider =
+                new TestableNetworkStatsProviderBinder();
+        final INetworkStatsProviderCallback cb =
+                mService.registerPushNetworkStatsProvider("TEST", provider);
+        assertNotNull(cb);
+
+        mService.notifyNetworkStatus(NETWORKS_WIFI, states, getActiveIface(states),
+                new UnderlyingNetworkInfo[0]);
+
+        // Report traffic without being requested to, in two updates.
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        final NetworkStats stats = new NetworkStats(0L, 1)
+                .addEntry(new NetworkStats.Entry(TEST_IFACE, UID_RED, SET_DEFAULT,
+                        TAG_NONE, METERED_YES, ROAMING_NO, DEFAULT_NETWORK_YES,
+                        64L, 1L, 64L, 1L, 1L));
+        cb.notifyStatsUpdated(0 /* unused */, stats, stats);
+        cb.notifyStatsUpdated(0 /* unused */, stats, stats);
+
+        expectNetworkStatsUidDetail(buildEmptyStats());
+        forcePollAndWaitForIdle();
+
+        // Verifies that polls do not request updates from the provider, and use what it reported.
+        provider.expectOnSetAlert(MB_IN_BYTES);
+        provider.assertNoCallback();
+        assertUidTotal(sTemplateWifi, UID_RED, 128L, 2L, 128L, 2L, 2);
+    }
+
     @Test
     public void testDualVilteProviderStats() throws Exception {
         // Pretend that network comes online.
@@ -1652,6 +1836,69 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
         provider.expectOnSetAlert(MB_IN_BYTES);
     }
 
+    @Test
+    public void testAdaptivePollRearmed() throws Exception {
+        when(mSettings.getMinPollInterval()).thenReturn(5 * MINUTE_IN_MILLIS);
+        when(mSettings.getMaxPollInterval()).thenReturn(2 * HOUR_IN_MILLIS);
+
+        // Enable adaptive polling and reboot.
+        mAdaptivePollEnabled = true;
+        mServiceContext.sendBroadcast(new Intent(Intent.ACTION_SHUTDOWN));
+        expectDefaultSettings();
+        expectNetworkStatsUidDetail(buildEmptyStats());
+        expectSystemReady();
+        mService.systemReady();
+
+        final NetworkStateSnapshot[] states = new NetworkStateSnapshot[] {buildWifiState()};
+        mService.notifyNetworkStatus(NETWORKS_WIFI, states, getActiveIface(states),
+                new UnderlyingNetworkInfo[0]);
+
+        // The global alert worth of traffic in an hour, the next poll is an hour later.
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 512 * KB_IN_BYTES, 512L, 512 * KB_IN_BYTES, 512L));
+        assertPollAlarmDelay(HOUR_IN_MILLIS);
+
+        // A provider quota close to the traffic brings the next poll closer.
+        mService.setStatsProviderWarningAndLimitAsync(TEST_IFACE, 256 * KB_IN_BYTES,
+                QUOTA_UNLIMITED);
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, MB_IN_BYTES, 1024L, MB_IN_BYTES, 1024L));
+        assertPollAlarmDelay(HOUR_IN_MILLIS / 8);
+
+        // Without a quota, a higher traffic rate brings the next poll closer too.
+        mService.setStatsProviderWarningAndLimitAsync(TEST_IFACE, QUOTA_UNLIMITED,
+                QUOTA_UNLIMITED);
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 3 * MB_IN_BYTES, 3072L, 3 * MB_IN_BYTES, 3072L));
+        assertPollAlarmDelay(HOUR_IN_MILLIS / 4);
+
+        // Polls made for other reasons, such as network changes, re-arm the alarm too.
+        reset(mAlarmManager);
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 3 * MB_IN_BYTES, 3072L, 3 * MB_IN_BYTES, 3072L));
+        mService.notifyNetworkStatus(NETWORKS_WIFI, states, getActiveIface(states),
+                new UnderlyingNetworkInfo[0]);
+        verify(mAlarmManager, atLeastOnce()).set(eq(AlarmManager.ELAPSED_REALTIME), anyLong(),
+                any());
+    }
+
+    /** Poll, and verify the poll alarm is set to go off the given delay after the poll. */
+    private void assertPollAlarmDelay(long delayMillis) throws Exception {
+        reset(mAlarmManager);
+        final long before = SystemClock.elapsedRealtime();
+        forcePollAndWaitForIdle();
+        final long after = SystemClock.elapsedRealtime();
+        final ArgumentCaptor<Long> triggerAtMillis = ArgumentCaptor.forClass(Long.class);
+        verify(mAlarmManager, atLeastOnce()).set(eq(AlarmManager.ELAPSED_REALTIME),
+                triggerAtMillis.capture(), any());
+        assertTrue(triggerAtMillis.getValue() >= before + delayMillis);
+        assertTrue(triggerAtMillis.getValue() <= after + delayMillis);
+    }
+
     private void setCombineSubtypeEnabled(boolean enable) {
         when(mSettings.getCombineSubtypeEnabled()).thenReturn(enable);
         mHandler.post(() -> mContentObserver.onChange(false, Settings.Global
@@ -2304,6 +2551,29 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
         assertTrue(mUidCounterSetMap.containsKey(new U32(uid)));
     }
 
+    @Test
+    public void testGetUidStatsBatch() throws ErrnoException {
+        final int myUid = Process.myUid();
+        mAppUidStatsMap.insertEntry(new UidStatsMapKey(myUid),
+                new StatsMapValue(10, 10000, 6, 6000));
+        mAppUidStatsMap.insertEntry(new UidStatsMapKey(UID_RED),
+                new StatsMapValue(5, 5000, 3, 3000));
+
+        // Counters of other uids are not readable, as with getUidStats.
+        final long[] expected = new long[] {
+                10000L, 10L, 6000L, 6L,
+                UNSUPPORTED, UNSUPPORTED, UNSUPPORTED, UNSUPPORTED,
+                10000L, 10L, 6000L, 6L };
+        assertArrayEquals(expected,
+                mService.getUidStatsBatch(new int[] {myUid, UID_RED, myUid}));
+        assertArrayEquals(new long[0], mService.getUidStatsBatch(new int[0]));
+
+        // Readable uids without traffic have no entry in the map.
+        mAppUidStatsMap.deleteEntry(new UidStatsMapKey(myUid));
+        assertArrayEquals(new long[] {0L, 0L, 0L, 0L},
+                mService.getUidStatsBatch(new int[] {myUid}));
+    }
+
     @Test
     public void testRemovingUidRemovesTagDataForUid() throws ErrnoException {
         initBpfMapsWithTagData(UID_BLUE);
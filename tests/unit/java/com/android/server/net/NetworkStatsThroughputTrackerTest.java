@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+
+import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import android.net.NetworkStats;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests for {@link NetworkStatsThroughputTracker}. */
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(SC_V2)
+public class NetworkStatsThroughputTrackerTest {
+    private static final long TEST_START = 1194220800000L;
+    private static final String TEST_IFACE = "wlan0";
+    private static final int UID_RED = 10001;
+    private static final int UID_BLUE = 10002;
+    private static final long[] WINDOWS =
+            new long[] {MINUTE_IN_MILLIS, 5 * MINUTE_IN_MILLIS, 15 * MINUTE_IN_MILLIS};
+
+    private static void recordDelta(NetworkStatsThroughputTracker tracker, long end,
+            int uid, long rxBytes) {
+        tracker.startDelta();
+        // Sets of the same uid and interface are combined.
+        tracker.recordEntry(new NetworkStats.Entry(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE,
+                rxBytes / 2, 1, 0, 0, 0));
+        tracker.recordEntry(new NetworkStats.Entry(TEST_IFACE, uid, SET_FOREGROUND, TAG_NONE,
+                rxBytes / 2, 1, 0, 0, 0));
+        tracker.finishDelta(end - MINUTE_IN_MILLIS, end);
+    }
+
+    private static void assertUsage(NetworkStats usage, long durationMillis, int uid,
+            long rxBytes) {
+        assertEquals(durationMillis, usage.getElapsedRealtime());
+        assertEquals(1, usage.size());
+        final NetworkStats.Entry entry = usage.getValues(0, null);
+        assertEquals(uid, entry.uid);
+        assertEquals(rxBytes, entry.rxBytes);
+    }
+
+    private static NetworkStats getRecentUsage(NetworkStatsThroughputTracker tracker,
+            long windowMillis) {
+        final NetworkStats[] usages = tracker.getRecentUsage(new long[] {windowMillis});
+        assertEquals(1, usages.length);
+        return usages[0];
+    }
+
+    @Test
+    public void testRecentUsage() {
+        final NetworkStatsThroughputTracker tracker =
+                new NetworkStatsThroughputTracker(16, 15 * MINUTE_IN_MILLIS);
+        final NetworkStats[] empty = tracker.getRecentUsage(WINDOWS);
+        assertEquals(WINDOWS.length, empty.length);
+        for (NetworkStats usage : empty) {
+            assertEquals(0, usage.size());
+            assertEquals(0, usage.getElapsedRealtime());
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> getRecentUsage(tracker, 16 * MINUTE_IN_MILLIS));
+        assertThrows(IllegalArgumentException.class,
+                () -> tracker.getRecentUsage(new long[] {5 * MINUTE_IN_MILLIS, MINUTE_IN_MILLIS}));
+
+        // One delta per minute, all windows are answered at once.
+        for (int i = 1; i <= 10; i++) {
+            recordDelta(tracker, TEST_START + i * MINUTE_IN_MILLIS, UID_RED, 1000);
+        }
+        final NetworkStats[] usages = tracker.getRecentUsage(WINDOWS);
+        assertEquals(WINDOWS.length, usages.length);
+        assertUsage(usages[0], MINUTE_IN_MILLIS, UID_RED, 1000);
+        assertUsage(usages[1], 5 * MINUTE_IN_MILLIS, UID_RED, 5000);
+        assertUsage(usages[2], 10 * MINUTE_IN_MILLIS, UID_RED, 10000);
+
+        // Removed uids are forgotten.
+        tracker.removeUids(new int[] {UID_RED});
+        assertEquals(0, getRecentUsage(tracker, 15 * MINUTE_IN_MILLIS).size());
+    }
+
+    @Test
+    public void testWindowsWidenedToPolls() {
+        final NetworkStatsThroughputTracker tracker =
+                new NetworkStatsThroughputTracker(16, 15 * MINUTE_IN_MILLIS);
+        // Polls 10 minutes apart: the 1 and 5 minute windows both cover the last poll, and the
+        // duration tells how long the usage was measured over.
+        for (int i = 1; i <= 3; i++) {
+            tracker.startDelta();
+            tracker.recordEntry(new NetworkStats.Entry(TEST_IFACE, UID_RED, SET_DEFAULT,
+                    TAG_NONE, 100, 1, 0, 0, 0));
+            tracker.finishDelta(TEST_START + (i - 1) * 10 * MINUTE_IN_MILLIS,
+                    TEST_START + i * 10 * MINUTE_IN_MILLIS);
+        }
+        final NetworkStats[] usages = tracker.getRecentUsage(WINDOWS);
+        assertUsage(usages[0], 10 * MINUTE_IN_MILLIS, UID_RED, 100);
+        assertUsage(usages[1], 10 * MINUTE_IN_MILLIS, UID_RED, 100);
+        assertUsage(usages[2], 20 * MINUTE_IN_MILLIS, UID_RED, 200);
+    }
+
+    @Test
+    public void testOldDeltasDropped() {
+        final NetworkStatsThroughputTracker tracker =
+                new NetworkStatsThroughputTracker(4, 15 * MINUTE_IN_MILLIS);
+        for (int i = 1; i <= 6; i++) {
+            recordDelta(tracker, TEST_START + i * MINUTE_IN_MILLIS, UID_RED, 1000);
+        }
+        // Past capacity, only the most recent deltas are kept.
+        assertEquals(4, tracker.size());
+        assertUsage(getRecentUsage(tracker, 15 * MINUTE_IN_MILLIS), 4 * MINUTE_IN_MILLIS,
+                UID_RED, 4000);
+
+        // Past the maximum window too.
+        recordDelta(tracker, TEST_START + 30 * MINUTE_IN_MILLIS, UID_BLUE, 1000);
+        assertEquals(1, tracker.size());
+        assertUsage(getRecentUsage(tracker, 15 * MINUTE_IN_MILLIS), MINUTE_IN_MILLIS,
+                UID_BLUE, 1000);
+    }
+}
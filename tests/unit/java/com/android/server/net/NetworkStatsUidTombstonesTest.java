@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import libcore.testing.io.TestIoUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/** Tests for {@link NetworkStatsUidTombstones}. */
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(SC_V2)
+public class NetworkStatsUidTombstonesTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(TestIoUtils.createTemporaryDirectory("netstats"), "test.tombstones");
+    }
+
+    @Test
+    public void testAddReload() throws Exception {
+        final NetworkStatsUidTombstones tombstones = new NetworkStatsUidTombstones(mFile);
+        assertTrue(tombstones.isEmpty());
+        assertFalse(mFile.exists());
+
+        tombstones.add(new int[] {10012, 10010});
+        tombstones.add(new int[] {10011, 10012});
+        assertEquals(3, tombstones.size());
+        assertArrayEquals(new int[] {10010, 10011, 10012}, tombstones.getUids());
+        assertTrue(tombstones.contains(10011));
+        assertFalse(tombstones.contains(10013));
+
+        // Tombstones survive a restart.
+        final NetworkStatsUidTombstones reloaded = new NetworkStatsUidTombstones(mFile);
+        assertArrayEquals(new int[] {10010, 10011, 10012}, reloaded.getUids());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        final NetworkStatsUidTombstones tombstones = new NetworkStatsUidTombstones(mFile);
+        tombstones.add(new int[] {10010});
+        assertTrue(mFile.exists());
+
+        tombstones.clear();
+        assertTrue(tombstones.isEmpty());
+        assertFalse(mFile.exists());
+        assertTrue(new NetworkStatsUidTombstones(mFile).isEmpty());
+    }
+}